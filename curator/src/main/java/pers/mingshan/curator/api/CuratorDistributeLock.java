@@ -55,13 +55,21 @@ public class CuratorDistributeLock {
     private static void doWithLock(CuratorFramework client) {
         InterProcessMutex lock = new InterProcessMutex(client, ZK_PATH);
         try {
-            if (lock.acquire(10 * 1000, TimeUnit.SECONDS)) {
-                logger.info(Thread.currentThread().getName() + " hold lock");
-                Thread.sleep(5000L);
-                logger.info(Thread.currentThread().getName() + " release lock");
+            // 最多等待10秒，没拿到锁时不能release
+            if (!lock.acquire(10, TimeUnit.SECONDS)) {
+                logger.info(Thread.currentThread().getName() + " could not acquire lock");
+                return;
             }
         } catch (Exception e) {
             e.printStackTrace();
+            return;
+        }
+        try {
+            logger.info(Thread.currentThread().getName() + " hold lock");
+            Thread.sleep(5000L);
+            logger.info(Thread.currentThread().getName() + " release lock");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             try {
                 lock.release();
@@ -1,17 +1,24 @@
 package pers.mingshan.curator.api;
 
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.framework.recipes.leader.LeaderSelector;
+import org.apache.curator.framework.recipes.leader.CancelLeadershipException;
 import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.retry.RetryNTimes;
-import org.apache.curator.utils.EnsurePath;
+import org.apache.curator.utils.ZKPaths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pers.mingshan.curator.leader.ElectionManager;
+import pers.mingshan.curator.leader.LeaderScopedExecutor;
+
 /**
  * 选举
  * 
@@ -25,39 +32,70 @@ public class CuratorLeaderSelector {
     // 命名空间即根路经
     private static final String NAME_SPACE = "zkbase";
     private static final String ZK_PATH = "/zktest";
+    // 每个参与者在一个客户端上参与所有分片的选举
+    private static final int SHARDS = 3;
     
     public static void main(String[] args) throws InterruptedException {
-        LeaderSelectorListener listener = new LeaderSelectorListener() {
-            @Override
-            public void takeLeadership(CuratorFramework client) throws Exception {
-                logger.info(Thread.currentThread().getName() + " take leadership!");
-
-                // takeLeadership() method should only return when leadership is being relinquished.
-                Thread.sleep(5000L);
-
-                logger.info(Thread.currentThread().getName() + " relinquish leadership!");
-            }
-
-            @Override
-            public void stateChanged(CuratorFramework client, ConnectionState state) {
-            }
-        };
-
         new Thread(() -> {
-            registerListener(listener);
+            registerListener();
         }).start();
 
         new Thread(() -> {
-            registerListener(listener);
+            registerListener();
         }).start();
 
         new Thread(() -> {
-            registerListener(listener);
+            registerListener();
         }).start();
 
         Thread.sleep(Integer.MAX_VALUE);
     }
-    private static void registerListener(LeaderSelectorListener listener) {
+
+    /**
+     * 每个选举一个listener，leader的工作交给只在持有领导权期间执行任务的线程池
+     */
+    private static LeaderSelectorListener newListener() {
+        LeaderScopedExecutor executor = new LeaderScopedExecutor(2, 8, LeaderScopedExecutor.LossPolicy.CANCEL, 0,
+                TimeUnit.MILLISECONDS);
+        AtomicInteger processed = new AtomicInteger();
+        return new LeaderSelectorListener() {
+            @Override
+            public void takeLeadership(CuratorFramework client) throws Exception {
+                logger.info(Thread.currentThread().getName() + " take leadership!");
+                executor.lead(client);
+                int before = processed.get();
+                long end = System.currentTimeMillis() + 5000L;
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        executor.submit(() -> {
+                            Thread.sleep(100L);
+                            return processed.incrementAndGet();
+                        });
+                    }
+                } catch (RejectedExecutionException e) {
+                    logger.info(Thread.currentThread().getName() + " lost leadership!");
+                } finally {
+                    // takeLeadership() method should only return when leadership is being relinquished.
+                    executor.relinquish(Thread.currentThread().isInterrupted() ? 0 : 1000L, TimeUnit.MILLISECONDS);
+                }
+
+                logger.info(Thread.currentThread().getName() + " relinquish leadership after "
+                        + (processed.get() - before) + " tasks!");
+            }
+
+            @Override
+            public void stateChanged(CuratorFramework client, ConnectionState state) {
+                // SUSPENDED时暂停，LOST或者换了会话时取消正在执行的任务并放弃领导权
+                boolean leading = executor.isLeading();
+                executor.stateChanged(client, state);
+                if (leading && !executor.isLeading()) {
+                    throw new CancelLeadershipException();
+                }
+            }
+        };
+    }
+
+    private static void registerListener() {
         // 使用Fluent风格的Api创建会话
         // RetryPolicy为重试策略,内建有四种重试策略
         RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
@@ -73,21 +111,16 @@ public class CuratorLeaderSelector {
         // 启动
         client.start();
 
-        // 2.Ensure path
-        try {
-            new EnsurePath(ZK_PATH).ensure(client.getZookeeperClient());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        // 3.Register listener
-        LeaderSelector selector = new LeaderSelector(client, ZK_PATH, listener);
+        // 2.Register listener
         /**
-         * autoRequeue()方法使放弃Leadership的Listener有机会重新获得Leadership，
-         * 如果不设置的话放弃了的Listener是不会再变成Leader的。
+         * 所有分片的选举共用这个客户端，takeLeadership在ElectionManager的线程池中执行，
+         * 返回后放弃Leadership并重新排队，相当于LeaderSelector的autoRequeue()。
+         * 连接挂起时ElectionManager不结束任期，由listener的stateChanged决定是否放弃。
          */
-        selector.autoRequeue();
-        selector.start();
+        ElectionManager manager = new ElectionManager(client, Thread.currentThread().getName(), SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            manager.register(ZKPaths.makePath(ZK_PATH, "shard-" + i), newListener());
+        }
     }
 
 }
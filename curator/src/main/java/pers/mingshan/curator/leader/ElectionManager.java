@@ -0,0 +1,233 @@
+package pers.mingshan.curator.leader;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.leader.CancelLeadershipException;
+import org.apache.curator.framework.recipes.leader.LeaderLatchListener;
+import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 在一个客户端上同时参与多个选举
+ *
+ * 每个 LeaderSelector 在排队期间都占用一个线程阻塞在锁上，参与几百个选举就要几百个线程，
+ * 每个参与者再单独建一个客户端还要加上各自的会话、心跳和ZooKeeper的IO线程。
+ * 这里所有选举共用一个客户端，排队由 {@link FastLeaderLatch} 完成(只依赖watch，不占线程，节点格式与LeaderLatch相同)，
+ * 成为leader后在共用的固定大小的线程池中执行 takeLeadership：
+ * <ul>
+ * <li>takeLeadership 返回时放弃领导权并重新排队，相当于 LeaderSelector 的 autoRequeue</li>
+ * <li>整个管理器只注册一个连接状态监听，把状态转发给每个选举的 stateChanged，
+ * 抛出 CancelLeadershipException 时中断 takeLeadership 并放弃领导权</li>
+ * <li>连接挂起(SUSPENDED)本身不会结束任期：与 LeaderSelector 一样由 stateChanged 决定，
+ * LeaderSelectorListenerAdapter 在挂起时抛出 CancelLeadershipException；不抛出时继续持有，
+ * 重新连接后会话没有变化就不中断 takeLeadership</li>
+ * <li>连接丢失(LOST)或者重新连接后会话已经变化时失去leader身份，中断正在执行的 takeLeadership</li>
+ * </ul>
+ * 线程池中的线程数就是能同时工作的leader数，超出时 takeLeadership 排队等待空闲的线程，
+ * 因此 takeLeadership 应当做完一段工作就返回，而不是一直持有领导权。
+ *
+ * @author mingshan
+ *
+ */
+public class ElectionManager implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ElectionManager.class);
+
+    private final CuratorFramework client;
+    private final String id;
+    private final ExecutorService executor;
+    private final Map<String, Election> elections = new ConcurrentHashMap<>();
+    private final AtomicInteger leaders = new AtomicInteger();
+    private final ConnectionStateListener connectionListener = (c, state) -> connectionChanged(state);
+    private volatile boolean closed;
+
+    /**
+     * @param id 写入各个选举节点的参与者id
+     * @param threads 执行 takeLeadership 的线程数
+     */
+    public ElectionManager(CuratorFramework client, String id, int threads) {
+        this.client = client;
+        this.id = id;
+        this.executor = Executors.newFixedThreadPool(threads, ThreadUtils.newThreadFactory("ElectionManager"));
+        client.getConnectionStateListenable().addListener(connectionListener);
+    }
+
+    /**
+     * 参与 path 上的选举
+     */
+    public Election register(String path, LeaderSelectorListener listener) {
+        if (closed) {
+            throw new IllegalStateException("ElectionManager is closed");
+        }
+        Election election = new Election(path, listener);
+        if (elections.putIfAbsent(path, election) != null) {
+            throw new IllegalArgumentException("Already registered: " + path);
+        }
+        election.latch.start();
+        return election;
+    }
+
+    public int getElectionCount() {
+        return elections.size();
+    }
+
+    /**
+     * @return 当前是leader的选举数
+     */
+    public int getLeaderCount() {
+        return leaders.get();
+    }
+
+    private void connectionChanged(ConnectionState state) {
+        for (Election election : elections.values()) {
+            try {
+                election.listener.stateChanged(client, state);
+            } catch (CancelLeadershipException e) {
+                election.cancel();
+                if (election.latch.hasLeadership()) {
+                    // 可能处于挂起状态，不能同步访问ZooKeeper
+                    election.latch.relinquishInBackground();
+                }
+            } catch (Exception e) {
+                logger.error("Listener of " + election.path + " failed on " + state, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        client.getConnectionStateListenable().removeListener(connectionListener);
+        for (Election election : elections.values()) {
+            election.close();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * 一个选举
+     */
+    public final class Election implements LeaderLatchListener, Closeable {
+        private final String path;
+        private final LeaderSelectorListener listener;
+        private final FastLeaderLatch latch;
+
+        /** 以下字段由this保护，每次成为或失去leader时 term 加一，丢弃过期的任务 */
+        private int term;
+        private boolean leading;
+        private Future<?> task;
+
+        Election(String path, LeaderSelectorListener listener) {
+            this.path = path;
+            this.listener = listener;
+            this.latch = new FastLeaderLatch(client, path, id, true);
+            latch.addListener(this);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean hasLeadership() {
+            return latch.hasLeadership();
+        }
+
+        @Override
+        public void isLeader() {
+            synchronized (this) {
+                if (leading) {
+                    return;
+                }
+                leading = true;
+                int expected = ++term;
+                leaders.incrementAndGet();
+                try {
+                    task = executor.submit(() -> lead(expected));
+                } catch (RejectedExecutionException ignored) {
+                    // 已经关闭
+                }
+            }
+        }
+
+        @Override
+        public void notLeader() {
+            cancel();
+        }
+
+        private void lead(int expected) {
+            synchronized (this) {
+                if (!leading || term != expected) {
+                    return;
+                }
+            }
+            try {
+                listener.takeLeadership(client);
+            } catch (InterruptedException e) {
+                // 失去leader身份时被中断
+            } catch (Exception e) {
+                logger.error("takeLeadership of " + path + " failed", e);
+            } finally {
+                boolean relinquish;
+                synchronized (this) {
+                    relinquish = leading && term == expected;
+                    if (relinquish) {
+                        stopLeading();
+                    }
+                }
+                // 清除中断状态，否则ZooKeeper的同步请求会失败
+                Thread.interrupted();
+                if (relinquish && !closed) {
+                    try {
+                        latch.relinquish();
+                    } catch (Exception e) {
+                        logger.error("Could not relinquish " + path, e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 失去leader身份，中断正在执行的 takeLeadership
+         */
+        void cancel() {
+            synchronized (this) {
+                if (leading) {
+                    Future<?> running = task;
+                    stopLeading();
+                    if (running != null) {
+                        running.cancel(true);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 持有this时调用
+         */
+        private void stopLeading() {
+            leading = false;
+            term++;
+            task = null;
+            leaders.decrementAndGet();
+        }
+
+        @Override
+        public void close() {
+            elections.remove(path, this);
+            cancel();
+            CloseableUtils.closeQuietly(latch);
+        }
+    }
+}
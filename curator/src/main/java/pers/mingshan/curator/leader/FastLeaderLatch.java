@@ -0,0 +1,442 @@
+package pers.mingshan.curator.leader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.leader.LeaderLatchListener;
+import org.apache.curator.framework.recipes.locks.StandardLockInternalsDriver;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 交接更快的 LeaderLatch
+ *
+ * 节点命名和排序与 LeaderLatch 相同(带protection的 latch- 临时顺序节点，数据为id)。
+ * LeaderLatch 在前一个节点删除后要再读一次子节点列表才能确认自己是不是leader，
+ * 这里每个候选者只在加入时读一次子节点列表，之后只监听前一个节点：
+ * <ul>
+ * <li>成为leader后把自己节点的数据原样再写一次，版本号大于0表示这个节点是leader</li>
+ * <li>后继监听前一个节点的数据和删除，删除前已经知道它是leader(或者它是列表中的第一个)时，
+ * 收到删除通知立即成为leader，不再访问ZooKeeper</li>
+ * <li>前一个节点是中途离开的普通候选者时，沿加入时读到的列表改为监听更前面的节点</li>
+ * </ul>
+ *
+ * {@link #relinquish()} 是平滑交接：先回调 notLeader 让当前leader停止工作，再删除节点，然后重新排到队尾。
+ * close同样先回调 notLeader 再删除节点(LeaderLatch的close先删除节点，新leader可能在旧leader停止之前就开始工作)。
+ * 监听器默认在ZooKeeper回调线程或调用线程中同步执行。
+ *
+ * 连接挂起或丢失时放弃leader身份，重新连接后删除旧节点重新排队。
+ * 以 tolerateSuspended 创建时，连接挂起不放弃leader身份，重新连接后会话没有变化就继续持有，
+ * 由调用方在挂起期间决定是否 {@link #relinquishInBackground()}；连接丢失或重连后会话已经变化(Curator 2.x
+ * 连接超时后会静默重建会话，只通知RECONNECTED)时放弃。
+ *
+ * @author mingshan
+ *
+ */
+public class FastLeaderLatch implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FastLeaderLatch.class);
+    private static final String LOCK_NAME = "latch-";
+    private static final StandardLockInternalsDriver DRIVER = new StandardLockInternalsDriver();
+    private static final Comparator<String> BY_SEQUENCE = Comparator
+            .comparing(name -> DRIVER.fixForSorting(name, LOCK_NAME));
+
+    private final CuratorFramework client;
+    private final String latchPath;
+    private final String id;
+    private final ListenerContainer<LeaderLatchListener> listeners = new ListenerContainer<>();
+    private final AtomicBoolean hasLeadership = new AtomicBoolean();
+    /** 串行化leader身份的变化，先于this获取 */
+    private final Object leadershipLock = new Object();
+    private final CuratorWatcher watcher = this::predecessorChanged;
+    private final ConnectionStateListener connectionListener = (c, state) -> connectionChanged(state);
+    private final AtomicLong childrenReads = new AtomicLong();
+    private final boolean tolerateSuspended;
+
+    /** 以下字段由this保护 */
+    private boolean started;
+    private boolean closed;
+    /** 每次重新排队加一，丢弃之前发出的请求的回调 */
+    private long generation;
+    private String ourPath;
+    /** 正在监听的前一个节点，及其在加入时读到的列表中的位置 */
+    private String target;
+    private List<String> sorted;
+    private int index;
+    private boolean targetIsLeader;
+    /** 创建当前节点的会话 */
+    private long sessionId;
+
+    public FastLeaderLatch(CuratorFramework client, String latchPath, String id) {
+        this(client, latchPath, id, false);
+    }
+
+    /**
+     * @param tolerateSuspended true时连接挂起不放弃leader身份，只在连接丢失或会话变化时放弃
+     */
+    public FastLeaderLatch(CuratorFramework client, String latchPath, String id, boolean tolerateSuspended) {
+        this.client = client;
+        this.latchPath = latchPath;
+        this.id = id;
+        this.tolerateSuspended = tolerateSuspended;
+    }
+
+    public void addListener(LeaderLatchListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public void addListener(LeaderLatchListener listener, Executor executor) {
+        listeners.addListener(listener, executor);
+    }
+
+    public synchronized void start() {
+        if (started) {
+            throw new IllegalStateException("Cannot be started more than once");
+        }
+        started = true;
+        client.getConnectionStateListenable().addListener(connectionListener);
+        createNode(generation);
+    }
+
+    public boolean hasLeadership() {
+        return hasLeadership.get();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return 读取子节点列表的次数，只在加入队列时读取
+     */
+    public long getChildrenReads() {
+        return childrenReads.get();
+    }
+
+    /**
+     * 平滑交接：先停止当前leader的工作，再删除节点让已经在监听的后继接任，然后重新排到队尾
+     */
+    public void relinquish() throws Exception {
+        String path;
+        long requeue;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            path = resetState();
+            requeue = generation;
+        }
+        setLeadership(false);
+        deleteNode(path);
+        createNode(requeue);
+    }
+
+    /**
+     * 与 {@link #relinquish()} 相同，但在后台删除和重新创建节点，不会阻塞，可以在连接挂起时调用。
+     * 挂起期间没能重新排队时，重新连接后重新排队
+     */
+    public void relinquishInBackground() {
+        String path;
+        long requeue;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            path = resetState();
+            requeue = generation;
+        }
+        setLeadership(false);
+        deleteInBackground(path);
+        createNode(requeue);
+    }
+
+    @Override
+    public void close() throws IOException {
+        String path;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            path = resetState();
+        }
+        client.getConnectionStateListenable().removeListener(connectionListener);
+        setLeadership(false);
+        try {
+            deleteNode(path);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        listeners.clear();
+    }
+
+    /**
+     * 持有this时调用，丢弃当前节点的状态
+     *
+     * @return 原来的节点
+     */
+    private String resetState() {
+        generation++;
+        String path = ourPath;
+        ourPath = null;
+        target = null;
+        sorted = null;
+        return path;
+    }
+
+    private void deleteNode(String path) throws Exception {
+        if (path == null) {
+            return;
+        }
+        try {
+            client.delete().guaranteed().forPath(path);
+        } catch (KeeperException.NoNodeException ignored) {
+            // 会话过期时已经删除
+        }
+    }
+
+    private void deleteInBackground(String path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            client.delete().guaranteed().inBackground().forPath(path);
+        } catch (Exception e) {
+            logger.warn("Could not delete latch node " + path, e);
+        }
+    }
+
+    private void createNode(long expected) {
+        try {
+            client.create().creatingParentContainersIfNeeded().withProtection()
+                    .withMode(CreateMode.EPHEMERAL_SEQUENTIAL).inBackground((c, event) -> created(expected, event))
+                    .forPath(ZKPaths.makePath(latchPath, LOCK_NAME), id.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            logger.error("Could not create latch node under " + latchPath, e);
+        }
+    }
+
+    private void created(long expected, CuratorEvent event) throws Exception {
+        if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+            logger.error("Could not create latch node under " + latchPath + ": "
+                    + KeeperException.Code.get(event.getResultCode()));
+            return;
+        }
+        long session = client.getZookeeperClient().getZooKeeper().getSessionId();
+        synchronized (this) {
+            if (expected == generation && !closed) {
+                ourPath = event.getName();
+                sessionId = session;
+                readChildren(expected);
+                return;
+            }
+        }
+        // 创建期间已经放弃或关闭
+        client.delete().guaranteed().inBackground().forPath(event.getName());
+    }
+
+    private void readChildren(long expected) throws Exception {
+        childrenReads.incrementAndGet();
+        client.getChildren().inBackground((c, event) -> childrenRead(expected, event)).forPath(latchPath);
+    }
+
+    private void childrenRead(long expected, CuratorEvent event) throws Exception {
+        if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+            logger.error("Could not read " + latchPath + ": " + KeeperException.Code.get(event.getResultCode()));
+            return;
+        }
+        List<String> children = new ArrayList<>(event.getChildren());
+        children.sort(BY_SEQUENCE);
+        int position;
+        synchronized (this) {
+            if (expected != generation || ourPath == null) {
+                return;
+            }
+            position = children.indexOf(ZKPaths.getNodeFromPath(ourPath));
+            if (position < 0) {
+                // 节点随会话过期被删除，重新排队
+                ourPath = null;
+                generation++;
+                createNode(generation);
+                return;
+            }
+        }
+        watchBehind(expected, children, position);
+    }
+
+    /**
+     * 监听 children 中 position 之前的节点，没有时成为leader
+     */
+    private void watchBehind(long expected, List<String> children, int position) throws Exception {
+        if (position == 0) {
+            becomeLeader(expected);
+            return;
+        }
+        synchronized (this) {
+            if (expected != generation) {
+                return;
+            }
+            target = children.get(position - 1);
+            sorted = children;
+            index = position - 1;
+            targetIsLeader = false;
+        }
+        watchTarget(expected);
+    }
+
+    private void watchTarget(long expected) throws Exception {
+        String prev;
+        synchronized (this) {
+            if (expected != generation || target == null) {
+                return;
+            }
+            prev = target;
+        }
+        client.getData().usingWatcher(watcher).inBackground((c, event) -> {
+            if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                predecessorGone(expected, prev);
+            } else if (event.getResultCode() == KeeperException.Code.OK.intValue()
+                    && event.getStat().getVersion() > 0) {
+                synchronized (this) {
+                    if (expected == generation && prev.equals(target)) {
+                        targetIsLeader = true;
+                    }
+                }
+            }
+        }).forPath(ZKPaths.makePath(latchPath, prev));
+    }
+
+    private void predecessorChanged(WatchedEvent event) throws Exception {
+        long expected;
+        synchronized (this) {
+            expected = generation;
+        }
+        if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+            predecessorGone(expected, ZKPaths.getNodeFromPath(event.getPath()));
+        } else if (event.getType() == Watcher.Event.EventType.NodeDataChanged) {
+            // 前一个节点成为了leader，重新设置监听
+            synchronized (this) {
+                if (expected == generation && ZKPaths.getNodeFromPath(event.getPath()).equals(target)) {
+                    targetIsLeader = true;
+                }
+            }
+            watchTarget(expected);
+        }
+    }
+
+    private void predecessorGone(long expected, String prev) throws Exception {
+        boolean wasLeader;
+        List<String> children;
+        int position;
+        synchronized (this) {
+            if (expected != generation || !prev.equals(target)) {
+                return;
+            }
+            wasLeader = targetIsLeader;
+            children = sorted;
+            position = index;
+            target = null;
+        }
+        if (wasLeader) {
+            // 更前面的节点在它成为leader时都已经删除
+            becomeLeader(expected);
+        } else {
+            watchBehind(expected, children, position);
+        }
+    }
+
+    private void becomeLeader(long expected) throws Exception {
+        String path;
+        // 检查和设置要与重置方的 setLeadership(false) 互斥，否则检查之后被重置(重新连接、relinquish)时，
+        // 重置方先执行完，这里再设置为leader，丢弃的节点会一直持有leader身份
+        synchronized (leadershipLock) {
+            synchronized (this) {
+                if (expected != generation || ourPath == null) {
+                    return;
+                }
+                path = ourPath;
+            }
+            setLeadership(true);
+        }
+        // 增加版本号，告诉后继自己是leader
+        client.setData().inBackground().forPath(path, id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 不能在持有this时调用
+     */
+    private void setLeadership(boolean leader) {
+        synchronized (leadershipLock) {
+            if (hasLeadership.getAndSet(leader) == leader) {
+                return;
+            }
+            listeners.forEach(listener -> {
+                if (leader) {
+                    listener.isLeader();
+                } else {
+                    listener.notLeader();
+                }
+                return null;
+            });
+        }
+    }
+
+    private void connectionChanged(ConnectionState state) {
+        if (state == ConnectionState.SUSPENDED) {
+            if (!tolerateSuspended) {
+                setLeadership(false);
+            }
+        } else if (state == ConnectionState.LOST) {
+            setLeadership(false);
+        } else if (state == ConnectionState.RECONNECTED) {
+            if (tolerateSuspended && hasLeadership.get() && !sessionChanged()) {
+                // 会话没有过期，节点还在，继续持有
+                return;
+            }
+            // 不知道挂起期间发生了什么，重新排队
+            String path;
+            long requeue;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                path = resetState();
+                requeue = generation;
+            }
+            // 与relinquish和close一样：重连时送达的删除通知可能已经让旧节点成为了leader，
+            // 节点已经丢弃，不能继续持有，否则会和另一个当选的候选者同时是leader
+            setLeadership(false);
+            deleteInBackground(path);
+            createNode(requeue);
+        }
+    }
+
+    private boolean sessionChanged() {
+        long current;
+        try {
+            current = client.getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            return true;
+        }
+        synchronized (this) {
+            return current != sessionId;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package pers.mingshan.curator.leader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+
+/**
+ * leader状态的检查点
+ *
+ * leader定期把内存中的状态压缩后分块写到ZooKeeper，所有候选者监听并在后台解码出最新的一份，
+ * 新当选的leader用 {@link #resume()} 直接拿到这份状态，不用从头重建。
+ * <pre>
+ * path/manifest          版本号、分块前缀、块数、压缩后和原始长度、CRC32，写入manifest即为提交
+ * path/chunks/前缀-序号   压缩后的数据，每块不超过 chunkSize(默认512KB，低于jute.maxbuffer的1MB)
+ * </pre>
+ * 先写所有分块再用CAS更新manifest，最后删除版本号更小的分块；读取时分块被删除(有更新的版本)则重新读取manifest。
+ * 卸任的leader提交之后停顿，继任者写入的分块版本号更大，不会被它删除。
+ * manifest版本冲突说明有其他leader写过检查点，save抛出 IllegalStateException，调用方应当放弃leader身份。
+ * CAS的基准只在当选后的 {@link #resume()} 和本实例成功保存之后更新，后台加载不会更新它：
+ * 卸任的leader即使已经在后台加载了继任者写入的检查点，也不能覆盖。
+ * resume读到manifest但解码失败时同样以它为基准，新的leader可以覆盖损坏的检查点。
+ *
+ * 不要把检查点放在LeaderSelector/LeaderLatch的选举路径下面：它们把选举路径的所有子节点都当作候选者，
+ * 默认放在选举路径的兄弟节点 选举路径-checkpoint 下。
+ *
+ * @author mingshan
+ *
+ */
+public class LeaderCheckpoint<T> implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LeaderCheckpoint.class);
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int UNREAD = Integer.MIN_VALUE;
+
+    /**
+     * 状态与字节的转换
+     */
+    public interface Codec<T> {
+        byte[] encode(T state) throws IOException;
+
+        T decode(byte[] data) throws IOException;
+    }
+
+    /**
+     * 解码后的一份检查点
+     */
+    public static final class Snapshot<T> {
+        private final long version;
+        private final T state;
+
+        Snapshot(long version, T state) {
+            this.version = version;
+            this.state = state;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public T getState() {
+            return state;
+        }
+    }
+
+    private final CuratorFramework client;
+    private final String manifestPath;
+    private final String chunksPath;
+    private final Codec<T> codec;
+    private final int chunkSize;
+    private final ScheduledExecutorService executor = ThreadUtils
+            .newSingleThreadScheduledExecutor("LeaderCheckpoint");
+    private final CuratorWatcher manifestWatcher = event -> submitLoad();
+
+    private volatile Snapshot<T> latest;
+    /** save的CAS基准：resume时读到或本实例写入的manifest的ZooKeeper版本，-1表示不存在 */
+    private volatile int writeBaseVersion = -1;
+    /** 作为基准的manifest中的检查点版本号，新版本号要大于它 */
+    private volatile long writeBaseCheckpoint;
+    /** 最近一次读到的manifest的ZooKeeper版本，只在executor中访问 */
+    private int readStatVersion = -1;
+    /** 最近一次读到的manifest中的检查点版本号，只在executor中访问 */
+    private long readCheckpoint;
+    private ScheduledFuture<?> periodic;
+    private final Object saveLock = new Object();
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong saves = new AtomicLong();
+    private volatile int lastCompressedSize;
+    private volatile int lastChunks;
+
+    /**
+     * 检查点放在 electionPath-checkpoint 下
+     */
+    public static <T> LeaderCheckpoint<T> forElection(CuratorFramework client, String electionPath, Codec<T> codec) {
+        return new LeaderCheckpoint<>(client, electionPath + "-checkpoint", codec, DEFAULT_CHUNK_SIZE);
+    }
+
+    public LeaderCheckpoint(CuratorFramework client, String path, Codec<T> codec, int chunkSize) {
+        this.client = client;
+        this.manifestPath = ZKPaths.makePath(path, "manifest");
+        this.chunksPath = ZKPaths.makePath(path, "chunks");
+        this.codec = codec;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 开始监听，在后台加载最新的检查点
+     */
+    public void start() {
+        submitLoad();
+    }
+
+    /**
+     * @return 后台加载的最新检查点，没有时为null
+     */
+    public Snapshot<T> getLatest() {
+        return latest;
+    }
+
+    /**
+     * 当选后调用：后台加载的不是最新版本时同步加载，返回最新的状态，没有检查点时返回null。
+     * 之后的 {@link #save} 以这次读到的manifest为基准。
+     */
+    public T resume() throws Exception {
+        CompletableFuture<Snapshot<T>> load = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                readStatVersion = UNREAD;
+                readCheckpoint = 0;
+                try {
+                    Snapshot<T> snapshot = load();
+                    setWriteBase();
+                    load.complete(snapshot);
+                } catch (Exception e) {
+                    if (readStatVersion != UNREAD) {
+                        // 读到了manifest但分块缺失或无法解码，之后的save可以覆盖它
+                        setWriteBase();
+                    }
+                    load.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException("Checkpoint closed", e);
+        }
+        Snapshot<T> snapshot;
+        try {
+            snapshot = load.get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), Exception.class);
+            throw e;
+        }
+        return snapshot == null ? null : snapshot.getState();
+    }
+
+    /**
+     * 在executor中调用，以最近一次读到的manifest作为save的基准
+     */
+    private void setWriteBase() {
+        writeBaseCheckpoint = readCheckpoint;
+        writeBaseVersion = readStatVersion;
+    }
+
+    /**
+     * 写入检查点
+     *
+     * @return 新的版本号
+     * @throws IllegalStateException 其他leader写过检查点
+     */
+    public long save(T state) throws Exception {
+        // 定期保存和leader线程的保存不能交错：后写入manifest的一方会删除另一方的分块
+        synchronized (saveLock) {
+            return doSave(state);
+        }
+    }
+
+    private long doSave(T state) throws Exception {
+        byte[] raw = codec.encode(state);
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+        byte[] compressed = deflate(raw);
+
+        Snapshot<T> current = latest;
+        long version = Math.max(current == null ? 0 : current.getVersion(), writeBaseCheckpoint) + 1;
+        String prefix = version + "-" + UUID.randomUUID().toString().substring(0, 8);
+        int chunks = Math.max(1, (compressed.length + chunkSize - 1) / chunkSize);
+        for (int i = 0; i < chunks; i++) {
+            int from = i * chunkSize;
+            byte[] chunk = Arrays.copyOfRange(compressed, from, Math.min(compressed.length, from + chunkSize));
+            client.create().creatingParentsIfNeeded().forPath(ZKPaths.makePath(chunksPath, prefix + "-" + i), chunk);
+        }
+
+        byte[] manifest = encodeManifest(version, prefix, chunks, compressed.length, raw.length, crc.getValue());
+        Stat stat;
+        try {
+            if (writeBaseVersion < 0) {
+                client.create().creatingParentsIfNeeded().forPath(manifestPath, manifest);
+                stat = client.checkExists().forPath(manifestPath);
+            } else {
+                stat = client.setData().withVersion(writeBaseVersion).forPath(manifestPath, manifest);
+            }
+        } catch (KeeperException.BadVersionException | KeeperException.NodeExistsException e) {
+            deleteChunks(prefix);
+            submitLoad();
+            throw new IllegalStateException("Checkpoint " + manifestPath + " was written by another leader", e);
+        }
+        writeBaseCheckpoint = version;
+        writeBaseVersion = stat.getVersion();
+        synchronized (this) {
+            latest = new Snapshot<>(version, state);
+        }
+        saves.incrementAndGet();
+        lastCompressedSize = compressed.length;
+        lastChunks = chunks;
+        deleteOlderChunks(version);
+        return version;
+    }
+
+    /**
+     * 每隔 intervalMs 保存一次 state 提供的状态，失去leader身份时调用 {@link #stopPeriodic()}
+     */
+    public synchronized void startPeriodic(Supplier<T> state, long intervalMs) {
+        stopPeriodic();
+        periodic = executor.scheduleWithFixedDelay(() -> {
+            try {
+                save(state.get());
+            } catch (Exception e) {
+                if (!executor.isShutdown()) {
+                    logger.warn("Could not save checkpoint " + manifestPath, e);
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopPeriodic() {
+        if (periodic != null) {
+            periodic.cancel(false);
+            periodic = null;
+        }
+    }
+
+    /**
+     * 删除 prefix 的分块
+     */
+    private void deleteChunks(String prefix) {
+        try {
+            for (String child : client.getChildren().forPath(chunksPath)) {
+                if (child.startsWith(prefix + "-")) {
+                    client.delete().inBackground().forPath(ZKPaths.makePath(chunksPath, child));
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Could not clean up chunks under " + chunksPath, e);
+        }
+    }
+
+    /**
+     * 提交 version 之后删除版本号更小的分块。分块名以版本号开头，
+     * 不能删除其他版本号更大的分块：提交之后停顿期间继任者可能已经提交了更新的版本
+     */
+    private void deleteOlderChunks(long version) {
+        try {
+            for (String child : client.getChildren().forPath(chunksPath)) {
+                int end = child.indexOf('-');
+                long chunkVersion;
+                try {
+                    chunkVersion = Long.parseLong(end < 0 ? child : child.substring(0, end));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (chunkVersion < version) {
+                    client.delete().inBackground().forPath(ZKPaths.makePath(chunksPath, child));
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Could not clean up chunks under " + chunksPath, e);
+        }
+    }
+
+    private void submitLoad() {
+        try {
+            executor.execute(() -> {
+                try {
+                    load();
+                } catch (Exception e) {
+                    logger.warn("Could not load checkpoint " + manifestPath, e);
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // 已经关闭
+        }
+    }
+
+    /**
+     * 在executor中调用，读取manifest并重新设置监听，有更新的版本时加载
+     */
+    private Snapshot<T> load() throws Exception {
+        int retriedStatVersion = -1;
+        while (true) {
+            Stat stat = new Stat();
+            byte[] manifest;
+            try {
+                manifest = client.getData().storingStatIn(stat).usingWatcher(manifestWatcher).forPath(manifestPath);
+            } catch (KeeperException.NoNodeException e) {
+                client.checkExists().usingWatcher(manifestWatcher).forPath(manifestPath);
+                readStatVersion = -1;
+                readCheckpoint = 0;
+                return latest;
+            }
+            readStatVersion = stat.getVersion();
+            ByteBuffer buffer = ByteBuffer.wrap(manifest);
+            long version = buffer.getLong();
+            readCheckpoint = version;
+            Snapshot<T> current = latest;
+            if (current != null && current.getVersion() >= version) {
+                return current;
+            }
+            byte[] prefixBytes = new byte[buffer.getShort()];
+            buffer.get(prefixBytes);
+            String prefix = new String(prefixBytes, StandardCharsets.UTF_8);
+            int chunks = buffer.getInt();
+            int compressedLength = buffer.getInt();
+            int rawLength = buffer.getInt();
+            long crc = buffer.getLong();
+
+            byte[] compressed = new byte[compressedLength];
+            int offset = 0;
+            try {
+                for (int i = 0; i < chunks; i++) {
+                    byte[] chunk = client.getData().forPath(ZKPaths.makePath(chunksPath, prefix + "-" + i));
+                    System.arraycopy(chunk, 0, compressed, offset, chunk.length);
+                    offset += chunk.length;
+                }
+            } catch (KeeperException.NoNodeException e) {
+                if (stat.getVersion() == retriedStatVersion) {
+                    throw new IOException("Missing chunk of checkpoint " + manifestPath + " version " + version, e);
+                }
+                // 读取期间写入了新版本，旧的分块已经删除
+                retriedStatVersion = stat.getVersion();
+                continue;
+            }
+            byte[] raw = inflate(compressed, rawLength);
+            CRC32 actual = new CRC32();
+            actual.update(raw);
+            if (offset != compressedLength || actual.getValue() != crc) {
+                throw new IOException("Corrupt checkpoint " + manifestPath + " version " + version);
+            }
+            Snapshot<T> loaded = new Snapshot<>(version, codec.decode(raw));
+            loads.incrementAndGet();
+            synchronized (this) {
+                // 解码期间本实例可能已经保存了更新的版本
+                if (latest == null || latest.getVersion() < version) {
+                    latest = loaded;
+                }
+                return latest;
+            }
+        }
+    }
+
+    /**
+     * 检查点在交接的关键路径上，用最快的压缩级别；默认512字节的缓冲区会让压缩慢一个数量级
+     */
+    private static byte[] deflate(byte[] raw) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater, BUFFER_SIZE)) {
+            stream.write(raw);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int offset = 0;
+            while (offset < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, offset, rawLength - offset);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated checkpoint");
+                }
+                offset += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt checkpoint", e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    private static byte[] encodeManifest(long version, String prefix, int chunks, int compressedLength,
+            int rawLength, long crc) {
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + 2 + prefixBytes.length + 4 + 4 + 4 + 8).putLong(version)
+                .putShort((short) prefixBytes.length).put(prefixBytes).putInt(chunks).putInt(compressedLength)
+                .putInt(rawLength).putLong(crc).array();
+    }
+
+    /**
+     * @return 从ZooKeeper加载检查点的次数
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getSaves() {
+        return saves.get();
+    }
+
+    public int getLastCompressedSize() {
+        return lastCompressedSize;
+    }
+
+    public int getLastChunks() {
+        return lastChunks;
+    }
+
+    @Override
+    public void close() {
+        stopPeriodic();
+        executor.shutdownNow();
+    }
+}
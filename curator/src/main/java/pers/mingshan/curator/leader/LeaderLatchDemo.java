@@ -1,6 +1,7 @@
 package pers.mingshan.curator.leader;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
@@ -55,12 +56,12 @@ public class LeaderLatchDemo {
 
                     @Override
                     public void notLeader() {
-                        logger.info("I am Leader");
+                        logger.info("I am not Leader");
                     }
 
                     @Override
                     public void isLeader() {
-                        logger.info("I am not Leader");
+                        logger.info("I am Leader");
                     }
                 });
 
@@ -78,14 +79,20 @@ public class LeaderLatchDemo {
             } 
             logger.info("current leader is " + currentLeader.getId());
             logger.info("release the leader " + currentLeader.getId());
+            LeaderLatch oldLeader = currentLeader;
+            long start = System.nanoTime();
             currentLeader.close();
-            Thread.sleep(5000);
-            for (LeaderLatch latch : examples) {
-                if (latch.hasLeadership()) { 
-                    currentLeader = latch; 
+            // 交接通常在几毫秒内完成，不需要固定等待5秒，耗时的分布见LeaderHandoffBenchmark
+            while (currentLeader == oldLeader && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+                Thread.sleep(1);
+                for (LeaderLatch latch : examples) {
+                    if (latch != oldLeader && latch.hasLeadership()) {
+                        currentLeader = latch;
+                    }
                 }
-            } 
-            logger.info("current leader is " + currentLeader.getId()); 
+            }
+            logger.info("current leader is " + currentLeader.getId() + ", handoff took "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms"); 
             logger.info("release the leader " + currentLeader.getId());
         } finally {
             logger.info("Shutting down...");
@@ -0,0 +1,382 @@
+package pers.mingshan.curator.leader;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ThreadUtils;
+
+/**
+ * 只在持有领导权期间执行任务的线程池
+ *
+ * leader在 takeLeadership 开始时调用 {@link #lead(CuratorFramework)}，之后提交的任务在固定数量的线程中执行，
+ * 已提交未完成的任务数不超过 maxInFlight，超过时提交阻塞。作为 ConnectionStateListener 注册或在
+ * LeaderSelectorListener 的 stateChanged 中转发连接状态：
+ * <ul>
+ * <li>SUSPENDED：暂停，还没开始的任务等待，正在执行的任务可以用 {@link #isActive()} 自行检查</li>
+ * <li>RECONNECTED：会话没有变，领导权仍然有效，恢复执行；Curator 2.x 断开超过超时时间后会换一个新会话重连，
+ * 这时只有 RECONNECTED 而没有 LOST，旧会话上的领导权已经失效，按 LOST 处理</li>
+ * <li>LOST：领导权已经失效，拒绝提交，还没开始的任务立即取消；正在执行的任务按 LossPolicy
+ * 立即中断(CANCEL)，或者等待 lossDeadline 后再中断(DRAIN)</li>
+ * </ul>
+ * takeLeadership 返回前调用 {@link #relinquish(long, TimeUnit)}：不再接受提交，等待已提交的任务完成，超时后中断剩余的任务。
+ * 每次 lead 开始一个新的任期，上一个任期的任务不会在新任期中执行。
+ * 转发连接状态后 {@link #isLeading()} 由 true 变为 false 时，leader应当抛出 CancelLeadershipException 放弃领导权。
+ *
+ * @author mingshan
+ *
+ */
+public class LeaderScopedExecutor implements ConnectionStateListener, Closeable {
+
+    /**
+     * 失去领导权时如何处理正在执行的任务
+     */
+    public enum LossPolicy {
+        CANCEL, DRAIN
+    }
+
+    private enum State {
+        IDLE, ACTIVE, PAUSED
+    }
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final Semaphore permits;
+    private final LossPolicy lossPolicy;
+    private final long lossDeadlineMs;
+    private final Set<LeaderTask<?>> outstanding = ConcurrentHashMap.newKeySet();
+    private final Object lock = new Object();
+
+    /** 以下字段由lock保护，epoch每次开始或结束任期时加一 */
+    private State state = State.IDLE;
+    /** 正在放弃领导权，不再接受提交 */
+    private boolean draining;
+    private volatile long epoch;
+    /** 开始任期时的会话，0表示不检查 */
+    private long sessionId;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public LeaderScopedExecutor(int threads, int maxInFlight, LossPolicy lossPolicy, long lossDeadline,
+            TimeUnit unit) {
+        this.executor = Executors.newFixedThreadPool(threads, ThreadUtils.newThreadFactory("LeaderScopedExecutor"));
+        this.scheduler = ThreadUtils.newSingleThreadScheduledExecutor("LeaderScopedExecutor");
+        this.permits = new Semaphore(maxInFlight);
+        this.lossPolicy = lossPolicy;
+        this.lossDeadlineMs = unit.toMillis(lossDeadline);
+    }
+
+    /**
+     * 开始新的任期，RECONNECTED时检查会话是否还是 client 当前的会话
+     */
+    public void lead(CuratorFramework client) throws Exception {
+        start(client.getZookeeperClient().getZooKeeper().getSessionId());
+    }
+
+    /**
+     * 开始新的任期，不检查会话
+     */
+    public void lead() {
+        start(0);
+    }
+
+    private void start(long session) {
+        synchronized (lock) {
+            if (state != State.IDLE) {
+                throw new IllegalStateException("Already leading: " + state);
+            }
+            epoch++;
+            state = State.ACTIVE;
+            sessionId = session;
+        }
+    }
+
+    /**
+     * @return 当前任期还没有结束(包括暂停)
+     */
+    public boolean isLeading() {
+        synchronized (lock) {
+            return state != State.IDLE;
+        }
+    }
+
+    /**
+     * @return 持有领导权且没有暂停
+     */
+    public boolean isActive() {
+        synchronized (lock) {
+            return state == State.ACTIVE && !draining;
+        }
+    }
+
+    /**
+     * 提交任务，未完成的任务达到上限时阻塞
+     *
+     * @throws RejectedExecutionException 没有持有领导权或者正在放弃
+     */
+    public <T> Future<T> submit(Callable<T> task) throws InterruptedException {
+        permits.acquire();
+        LeaderTask<T> leaderTask;
+        synchronized (lock) {
+            if (state == State.IDLE || draining) {
+                permits.release();
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException(draining ? "Relinquishing leadership" : "Not leading");
+            }
+            leaderTask = new LeaderTask<>(task, epoch);
+            outstanding.add(leaderTask);
+        }
+        try {
+            executor.execute(leaderTask);
+        } catch (RejectedExecutionException e) {
+            leaderTask.cancel(false);
+            throw e;
+        }
+        return leaderTask;
+    }
+
+    /**
+     * 依次提交一批任务，中途失去领导权时抛出 RejectedExecutionException，已经提交的任务照常处理
+     */
+    public <T> List<Future<T>> submitBatch(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(submit(task));
+        }
+        return futures;
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        switch (newState) {
+        case SUSPENDED:
+            synchronized (lock) {
+                if (state == State.ACTIVE) {
+                    state = State.PAUSED;
+                }
+            }
+            break;
+        case RECONNECTED:
+            if (sessionChanged(client)) {
+                lose();
+                break;
+            }
+            synchronized (lock) {
+                if (state == State.PAUSED) {
+                    state = State.ACTIVE;
+                    lock.notifyAll();
+                }
+            }
+            break;
+        case LOST:
+            lose();
+            break;
+        default:
+            break;
+        }
+    }
+
+    private boolean sessionChanged(CuratorFramework client) {
+        long expected;
+        synchronized (lock) {
+            expected = sessionId;
+        }
+        if (expected == 0 || client == null) {
+            return false;
+        }
+        try {
+            return client.getZookeeperClient().getZooKeeper().getSessionId() != expected;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    /**
+     * 领导权已经失效
+     */
+    private void lose() {
+        long lost;
+        synchronized (lock) {
+            if (state == State.IDLE) {
+                return;
+            }
+            lost = epoch;
+            endTerm();
+        }
+        for (LeaderTask<?> task : outstanding) {
+            if (task.epoch != lost) {
+                continue;
+            }
+            if (lossPolicy == LossPolicy.CANCEL || !task.started) {
+                task.cancel(true);
+            }
+        }
+        if (lossPolicy == LossPolicy.DRAIN) {
+            scheduler.schedule(() -> cancelTerm(lost), lossDeadlineMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 放弃领导权：不再接受提交，等待已提交的任务完成，超时后中断剩余的任务
+     *
+     * @return 是否在超时前完成了所有任务
+     */
+    public boolean relinquish(long timeout, TimeUnit unit) throws InterruptedException {
+        long current;
+        synchronized (lock) {
+            if (state == State.IDLE) {
+                return outstanding.isEmpty();
+            }
+            current = epoch;
+            draining = true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        try {
+            for (LeaderTask<?> task : outstanding) {
+                long remaining = deadline - System.nanoTime();
+                if (task.epoch != current || task.isDone()) {
+                    continue;
+                }
+                if (remaining <= 0) {
+                    drained = false;
+                    break;
+                }
+                try {
+                    task.get(remaining, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    drained = false;
+                    break;
+                } catch (ExecutionException | CancellationException ignored) {
+                    // 任务自己的异常由提交者处理
+                }
+            }
+        } finally {
+            synchronized (lock) {
+                if (epoch == current) {
+                    endTerm();
+                }
+            }
+            cancelTerm(current);
+        }
+        return drained;
+    }
+
+    /**
+     * 持有lock时调用
+     */
+    private void endTerm() {
+        epoch++;
+        state = State.IDLE;
+        draining = false;
+        lock.notifyAll();
+    }
+
+    private void cancelTerm(long term) {
+        for (LeaderTask<?> task : outstanding) {
+            if (task.epoch == term) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return 已提交未完成的任务数，包括还没开始的
+     */
+    public int getInFlight() {
+        return outstanding.size();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (state != State.IDLE) {
+                endTerm();
+            }
+        }
+        for (LeaderTask<?> task : outstanding) {
+            task.cancel(true);
+        }
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * 属于某个任期的任务，暂停期间在开始前等待，任期结束后不再开始
+     */
+    private final class LeaderTask<T> extends FutureTask<T> {
+        final long epoch;
+        volatile boolean started;
+
+        LeaderTask(Callable<T> callable, long epoch) {
+            super(callable);
+            this.epoch = epoch;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            synchronized (lock) {
+                try {
+                    while (state == State.PAUSED && LeaderScopedExecutor.this.epoch == epoch) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    // 线程池关闭
+                    cancel(false);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (LeaderScopedExecutor.this.epoch != epoch) {
+                    cancel(false);
+                    return;
+                }
+            }
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            outstanding.remove(this);
+            permits.release();
+            if (isCancelled()) {
+                cancelled.incrementAndGet();
+            } else {
+                completed.incrementAndGet();
+            }
+        }
+    }
+}
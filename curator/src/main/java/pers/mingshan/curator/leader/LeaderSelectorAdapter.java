@@ -2,12 +2,18 @@ package pers.mingshan.curator.leader;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.leader.CancelLeadershipException;
 import org.apache.curator.framework.recipes.leader.LeaderSelector;
 import org.apache.curator.framework.recipes.leader.LeaderSelectorListenerAdapter;
+import org.apache.curator.framework.state.ConnectionState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +25,10 @@ public class LeaderSelectorAdapter extends LeaderSelectorListenerAdapter impleme
     private final String name;
     private final LeaderSelector leaderSelector;
     private final AtomicInteger leaderCount = new AtomicInteger();
+    // leader的工作只在持有领导权期间执行，会话过期后200ms内停止
+    private final LeaderScopedExecutor executor = new LeaderScopedExecutor(4, 16,
+            LeaderScopedExecutor.LossPolicy.DRAIN, 200, TimeUnit.MILLISECONDS);
+    private final AtomicInteger processed = new AtomicInteger();
 
     public LeaderSelectorAdapter(CuratorFramework client, String path, String name) {
         this.name = name;
@@ -33,6 +43,7 @@ public class LeaderSelectorAdapter extends LeaderSelectorListenerAdapter impleme
     @Override
     public void close() throws IOException {
         leaderSelector.close();
+        executor.close();
     }
 
     @Override
@@ -40,13 +51,45 @@ public class LeaderSelectorAdapter extends LeaderSelectorListenerAdapter impleme
         final int waitSeconds = (int) (5 * Math.random()) + 1;
         logger.info(name + " is now the leader. Waiting " + waitSeconds + " seconds...");
         logger.info(name + " has been leader " + leaderCount.getAndIncrement() + " time(s) before.");
+        executor.lead(client);
+        int before = processed.get();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
         try {
-            Thread.sleep(TimeUnit.SECONDS.toMillis(waitSeconds));
+            while (System.nanoTime() < end) {
+                executor.submitBatch(batch());
+            }
         } catch (InterruptedException e) {
             logger.info(name + " was interrupted.");
             Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            logger.info(name + " lost leadership.");
         } finally {
-            logger.info(name + " relinquishing leadership.\n");
+            // 被中断时不再等待，直接取消剩余的任务
+            executor.relinquish(Thread.currentThread().isInterrupted() ? 0 : 1000, TimeUnit.MILLISECONDS);
+            logger.info(name + " processed " + (processed.get() - before) + " tasks, relinquishing leadership.\n");
         }
     }
+
+    /**
+     * SUSPENDED时只暂停任务，RECONNECTED后继续；会话过期(LOST或者换了会话)才放弃领导权
+     */
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        boolean leading = executor.isLeading();
+        executor.stateChanged(client, newState);
+        if (leading && !executor.isLeading()) {
+            throw new CancelLeadershipException();
+        }
+    }
+
+    private List<Callable<Integer>> batch() {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tasks.add(() -> {
+                Thread.sleep(100);
+                return processed.incrementAndGet();
+            });
+        }
+        return tasks;
+    }
 }
@@ -0,0 +1,606 @@
+package pers.mingshan.curator.leader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.framework.recipes.leader.LeaderLatchListener;
+import org.apache.curator.framework.recipes.nodes.PersistentNode;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 由leader协调的分区分配
+ *
+ * 所有成员都参加选举，但工作不再只交给leader：leader把 partitions 个分区分给所有存活的成员，
+ * 每个成员只处理分给自己的分区。
+ * <pre>
+ * path/leader      LeaderLatch
+ * path/members/id  成员的临时节点，数据为成员已经确认的分配版本
+ * path/assignment  完整的分配方案，只有leader写
+ * </pre>
+ * 分配方案是粘性且均衡的：每个成员分到 partitions/n 或 partitions/n+1 个分区，
+ * 尽量保留原来的分区，只移动必须移动的分区。成员离开时只有它的分区被重新分配，成员加入时只从分区多的成员移走多出的部分。
+ *
+ * 从存活成员移走的分区分两步交接：先在新版本中撤销，原成员停止处理后在自己的节点上写入确认的版本，
+ * leader收到确认后才把分区分给新成员，同一个分区不会同时被两个成员处理。离开的成员的分区直接重新分配。
+ *
+ * 所有成员都监听分配节点，但只在自己的分区变化时回调 Listener。
+ * 连接中断(SUSPENDED)时就撤销本地所有分区，重连后重新读取分配方案：会话可能在中断期间过期，
+ * 分区已经被leader分给别人，而Curator 2.x 连接超时后会静默重建会话，只通知RECONNECTED而不通知LOST，
+ * 所以重连后会话id变化时也按LOST处理。会话变化后的成员只接受在它重新创建成员节点之后写入的分配方案，
+ * 在此之前的方案可能还没有反映它的离开，leader正要把它原来的分区分给别人；
+ * leader发现成员节点有增删(members的cversion变化)时即使分配不变也重新发布，让重新加入的成员拿回分区。
+ *
+ * @author mingshan
+ *
+ */
+public class PartitionCoordinator implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PartitionCoordinator.class);
+    private static final long RETRY_MS = 1000;
+
+    /**
+     * 分区变化的回调，在协调线程中依次执行
+     */
+    public interface Listener {
+        /**
+         * 停止处理这些分区，返回后才会确认
+         */
+        void partitionsRevoked(Set<Integer> partitions);
+
+        void partitionsAssigned(Set<Integer> partitions);
+    }
+
+    private final CuratorFramework client;
+    private final String memberId;
+    private final int partitions;
+    private final Listener listener;
+    private final String membersPath;
+    private final String memberPath;
+    private final String assignmentPath;
+    private final LeaderLatch latch;
+    private final PersistentNode member;
+    private final ScheduledExecutorService executor = ThreadUtils
+            .newSingleThreadScheduledExecutor("PartitionCoordinator");
+    private final CuratorWatcher membersWatcher = event -> onNodeEvent(event, this::reconcile);
+    private final CuratorWatcher assignmentWatcher = event -> onNodeEvent(event, this::assignmentChanged);
+    private final ConnectionStateListener connectionListener = this::connectionChanged;
+
+    /** 以下字段只在协调线程中修改 */
+    private volatile Set<Integer> assigned = Collections.emptySet();
+    private long appliedGeneration = -1;
+    /** 会话变化后还没有拿到重新加入之后的分配方案 */
+    private boolean rejoining;
+    /** leader上一次发布时看到的members的cversion */
+    private int membersCversion = -1;
+    /** 当前分配所属的会话，会话变化说明原来的成员节点已经过期 */
+    private volatile long sessionId;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong moved = new AtomicLong();
+
+    /**
+     * @param memberId 成员的唯一标识，不能包含 '/'、'=' 和 ','
+     */
+    public PartitionCoordinator(CuratorFramework client, String path, String memberId, int partitions,
+            Listener listener) {
+        this.client = client;
+        this.memberId = memberId;
+        this.partitions = partitions;
+        this.listener = listener;
+        this.membersPath = ZKPaths.makePath(path, "members");
+        this.memberPath = ZKPaths.makePath(membersPath, memberId);
+        this.assignmentPath = ZKPaths.makePath(path, "assignment");
+        this.latch = new LeaderLatch(client, ZKPaths.makePath(path, "leader"), memberId);
+        this.member = new PersistentNode(client, CreateMode.EPHEMERAL, false, memberPath, encodeAck(-1));
+    }
+
+    public void start() throws Exception {
+        client.getConnectionStateListenable().addListener(connectionListener);
+        sessionId = client.getZookeeperClient().getZooKeeper().getSessionId();
+        member.start();
+        if (!member.waitForInitialCreate(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Could not register member " + memberId);
+        }
+        latch.addListener(new LeaderLatchListener() {
+            @Override
+            public void isLeader() {
+                submit(PartitionCoordinator.this::reconcile);
+            }
+
+            @Override
+            public void notLeader() {
+            }
+        }, executor);
+        latch.start();
+        submit(this::assignmentChanged);
+    }
+
+    /**
+     * @return 当前分给本成员的分区
+     */
+    public Set<Integer> getAssignedPartitions() {
+        return assigned;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public boolean isLeader() {
+        return latch.hasLeadership();
+    }
+
+    /**
+     * @return 作为leader发布分配方案的次数
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return 作为leader从一个成员移给另一个成员(包括离开的成员)的分区数
+     */
+    public long getMoved() {
+        return moved.get();
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private void submit(Task task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    if (executor.isShutdown()) {
+                        return;
+                    }
+                    logger.warn("Partition coordination failed for " + memberId + ", retrying", e);
+                    retry(task);
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // 已经关闭
+        }
+    }
+
+    private void retry(Task task) {
+        try {
+            executor.schedule(() -> submit(task), RETRY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // 已经关闭
+        }
+    }
+
+    /**
+     * 连接状态的变化也会通知到所有watcher，由 connectionChanged 处理，
+     * 否则断开时排队的ZooKeeper操作会阻塞协调线程，分区不能及时撤销
+     */
+    private void onNodeEvent(WatchedEvent event, Task task) {
+        if (event.getType() != Watcher.Event.EventType.None) {
+            submit(task);
+        }
+    }
+
+    private void connectionChanged(CuratorFramework client, ConnectionState state) {
+        switch (state) {
+        case SUSPENDED:
+        case LOST:
+            // 会话可能已经过期，分区随时会分给别人
+            submit(this::revokeAll);
+            break;
+        case RECONNECTED:
+            if (sessionChanged()) {
+                // 静默重建的会话，原来的成员节点已经删除，等同于LOST
+                logger.info("Session of " + memberId + " changed while disconnected, treating as lost");
+                submit(() -> {
+                    revokeAll();
+                    rejoining = true;
+                });
+            }
+            submit(this::assignmentChanged);
+            submit(this::reconcile);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private boolean sessionChanged() {
+        long current;
+        try {
+            current = client.getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            return true;
+        }
+        if (current == sessionId) {
+            return false;
+        }
+        sessionId = current;
+        return true;
+    }
+
+    private void revokeAll() {
+        apply(Collections.emptySet());
+        appliedGeneration = -1;
+    }
+
+    /**
+     * 成员部分：读取分配方案，只处理自己的分区
+     */
+    private void assignmentChanged() throws Exception {
+        byte[] data;
+        Stat stat = new Stat();
+        try {
+            data = client.getData().storingStatIn(stat).usingWatcher(assignmentWatcher).forPath(assignmentPath);
+        } catch (KeeperException.NoNodeException e) {
+            if (client.checkExists().usingWatcher(assignmentWatcher).forPath(assignmentPath) != null) {
+                submit(this::assignmentChanged);
+            }
+            return;
+        }
+        Assignment assignment = Assignment.decode(data);
+        if (assignment.generation <= appliedGeneration) {
+            return;
+        }
+        if (rejoining) {
+            Stat own = client.checkExists().usingWatcher(assignmentWatcher).forPath(memberPath);
+            if (own == null || stat.getMzxid() < own.getCzxid()) {
+                // 方案早于重新加入，等待leader看到新的成员节点后发布的方案
+                return;
+            }
+            rejoining = false;
+        }
+        apply(assignment.partitionsOf(memberId));
+        appliedGeneration = assignment.generation;
+        if (assignment.revoking.containsKey(memberId)) {
+            member.setData(encodeAck(assignment.generation));
+        }
+    }
+
+    private void apply(Set<Integer> mine) {
+        Set<Integer> revoked = new TreeSet<>(assigned);
+        revoked.removeAll(mine);
+        Set<Integer> added = new TreeSet<>(mine);
+        added.removeAll(assigned);
+        if (!revoked.isEmpty()) {
+            listener.partitionsRevoked(Collections.unmodifiableSet(revoked));
+        }
+        assigned = Collections.unmodifiableSet(new TreeSet<>(mine));
+        if (!added.isEmpty()) {
+            listener.partitionsAssigned(Collections.unmodifiableSet(added));
+        }
+    }
+
+    /**
+     * leader部分：根据存活成员和确认情况计算并发布新的分配方案
+     */
+    private void reconcile() throws Exception {
+        if (!latch.hasLeadership()) {
+            return;
+        }
+        Stat membersStat = new Stat();
+        List<String> members = client.getChildren().storingStatIn(membersStat).usingWatcher(membersWatcher)
+                .forPath(membersPath);
+        Set<String> alive = new HashSet<>(members);
+        Stat stat = new Stat();
+        Assignment current;
+        try {
+            current = Assignment.decode(client.getData().storingStatIn(stat).forPath(assignmentPath));
+        } catch (KeeperException.NoNodeException e) {
+            current = new Assignment(0, new TreeMap<>(), new TreeMap<>());
+            stat = null;
+        }
+
+        // 确认过或已经离开的成员，撤销的分区可以重新分配
+        Map<String, Revocation> revoking = new TreeMap<>();
+        for (Map.Entry<String, Revocation> entry : current.revoking.entrySet()) {
+            String id = entry.getKey();
+            if (alive.contains(id) && readAck(id) < entry.getValue().generation) {
+                revoking.put(id, entry.getValue());
+            }
+        }
+        Set<Integer> blocked = new HashSet<>();
+        for (Revocation revocation : revoking.values()) {
+            blocked.addAll(revocation.partitions);
+        }
+
+        Map<String, Set<Integer>> owned = new TreeMap<>();
+        Map<Integer, String> owners = new HashMap<>();
+        for (String id : members) {
+            Set<Integer> set = current.partitionsOf(id);
+            owned.put(id, set);
+            for (Integer partition : set) {
+                owners.put(partition, id);
+            }
+        }
+        Map<String, Set<Integer>> target = balance(owned, partitions);
+
+        long generation = current.generation + 1;
+        Map<String, Set<Integer>> next = new TreeMap<>();
+        int movedNow = 0;
+        for (Map.Entry<String, Set<Integer>> entry : target.entrySet()) {
+            String id = entry.getKey();
+            Set<Integer> mine = new TreeSet<>();
+            for (Integer partition : entry.getValue()) {
+                String owner = owners.get(partition);
+                if (id.equals(owner)) {
+                    mine.add(partition);
+                } else if (owner == null && !blocked.contains(partition)) {
+                    mine.add(partition);
+                    if (current.ownerOf(partition) != null) {
+                        // 原来的成员已经离开
+                        movedNow++;
+                    }
+                }
+            }
+            next.put(id, mine);
+            Set<Integer> revoked = new TreeSet<>(owned.get(id));
+            revoked.removeAll(entry.getValue());
+            if (!revoked.isEmpty()) {
+                Revocation previous = revoking.get(id);
+                if (previous != null) {
+                    revoked.addAll(previous.partitions);
+                }
+                revoking.put(id, new Revocation(generation, revoked));
+                movedNow += revoked.size() - (previous == null ? 0 : previous.partitions.size());
+            }
+        }
+
+        // 成员节点有增删但分配不变时(例如成员会话过期后立即重新加入)也发布，重新加入的成员只认之后的方案
+        if (next.equals(current.owned) && revoking.equals(current.revoking)
+                && membersStat.getCversion() == membersCversion) {
+            return;
+        }
+        byte[] data = new Assignment(generation, next, revoking).encode();
+        try {
+            if (stat == null) {
+                client.create().creatingParentsIfNeeded().forPath(assignmentPath, data);
+            } else {
+                client.setData().withVersion(stat.getVersion()).forPath(assignmentPath, data);
+            }
+        } catch (KeeperException.BadVersionException | KeeperException.NodeExistsException e) {
+            // 上一任leader刚刚写过，重新计算
+            submit(this::reconcile);
+            return;
+        }
+        membersCversion = membersStat.getCversion();
+        published.incrementAndGet();
+        moved.addAndGet(movedNow);
+        logger.debug("Published partition assignment " + generation + ": " + next + ", revoking " + revoking);
+        // 监听被撤销成员的确认，发布后立即确认的也要处理
+        for (Map.Entry<String, Revocation> entry : revoking.entrySet()) {
+            if (readAck(entry.getKey()) >= entry.getValue().generation) {
+                submit(this::reconcile);
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 成员确认过的版本，监听它的变化
+     */
+    private long readAck(String id) throws Exception {
+        try {
+            return decodeAck(client.getData().usingWatcher(membersWatcher).forPath(ZKPaths.makePath(membersPath, id)));
+        } catch (KeeperException.NoNodeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 粘性的均衡分配：分区多的成员优先得到多出的一个名额，每个成员保留不超过名额的原有分区，其余分区依次补给不足的成员
+     *
+     * @param owned 存活成员当前的分区
+     */
+    static Map<String, Set<Integer>> balance(Map<String, Set<Integer>> owned, int partitions) {
+        Map<String, Set<Integer>> target = new TreeMap<>();
+        if (owned.isEmpty()) {
+            return target;
+        }
+        List<String> members = new ArrayList<>(owned.keySet());
+        members.sort(Comparator.comparing((String id) -> -owned.get(id).size()).thenComparing(id -> id));
+        int base = partitions / members.size();
+        int extra = partitions % members.size();
+        Map<String, Integer> quota = new HashMap<>();
+        Set<Integer> free = new TreeSet<>();
+        for (int i = 0; i < partitions; i++) {
+            free.add(i);
+        }
+        for (int i = 0; i < members.size(); i++) {
+            String id = members.get(i);
+            int limit = base + (i < extra ? 1 : 0);
+            quota.put(id, limit);
+            Set<Integer> kept = new TreeSet<>();
+            for (Integer partition : owned.get(id)) {
+                if (kept.size() == limit) {
+                    break;
+                }
+                if (free.remove(partition)) {
+                    kept.add(partition);
+                }
+            }
+            target.put(id, kept);
+        }
+        Iterator<Integer> remaining = free.iterator();
+        for (String id : members) {
+            Set<Integer> kept = target.get(id);
+            while (kept.size() < quota.get(id) && remaining.hasNext()) {
+                kept.add(remaining.next());
+            }
+        }
+        return target;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.getConnectionStateListenable().removeListener(connectionListener);
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 先停止处理，再删除成员节点让leader重新分配
+        if (!assigned.isEmpty()) {
+            listener.partitionsRevoked(assigned);
+            assigned = Collections.emptySet();
+        }
+        CloseableUtils.closeQuietly(latch);
+        CloseableUtils.closeQuietly(member);
+    }
+
+    private static byte[] encodeAck(long generation) {
+        return Long.toString(generation).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long decodeAck(byte[] data) {
+        return data == null || data.length == 0 ? -1 : Long.parseLong(new String(data, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 从成员撤销、等待确认的分区
+     */
+    static final class Revocation {
+        final long generation;
+        final Set<Integer> partitions;
+
+        Revocation(long generation, Set<Integer> partitions) {
+            this.generation = generation;
+            this.partitions = partitions;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Revocation)) {
+                return false;
+            }
+            Revocation other = (Revocation) o;
+            return generation == other.generation && partitions.equals(other.partitions);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(generation) * 31 + partitions.hashCode();
+        }
+    }
+
+    /**
+     * 分配方案，编码为文本：
+     * <pre>
+     * generation
+     * member=0,1,2
+     * -member@generation=3,4   撤销中的分区
+     * </pre>
+     */
+    static final class Assignment {
+        final long generation;
+        final Map<String, Set<Integer>> owned;
+        final Map<String, Revocation> revoking;
+
+        Assignment(long generation, Map<String, Set<Integer>> owned, Map<String, Revocation> revoking) {
+            this.generation = generation;
+            this.owned = owned;
+            this.revoking = revoking;
+        }
+
+        Set<Integer> partitionsOf(String id) {
+            Set<Integer> set = owned.get(id);
+            return set == null ? Collections.emptySet() : set;
+        }
+
+        String ownerOf(Integer partition) {
+            for (Map.Entry<String, Set<Integer>> entry : owned.entrySet()) {
+                if (entry.getValue().contains(partition)) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        byte[] encode() {
+            StringBuilder sb = new StringBuilder().append(generation).append('\n');
+            for (Map.Entry<String, Set<Integer>> entry : owned.entrySet()) {
+                sb.append(entry.getKey()).append('=');
+                appendPartitions(sb, entry.getValue());
+            }
+            for (Map.Entry<String, Revocation> entry : revoking.entrySet()) {
+                sb.append('-').append(entry.getKey()).append('@').append(entry.getValue().generation).append('=');
+                appendPartitions(sb, entry.getValue().partitions);
+            }
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void appendPartitions(StringBuilder sb, Set<Integer> partitions) {
+            boolean first = true;
+            for (Integer partition : partitions) {
+                if (!first) {
+                    sb.append(',');
+                }
+                sb.append(partition);
+                first = false;
+            }
+            sb.append('\n');
+        }
+
+        static Assignment decode(byte[] data) {
+            String[] lines = new String(data, StandardCharsets.UTF_8).split("\n");
+            Map<String, Set<Integer>> owned = new TreeMap<>();
+            Map<String, Revocation> revoking = new TreeMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i];
+                int eq = line.indexOf('=');
+                Set<Integer> partitions = parsePartitions(line.substring(eq + 1));
+                if (line.startsWith("-")) {
+                    int at = line.indexOf('@');
+                    revoking.put(line.substring(1, at),
+                            new Revocation(Long.parseLong(line.substring(at + 1, eq)), partitions));
+                } else {
+                    owned.put(line.substring(0, eq), partitions);
+                }
+            }
+            return new Assignment(Long.parseLong(lines[0]), owned, revoking);
+        }
+
+        private static Set<Integer> parsePartitions(String s) {
+            Set<Integer> partitions = new TreeSet<>();
+            if (!s.isEmpty()) {
+                for (String partition : s.split(",")) {
+                    partitions.add(Integer.parseInt(partition));
+                }
+            }
+            return partitions;
+        }
+    }
+}
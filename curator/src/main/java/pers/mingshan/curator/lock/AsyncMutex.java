@@ -0,0 +1,512 @@
+package pers.mingshan.curator.lock;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.recipes.locks.StandardLockInternalsDriver;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * 异步的分布式互斥锁
+ *
+ * acquire立即返回 CompletableFuture，等待期间不占用任何线程：创建节点、读取子节点、监听前一个节点
+ * 都用 inBackground 回调，拿到锁时在 executor 中完成future。
+ *
+ * 节点的命名和排序与 InterProcessMutex 相同(带protection的 lock- 临时顺序节点)，
+ * 两者可以在同一个路径上互斥。和 InterProcessMutex 的区别：
+ * <ul>
+ * <li>同一实例的多个等待者同时需要读取子节点时合并为一次getChildren</li>
+ * <li>前一个节点属于本实例时不设置ZooKeeper监听，它释放后在本地直接把锁交给下一个</li>
+ * <li>只有前一个节点属于其他进程时才监听它。它删除后先用已有的子节点列表往前找，
+ * 序号不大于本实例释放过的最大序号的节点一定已经删除，不用再检查；找不到时才重新读取子节点</li>
+ * </ul>
+ * 只有本实例的前一个节点删除成功(会话有效)时才在本地交接或按旧列表判断轮到自己；
+ * 其他情况(其他进程的节点被删除、本实例的节点删除失败或已不存在)轮到自己前都重新读取子节点，
+ * 确认自己的节点还在，会话过期后不会把已经丢失的锁交给本地的等待者。
+ *
+ * 锁不属于某个线程，不可重入，可以在任何线程中释放。
+ *
+ * @author mingshan
+ *
+ */
+public class AsyncMutex implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncMutex.class);
+    private static final String LOCK_NAME = "lock-";
+    /** 其他进程的前一个节点删除后，沿旧的子节点列表往前检查的最多次数，之后重新读取子节点 */
+    private static final int MAX_BLIND_STEPS = 2;
+    private static final StandardLockInternalsDriver DRIVER = new StandardLockInternalsDriver();
+    private static final Comparator<String> BY_SEQUENCE = Comparator
+            .comparing(name -> DRIVER.fixForSorting(name, LOCK_NAME));
+
+    /**
+     * 持有的锁
+     */
+    public interface Handle {
+        /**
+         * @return 锁节点的完整路径
+         */
+        String getLockPath();
+
+        /**
+         * 删除锁节点，完成后把锁交给本实例中的下一个等待者
+         */
+        CompletableFuture<Void> release();
+    }
+
+    private final CuratorFramework client;
+    private final String basePath;
+    private final Executor executor;
+    private final ScheduledExecutorService timer = ThreadUtils.newSingleThreadScheduledExecutor("AsyncMutex");
+    /** 本实例创建的、还没通知后继的锁节点，key为节点名 */
+    private final ConcurrentMap<String, Attempt> local = new ConcurrentHashMap<>();
+    /** 本实例持有后成功删除的最大序号，持有时更小的节点都已删除，之后也不会再出现 */
+    private final AtomicLong releasedFloor = new AtomicLong(-1);
+
+    private final Object snapshotLock = new Object();
+    /** 以下字段由snapshotLock保护 */
+    private List<Attempt> snapshotWaiters = new ArrayList<>();
+    private boolean snapshotInFlight;
+
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong remoteWatches = new AtomicLong();
+    private final AtomicLong localHandoffs = new AtomicLong();
+
+    /**
+     * 回调在Curator的事件线程中执行，future上的后续操作不要阻塞，或者使用xxxAsync方法
+     */
+    public AsyncMutex(CuratorFramework client, String path) {
+        this(client, path, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * @param executor 执行ZooKeeper回调和完成future的线程池
+     */
+    public AsyncMutex(CuratorFramework client, String path, Executor executor) {
+        this.client = client;
+        this.basePath = path;
+        this.executor = executor;
+    }
+
+    /**
+     * 获取锁，一直等待
+     */
+    public CompletableFuture<Handle> acquire() {
+        return start(new Attempt());
+    }
+
+    /**
+     * 获取锁，超时后future以 TimeoutException 结束。取消future同样会放弃等待并删除锁节点。
+     */
+    public CompletableFuture<Handle> acquire(long time, TimeUnit unit) {
+        Attempt attempt = new Attempt();
+        ScheduledFuture<?> timeout = timer.schedule(() -> attempt.future
+                .completeExceptionally(new TimeoutException("Timed out waiting for lock " + basePath)), time, unit);
+        attempt.future.whenComplete((handle, e) -> timeout.cancel(false));
+        return start(attempt);
+    }
+
+    private CompletableFuture<Handle> start(Attempt attempt) {
+        attempt.future.whenComplete((handle, e) -> {
+            if (e != null) {
+                attempt.deleteNode(null);
+            }
+        });
+        try {
+            client.create().creatingParentContainersIfNeeded().withProtection()
+                    .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                    .inBackground((c, event) -> attempt.created(event), executor)
+                    .forPath(ZKPaths.makePath(basePath, LOCK_NAME));
+        } catch (Exception e) {
+            attempt.future.completeExceptionally(e);
+        }
+        return attempt.future;
+    }
+
+    /**
+     * 需要最新的子节点列表，和其他等待者合并成一次getChildren
+     */
+    private void requestSnapshot(Attempt attempt) {
+        synchronized (snapshotLock) {
+            snapshotWaiters.add(attempt);
+            if (snapshotInFlight) {
+                return;
+            }
+            snapshotInFlight = true;
+        }
+        readSnapshot();
+    }
+
+    private void readSnapshot() {
+        List<Attempt> batch;
+        synchronized (snapshotLock) {
+            batch = snapshotWaiters;
+            snapshotWaiters = new ArrayList<>();
+        }
+        snapshots.incrementAndGet();
+        try {
+            // 请求发出前节点都已经创建好，结果里一定包含它们
+            client.getChildren().inBackground((c, event) -> {
+                snapshotRead(batch, event);
+                nextSnapshot();
+            }, executor).forPath(basePath);
+        } catch (Exception e) {
+            for (Attempt attempt : batch) {
+                attempt.future.completeExceptionally(e);
+            }
+            nextSnapshot();
+        }
+    }
+
+    private void nextSnapshot() {
+        synchronized (snapshotLock) {
+            if (snapshotWaiters.isEmpty()) {
+                snapshotInFlight = false;
+                return;
+            }
+        }
+        readSnapshot();
+    }
+
+    private void snapshotRead(List<Attempt> batch, CuratorEvent event) {
+        KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+        if (code != KeeperException.Code.OK) {
+            for (Attempt attempt : batch) {
+                attempt.future.completeExceptionally(KeeperException.create(code, basePath));
+            }
+            return;
+        }
+        List<String> sorted = new ArrayList<>();
+        for (String child : event.getChildren()) {
+            if (child.contains(LOCK_NAME)) {
+                sorted.add(child);
+            }
+        }
+        sorted.sort(BY_SEQUENCE);
+        Map<String, Integer> positions = new HashMap<>(sorted.size() * 2);
+        for (int i = 0; i < sorted.size(); i++) {
+            positions.put(sorted.get(i), i);
+        }
+        for (Attempt attempt : batch) {
+            Integer index = positions.get(attempt.name);
+            if (index == null) {
+                // 会话过期，临时节点已经被删除
+                attempt.future.completeExceptionally(new IllegalStateException("Lock node disappeared: "
+                        + attempt.node));
+            } else {
+                attempt.waitBehind(sorted, index, true);
+            }
+        }
+    }
+
+    /**
+     * @return getChildren的次数
+     */
+    public long getSnapshots() {
+        return snapshots.get();
+    }
+
+    /**
+     * @return 在其他进程的节点上设置监听的次数
+     */
+    public long getRemoteWatches() {
+        return remoteWatches.get();
+    }
+
+    /**
+     * @return 不经过ZooKeeper、在本地交出锁的次数
+     */
+    public long getLocalHandoffs() {
+        return localHandoffs.get();
+    }
+
+    /**
+     * 停止超时计时，不释放已经持有的锁
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * 一次获取锁的过程，获取成功后作为Handle交给调用方
+     */
+    private final class Attempt implements Handle {
+        private final CompletableFuture<Handle> future = new CompletableFuture<>();
+        private final AtomicBoolean deleted = new AtomicBoolean();
+        private final CuratorWatcher watcher = this::predecessorChanged;
+        private volatile String node;
+        private volatile String name;
+        private volatile long sequence;
+
+        /** 以下字段由this保护 */
+        /** 正在等待的前一个节点名，null表示没有在等待 */
+        private String target;
+        /** target所在的子节点列表及其位置 */
+        private List<String> sorted;
+        private int index;
+        /** 连续遇到已删除的前一个节点的次数 */
+        private int blindSteps;
+        /** 节点已经删除、后继已经通知 */
+        private boolean finished;
+        /** 删除前是否持有锁 */
+        private boolean held;
+        /** 本会话删除节点成功 */
+        private boolean deletedOk;
+        private List<Attempt> successors = new ArrayList<>(1);
+
+        void created(CuratorEvent event) {
+            KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+            if (code != KeeperException.Code.OK) {
+                future.completeExceptionally(KeeperException.create(code, event.getPath()));
+                return;
+            }
+            name = ZKPaths.getNodeFromPath(event.getName());
+            sequence = FencedMutex.sequenceOf(name);
+            local.put(name, this);
+            node = event.getName();
+            if (future.isDone()) {
+                // 创建期间超时或被取消
+                deleteNode(null);
+            } else {
+                requestSnapshot(this);
+            }
+        }
+
+        /**
+         * 等待 sorted 中 index 之前的节点
+         *
+         * @param confirmed sorted是刚读取的，或者之后本会话成功删除过节点，自己的节点一定还在
+         */
+        void waitBehind(List<String> sorted, int index, boolean confirmed) {
+            if (index == 0 || FencedMutex.sequenceOf(sorted.get(index - 1)) <= releasedFloor.get()) {
+                if (confirmed) {
+                    grant();
+                } else {
+                    // 根据旧列表推断轮到自己，会话可能已经过期，重新读取确认
+                    requestSnapshot(this);
+                }
+                return;
+            }
+            String prev = sorted.get(index - 1);
+            synchronized (this) {
+                if (future.isDone()) {
+                    return;
+                }
+                this.target = prev;
+                this.sorted = sorted;
+                this.index = index - 1;
+            }
+            Attempt predecessor = local.get(prev);
+            if (predecessor != null) {
+                if (!predecessor.addSuccessor(this)) {
+                    predecessor.notifySuccessor(this);
+                }
+                return;
+            }
+            remoteWatches.incrementAndGet();
+            try {
+                client.getData().usingWatcher(watcher).inBackground((c, event) -> {
+                    KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                    if (code == KeeperException.Code.OK) {
+                        synchronized (this) {
+                            blindSteps = 0;
+                        }
+                    } else if (code == KeeperException.Code.NONODE) {
+                        predecessorGone(prev, false, false);
+                    } else {
+                        future.completeExceptionally(KeeperException.create(code, event.getPath()));
+                    }
+                }, executor).forPath(ZKPaths.makePath(basePath, prev));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * @return 是否登记为后继，已经结束时返回false
+         */
+        synchronized boolean addSuccessor(Attempt successor) {
+            if (finished) {
+                return false;
+            }
+            successors.add(successor);
+            return true;
+        }
+
+        /**
+         * 结束后通知后继：删除成功时按本地状态交接或继续往前找，否则让它重新读取子节点
+         */
+        void notifySuccessor(Attempt successor) {
+            boolean wasHeld;
+            boolean ok;
+            synchronized (this) {
+                wasHeld = held;
+                ok = deletedOk;
+            }
+            if (ok) {
+                successor.predecessorGone(name, wasHeld, true);
+            } else {
+                successor.predecessorUnknown(name);
+            }
+        }
+
+        private void predecessorChanged(WatchedEvent event) {
+            if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+                String prev = ZKPaths.getNodeFromPath(event.getPath());
+                executor.execute(() -> predecessorGone(prev, false, false));
+            } else if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                future.completeExceptionally(new IllegalStateException("Session expired waiting for " + basePath));
+            }
+        }
+
+        /**
+         * @param predecessorHeld 前一个节点删除前持有锁，之前的节点都已经删除
+         * @param known 前一个节点属于本实例且删除成功，其他节点的状态没有变化
+         */
+        void predecessorGone(String prev, boolean predecessorHeld, boolean known) {
+            List<String> snapshot;
+            int position;
+            boolean walk = true;
+            synchronized (this) {
+                if (future.isDone() || !prev.equals(target)) {
+                    return;
+                }
+                target = null;
+                snapshot = sorted;
+                position = index;
+                if (!known && ++blindSteps > MAX_BLIND_STEPS) {
+                    blindSteps = 0;
+                    walk = false;
+                }
+            }
+            if (predecessorHeld) {
+                localHandoffs.incrementAndGet();
+                grant();
+            } else if (walk) {
+                // 改为等待它前面的节点
+                waitBehind(snapshot, position, known);
+            } else {
+                requestSnapshot(this);
+            }
+        }
+
+        /**
+         * 本实例的前一个节点没有删除成功，重新读取子节点
+         */
+        void predecessorUnknown(String prev) {
+            synchronized (this) {
+                if (future.isDone() || !prev.equals(target)) {
+                    return;
+                }
+                target = null;
+                blindSteps = 0;
+            }
+            requestSnapshot(this);
+        }
+
+        private void grant() {
+            future.complete(this);
+        }
+
+        @Override
+        public String getLockPath() {
+            return node;
+        }
+
+        @Override
+        public CompletableFuture<Void> release() {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            if (!future.isDone() || future.isCompletedExceptionally() || deleted.get()) {
+                result.completeExceptionally(new IllegalMonitorStateException("You do not own the lock: " + basePath));
+                return result;
+            }
+            deleteNode(result);
+            return result;
+        }
+
+        /**
+         * 释放或放弃时删除节点，完成后通知后继
+         */
+        void deleteNode(CompletableFuture<Void> result) {
+            String path = node;
+            if (path == null || !deleted.compareAndSet(false, true)) {
+                if (result != null) {
+                    result.complete(null);
+                }
+                return;
+            }
+            boolean wasHeld = future.isDone() && !future.isCompletedExceptionally();
+            try {
+                client.delete().guaranteed().inBackground((c, event) -> {
+                    KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                    boolean deletedOk = code == KeeperException.Code.OK;
+                    if (wasHeld && deletedOk) {
+                        releasedFloor.accumulateAndGet(sequence, Math::max);
+                    }
+                    // NONODE说明会话可能已经过期，锁已经丢失，其他进程可能正持有它；
+                    // 删除失败时节点可能还在。两种情况都让后继从ZooKeeper重新确认
+                    finish(wasHeld && deletedOk, deletedOk);
+                    if (result == null) {
+                        return;
+                    }
+                    // guaranteed重试时第一次删除可能已经成功，NONODE也算释放完成
+                    if (deletedOk || code == KeeperException.Code.NONODE) {
+                        result.complete(null);
+                    } else {
+                        result.completeExceptionally(KeeperException.create(code, path));
+                    }
+                }, executor).forPath(path);
+            } catch (Exception e) {
+                logger.warn("Could not delete lock node " + path, e);
+                finish(false, false);
+                if (result != null) {
+                    result.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * @param deletedOk 本会话删除节点成功
+         */
+        private void finish(boolean wasHeld, boolean deletedOk) {
+            List<Attempt> waiting;
+            synchronized (this) {
+                finished = true;
+                held = wasHeld;
+                this.deletedOk = deletedOk;
+                waiting = successors;
+                successors = null;
+            }
+            local.remove(name);
+            for (Attempt successor : waiting) {
+                notifySuccessor(successor);
+            }
+        }
+    }
+}
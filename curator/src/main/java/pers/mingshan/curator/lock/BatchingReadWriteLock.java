@@ -0,0 +1,480 @@
+package pers.mingshan.curator.lock;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * 批量读的分布式读写锁
+ *
+ * 基于 {@link InterProcessReadWriteLock}，同一进程中的读线程共享一个ZooKeeper读锁节点：
+ * 第一个读线程获取ZooKeeper读锁，之后的读线程直接加入，最后一个读线程离开时释放。
+ *
+ * 写优先：本进程有写线程在等待，或者持有读锁期间发现其他进程的写锁节点(__WRIT__)时，
+ * 新的读线程不再加入当前批次，等这一批读完、写线程执行后再读，避免写线程饿死。
+ *
+ * Curator的锁和线程绑定，这里所有ZooKeeper锁的获取和释放都在一个内部线程中执行，
+ * 因此支持写锁降级为读锁({@link #downgrade()}，或持有写锁时获取读锁再释放写锁)，
+ * 降级期间不会有其他进程的写入插进来。
+ *
+ * 读锁和写锁都可以由同一线程重入；持有读锁时不能获取写锁(不支持升级)。
+ * 关闭时在内部线程中释放仍持有的ZooKeeper锁，之后的释放不再操作ZooKeeper，获取会失败。
+ *
+ * @author mingshan
+ *
+ */
+public class BatchingReadWriteLock implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BatchingReadWriteLock.class);
+    /** InterProcessReadWriteLock写锁节点名中包含的标记 */
+    private static final String WRITE_LOCK_NAME = "__WRIT__";
+
+    private enum ZkMode {
+        NONE, READ, WRITE
+    }
+
+    private final CuratorFramework client;
+    private final String lockPath;
+    private final InterProcessMutex zkReadLock;
+    private final InterProcessMutex zkWriteLock;
+    private final ExecutorService owner = ThreadUtils.newSingleThreadExecutor("BatchingReadWriteLock");
+    private final CuratorWatcher childrenWatcher = this::childrenChanged;
+    private final ThreadLocal<int[]> readHolds = ThreadLocal.withInitial(() -> new int[1]);
+    private final InterProcessLock readLock = new ReadLock();
+    private final InterProcessLock writeLock = new WriteLock();
+
+    /** 以下字段由this保护 */
+    private ZkMode zkMode = ZkMode.NONE;
+    private boolean transitioning;
+    private int readers;
+    private int waitingWriters;
+    private Thread writer;
+    private int writeHolds;
+    private boolean remoteWriterWaiting;
+    private boolean closed;
+
+    private final AtomicLong zkReadAcquisitions = new AtomicLong();
+    private final AtomicLong batchedReads = new AtomicLong();
+    private final AtomicLong zkWriteAcquisitions = new AtomicLong();
+
+    public BatchingReadWriteLock(CuratorFramework client, String lockPath) {
+        this.client = client;
+        this.lockPath = lockPath;
+        InterProcessReadWriteLock lock = new InterProcessReadWriteLock(client, lockPath);
+        this.zkReadLock = lock.readLock();
+        this.zkWriteLock = lock.writeLock();
+    }
+
+    public InterProcessLock readLock() {
+        return readLock;
+    }
+
+    public InterProcessLock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * 把当前线程持有的写锁降级为读锁，等同于先获取读锁再释放写锁，期间始终持有ZooKeeper上的锁
+     */
+    public void downgrade() throws Exception {
+        readLock.acquire();
+        writeLock.release();
+    }
+
+    private boolean acquireRead(long deadline) throws Exception {
+        int[] holds = readHolds.get();
+        if (holds[0] > 0) {
+            synchronized (this) {
+                readers++;
+            }
+            holds[0]++;
+            return true;
+        }
+        synchronized (this) {
+            if (writer == Thread.currentThread()) {
+                // 持有写锁时读，ZooKeeper上已经是写锁
+                readers++;
+                holds[0]++;
+                return true;
+            }
+            while (true) {
+                checkNotClosed();
+                boolean writerFirst = waitingWriters > 0 || remoteWriterWaiting;
+                if (writer == null && !transitioning && !writerFirst) {
+                    if (zkMode == ZkMode.READ) {
+                        readers++;
+                        holds[0]++;
+                        batchedReads.incrementAndGet();
+                        return true;
+                    }
+                    if (zkMode == ZkMode.NONE) {
+                        break;
+                    }
+                }
+                if (!await(deadline)) {
+                    return false;
+                }
+            }
+            transitioning = true;
+        }
+        boolean acquired = false;
+        try {
+            acquired = onOwner(() -> {
+                if (deadline < 0) {
+                    zkReadLock.acquire();
+                    return true;
+                }
+                return zkReadLock.acquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            });
+        } finally {
+            synchronized (this) {
+                transitioning = false;
+                if (acquired) {
+                    zkMode = ZkMode.READ;
+                    readers++;
+                    holds[0]++;
+                    zkReadAcquisitions.incrementAndGet();
+                }
+                notifyAll();
+            }
+        }
+        if (acquired) {
+            scheduleCheck();
+        }
+        return acquired;
+    }
+
+    private void releaseRead() throws Exception {
+        int[] holds = readHolds.get();
+        if (holds[0] == 0) {
+            throw new IllegalMonitorStateException("You do not own the read lock");
+        }
+        holds[0]--;
+        synchronized (this) {
+            readers--;
+            if (readers > 0 || zkMode != ZkMode.READ || closed) {
+                return;
+            }
+            transitioning = true;
+        }
+        try {
+            onOwner(() -> {
+                zkReadLock.release();
+                return null;
+            });
+        } finally {
+            synchronized (this) {
+                transitioning = false;
+                zkMode = ZkMode.NONE;
+                remoteWriterWaiting = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean acquireWrite(long deadline) throws Exception {
+        synchronized (this) {
+            if (writer == Thread.currentThread()) {
+                writeHolds++;
+                return true;
+            }
+            if (readHolds.get()[0] > 0) {
+                throw new IllegalStateException("Cannot upgrade a read lock to a write lock");
+            }
+            checkNotClosed();
+            waitingWriters++;
+            try {
+                while (writer != null || transitioning || readers > 0) {
+                    if (!await(deadline)) {
+                        return false;
+                    }
+                }
+            } finally {
+                waitingWriters--;
+                // 超时放弃时，被挡住的读线程可以继续
+                notifyAll();
+            }
+            checkNotClosed();
+            transitioning = true;
+        }
+        boolean acquired = false;
+        try {
+            acquired = onOwner(() -> {
+                if (deadline < 0) {
+                    zkWriteLock.acquire();
+                    return true;
+                }
+                return zkWriteLock.acquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            });
+        } finally {
+            synchronized (this) {
+                transitioning = false;
+                if (acquired) {
+                    zkMode = ZkMode.WRITE;
+                    writer = Thread.currentThread();
+                    writeHolds = 1;
+                    zkWriteAcquisitions.incrementAndGet();
+                }
+                notifyAll();
+            }
+        }
+        return acquired;
+    }
+
+    private void releaseWrite() throws Exception {
+        synchronized (this) {
+            if (writer != Thread.currentThread()) {
+                throw new IllegalMonitorStateException("You do not own the write lock");
+            }
+            if (--writeHolds > 0) {
+                return;
+            }
+            if (closed) {
+                // ZooKeeper上的锁已在关闭时释放
+                writer = null;
+                notifyAll();
+                return;
+            }
+            transitioning = true;
+        }
+        // 持有写锁期间获取的读锁还在时降级：同一线程持有写锁时可以获取读锁，再释放写锁
+        boolean downgrade = readHolds.get()[0] > 0;
+        try {
+            onOwner(() -> {
+                if (downgrade) {
+                    zkReadLock.acquire();
+                }
+                zkWriteLock.release();
+                return null;
+            });
+        } finally {
+            synchronized (this) {
+                transitioning = false;
+                writer = null;
+                zkMode = downgrade ? ZkMode.READ : ZkMode.NONE;
+                if (downgrade) {
+                    zkReadAcquisitions.incrementAndGet();
+                }
+                notifyAll();
+            }
+        }
+        if (downgrade) {
+            scheduleCheck();
+        }
+    }
+
+    /**
+     * 调用时必须持有this
+     */
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Lock " + lockPath + " is closed");
+        }
+    }
+
+    /**
+     * 在this上等待，调用时必须持有this
+     *
+     * @return 是否还没有超时
+     */
+    private boolean await(long deadline) throws InterruptedException {
+        if (deadline < 0) {
+            wait();
+            return true;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        return true;
+    }
+
+    /**
+     * 在内部线程中执行ZooKeeper锁操作。调用线程被中断时仍等待操作完成，避免锁泄漏
+     */
+    private <T> T onOwner(Callable<T> operation) throws Exception {
+        try {
+            return Uninterruptibles.getUninterruptibly(owner.submit(operation));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 持有ZooKeeper读锁期间检查是否有其他进程的写锁节点，在内部线程中执行
+     */
+    private void checkRemoteWriters() {
+        synchronized (this) {
+            if (zkMode != ZkMode.READ) {
+                return;
+            }
+        }
+        boolean waiting = false;
+        try {
+            List<String> children = client.getChildren().usingWatcher(childrenWatcher).forPath(lockPath);
+            for (String child : children) {
+                if (child.contains(WRITE_LOCK_NAME)) {
+                    waiting = true;
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Could not check writers of " + lockPath, e);
+        }
+        synchronized (this) {
+            if (zkMode == ZkMode.READ && remoteWriterWaiting != waiting) {
+                remoteWriterWaiting = waiting;
+                notifyAll();
+            }
+        }
+    }
+
+    private void childrenChanged(WatchedEvent event) {
+        if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged) {
+            scheduleCheck();
+        }
+    }
+
+    private void scheduleCheck() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            owner.execute(this::checkRemoteWriters);
+        } catch (RejectedExecutionException e) {
+            // 已关闭
+        }
+    }
+
+    /**
+     * @return 获取ZooKeeper读锁的次数
+     */
+    public long getZkReadAcquisitions() {
+        return zkReadAcquisitions.get();
+    }
+
+    /**
+     * @return 直接加入当前读批次的次数
+     */
+    public long getBatchedReads() {
+        return batchedReads.get();
+    }
+
+    public long getZkWriteAcquisitions() {
+        return zkWriteAcquisitions.get();
+    }
+
+    /**
+     * 等正在进行的获取/释放完成后，在内部线程中释放仍持有的ZooKeeper锁(Curator的锁只能由获取它的线程释放)，
+     * 再关闭内部线程
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            boolean interrupted = false;
+            while (transitioning) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            onOwner(() -> {
+                while (zkWriteLock.isAcquiredInThisProcess()) {
+                    zkWriteLock.release();
+                }
+                while (zkReadLock.isAcquiredInThisProcess()) {
+                    zkReadLock.release();
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            logger.warn("Could not release " + lockPath, e);
+        } finally {
+            synchronized (this) {
+                zkMode = ZkMode.NONE;
+                remoteWriterWaiting = false;
+            }
+            owner.shutdown();
+        }
+    }
+
+    private class ReadLock implements InterProcessLock {
+        @Override
+        public void acquire() throws Exception {
+            acquireRead(-1);
+        }
+
+        @Override
+        public boolean acquire(long time, TimeUnit unit) throws Exception {
+            return acquireRead(System.nanoTime() + unit.toNanos(time));
+        }
+
+        @Override
+        public void release() throws Exception {
+            releaseRead();
+        }
+
+        @Override
+        public boolean isAcquiredInThisProcess() {
+            synchronized (BatchingReadWriteLock.this) {
+                return readers > 0;
+            }
+        }
+    }
+
+    private class WriteLock implements InterProcessLock {
+        @Override
+        public void acquire() throws Exception {
+            acquireWrite(-1);
+        }
+
+        @Override
+        public boolean acquire(long time, TimeUnit unit) throws Exception {
+            return acquireWrite(System.nanoTime() + unit.toNanos(time));
+        }
+
+        @Override
+        public void release() throws Exception {
+            releaseWrite();
+        }
+
+        @Override
+        public boolean isAcquiredInThisProcess() {
+            synchronized (BatchingReadWriteLock.this) {
+                return writer != null;
+            }
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package pers.mingshan.curator.lock;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.recipes.locks.Lease;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 按块租用许可的分布式信号量
+ *
+ * 整个集群共享 maxLeases 个许可，底层是 {@link InterProcessSemaphoreV2}，每个许可对应一个临时租约节点，
+ * 所以全局上限始终由ZooKeeper保证。与直接使用InterProcessSemaphoreV2不同的是：
+ * <ul>
+ * <li>本地没有空闲许可时，一次向ZooKeeper租用最多 blockSize 个许可，多出来的放进本地的无锁队列</li>
+ * <li>归还的许可不删除租约节点，放回本地队列，下次获取直接从队列取出，不产生任何ZooKeeper读写</li>
+ * <li>其他进程在等待许可时(lockPath/locks 下出现了别人的节点)，不再成块租用；
+ *     本进程没有线程在等待的空闲许可立即归还，持有的许可超过公平份额(许可总数按等待的进程数加一平分)
+ *     时归还的许可也直接还给ZooKeeper，份额之内的许可留给本进程等待的线程</li>
+ * <li>空闲超过 idleMs 的许可归还给ZooKeeper；连接挂起或丢失时清空本地缓存</li>
+ * </ul>
+ * 用法与InterProcessSemaphoreV2一致，获取到的 {@link Lease} 用完后调用close归还。
+ *
+ * @author mingshan
+ *
+ */
+public class BlockLeasingSemaphore implements ConnectionStateListener, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BlockLeasingSemaphore.class);
+    /** InterProcessSemaphoreV2内部锁的子节点名，等待许可的进程会在这里排队 */
+    private static final String LOCK_PARENT = "locks";
+    /** 向ZooKeeper等待许可时每次等待的时长，期间本地归还的许可可以被及时用上 */
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final CuratorFramework client;
+    private final InterProcessSemaphoreV2 semaphore;
+    private final String locksPath;
+    private final int maxLeases;
+    private final int blockSize;
+    private final long idleMs;
+    private final Queue<Lease> idle = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock refillLock = new ReentrantLock();
+    /** 本地有许可归还时唤醒等待的线程 */
+    private final Object returned = new Object();
+    /** 本进程向ZooKeeper租用且还没有归还的许可数，包括正在使用和空闲的 */
+    private final AtomicInteger held = new AtomicInteger();
+    /** 本地没有空闲许可、正在等待的线程数 */
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ScheduledExecutorService scheduler = ThreadUtils
+            .newSingleThreadScheduledExecutor("BlockLeasingSemaphore");
+    private final CuratorWatcher locksWatcher = this::locksChanged;
+
+    /** 本进程正在向ZooKeeper租用许可，此时locks下有一个节点是自己的 */
+    private volatile boolean refilling;
+    /** 有其他进程在等待许可 */
+    private volatile boolean pressure;
+    /** 有其他进程等待时本进程最多持有的许可数：许可总数按等待的进程数加一平分 */
+    private volatile int fairShare;
+    private volatile boolean watching;
+    private volatile long connectionEpoch;
+    private volatile long lastUsedNanos = System.nanoTime();
+    private volatile boolean closed;
+
+    private final AtomicLong zkLeases = new AtomicLong();
+    private final AtomicLong localAcquisitions = new AtomicLong();
+    private final AtomicLong returnedLeases = new AtomicLong();
+
+    public BlockLeasingSemaphore(CuratorFramework client, String path, int maxLeases, int blockSize) {
+        this(client, path, maxLeases, blockSize, 5000);
+    }
+
+    /**
+     * @param maxLeases 集群中的许可总数
+     * @param blockSize 每次向ZooKeeper租用的最大许可数
+     * @param idleMs 空闲许可超过这个时间后归还，0表示不因空闲归还
+     */
+    public BlockLeasingSemaphore(CuratorFramework client, String path, int maxLeases, int blockSize, long idleMs) {
+        this.client = client;
+        this.semaphore = new InterProcessSemaphoreV2(client, path, maxLeases);
+        this.locksPath = ZKPaths.makePath(path, LOCK_PARENT);
+        this.maxLeases = maxLeases;
+        this.blockSize = Math.max(1, Math.min(blockSize, maxLeases));
+        this.idleMs = idleMs;
+        this.fairShare = maxLeases;
+        client.getConnectionStateListenable().addListener(this);
+        if (idleMs > 0) {
+            scheduler.scheduleWithFixedDelay(this::returnIfIdle, idleMs, idleMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Lease acquire() throws Exception {
+        Lease lease = acquire(-1, null);
+        if (lease == null) {
+            throw new IllegalStateException("Could not acquire a lease");
+        }
+        return lease;
+    }
+
+    /**
+     * @return 获取到的许可，超时返回null。time小于0表示一直等待
+     */
+    public Lease acquire(long time, TimeUnit unit) throws Exception {
+        long deadline = time < 0 ? -1 : System.nanoTime() + unit.toNanos(time);
+        // 先读epoch再取许可：取出之后连接中断的许可按旧的epoch记录，使用者close时归还
+        long epoch = connectionEpoch;
+        Lease lease = idle.poll();
+        if (lease != null) {
+            localAcquisitions.incrementAndGet();
+            return new LocalLease(lease, epoch);
+        }
+        return refill(deadline);
+    }
+
+    /**
+     * 本地没有空闲许可时向ZooKeeper租用，同一时间只有一个线程去租用
+     */
+    private Lease refill(long deadline) throws Exception {
+        waiters.incrementAndGet();
+        try {
+            if (deadline < 0) {
+                refillLock.lockInterruptibly();
+            } else if (!refillLock.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return null;
+            }
+            try {
+                return refillLocked(deadline);
+            } finally {
+                refillLock.unlock();
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private Lease refillLocked(long deadline) throws Exception {
+        while (true) {
+            // 等待期间其他线程可能已经归还或者租到了许可
+            long epoch = connectionEpoch;
+            Lease lease = idle.poll();
+            if (lease != null) {
+                localAcquisitions.incrementAndGet();
+                return new LocalLease(lease, epoch);
+            }
+            long wait = WAIT_SLICE_NANOS;
+            if (deadline >= 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait = Math.min(wait, remaining);
+            }
+            if (pressure && held.get() >= fairShare) {
+                // 已经用到了公平份额，等本进程的许可归还，不再向ZooKeeper要
+                awaitReturned(wait);
+                continue;
+            }
+            refilling = true;
+            try {
+                lease = semaphore.acquire(wait, TimeUnit.NANOSECONDS);
+                if (lease != null) {
+                    zkLeases.incrementAndGet();
+                    held.incrementAndGet();
+                    leaseExtra(epoch);
+                }
+            } finally {
+                refilling = false;
+            }
+            if (lease != null) {
+                watchLocks();
+                return new LocalLease(lease, epoch);
+            }
+        }
+    }
+
+    /**
+     * 没有其他进程等待时，按剩余的许可数再多租用一些放进本地队列
+     */
+    private void leaseExtra(long epoch) throws Exception {
+        if (blockSize <= 1 || pressure) {
+            return;
+        }
+        int free = maxLeases - semaphore.getParticipantNodes().size();
+        int extra = Math.min(blockSize - 1, free);
+        if (extra <= 0) {
+            return;
+        }
+        // 不等待，剩余许可被别人抢走时放弃
+        Collection<Lease> leases = semaphore.acquire(extra, 0, TimeUnit.MILLISECONDS);
+        if (leases != null) {
+            zkLeases.addAndGet(leases.size());
+            held.addAndGet(leases.size());
+            idle.addAll(leases);
+            dropIfStale(epoch);
+        }
+    }
+
+    private void awaitReturned(long nanos) throws InterruptedException {
+        synchronized (returned) {
+            if (idle.isEmpty()) {
+                TimeUnit.NANOSECONDS.timedWait(returned, nanos);
+            }
+        }
+    }
+
+    private void returnLease(LocalLease lease) {
+        lastUsedNanos = System.nanoTime();
+        if (closed || lease.epoch != connectionEpoch || shouldReturn()) {
+            returnToZk(lease.lease);
+            return;
+        }
+        idle.offer(lease.lease);
+        dropIfStale(lease.epoch);
+        if (waiters.get() > 0) {
+            synchronized (returned) {
+                returned.notifyAll();
+            }
+        }
+        if (pressure || closed) {
+            // 放回队列的同时出现了其他进程等待
+            trimIdle();
+        }
+    }
+
+    /**
+     * 有其他进程等待时，本进程没有线程在等或者持有的许可超过了公平份额，就应该归还
+     */
+    private boolean shouldReturn() {
+        return pressure && (waiters.get() == 0 || held.get() > fairShare);
+    }
+
+    /**
+     * 放入队列之后再检查一次epoch：检查和放入之间连接中断时，stateChanged的清空可能发生在放入之前，
+     * 旧会话的许可会留在队列中被当作新会话的许可发出去
+     */
+    private void dropIfStale(long epoch) {
+        if (epoch != connectionEpoch) {
+            returnIdle();
+        }
+    }
+
+    private void returnToZk(Lease lease) {
+        held.decrementAndGet();
+        returnedLeases.incrementAndGet();
+        CloseableUtils.closeQuietly(lease);
+    }
+
+    /**
+     * 把本地空闲的许可全部归还给ZooKeeper
+     */
+    private void returnIdle() {
+        Lease lease;
+        while ((lease = idle.poll()) != null) {
+            returnToZk(lease);
+        }
+    }
+
+    /**
+     * 按 {@link #shouldReturn()} 归还空闲的许可
+     */
+    private void trimIdle() {
+        while (closed || shouldReturn()) {
+            Lease lease = idle.poll();
+            if (lease == null) {
+                return;
+            }
+            returnToZk(lease);
+        }
+    }
+
+    private void returnIfIdle() {
+        if (System.nanoTime() - lastUsedNanos >= TimeUnit.MILLISECONDS.toNanos(idleMs)) {
+            returnIdle();
+        }
+    }
+
+    private void watchLocks() {
+        if (watching) {
+            return;
+        }
+        watching = true;
+        scheduler.execute(this::checkPressure);
+    }
+
+    /**
+     * 在scheduler中执行：读取locks下的节点并继续监听，除了本进程正在租用的节点外还有节点说明其他进程在等待
+     */
+    private void checkPressure() {
+        if (closed) {
+            return;
+        }
+        try {
+            List<String> children = client.getChildren().usingWatcher(locksWatcher).forPath(locksPath);
+            int others = children.size() - (refilling ? 1 : 0);
+            fairShare = Math.max(1, maxLeases / (1 + Math.max(0, others)));
+            pressure = others > 0;
+        } catch (KeeperException.NoNodeException e) {
+            pressure = false;
+            try {
+                client.checkExists().usingWatcher(locksWatcher).forPath(locksPath);
+            } catch (Exception ex) {
+                watching = false;
+            }
+        } catch (Exception e) {
+            logger.debug("Could not watch " + locksPath, e);
+            watching = false;
+            pressure = true;
+        }
+        if (pressure) {
+            trimIdle();
+        }
+    }
+
+    private void locksChanged(WatchedEvent event) {
+        if (event.getType() == Watcher.Event.EventType.None) {
+            return;
+        }
+        try {
+            scheduler.execute(this::checkPressure);
+        } catch (Exception e) {
+            // 已关闭
+        }
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        if (newState == ConnectionState.SUSPENDED || newState == ConnectionState.LOST) {
+            // 租约节点可能已经随会话删除，本地缓存的许可不再可信
+            connectionEpoch++;
+            returnIdle();
+        } else if (newState == ConnectionState.RECONNECTED) {
+            watching = false;
+            watchLocks();
+        }
+    }
+
+    /**
+     * @return 本地缓存的空闲许可数
+     */
+    public int getIdleLeases() {
+        return idle.size();
+    }
+
+    /**
+     * @return 向ZooKeeper租用的许可数
+     */
+    public long getZkLeases() {
+        return zkLeases.get();
+    }
+
+    /**
+     * @return 直接从本地队列获取的次数
+     */
+    public long getLocalAcquisitions() {
+        return localAcquisitions.get();
+    }
+
+    /**
+     * @return 归还给ZooKeeper的许可数
+     */
+    public long getReturnedLeases() {
+        return returnedLeases.get();
+    }
+
+    /**
+     * 归还空闲的许可，正在使用的许可在使用者close时归还
+     */
+    @Override
+    public void close() {
+        closed = true;
+        client.getConnectionStateListenable().removeListener(this);
+        scheduler.shutdownNow();
+        returnIdle();
+    }
+
+    private class LocalLease implements Lease {
+        private final Lease lease;
+        private final long epoch;
+        private boolean returned;
+
+        LocalLease(Lease lease, long epoch) {
+            this.lease = lease;
+            this.epoch = epoch;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!returned) {
+                returned = true;
+                returnLease(this);
+            }
+        }
+
+        @Override
+        public byte[] getData() throws Exception {
+            return lease.getData();
+        }
+
+        @Override
+        public String getNodeName() {
+            return lease.getNodeName();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package pers.mingshan.curator.lock;
+
+/**
+ * 模拟检查fencing token的共享资源
+ *
+ * 与 {@link FakeLimitedResource} 不同，这里假设资源本身(例如存储服务)会串行处理写请求，
+ * 并记住见过的最大令牌：令牌小于它的请求来自已经失去锁的持有者，直接拒绝。
+ * 令牌由 {@link FencedMutex#getFencingToken()} 获取。
+ *
+ * @author mingshan
+ *
+ */
+public class FencedLimitedResource {
+    private long highestToken = -1;
+    private long rejected;
+
+    public synchronized void use(long token) throws InterruptedException {
+        if (token < highestToken) {
+            rejected++;
+            throw new IllegalStateException("Stale fencing token " + token + ", current " + highestToken);
+        }
+        highestToken = token;
+        // 真实环境中在这里访问/维护共享的资源
+        Thread.sleep((long) (3 * Math.random()));
+    }
+
+    public synchronized long getHighestToken() {
+        return highestToken;
+    }
+
+    /**
+     * @return 因令牌过期被拒绝的次数
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
@@ -0,0 +1,53 @@
+package pers.mingshan.curator.lock;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.utils.ZKPaths;
+
+/**
+ * 带fencing token的分布式锁
+ *
+ * 持有锁的进程可能因为GC停顿、网络分区等原因在会话过期后仍然以为自己持有锁，
+ * 此时另一个进程已经获取了同一把锁，两者会同时写共享资源。
+ * 解决办法是每次获取锁时拿到一个单调递增的令牌，写资源时带上，资源端拒绝比见过的最大令牌更小的令牌，
+ * 参见 {@link FencedLimitedResource}。
+ *
+ * InterProcessMutex的锁节点是同一父节点下的顺序节点，获取锁的顺序就是节点序号的顺序，
+ * 因此直接用锁节点的序号作为令牌，不需要额外的ZooKeeper读写。
+ * 序号由父节点维护，锁路径的父节点被删除重建后会从0开始，使用fencing token的锁路径不要删除。
+ *
+ * @author mingshan
+ *
+ */
+public class FencedMutex extends InterProcessMutex {
+
+    public FencedMutex(CuratorFramework client, String path) {
+        super(client, path);
+    }
+
+    /**
+     * @return 当前线程持有的锁对应的令牌，没有持有锁时返回-1
+     */
+    public long getFencingToken() {
+        String lockPath = getLockPath();
+        if (lockPath == null) {
+            return -1;
+        }
+        return sequenceOf(ZKPaths.getNodeFromPath(lockPath));
+    }
+
+    /**
+     * 顺序节点名以10位序号结尾
+     */
+    static long sequenceOf(String nodeName) {
+        int length = nodeName.length();
+        int start = length;
+        while (start > 0 && Character.isDigit(nodeName.charAt(start - 1))) {
+            start--;
+        }
+        if (start == length) {
+            throw new IllegalArgumentException("Not a sequential node: " + nodeName);
+        }
+        return Long.parseLong(nodeName.substring(start));
+    }
+}
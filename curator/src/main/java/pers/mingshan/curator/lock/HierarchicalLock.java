@@ -0,0 +1,209 @@
+package pers.mingshan.curator.lock;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 两级分布式锁：JVM内的公平锁 + 共享的ZooKeeper锁
+ *
+ * 同一个JVM中的线程先竞争本地的公平 {@link ReentrantLock}，拿到本地锁的线程再去获取ZooKeeper上的锁。
+ * 释放时如果还有本地线程在排队，就不释放ZooKeeper上的锁，直接把所有权交给下一个本地线程，
+ * 省去一次删除节点、一次创建节点以及watch唤醒。
+ *
+ * 为了不让其他进程饿死，连续的本地交接不超过 maxHandoffs 次，之后释放ZooKeeper上的锁重新排队。
+ *
+ * ZooKeeper上的锁使用 {@link InterProcessSemaphoreMutex}，它不和线程绑定，
+ * 由一个线程获取、另一个线程释放是允许的(InterProcessMutex不允许)。
+ * 连接挂起或丢失后不再交接，下一个线程会重新获取ZooKeeper上的锁。
+ *
+ * 与InterProcessMutex一样，同一线程可以重入。
+ *
+ * @author mingshan
+ *
+ */
+public class HierarchicalLock implements InterProcessLock, ConnectionStateListener, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(HierarchicalLock.class);
+
+    private final CuratorFramework client;
+    private final ReentrantLock local = new ReentrantLock(true);
+    private final InterProcessSemaphoreMutex shared;
+    private final int maxHandoffs;
+
+    /** 以下字段只在持有本地锁时访问 */
+    private boolean sharedHeld;
+    private int handoffs;
+    private long sharedEpoch;
+
+    /** 每次连接挂起或丢失时加一，之前获取的ZooKeeper锁不再可信 */
+    private volatile long connectionEpoch;
+
+    private final AtomicLong sharedAcquisitions = new AtomicLong();
+    private final AtomicLong localHandoffs = new AtomicLong();
+
+    public HierarchicalLock(CuratorFramework client, String lockPath) {
+        this(client, lockPath, 16);
+    }
+
+    /**
+     * @param maxHandoffs 持有ZooKeeper锁期间最多连续交接给本地线程的次数
+     */
+    public HierarchicalLock(CuratorFramework client, String lockPath, int maxHandoffs) {
+        this.client = client;
+        this.shared = new InterProcessSemaphoreMutex(client, lockPath);
+        this.maxHandoffs = maxHandoffs;
+        client.getConnectionStateListenable().addListener(this);
+    }
+
+    @Override
+    public void acquire() throws Exception {
+        try {
+            local.lockInterruptibly();
+        } catch (InterruptedException e) {
+            releaseIfIdle();
+            throw e;
+        }
+        try {
+            ensureShared(-1);
+        } catch (Exception e) {
+            local.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean acquire(long time, TimeUnit unit) throws Exception {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        if (!local.tryLock(time, unit)) {
+            // 可能正是本线程被交接的锁，放弃等待时不能让ZooKeeper上的锁闲置
+            releaseIfIdle();
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            acquired = ensureShared(deadline);
+            return acquired;
+        } finally {
+            if (!acquired) {
+                local.unlock();
+            }
+        }
+    }
+
+    /**
+     * 持有本地锁后确保也持有ZooKeeper上的锁
+     *
+     * @param deadline 截止时间(nanoTime)，小于0表示一直等待
+     */
+    private boolean ensureShared(long deadline) throws Exception {
+        if (sharedHeld && sharedEpoch != connectionEpoch) {
+            // 连接断开过，节点可能已随会话删除
+            releaseSharedQuietly();
+        }
+        if (sharedHeld) {
+            return true;
+        }
+        long epoch = connectionEpoch;
+        if (deadline < 0) {
+            shared.acquire();
+        } else if (!shared.acquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        sharedHeld = true;
+        sharedEpoch = epoch;
+        handoffs = 0;
+        sharedAcquisitions.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void release() throws Exception {
+        if (!local.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("You do not own the lock");
+        }
+        if (local.getHoldCount() > 1) {
+            local.unlock();
+            return;
+        }
+        if (local.hasQueuedThreads() && handoffs < maxHandoffs && sharedEpoch == connectionEpoch) {
+            // 交给下一个本地线程，不释放ZooKeeper上的锁
+            handoffs++;
+            localHandoffs.incrementAndGet();
+            local.unlock();
+            // 排队的线程可能已经超时离开
+            releaseIfIdle();
+            return;
+        }
+        try {
+            sharedHeld = false;
+            shared.release();
+        } finally {
+            local.unlock();
+        }
+    }
+
+    /**
+     * 没有线程持有或等待本地锁时，释放仍然持有的ZooKeeper锁
+     */
+    private void releaseIfIdle() {
+        if (local.hasQueuedThreads() || !local.tryLock()) {
+            return;
+        }
+        try {
+            if (sharedHeld) {
+                releaseSharedQuietly();
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    private void releaseSharedQuietly() {
+        sharedHeld = false;
+        try {
+            shared.release();
+        } catch (Exception e) {
+            logger.debug("Could not release lock " + shared, e);
+        }
+    }
+
+    @Override
+    public boolean isAcquiredInThisProcess() {
+        return local.isLocked();
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        if (newState == ConnectionState.SUSPENDED || newState == ConnectionState.LOST) {
+            connectionEpoch++;
+        }
+    }
+
+    /**
+     * @return 获取ZooKeeper上的锁的次数
+     */
+    public long getSharedAcquisitions() {
+        return sharedAcquisitions.get();
+    }
+
+    /**
+     * @return 没有经过ZooKeeper、直接交给本地线程的次数
+     */
+    public long getLocalHandoffs() {
+        return localHandoffs.get();
+    }
+
+    @Override
+    public void close() {
+        client.getConnectionStateListenable().removeListener(this);
+    }
+}
@@ -0,0 +1,181 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 带统计的分布式锁装饰器
+ *
+ * 包装任意 {@link InterProcessLock}，把获取锁的等待时间、持有时间回报给 {@link LockMetricsSink}：
+ * <ul>
+ * <li>等待时间和持有时间只用 System.nanoTime 计算，热路径上没有额外的ZooKeeper请求</li>
+ * <li>InterProcessMutex(包括读写锁)和线程绑定，持有时间按线程记录，重入时只统计最外层；
+ *     InterProcessSemaphoreMutex这类不可重入、可以在其他线程释放的锁，持有状态按实例记录</li>
+ * <li>排队深度按 1/sampleEvery 的比例采样：请求锁之前在后台读取 queuePath 的子节点数，不阻塞加锁。
+ *     同一会话的请求按顺序执行，读到的是排在我们前面的锁节点数</li>
+ * </ul>
+ * InterProcessMutex/InterProcessReadWriteLock的锁节点直接在锁路径下，queuePath就是锁路径；
+ * InterProcessSemaphoreMutex的排队节点在 lockPath/leases 下。
+ *
+ * @author mingshan
+ *
+ */
+public class InstrumentedInterProcessLock implements InterProcessLock {
+    private static final Logger logger = LoggerFactory.getLogger(InstrumentedInterProcessLock.class);
+    public static final int DEFAULT_SAMPLE_EVERY = 16;
+
+    private final InterProcessLock delegate;
+    private final String lockPath;
+    private final LockMetricsSink sink;
+    private final CuratorFramework client;
+    private final String queuePath;
+    private final int sampleEvery;
+    private final BackgroundCallback queueCallback = this::queueSampled;
+    private static final long NOT_HELD = Long.MIN_VALUE;
+
+    /** delegate是否为可重入、和线程绑定的InterProcessMutex */
+    private final boolean reentrant;
+    /** 可重入时使用：{重入次数, 获取时间} */
+    private final ThreadLocal<long[]> holds = ThreadLocal.withInitial(() -> new long[2]);
+    /** 不可重入时使用：获取时间，NOT_HELD表示没有持有 */
+    private final AtomicLong acquiredNanos = new AtomicLong(NOT_HELD);
+
+    /**
+     * 包装一个InterProcessMutex，采样排队深度
+     */
+    public static InstrumentedInterProcessLock mutex(CuratorFramework client, String lockPath, LockMetricsSink sink) {
+        return new InstrumentedInterProcessLock(new InterProcessMutex(client, lockPath), lockPath, sink, client,
+                lockPath, DEFAULT_SAMPLE_EVERY);
+    }
+
+    /**
+     * 只统计等待时间和持有时间，不采样排队深度
+     */
+    public InstrumentedInterProcessLock(InterProcessLock delegate, String lockPath, LockMetricsSink sink) {
+        this(delegate, lockPath, sink, null, null, 0);
+    }
+
+    /**
+     * @param queuePath 排队的锁节点所在路径
+     * @param sampleEvery 每多少次获取采样一次排队深度，0表示不采样
+     */
+    public InstrumentedInterProcessLock(InterProcessLock delegate, String lockPath, LockMetricsSink sink,
+            CuratorFramework client, String queuePath, int sampleEvery) {
+        this.delegate = delegate;
+        this.lockPath = lockPath;
+        this.sink = sink;
+        this.client = client;
+        this.queuePath = queuePath;
+        this.sampleEvery = client == null ? 0 : sampleEvery;
+        this.reentrant = delegate instanceof InterProcessMutex;
+    }
+
+    @Override
+    public void acquire() throws Exception {
+        long start = System.nanoTime();
+        sampleQueueDepth();
+        boolean acquired = false;
+        try {
+            delegate.acquire();
+            acquired = true;
+        } finally {
+            afterAcquire(start, acquired);
+        }
+    }
+
+    @Override
+    public boolean acquire(long time, TimeUnit unit) throws Exception {
+        long start = System.nanoTime();
+        sampleQueueDepth();
+        boolean acquired = false;
+        try {
+            acquired = delegate.acquire(time, unit);
+        } finally {
+            afterAcquire(start, acquired);
+        }
+        return acquired;
+    }
+
+    /**
+     * delegate释放失败时锁同样视为已释放(InterProcessMutex和InterProcessSemaphoreMutex都先清除本地的持有状态)
+     */
+    @Override
+    public void release() throws Exception {
+        long now = System.nanoTime();
+        if (!reentrant) {
+            long since = acquiredNanos.getAndSet(NOT_HELD);
+            try {
+                delegate.release();
+            } finally {
+                if (since != NOT_HELD) {
+                    sink.released(lockPath, now - since);
+                }
+            }
+            return;
+        }
+        long[] hold = holds.get();
+        try {
+            delegate.release();
+        } finally {
+            if (hold[0] > 0 && --hold[0] == 0) {
+                sink.released(lockPath, now - hold[1]);
+            }
+        }
+    }
+
+    @Override
+    public boolean isAcquiredInThisProcess() {
+        return delegate.isAcquiredInThisProcess();
+    }
+
+    public String getLockPath() {
+        return lockPath;
+    }
+
+    private void afterAcquire(long start, boolean acquired) {
+        long now = System.nanoTime();
+        if (!acquired) {
+            sink.acquireFailed(lockPath, now - start);
+            return;
+        }
+        if (!reentrant) {
+            acquiredNanos.set(now);
+            sink.acquired(lockPath, now - start);
+            return;
+        }
+        long[] hold = holds.get();
+        if (hold[0]++ == 0) {
+            hold[1] = now;
+            sink.acquired(lockPath, now - start);
+        }
+    }
+
+    private void sampleQueueDepth() {
+        if (sampleEvery <= 0 || ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return;
+        }
+        try {
+            client.getChildren().inBackground(queueCallback).forPath(queuePath);
+        } catch (Exception e) {
+            logger.debug("Could not sample queue depth of " + queuePath, e);
+        }
+    }
+
+    private void queueSampled(CuratorFramework client, CuratorEvent event) {
+        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+            sink.queueDepth(lockPath, event.getChildren().size());
+        } else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+            sink.queueDepth(lockPath, 0);
+        }
+    }
+}
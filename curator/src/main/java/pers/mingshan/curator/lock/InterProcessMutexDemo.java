@@ -9,7 +9,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.CloseableUtils;
 
@@ -18,13 +18,16 @@ import com.google.common.collect.Lists;
 /**
  * 利用 InterProcessMutex 来实现可重入分布式锁
  * 
+ * 锁用 {@link InstrumentedInterProcessLock} 包装，结束时输出等待时间、持有时间和排队深度的统计。
+ * 访问资源时带上 {@link FencedMutex} 的fencing token，失去锁的持有者写入会被资源拒绝。
  * 
  * @author mingshan
  *
  */
 public class InterProcessMutexDemo {
-    private InterProcessMutex lock;
-    private final FakeLimitedResource resource;
+    private final FencedMutex mutex;
+    private final InterProcessLock lock;
+    private final FencedLimitedResource resource;
     private final String clientName;
 
     // Zookeeper的基本配置
@@ -34,11 +37,14 @@ public class InterProcessMutexDemo {
     private static final String ZK_PATH = "/zktest/locks";
     private static final int QTY = 5;
     private static final int REPETITIONS = QTY;
+    private static final LockMetrics METRICS = new LockMetrics();
 
-    public InterProcessMutexDemo(CuratorFramework client, String lockPath, FakeLimitedResource resource, String clientName) {
+    public InterProcessMutexDemo(CuratorFramework client, String lockPath, FencedLimitedResource resource, String clientName) {
         this.resource = resource;
         this.clientName = clientName;
-        this.lock = new InterProcessMutex(client, lockPath);
+        this.mutex = new FencedMutex(client, lockPath);
+        this.lock = new InstrumentedInterProcessLock(mutex, lockPath, METRICS, client, lockPath,
+                InstrumentedInterProcessLock.DEFAULT_SAMPLE_EVERY);
     }
 
     public void doWork(long time, TimeUnit unit) throws Exception {
@@ -46,8 +52,9 @@ public class InterProcessMutexDemo {
             throw new IllegalStateException(clientName + " could not acquire the lock");
         }
         try {
-            System.out.println(clientName + " get the lock");
-            resource.use(); //access resource exclusively
+            long token = mutex.getFencingToken();
+            System.out.println(clientName + " get the lock, token " + token);
+            resource.use(token); //access resource exclusively
         } finally {
             System.out.println(clientName + " releasing the lock");
             lock.release(); // always release the lock in a finally block
@@ -55,7 +62,7 @@ public class InterProcessMutexDemo {
     }
 
     public static void main(String[] args) throws Exception {
-        final FakeLimitedResource resource = new FakeLimitedResource();
+        final FencedLimitedResource resource = new FencedLimitedResource();
         ExecutorService service = Executors.newFixedThreadPool(QTY);
         List<CuratorFramework> clients = Lists.newArrayList();
 
@@ -95,6 +102,7 @@ public class InterProcessMutexDemo {
             }
             service.shutdown();
             service.awaitTermination(10, TimeUnit.MINUTES);
+            System.out.print(METRICS.report());
         } finally {
 //            for (CuratorFramework client : clients) {
 //                CloseableUtils.closeQuietly(client);
@@ -0,0 +1,272 @@
+package pers.mingshan.curator.lock;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 带租期的分布式锁
+ *
+ * 释放后不立即删除ZooKeeper上的节点，而是在 leaseMs 内继续持有，
+ * 期间同一进程再次获取锁只需获取本地锁，不产生任何ZooKeeper读写。
+ * 租期到期且没有本地线程使用时才真正释放。
+ *
+ * ZooKeeper上的锁使用 {@link InterProcessSemaphoreMutex}，等待中的进程会在 lockPath/leases 下
+ * 创建自己的租约节点。持有锁期间监听这个节点的子节点，一旦出现其他进程的租约节点，
+ * 立即让出：空闲时马上释放，正在使用时在本次release时释放，不会让其他进程等完整个租期。
+ * 连接挂起或丢失后同样立即让出。
+ *
+ * 同一线程可以重入。
+ *
+ * @author mingshan
+ *
+ */
+public class LeaseLock implements InterProcessLock, ConnectionStateListener, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LeaseLock.class);
+    /** InterProcessSemaphoreV2存放租约节点的子节点名 */
+    private static final String LEASE_PARENT = "leases";
+
+    private final CuratorFramework client;
+    private final InterProcessSemaphoreMutex shared;
+    private final String leasesPath;
+    private final long leaseMs;
+    private final ReentrantLock local = new ReentrantLock();
+    private final ScheduledExecutorService scheduler = ThreadUtils.newSingleThreadScheduledExecutor("LeaseLock");
+    private final CuratorWatcher leasesWatcher = this::leasesChanged;
+
+    /** 只在持有本地锁时修改 */
+    private volatile boolean sharedHeld;
+    private ScheduledFuture<?> expiry;
+    /** 有其他进程在等待，或者连接不可靠，应尽快让出 */
+    private volatile boolean contended;
+
+    private final AtomicLong sharedAcquisitions = new AtomicLong();
+    private final AtomicLong localAcquisitions = new AtomicLong();
+    private final AtomicLong surrenders = new AtomicLong();
+
+    /**
+     * @param leaseMs 释放后继续持有ZooKeeper锁的时间，0表示立即释放
+     */
+    public LeaseLock(CuratorFramework client, String lockPath, long leaseMs) {
+        this.client = client;
+        this.shared = new InterProcessSemaphoreMutex(client, lockPath);
+        this.leasesPath = ZKPaths.makePath(lockPath, LEASE_PARENT);
+        this.leaseMs = leaseMs;
+        client.getConnectionStateListenable().addListener(this);
+    }
+
+    @Override
+    public void acquire() throws Exception {
+        local.lockInterruptibly();
+        try {
+            ensureShared(-1);
+        } catch (Exception e) {
+            local.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean acquire(long time, TimeUnit unit) throws Exception {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        if (!local.tryLock(time, unit)) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            acquired = ensureShared(deadline);
+            return acquired;
+        } finally {
+            if (!acquired) {
+                local.unlock();
+            }
+        }
+    }
+
+    /**
+     * 持有本地锁时调用
+     *
+     * @param deadline 截止时间(nanoTime)，小于0表示一直等待
+     */
+    private boolean ensureShared(long deadline) throws Exception {
+        if (local.getHoldCount() > 1) {
+            return true;
+        }
+        cancelExpiry();
+        if (sharedHeld && contended) {
+            // 先让出，重新排在等待的进程之后
+            releaseShared();
+        }
+        if (sharedHeld) {
+            localAcquisitions.incrementAndGet();
+            return true;
+        }
+        if (deadline < 0) {
+            shared.acquire();
+        } else if (!shared.acquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        contended = false;
+        sharedHeld = true;
+        sharedAcquisitions.incrementAndGet();
+        try {
+            watchLeases();
+        } catch (Exception e) {
+            // 无法监听时不缓存所有权
+            logger.warn("Could not watch " + leasesPath + ", lease disabled", e);
+            contended = true;
+        }
+        return true;
+    }
+
+    @Override
+    public void release() throws Exception {
+        if (!local.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("You do not own the lock");
+        }
+        try {
+            if (local.getHoldCount() > 1 || !sharedHeld) {
+                return;
+            }
+            if (contended || leaseMs <= 0) {
+                releaseShared();
+            } else {
+                expiry = scheduler.schedule(this::releaseIfIdle, leaseMs, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    private void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+
+    private void releaseShared() throws Exception {
+        sharedHeld = false;
+        if (contended) {
+            surrenders.incrementAndGet();
+        }
+        shared.release();
+    }
+
+    /**
+     * 租期到期或需要让出时在scheduler中调用，正在使用时由使用者在release时处理
+     */
+    private void releaseIfIdle() {
+        if (!local.tryLock()) {
+            return;
+        }
+        try {
+            if (sharedHeld) {
+                expiry = null;
+                releaseShared();
+            }
+        } catch (Exception e) {
+            logger.warn("Could not release lock " + leasesPath, e);
+        } finally {
+            local.unlock();
+        }
+    }
+
+    private void watchLeases() throws Exception {
+        List<String> children = client.getChildren().usingWatcher(leasesWatcher).forPath(leasesPath);
+        if (children.size() > 1) {
+            contended = true;
+            scheduler.execute(this::releaseIfIdle);
+        }
+    }
+
+    private void leasesChanged(WatchedEvent event) {
+        if (event.getType() != Watcher.Event.EventType.NodeChildrenChanged || !sharedHeld) {
+            return;
+        }
+        scheduler.execute(() -> {
+            if (!sharedHeld) {
+                return;
+            }
+            try {
+                watchLeases();
+            } catch (Exception e) {
+                contended = true;
+                releaseIfIdle();
+            }
+        });
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        if (newState == ConnectionState.SUSPENDED || newState == ConnectionState.LOST) {
+            if (sharedHeld) {
+                contended = true;
+                scheduler.execute(this::releaseIfIdle);
+            }
+        }
+    }
+
+    @Override
+    public boolean isAcquiredInThisProcess() {
+        return local.isLocked();
+    }
+
+    /**
+     * @return 获取ZooKeeper锁的次数
+     */
+    public long getSharedAcquisitions() {
+        return sharedAcquisitions.get();
+    }
+
+    /**
+     * @return 租期内直接在本地获取的次数
+     */
+    public long getLocalAcquisitions() {
+        return localAcquisitions.get();
+    }
+
+    /**
+     * @return 因其他进程等待或连接异常而提前让出的次数
+     */
+    public long getSurrenders() {
+        return surrenders.get();
+    }
+
+    /**
+     * 释放仍在租期内的锁
+     */
+    @Override
+    public void close() {
+        client.getConnectionStateListenable().removeListener(this);
+        local.lock();
+        try {
+            cancelExpiry();
+            if (sharedHeld) {
+                releaseShared();
+            }
+        } catch (Exception e) {
+            logger.warn("Could not release lock " + leasesPath, e);
+        } finally {
+            local.unlock();
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package pers.mingshan.curator.lock;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import pers.mingshan.curator.util.LatencyHistogram;
+
+/**
+ * 按锁路径汇总的锁统计，{@link LockMetricsSink} 的默认实现
+ *
+ * 每个锁路径记录：
+ * <pre>
+ *  wait        获取锁的等待时间直方图(纳秒)
+ *  hold        持有锁的时间直方图(纳秒)
+ *  queueDepth  采样的排队深度直方图
+ *  failures    获取超时或失败的次数
+ * </pre>
+ * 通过 {@link #report()} 输出各路径的 p50/p99/max，便于在超时之前发现竞争。
+ *
+ * @author mingshan
+ *
+ */
+public class LockMetrics implements LockMetricsSink {
+    private final ConcurrentMap<String, LockStats> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void acquired(String lockPath, long waitNanos) {
+        statsOf(lockPath).wait.record(waitNanos);
+    }
+
+    @Override
+    public void acquireFailed(String lockPath, long waitNanos) {
+        LockStats lockStats = statsOf(lockPath);
+        lockStats.wait.record(waitNanos);
+        lockStats.failures.increment();
+    }
+
+    @Override
+    public void released(String lockPath, long holdNanos) {
+        statsOf(lockPath).hold.record(holdNanos);
+    }
+
+    @Override
+    public void queueDepth(String lockPath, int depth) {
+        statsOf(lockPath).queueDepth.record(depth);
+    }
+
+    /**
+     * @return 锁路径的统计，没有记录过时返回null
+     */
+    public LockStats getStats(String lockPath) {
+        return stats.get(lockPath);
+    }
+
+    public Map<String, LockStats> getAllStats() {
+        return new TreeMap<>(stats);
+    }
+
+    /**
+     * @return 每个锁路径一行的统计报告，时间单位为毫秒
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format("%-24s %8s %8s %9s %9s %9s %9s %9s %7s %7s%n",
+                "lock", "acquired", "failed", "wait p50", "wait p99", "wait max", "hold p50", "hold p99",
+                "queue50", "queue99"));
+        for (Map.Entry<String, LockStats> entry : getAllStats().entrySet()) {
+            LockStats lockStats = entry.getValue();
+            report.append(String.format("%-24s %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f %7d %7d%n", entry.getKey(),
+                    lockStats.getAcquired(), lockStats.getFailures(),
+                    toMillis(lockStats.wait.getValueAtPercentile(50)),
+                    toMillis(lockStats.wait.getValueAtPercentile(99)),
+                    toMillis(lockStats.wait.getMax()),
+                    toMillis(lockStats.hold.getValueAtPercentile(50)),
+                    toMillis(lockStats.hold.getValueAtPercentile(99)),
+                    lockStats.queueDepth.getValueAtPercentile(50),
+                    lockStats.queueDepth.getValueAtPercentile(99)));
+        }
+        return report.toString();
+    }
+
+    private LockStats statsOf(String lockPath) {
+        LockStats lockStats = stats.get(lockPath);
+        return lockStats != null ? lockStats : stats.computeIfAbsent(lockPath, path -> new LockStats());
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * 单个锁路径的统计
+     */
+    public static class LockStats {
+        private final LatencyHistogram wait = new LatencyHistogram();
+        private final LatencyHistogram hold = new LatencyHistogram();
+        private final LatencyHistogram queueDepth = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+
+        public LatencyHistogram getWaitTime() {
+            return wait;
+        }
+
+        public LatencyHistogram getHoldTime() {
+            return hold;
+        }
+
+        public LatencyHistogram getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getAcquired() {
+            return wait.getTotalCount() - failures.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+    }
+}
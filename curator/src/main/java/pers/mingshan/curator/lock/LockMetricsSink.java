@@ -0,0 +1,37 @@
+package pers.mingshan.curator.lock;
+
+/**
+ * 锁的统计数据接收方，由 {@link InstrumentedInterProcessLock} 回调
+ *
+ * 回调发生在加锁/解锁线程中(排队深度在Curator的后台线程中)，实现必须快速且线程安全，
+ * 不能阻塞。默认实现是 {@link LockMetrics}，也可以转发到其他监控系统。
+ *
+ * @author mingshan
+ *
+ */
+public interface LockMetricsSink {
+
+    /**
+     * 获取锁成功
+     *
+     * @param waitNanos 从调用acquire到获取成功的时间
+     */
+    void acquired(String lockPath, long waitNanos);
+
+    /**
+     * 获取锁超时或出现异常
+     */
+    void acquireFailed(String lockPath, long waitNanos);
+
+    /**
+     * 释放锁，重入时只在最外层释放时回调
+     *
+     * @param holdNanos 从获取成功到释放的时间
+     */
+    void released(String lockPath, long holdNanos);
+
+    /**
+     * 采样到的排队深度：请求锁时排在前面的锁节点数(包括持有者)
+     */
+    void queueDepth(String lockPath, int depth);
+}
@@ -0,0 +1,434 @@
+package pers.mingshan.curator.lock;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 分布式锁的死锁与排队(convoy)检测
+ *
+ * 定时扫描一组锁路径，根据锁节点的顺序和节点中记录的持有者构造等待图：
+ * 排在后面、还没拿到锁的持有者 -> 当前持有这把锁的持有者。
+ * <ul>
+ * <li>等待图中出现环即为死锁(例如两个进程以相反的顺序获取两把锁)</li>
+ * <li>等待的节点数超过 convoyLength，或最早的等待者已等了 convoyMs 以上，即为排队过长</li>
+ * </ul>
+ * 支持InterProcessMutex和InterProcessReadWriteLock的节点(__READ__/__WRIT__)：
+ * 读节点前面没有其他持有者的写节点时就算持有。
+ *
+ * 持有者来自锁节点的数据，使用 {@link OwnedMutex} 时是线程级别的，检测是精确的；
+ * 普通InterProcessMutex的节点数据只有IP，同一台机器上的多个线程会被当作一个持有者，可能误报。
+ *
+ * 每次扫描对所有锁路径并发地发出getChildren(异步，一次往返)，锁节点的数据不会变，
+ * 只对新出现的节点读取一次数据并缓存。
+ *
+ * @author mingshan
+ *
+ */
+public class LockWatchdog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LockWatchdog.class);
+    private static final String READ_LOCK_NAME = "__READ__";
+    private static final String WRITE_LOCK_NAME = "__WRIT__";
+    private static final long READ_TIMEOUT_MS = 5000;
+
+    private final CuratorFramework client;
+    private final Set<String> lockPaths = new CopyOnWriteArraySet<>();
+    private final long scanIntervalMs;
+    private final int convoyLength;
+    private final long convoyMs;
+    private final Listener listener;
+    /** 锁节点完整路径 -> 持有者和创建时间 */
+    private final ConcurrentMap<String, NodeInfo> nodeInfos = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = ThreadUtils.newSingleThreadScheduledExecutor("LockWatchdog");
+
+    /**
+     * 检测结果的回调，在watchdog线程中执行
+     */
+    public interface Listener {
+        void deadlockDetected(List<WaitEdge> cycle);
+
+        void convoyDetected(Convoy convoy);
+    }
+
+    /**
+     * 默认把检测结果写到日志
+     */
+    public static final Listener LOGGING_LISTENER = new Listener() {
+        @Override
+        public void deadlockDetected(List<WaitEdge> cycle) {
+            logger.error("Deadlock detected: " + cycle);
+        }
+
+        @Override
+        public void convoyDetected(Convoy convoy) {
+            logger.warn("Lock convoy detected: " + convoy);
+        }
+    };
+
+    public LockWatchdog(CuratorFramework client, Collection<String> lockPaths) {
+        this(client, lockPaths, 1000, 10, 10000, LOGGING_LISTENER);
+    }
+
+    /**
+     * @param scanIntervalMs 扫描间隔
+     * @param convoyLength 等待的节点数达到这个值时报告排队过长
+     * @param convoyMs 最早的等待者等待超过这个时间时报告排队过长
+     */
+    public LockWatchdog(CuratorFramework client, Collection<String> lockPaths, long scanIntervalMs,
+            int convoyLength, long convoyMs, Listener listener) {
+        this.client = client;
+        this.lockPaths.addAll(lockPaths);
+        this.scanIntervalMs = scanIntervalMs;
+        this.convoyLength = convoyLength;
+        this.convoyMs = convoyMs;
+        this.listener = listener;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                scan();
+            } catch (Exception e) {
+                logger.warn("Lock watchdog scan failed", e);
+            }
+        }, scanIntervalMs, scanIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void addLockPath(String lockPath) {
+        lockPaths.add(lockPath);
+    }
+
+    public void removeLockPath(String lockPath) {
+        lockPaths.remove(lockPath);
+    }
+
+    /**
+     * 扫描一次，回调listener并返回结果
+     */
+    public ScanResult scan() throws Exception {
+        Map<String, List<String>> children = readChildren();
+        readNewNodes(children);
+
+        Set<String> present = new HashSet<>();
+        List<WaitEdge> edges = new ArrayList<>();
+        List<Convoy> convoys = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<String>> entry : children.entrySet()) {
+            String lockPath = entry.getKey();
+            List<String> nodes = new ArrayList<>(entry.getValue());
+            nodes.sort(Comparator.comparingLong(FencedMutex::sequenceOf));
+            Set<String> holderOwners = new LinkedHashSet<>();
+            List<NodeInfo> waiting = new ArrayList<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                String nodePath = ZKPaths.makePath(lockPath, nodes.get(i));
+                present.add(nodePath);
+                NodeInfo info = nodeInfos.get(nodePath);
+                if (info == null) {
+                    // 读取数据前节点已被删除
+                    continue;
+                }
+                if (holdsLock(nodes, i, lockPath, info.owner)) {
+                    holderOwners.add(info.owner);
+                } else if (!holderOwners.contains(info.owner)) {
+                    waiting.add(info);
+                }
+            }
+            for (NodeInfo info : waiting) {
+                for (String holder : holderOwners) {
+                    edges.add(new WaitEdge(info.owner, holder, lockPath));
+                }
+            }
+            if (!waiting.isEmpty()) {
+                long oldestWaitMs = now - waiting.get(0).ctime;
+                if (waiting.size() >= convoyLength || oldestWaitMs >= convoyMs) {
+                    convoys.add(new Convoy(lockPath, new ArrayList<>(holderOwners), waiting.size(), oldestWaitMs));
+                }
+            }
+        }
+        // 只保留仍然存在的节点
+        nodeInfos.keySet().retainAll(present);
+
+        List<List<WaitEdge>> deadlocks = findCycles(edges);
+        for (List<WaitEdge> cycle : deadlocks) {
+            listener.deadlockDetected(cycle);
+        }
+        for (Convoy convoy : convoys) {
+            listener.convoyDetected(convoy);
+        }
+        return new ScanResult(edges, deadlocks, convoys);
+    }
+
+    /**
+     * 对所有锁路径并发发出getChildren
+     */
+    private Map<String, List<String>> readChildren() throws InterruptedException {
+        Map<String, List<String>> children = new ConcurrentHashMap<>();
+        List<String> paths = new ArrayList<>(lockPaths);
+        CountDownLatch latch = new CountDownLatch(paths.size());
+        for (String path : paths) {
+            try {
+                client.getChildren().inBackground((c, event) -> {
+                    if (isOk(event)) {
+                        List<String> lockNodes = new ArrayList<>();
+                        for (String child : event.getChildren()) {
+                            // 锁路径下可能有非顺序的子节点，例如InterProcessSemaphoreMutex的locks/leases
+                            if (Character.isDigit(child.charAt(child.length() - 1))) {
+                                lockNodes.add(child);
+                            }
+                        }
+                        children.put(path, lockNodes);
+                    }
+                    latch.countDown();
+                }).forPath(path);
+            } catch (Exception e) {
+                logger.debug("Could not read children of " + path, e);
+                latch.countDown();
+            }
+        }
+        if (!latch.await(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            logger.warn("Timed out reading lock paths");
+        }
+        return new LinkedHashMap<>(children);
+    }
+
+    /**
+     * 对还没有缓存的锁节点并发读取数据
+     */
+    private void readNewNodes(Map<String, List<String>> children) throws InterruptedException {
+        List<String> newNodes = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : children.entrySet()) {
+            for (String node : entry.getValue()) {
+                String nodePath = ZKPaths.makePath(entry.getKey(), node);
+                if (!nodeInfos.containsKey(nodePath)) {
+                    newNodes.add(nodePath);
+                }
+            }
+        }
+        CountDownLatch latch = new CountDownLatch(newNodes.size());
+        for (String nodePath : newNodes) {
+            try {
+                client.getData().inBackground((c, event) -> {
+                    if (isOk(event)) {
+                        byte[] data = event.getData();
+                        String owner = data == null || data.length == 0 ? nodePath
+                                : new String(data, StandardCharsets.UTF_8);
+                        nodeInfos.put(nodePath, new NodeInfo(owner, event.getStat().getCtime()));
+                    }
+                    latch.countDown();
+                }).forPath(nodePath);
+            } catch (Exception e) {
+                logger.debug("Could not read " + nodePath, e);
+                latch.countDown();
+            }
+        }
+        if (!latch.await(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            logger.warn("Timed out reading lock nodes");
+        }
+    }
+
+    private static boolean isOk(CuratorEvent event) {
+        return event.getResultCode() == KeeperException.Code.OK.intValue();
+    }
+
+    /**
+     * 按Curator的规则判断第i个节点是否持有锁：互斥锁和写锁只有第一个节点持有；
+     * 读锁前面没有其他持有者的写节点就持有(同一线程持有写锁时可以获取读锁)
+     */
+    private boolean holdsLock(List<String> nodes, int i, String lockPath, String owner) {
+        if (i == 0) {
+            return true;
+        }
+        if (!nodes.get(i).contains(READ_LOCK_NAME)) {
+            return false;
+        }
+        for (int j = 0; j < i; j++) {
+            if (nodes.get(j).contains(WRITE_LOCK_NAME)) {
+                NodeInfo writer = nodeInfos.get(ZKPaths.makePath(lockPath, nodes.get(j)));
+                if (writer == null || !writer.owner.equals(owner)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在持有者之间的等待图中查找环，每个环只报告一次
+     */
+    static List<List<WaitEdge>> findCycles(List<WaitEdge> edges) {
+        Map<String, List<WaitEdge>> graph = new HashMap<>();
+        for (WaitEdge edge : edges) {
+            graph.computeIfAbsent(edge.waiter, k -> new ArrayList<>()).add(edge);
+        }
+        List<List<WaitEdge>> cycles = new ArrayList<>();
+        Set<Set<String>> seen = new HashSet<>();
+        Set<String> done = new HashSet<>();
+        for (String start : graph.keySet()) {
+            if (!done.contains(start)) {
+                findCycles(start, graph, new ArrayList<>(), new LinkedHashMap<>(), done, seen, cycles);
+            }
+        }
+        return cycles;
+    }
+
+    private static void findCycles(String owner, Map<String, List<WaitEdge>> graph, List<WaitEdge> path,
+            Map<String, Integer> onPath, Set<String> done, Set<Set<String>> seen, List<List<WaitEdge>> cycles) {
+        onPath.put(owner, path.size());
+        for (WaitEdge edge : graph.getOrDefault(owner, Collections.<WaitEdge>emptyList())) {
+            Integer index = onPath.get(edge.holder);
+            if (index != null) {
+                List<WaitEdge> cycle = new ArrayList<>(path.subList(index, path.size()));
+                cycle.add(edge);
+                Set<String> members = new HashSet<>();
+                for (WaitEdge e : cycle) {
+                    members.add(e.waiter);
+                }
+                if (seen.add(members)) {
+                    cycles.add(cycle);
+                }
+            } else if (!done.contains(edge.holder)) {
+                path.add(edge);
+                findCycles(edge.holder, graph, path, onPath, done, seen, cycles);
+                path.remove(path.size() - 1);
+            }
+        }
+        onPath.remove(owner);
+        done.add(owner);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private static class NodeInfo {
+        final String owner;
+        final long ctime;
+
+        NodeInfo(String owner, long ctime) {
+            this.owner = owner;
+            this.ctime = ctime;
+        }
+    }
+
+    /**
+     * 等待图中的一条边：waiter 在 lockPath 上等待 holder
+     */
+    public static class WaitEdge {
+        private final String waiter;
+        private final String holder;
+        private final String lockPath;
+
+        WaitEdge(String waiter, String holder, String lockPath) {
+            this.waiter = waiter;
+            this.holder = holder;
+            this.lockPath = lockPath;
+        }
+
+        public String getWaiter() {
+            return waiter;
+        }
+
+        public String getHolder() {
+            return holder;
+        }
+
+        public String getLockPath() {
+            return lockPath;
+        }
+
+        @Override
+        public String toString() {
+            return waiter + " -[" + lockPath + "]-> " + holder;
+        }
+    }
+
+    /**
+     * 排队过长的锁
+     */
+    public static class Convoy {
+        private final String lockPath;
+        private final List<String> holders;
+        private final int waiters;
+        private final long oldestWaitMs;
+
+        Convoy(String lockPath, List<String> holders, int waiters, long oldestWaitMs) {
+            this.lockPath = lockPath;
+            this.holders = holders;
+            this.waiters = waiters;
+            this.oldestWaitMs = oldestWaitMs;
+        }
+
+        public String getLockPath() {
+            return lockPath;
+        }
+
+        public List<String> getHolders() {
+            return holders;
+        }
+
+        public int getWaiters() {
+            return waiters;
+        }
+
+        public long getOldestWaitMs() {
+            return oldestWaitMs;
+        }
+
+        @Override
+        public String toString() {
+            return lockPath + " held by " + holders + ", " + waiters + " waiting, oldest " + oldestWaitMs + " ms";
+        }
+    }
+
+    /**
+     * 一次扫描的结果
+     */
+    public static class ScanResult {
+        private final List<WaitEdge> edges;
+        private final List<List<WaitEdge>> deadlocks;
+        private final List<Convoy> convoys;
+
+        ScanResult(List<WaitEdge> edges, List<List<WaitEdge>> deadlocks, List<Convoy> convoys) {
+            this.edges = edges;
+            this.deadlocks = deadlocks;
+            this.convoys = convoys;
+        }
+
+        public List<WaitEdge> getEdges() {
+            return edges;
+        }
+
+        public List<List<WaitEdge>> getDeadlocks() {
+            return deadlocks;
+        }
+
+        public List<Convoy> getConvoys() {
+            return convoys;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package pers.mingshan.curator.lock;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+
+/**
+ * 在锁节点中记录持有者的InterProcessMutex
+ *
+ * InterProcessMutex默认把本机IP写进锁节点，分不清是哪个进程、哪个线程。
+ * 这里写入 "进程名#线程id:线程名"(进程名为 pid@host)，{@link LockWatchdog} 据此构造等待图。
+ * 锁节点由调用acquire的线程创建，所以按当前线程生成。
+ *
+ * @author mingshan
+ *
+ */
+public class OwnedMutex extends InterProcessMutex {
+    private static final String PROCESS = ManagementFactory.getRuntimeMXBean().getName();
+
+    public OwnedMutex(CuratorFramework client, String path) {
+        super(client, path);
+    }
+
+    @Override
+    protected byte[] getLockNodeBytes() {
+        return currentOwner().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 当前线程作为锁持有者的标识
+     */
+    public static String currentOwner() {
+        Thread thread = Thread.currentThread();
+        return PROCESS + "#" + thread.getId() + ":" + thread.getName();
+    }
+}
@@ -8,8 +8,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.framework.recipes.locks.InterProcessMutex;
-import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.CloseableUtils;
 
@@ -25,15 +24,18 @@ import org.apache.curator.utils.CloseableUtils;
  * 可重入读写锁主要由两个类实现：InterProcessReadWriteLock、InterProcessMutex。
  * 使用时首先创建一个InterProcessReadWriteLock实例，然后再根据你的需求得到读锁或者写锁，
  * 读写锁的类型是InterProcessMutex。
+ *
+ * 这里用 {@link BatchingReadWriteLock} 包装：读操作只拿读锁，多个读线程可以同时执行；
+ * 写操作拿写锁修改资源后降级为读锁，再读出刚写入的结果。
  * 
  * @author mingshan
  *
  */
 public class ReentrantReadWriteLockDemo {
 
-    private final InterProcessReadWriteLock lock;
-    private final InterProcessMutex readLock;
-    private final InterProcessMutex writeLock;
+    private final BatchingReadWriteLock lock;
+    private final InterProcessLock readLock;
+    private final InterProcessLock writeLock;
     private final FakeLimitedResource resource;
     private final String clientName;
 
@@ -48,31 +50,64 @@ public class ReentrantReadWriteLockDemo {
     public ReentrantReadWriteLockDemo(CuratorFramework client, String lockPath, FakeLimitedResource resource, String clientName) {
         this.resource = resource;
         this.clientName = clientName;
-        lock = new InterProcessReadWriteLock(client, lockPath);
+        lock = new BatchingReadWriteLock(client, lockPath);
         readLock = lock.readLock();
         writeLock = lock.writeLock();
     }
 
     public void doWork(long time, TimeUnit unit) throws Exception {
+        // 大部分是读操作，读锁可以同时被多个线程持有
+        if (Math.random() < 0.8) {
+            read(time, unit);
+        } else {
+            write(time, unit);
+        }
+    }
+
+    private void read(long time, TimeUnit unit) throws Exception {
+        if (!readLock.acquire(time, unit)) {
+            throw new IllegalStateException(clientName + " 不能得到读锁");
+        }
+        try {
+            System.out.println(clientName + " 已得到读锁");
+            Thread.sleep(100);
+        } finally {
+            System.out.println(clientName + " 释放读锁");
+            readLock.release();
+        }
+    }
+
+    private void write(long time, TimeUnit unit) throws Exception {
         // 注意只能先得到写锁再得到读锁，不能反过来！！！
         if (!writeLock.acquire(time, unit)) {
             throw new IllegalStateException(clientName + " 不能得到写锁");
         }
         System.out.println(clientName + " 已得到写锁");
-        if (!readLock.acquire(time, unit)) {
-            throw new IllegalStateException(clientName + " 不能得到读锁");
-        }
-        System.out.println(clientName + " 已得到读锁");
+        boolean downgraded = false;
         try {
             resource.use(); // 使用资源
-            Thread.sleep(1000);
+            // 降级为读锁，期间其他写线程不会插进来
+            lock.downgrade();
+            downgraded = true;
         } finally {
-            System.out.println(clientName + " 释放读写锁");
+            // 降级失败时写锁可能已经释放
+            if (!downgraded && writeLock.isAcquiredInThisProcess()) {
+                writeLock.release();
+            }
+        }
+        System.out.println(clientName + " 写锁已降级为读锁");
+        try {
+            Thread.sleep(100);
+        } finally {
+            System.out.println(clientName + " 释放读锁");
             readLock.release();
-            writeLock.release();
         }
     }
 
+    public void close() {
+        lock.close();
+    }
+
     public static void main(String[] args) throws Exception {
         final FakeLimitedResource resource = new FakeLimitedResource();
         ExecutorService service = Executors.newFixedThreadPool(QTY);
@@ -98,8 +133,12 @@ public class ReentrantReadWriteLockDemo {
                         try {
                             client.start();
                             final ReentrantReadWriteLockDemo example = new ReentrantReadWriteLockDemo(client, ZK_PATH, resource, "Client " + index);
-                            for (int j = 0; j < REPETITIONS; ++j) {
-                                example.doWork(10, TimeUnit.SECONDS);
+                            try {
+                                for (int j = 0; j < REPETITIONS; ++j) {
+                                    example.doWork(10, TimeUnit.SECONDS);
+                                }
+                            } finally {
+                                example.close();
                             }
                         } catch (Throwable e) {
                             e.printStackTrace();
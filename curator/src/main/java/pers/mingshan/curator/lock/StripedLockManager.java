@@ -0,0 +1,341 @@
+package pers.mingshan.curator.lock;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * 按key分条带的分布式锁
+ *
+ * 每个key一个锁节点时，百万级的key会产生同样多的持久节点和watch。
+ * 这里把key哈希到固定数量的条带(basePath/stripe-N)上，ZooKeeper中只有条带级别的锁：
+ * <ul>
+ * <li>JVM内按key用 {@link ReentrantLock} 保证互斥，key锁按引用计数创建和回收</li>
+ * <li>条带锁按引用计数持有：同一条带上第一个key获取ZooKeeper上的锁，其余key直接加入，
+ *     最后一个key释放时才释放ZooKeeper上的锁</li>
+ * <li>为了不让其他进程饿死，获取ZooKeeper上的锁之后最多加入 maxJoins 次，之后新的key等待条带释放，
+ *     重新到ZooKeeper上排队。已经持有其他条带的线程不受限制，避免本进程内的线程互相等待</li>
+ * <li>后台定时删除空闲条带的节点，节点不为空(其他进程正在使用)时删除会失败，直接跳过</li>
+ * </ul>
+ * 不同进程中哈希到同一条带的不同key会互相等待，条带数越多冲突越少。
+ * 与InterProcessMutex一样，锁和线程绑定，同一线程可以重入同一个key。
+ *
+ * @author mingshan
+ *
+ */
+public class StripedLockManager implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(StripedLockManager.class);
+
+    private final CuratorFramework client;
+    private final String basePath;
+    private final Stripe[] stripes;
+    private final ConcurrentMap<String, KeyLock> keyLocks = new ConcurrentHashMap<>();
+    private final long idleMs;
+    private final int maxJoins;
+    /** 当前线程持有的条带数 */
+    private final ThreadLocal<int[]> heldStripes = ThreadLocal.withInitial(() -> new int[1]);
+    private final ScheduledExecutorService reaper = ThreadUtils
+            .newSingleThreadScheduledExecutor("StripedLockManager");
+
+    private final AtomicLong sharedAcquisitions = new AtomicLong();
+    private final AtomicLong stripeJoins = new AtomicLong();
+    private final AtomicLong reapedStripes = new AtomicLong();
+
+    public StripedLockManager(CuratorFramework client, String basePath, int stripeCount) {
+        this(client, basePath, stripeCount, 60000);
+    }
+
+    /**
+     * @param stripeCount 条带数
+     * @param idleMs 条带空闲超过这个时间后删除其节点，0表示不删除
+     */
+    public StripedLockManager(CuratorFramework client, String basePath, int stripeCount, long idleMs) {
+        this(client, basePath, stripeCount, idleMs, 16);
+    }
+
+    /**
+     * @param stripeCount 条带数
+     * @param idleMs 条带空闲超过这个时间后删除其节点，0表示不删除
+     * @param maxJoins 持有ZooKeeper上的条带锁期间最多加入的次数
+     */
+    public StripedLockManager(CuratorFramework client, String basePath, int stripeCount, long idleMs,
+            int maxJoins) {
+        this.client = client;
+        this.basePath = basePath;
+        this.idleMs = idleMs;
+        this.maxJoins = maxJoins;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(ZKPaths.makePath(basePath, "stripe-" + i));
+        }
+        if (idleMs > 0) {
+            reaper.scheduleWithFixedDelay(this::reapIdleStripes, idleMs, idleMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void acquire(String key) throws Exception {
+        if (!acquire(key, -1, null)) {
+            throw new IllegalStateException("Could not acquire lock of " + key);
+        }
+    }
+
+    /**
+     * @return 是否在指定时间内获取到锁，time小于0表示一直等待
+     */
+    public boolean acquire(String key, long time, TimeUnit unit) throws Exception {
+        long deadline = time < 0 ? -1 : System.nanoTime() + unit.toNanos(time);
+        KeyLock keyLock = retainKeyLock(key);
+        boolean locked = false;
+        try {
+            if (deadline < 0) {
+                keyLock.lock.lockInterruptibly();
+                locked = true;
+            } else {
+                locked = keyLock.lock.tryLock(time, unit);
+            }
+            if (!locked) {
+                return false;
+            }
+            if (keyLock.lock.getHoldCount() > 1) {
+                return true;
+            }
+            if (!stripeOf(key).join(deadline)) {
+                keyLock.lock.unlock();
+                locked = false;
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            if (locked) {
+                keyLock.lock.unlock();
+                locked = false;
+            }
+            throw e;
+        } finally {
+            if (!locked) {
+                releaseKeyLock(key, keyLock);
+            }
+        }
+    }
+
+    public void release(String key) throws Exception {
+        KeyLock keyLock = keyLocks.get(key);
+        if (keyLock == null || !keyLock.lock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("You do not own the lock of " + key);
+        }
+        if (keyLock.lock.getHoldCount() > 1) {
+            keyLock.lock.unlock();
+            return;
+        }
+        try {
+            stripeOf(key).leave();
+        } finally {
+            keyLock.lock.unlock();
+            releaseKeyLock(key, keyLock);
+        }
+    }
+
+    /**
+     * @return key对应的条带节点路径
+     */
+    public String getStripePath(String key) {
+        return stripeOf(key).path;
+    }
+
+    private Stripe stripeOf(String key) {
+        int hash = Hashing.murmur3_32().hashString(key, StandardCharsets.UTF_8).asInt();
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+
+    /**
+     * 引用计数加一，同一key的所有线程共享一个KeyLock
+     */
+    private KeyLock retainKeyLock(String key) {
+        return keyLocks.compute(key, (k, current) -> {
+            KeyLock keyLock = current != null ? current : new KeyLock();
+            keyLock.refs++;
+            return keyLock;
+        });
+    }
+
+    private void releaseKeyLock(String key, KeyLock keyLock) {
+        keyLocks.computeIfPresent(key, (k, current) -> --current.refs == 0 ? null : current);
+    }
+
+    private void reapIdleStripes() {
+        long now = System.currentTimeMillis();
+        for (Stripe stripe : stripes) {
+            stripe.reapIfIdle(now);
+        }
+    }
+
+    /**
+     * @return 获取ZooKeeper上条带锁的次数
+     */
+    public long getSharedAcquisitions() {
+        return sharedAcquisitions.get();
+    }
+
+    /**
+     * @return 条带锁已被本进程持有，直接加入的次数
+     */
+    public long getStripeJoins() {
+        return stripeJoins.get();
+    }
+
+    public long getReapedStripes() {
+        return reapedStripes.get();
+    }
+
+    /**
+     * @return 当前JVM中有线程持有或等待的key数量
+     */
+    public int getActiveKeys() {
+        return keyLocks.size();
+    }
+
+    @Override
+    public void close() {
+        reaper.shutdownNow();
+    }
+
+    private static class KeyLock {
+        final ReentrantLock lock = new ReentrantLock();
+        /** 由keyLocks的compute保护 */
+        int refs;
+    }
+
+    private class Stripe {
+        final String path;
+        final InterProcessSemaphoreMutex mutex;
+        /** 以下字段由this保护 */
+        int refs;
+        /** 获取ZooKeeper上的锁之后加入的次数 */
+        int joins;
+        boolean acquiring;
+        boolean releasing;
+        boolean created;
+        long lastUsed;
+
+        Stripe(String path) {
+            this.path = path;
+            this.mutex = new InterProcessSemaphoreMutex(client, path);
+        }
+
+        /**
+         * 本进程已持有且没有超过加入次数时直接加入，否则获取ZooKeeper上的锁(同一时间只有一个线程去获取)
+         */
+        boolean join(long deadline) throws Exception {
+            int[] held = heldStripes.get();
+            synchronized (this) {
+                while (acquiring || releasing || (refs > 0 && joins >= maxJoins && held[0] == 0)) {
+                    if (deadline < 0) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+                if (refs > 0) {
+                    refs++;
+                    joins++;
+                    held[0]++;
+                    stripeJoins.incrementAndGet();
+                    return true;
+                }
+                acquiring = true;
+            }
+            boolean acquired = false;
+            try {
+                if (deadline < 0) {
+                    mutex.acquire();
+                    acquired = true;
+                } else {
+                    acquired = mutex.acquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                synchronized (this) {
+                    acquiring = false;
+                    if (acquired) {
+                        refs = 1;
+                        joins = 0;
+                        held[0]++;
+                        created = true;
+                        sharedAcquisitions.incrementAndGet();
+                    }
+                    notifyAll();
+                }
+            }
+            return acquired;
+        }
+
+        /**
+         * 释放ZooKeeper上的锁时不持有this，释放期间新的key等待释放完成后重新获取
+         */
+        void leave() throws Exception {
+            heldStripes.get()[0]--;
+            synchronized (this) {
+                if (--refs > 0) {
+                    return;
+                }
+                lastUsed = System.currentTimeMillis();
+                releasing = true;
+            }
+            try {
+                mutex.release();
+            } finally {
+                synchronized (this) {
+                    releasing = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * 依次删除 leases、locks 和条带节点，任何一个不为空都说明有进程在使用，放弃删除
+         */
+        synchronized void reapIfIdle(long now) {
+            if (!created || refs > 0 || acquiring || releasing || now - lastUsed < idleMs) {
+                return;
+            }
+            try {
+                for (String child : new String[] {"leases", "locks"}) {
+                    deleteIfEmpty(ZKPaths.makePath(path, child));
+                }
+                deleteIfEmpty(path);
+                created = false;
+                reapedStripes.incrementAndGet();
+            } catch (KeeperException.NotEmptyException e) {
+                // 其他进程正在使用
+            } catch (Exception e) {
+                logger.debug("Could not reap " + path, e);
+            }
+        }
+
+        private void deleteIfEmpty(String nodePath) throws Exception {
+            try {
+                client.delete().forPath(nodePath);
+            } catch (KeeperException.NoNodeException e) {
+                // 已被删除
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package pers.mingshan.curator.lock;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 基于ZooKeeper的分布式令牌桶限流
+ *
+ * 整个集群共享一个令牌桶，状态(剩余令牌数、上次补充时间)保存在 path 节点中，
+ * 通过 setData().withVersion 做CAS更新，版本冲突时重新读取后重试。
+ *
+ * 每个进程一次从桶里取一批令牌放在本地，tryAcquire只是对本地计数做一次CAS减一：
+ * <ul>
+ * <li>批大小按本进程观察到的请求速率计算，约为 PREFETCH_WINDOW_MS 内的用量，限制在 [minBatch, maxBatch]</li>
+ * <li>本地令牌低于批大小的1/4时在后台提前取下一批，热路径不等待ZooKeeper</li>
+ * <li>桶里不够一批时不取，按补充速率算出攒够一批的时间，之前不再访问ZooKeeper</li>
+ * </ul>
+ * 本地预取的令牌会让全局速率短时间超出上限，超出量不超过 进程数 × maxBatch，maxBatch越小越精确，
+ * 但ZooKeeper写操作越多。close时把没用完的令牌还回桶里。
+ *
+ * 访问ZooKeeper失败时拒绝请求(返回false)。
+ *
+ * @author mingshan
+ *
+ */
+public class ZkRateLimiter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ZkRateLimiter.class);
+    /** 一批令牌大约够用的时间 */
+    private static final long PREFETCH_WINDOW_MS = 100;
+    private static final int MAX_CAS_RETRIES = 10;
+
+    private final CuratorFramework client;
+    private final String path;
+    private final double permitsPerSecond;
+    private final double burst;
+    private final int minBatch;
+    private final int maxBatch;
+    private final AtomicLong local = new AtomicLong();
+    private final AtomicBoolean fetching = new AtomicBoolean();
+    private final Object fetchLock = new Object();
+    private final ExecutorService prefetcher = ThreadUtils.newSingleThreadExecutor("ZkRateLimiter");
+    /** 获取到的令牌数，用于估计本进程的速率 */
+    private final LongAdder demand = new LongAdder();
+
+    /** 以下字段由fetchLock保护 */
+    private long lastDemand;
+    private long lastFetchNanos = System.nanoTime();
+    private double observedRate;
+
+    private volatile long prefetchThreshold;
+    /** 桶空时，在这个时间之前不再访问ZooKeeper */
+    private volatile long emptyUntilNanos;
+
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong casConflicts = new AtomicLong();
+
+    /**
+     * 桶容量为一秒的令牌数，最大批大小为1/20秒的令牌数
+     */
+    public ZkRateLimiter(CuratorFramework client, String path, double permitsPerSecond) {
+        this(client, path, permitsPerSecond, permitsPerSecond, 1, Math.max(1, (int) (permitsPerSecond / 20)));
+    }
+
+    /**
+     * @param burst 桶容量
+     * @param minBatch 每次从桶里取的最少令牌数
+     * @param maxBatch 每次从桶里取的最多令牌数，等于minBatch时为固定批大小
+     */
+    public ZkRateLimiter(CuratorFramework client, String path, double permitsPerSecond, double burst, int minBatch,
+            int maxBatch) {
+        this.client = client;
+        this.path = path;
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.minBatch = Math.max(1, minBatch);
+        this.maxBatch = Math.max(this.minBatch, maxBatch);
+    }
+
+    /**
+     * 获取一个令牌，不等待
+     */
+    public boolean tryAcquire() {
+        long n;
+        while ((n = local.get()) > 0) {
+            if (local.compareAndSet(n, n - 1)) {
+                demand.increment();
+                if (n - 1 <= prefetchThreshold) {
+                    prefetch();
+                }
+                return true;
+            }
+        }
+        return acquireSlow();
+    }
+
+    /**
+     * 在指定时间内获取一个令牌
+     */
+    public boolean tryAcquire(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        while (!tryAcquire()) {
+            long now = System.nanoTime();
+            if (now >= deadline) {
+                return false;
+            }
+            long wait = Math.max(emptyUntilNanos - now, TimeUnit.MILLISECONDS.toNanos(1));
+            TimeUnit.NANOSECONDS.sleep(Math.min(wait, deadline - now));
+        }
+        return true;
+    }
+
+    private boolean acquireSlow() {
+        if (System.nanoTime() < emptyUntilNanos) {
+            return false;
+        }
+        synchronized (fetchLock) {
+            // 等锁期间其他线程可能已经取到了令牌
+            long n;
+            while ((n = local.get()) > 0) {
+                if (local.compareAndSet(n, n - 1)) {
+                    demand.increment();
+                    return true;
+                }
+            }
+            if (System.nanoTime() < emptyUntilNanos) {
+                return false;
+            }
+            long granted = fetch();
+            if (granted <= 0) {
+                return false;
+            }
+            // 自己用掉一个，其余放到本地
+            local.addAndGet(granted - 1);
+            demand.increment();
+            return true;
+        }
+    }
+
+    private void prefetch() {
+        if (!fetching.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            prefetcher.execute(() -> {
+                try {
+                    synchronized (fetchLock) {
+                        if (local.get() <= prefetchThreshold && System.nanoTime() >= emptyUntilNanos) {
+                            local.addAndGet(fetch());
+                        }
+                    }
+                } finally {
+                    fetching.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fetching.set(false);
+        }
+    }
+
+    /**
+     * 持有fetchLock时调用，从桶里取一批令牌
+     *
+     * @return 取到的令牌数，桶空或出错时为0
+     */
+    private long fetch() {
+        int batch = nextBatchSize();
+        try {
+            for (int i = 0; i < MAX_CAS_RETRIES; i++) {
+                long granted = tryTake(batch);
+                if (granted > 0) {
+                    fetches.incrementAndGet();
+                    prefetchThreshold = batch / 4;
+                }
+                if (granted >= 0) {
+                    return granted;
+                }
+                casConflicts.incrementAndGet();
+            }
+            logger.warn("Too many conflicts updating rate limiter " + path);
+        } catch (Exception e) {
+            logger.warn("Could not fetch tokens from " + path, e);
+        }
+        return 0;
+    }
+
+    /**
+     * 按观察到的速率计算批大小，持有fetchLock时调用
+     */
+    private int nextBatchSize() {
+        long now = System.nanoTime();
+        long total = demand.sum();
+        long elapsed = now - lastFetchNanos;
+        if (elapsed > 0) {
+            double rate = (total - lastDemand) * 1e9 / elapsed;
+            observedRate = observedRate == 0 ? rate : (observedRate + rate) / 2;
+        }
+        lastDemand = total;
+        lastFetchNanos = now;
+        long batch = Math.round(observedRate * PREFETCH_WINDOW_MS / 1000);
+        return (int) Math.max(minBatch, Math.min(maxBatch, batch));
+    }
+
+    /**
+     * 读取桶状态，补充令牌后取走最多 wanted 个，通过版本号做CAS
+     *
+     * @return 取到的令牌数，版本冲突时返回-1
+     */
+    private long tryTake(int wanted) throws Exception {
+        Stat stat = new Stat();
+        byte[] data;
+        try {
+            data = client.getData().storingStatIn(stat).forPath(path);
+        } catch (KeeperException.NoNodeException e) {
+            try {
+                client.create().creatingParentsIfNeeded().forPath(path, encode(burst, System.currentTimeMillis()));
+            } catch (KeeperException.NodeExistsException ignored) {
+                // 其他进程已经创建
+            }
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        double tokens = buffer.getDouble();
+        long lastRefillMillis = buffer.getLong();
+        // 各进程时钟可能不一致，时间不能倒退
+        long nowMillis = Math.max(System.currentTimeMillis(), lastRefillMillis);
+        tokens = Math.min(burst, tokens + (nowMillis - lastRefillMillis) * permitsPerSecond / 1000);
+        // 攒够一批再取，不然桶空之后每补充一个令牌就要写一次ZooKeeper
+        double needed = Math.min(wanted, Math.max(1, Math.floor(burst)));
+        if (tokens < needed) {
+            // 在攒够之前不再访问ZooKeeper
+            double waitMillis = (needed - tokens) * 1000 / permitsPerSecond;
+            emptyUntilNanos = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos((long) (waitMillis * 1000));
+            return 0;
+        }
+        long granted = Math.min(wanted, (long) Math.floor(tokens));
+        try {
+            client.setData().withVersion(stat.getVersion()).forPath(path, encode(tokens - granted, nowMillis));
+        } catch (KeeperException.BadVersionException e) {
+            return -1;
+        }
+        return granted;
+    }
+
+    private static byte[] encode(double tokens, long refillMillis) {
+        return ByteBuffer.allocate(16).putDouble(tokens).putLong(refillMillis).array();
+    }
+
+    /**
+     * @return 本地剩余的令牌数
+     */
+    public long getLocalTokens() {
+        return local.get();
+    }
+
+    /**
+     * @return 从桶里取令牌的次数(成功写入ZooKeeper的次数)
+     */
+    public long getFetches() {
+        return fetches.get();
+    }
+
+    public long getCasConflicts() {
+        return casConflicts.get();
+    }
+
+    /**
+     * 把本地没用完的令牌还回桶里
+     */
+    @Override
+    public void close() {
+        prefetcher.shutdown();
+        synchronized (fetchLock) {
+            long unused = local.getAndSet(0);
+            if (unused <= 0) {
+                return;
+            }
+            try {
+                for (int i = 0; i < MAX_CAS_RETRIES; i++) {
+                    Stat stat = new Stat();
+                    ByteBuffer buffer = ByteBuffer.wrap(client.getData().storingStatIn(stat).forPath(path));
+                    double tokens = Math.min(burst, buffer.getDouble() + unused);
+                    try {
+                        client.setData().withVersion(stat.getVersion()).forPath(path,
+                                encode(tokens, buffer.getLong()));
+                        return;
+                    } catch (KeeperException.BadVersionException e) {
+                        // 重试
+                    }
+                }
+            } catch (Exception e) {
+                logger.debug("Could not return tokens to " + path, e);
+            }
+        }
+    }
+}
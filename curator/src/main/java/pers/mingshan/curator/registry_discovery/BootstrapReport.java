@@ -0,0 +1,110 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * {@link ServiceDiscoverer#bootstrap} 的结果
+ *
+ * 记录每个服务缓存从开始启动到初始化完成的耗时；截止时间内没有完成的服务状态为PENDING，
+ * 它们会在后台继续启动，之后的查询仍然可以使用。
+ *
+ * @author mingshan
+ *
+ */
+public class BootstrapReport {
+
+    public enum State {
+        READY, FAILED, PENDING
+    }
+
+    private final long elapsedMillis;
+    private final List<ServiceTiming> services;
+
+    BootstrapReport(long elapsedMillis, List<ServiceTiming> services) {
+        this.elapsedMillis = elapsedMillis;
+        this.services = ImmutableList.copyOf(services);
+    }
+
+    /**
+     * @return 所有服务都已初始化完成
+     */
+    public boolean isReady() {
+        for (ServiceTiming service : services) {
+            if (service.getState() != State.READY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 整个启动过程的耗时(毫秒)
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public List<ServiceTiming> getServices() {
+        return services;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("bootstrap %s in %dms%n", isReady() ? "ready" : "NOT ready", elapsedMillis));
+        report.append(String.format("%-32s %8s %10s %10s%n", "service", "state", "ms", "instances"));
+        for (ServiceTiming service : services) {
+            report.append(String.format("%-32s %8s %10s %10s%n", service.getServiceName(), service.getState(),
+                    service.getState() == State.PENDING ? "-" : String.valueOf(service.getMillis()),
+                    service.getState() == State.READY ? String.valueOf(service.getInstances()) : "-"));
+        }
+        return report.toString();
+    }
+
+    /**
+     * 单个服务的启动情况
+     */
+    public static class ServiceTiming {
+        private final String serviceName;
+        private final State state;
+        private final long millis;
+        private final int instances;
+        private final Throwable error;
+
+        ServiceTiming(String serviceName, State state, long millis, int instances, Throwable error) {
+            this.serviceName = serviceName;
+            this.state = state;
+            this.millis = millis;
+            this.instances = instances;
+            this.error = error;
+        }
+
+        public String getServiceName() {
+            return serviceName;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return 从开始启动到完成或失败的耗时(毫秒)
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return 初始化完成时的实例数
+         */
+        public int getInstances() {
+            return instances;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * 单个服务的实例缓存
+ *
+ * 每个服务名对应一个实例，内部使用 {@link ServiceInstanceCache} 增量地监听服务节点的变化，
+ * 直接使用缓存发布的不可变快照。
+ * 读取时由 {@link ProviderStrategy} 直接在快照上选择，不加锁也不拷贝列表。
+ *
+ * 缓存在第一次使用时才创建并启动，启动是异步的，同一服务并发的冷启动共享一次启动，
+ * 不会阻塞其他服务的查询。
+ *
+ * 配置了 {@link OutlierDetector} 时，策略看到的是去掉被摘除实例后的列表；
+ * 摘除到期后在下一次读取时重新计算，所有实例都被摘除时退回完整列表。
+ * 配置了 {@link LocalityPreference} 时，再从中选出本地实例，本地健康容量不足时使用全部可用实例。
+ *
+ * @author mingshan
+ *
+ */
+class CachedServiceProvider implements InstanceProvider<InstanceDetails>, ServiceInstanceListener, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CachedServiceProvider.class);
+    /** 服务内延迟中位数的缓存时间 */
+    private static final long MEDIAN_REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final CuratorFramework client;
+    private final String basePath;
+    private final InstanceSerializer<InstanceDetails> serializer;
+    private final String serviceName;
+    private final ProviderStrategy<InstanceDetails> strategy;
+    private final InstanceStatsRegistry stats;
+    private final OutlierDetector outlierDetector;
+    private final LocalityPreference locality;
+    private ServiceInstanceCache cache;
+    /** 缓存中的全部实例 */
+    private volatile List<ServiceInstance<InstanceDetails>> all = ImmutableList.of();
+    /** 提供给策略的实例，即全部实例去掉被摘除的，再按位置筛选 */
+    private volatile List<ServiceInstance<InstanceDetails>> instances = ImmutableList.of();
+    /** 摘除状态的锁，与启动缓存用的监视器分开，避免事件线程等待ZooKeeper访问 */
+    private final Object ejectionLock = new Object();
+    /** 有实例被摘除时，nextRecheckNanos为最早的摘除到期时间 */
+    private volatile boolean hasEjected;
+    private volatile long nextRecheckNanos;
+    private volatile double medianLatencyNanos;
+    private volatile long medianComputedNanos;
+    private volatile boolean started;
+    private volatile boolean closed;
+    /** 启动的结果，并发的冷启动共享同一个future，由this保护 */
+    private CompletableFuture<Void> startFuture;
+
+    CachedServiceProvider(CuratorFramework client, String basePath, InstanceSerializer<InstanceDetails> serializer,
+            String serviceName, ProviderStrategy<InstanceDetails> strategy, InstanceStatsRegistry stats,
+            OutlierDetector outlierDetector, LocalityPreference locality) {
+        this.client = client;
+        this.basePath = basePath;
+        this.serializer = serializer;
+        this.serviceName = serviceName;
+        this.strategy = strategy;
+        this.stats = stats;
+        this.outlierDetector = outlierDetector;
+        this.locality = locality;
+    }
+
+    /**
+     * 确保缓存已启动，同一服务的并发调用只会启动一次。
+     * 初始数据在连接超时时间内没有加载完成时抛出异常，下一次调用重新启动。
+     */
+    void ensureStarted() throws Exception {
+        if (started) {
+            return;
+        }
+        try {
+            startAsync().get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 启动缓存但不等待初始数据，调用方不会被阻塞。
+     * 启动完成前的并发调用返回同一个future，启动失败后的下一次调用重新尝试。
+     * future在缓存的事件线程中完成。
+     */
+    CompletableFuture<Void> startAsync() {
+        if (started) {
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (this) {
+            if (startFuture != null && !startFuture.isCompletedExceptionally()) {
+                return startFuture;
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            startFuture = future;
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("Provider of " + serviceName + " is closed"));
+                return future;
+            }
+            ServiceInstanceCache created = new ServiceInstanceCache(client, basePath, serviceName, serializer);
+            cache = created;
+            created.getListenable().addListener(this);
+            try {
+                created.startAsync().whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        CloseableUtils.closeQuietly(created);
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    all = created.getInstances();
+                    refreshAvailable(System.nanoTime());
+                    started = true;
+                    future.complete(null);
+                });
+            } catch (Exception e) {
+                // 启动失败时丢弃这个缓存，下一次调用重新创建
+                CloseableUtils.closeQuietly(created);
+                cache = null;
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * 热路径：由策略从当前快照中选取一个实例，没有可用实例时返回null
+     */
+    ServiceInstance<InstanceDetails> getInstance() throws Exception {
+        return strategy.getInstance(this);
+    }
+
+    @Override
+    public List<ServiceInstance<InstanceDetails>> getInstances() {
+        if (hasEjected) {
+            long now = System.nanoTime();
+            if (now - nextRecheckNanos >= 0) {
+                refreshAvailable(now);
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * 调用结束后由 {@link ServiceDiscoverer#noteCallEnd} 调用，此时调用统计已经更新
+     */
+    void onCallCompleted(InstanceStats instanceStats, long latencyNanos, boolean success) {
+        if (outlierDetector == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (instanceStats.isEjected(now)
+                || !outlierDetector.shouldEject(instanceStats, latencyNanos, success, medianLatency(now))) {
+            return;
+        }
+        synchronized (ejectionLock) {
+            List<ServiceInstance<InstanceDetails>> current = all;
+            if (instanceStats.isEjected(now) || !contains(current, instanceStats.getInstanceId())) {
+                return;
+            }
+            int ejected = 0;
+            for (ServiceInstance<InstanceDetails> instance : current) {
+                InstanceStats s = stats.peek(instance.getId());
+                if (s != null && s.isEjected(now)) {
+                    ejected++;
+                }
+            }
+            if (!outlierDetector.canEject(current.size(), ejected)) {
+                return;
+            }
+            long until = outlierDetector.ejectionDeadline(instanceStats, now);
+            logger.warn("Ejected instance " + instanceStats.getInstanceId() + " of " + serviceName + " for "
+                    + TimeUnit.NANOSECONDS.toMillis(until - now) + "ms, " + instanceStats);
+            refreshAvailable(now);
+        }
+    }
+
+    /**
+     * 重新计算可用实例和下一次检查的时间
+     */
+    private void refreshAvailable(long now) {
+        synchronized (ejectionLock) {
+            doRefreshAvailable(now);
+        }
+    }
+
+    private void doRefreshAvailable(long now) {
+        List<ServiceInstance<InstanceDetails>> current = all;
+        if (outlierDetector == null) {
+            instances = preferLocal(current, current);
+            return;
+        }
+        ImmutableList.Builder<ServiceInstance<InstanceDetails>> available = null;
+        long nextRecheck = 0;
+        boolean ejected = false;
+        for (int i = 0; i < current.size(); i++) {
+            ServiceInstance<InstanceDetails> instance = current.get(i);
+            InstanceStats s = stats.peek(instance.getId());
+            if (s != null && s.isEjected(now)) {
+                if (available == null) {
+                    // 第一个被摘除的实例之前的都是可用的
+                    available = ImmutableList.builder();
+                    available.addAll(current.subList(0, i));
+                }
+                long until = s.getEjectedUntilNanos();
+                if (!ejected || until - nextRecheck < 0) {
+                    nextRecheck = until;
+                }
+                ejected = true;
+            } else if (available != null) {
+                available.add(instance);
+            }
+        }
+        nextRecheckNanos = nextRecheck;
+        hasEjected = ejected;
+        if (available == null) {
+            instances = preferLocal(current, current);
+        } else {
+            List<ServiceInstance<InstanceDetails>> result = available.build();
+            // 全部被摘除时宁可使用坏实例，也不返回空列表
+            instances = result.isEmpty() ? current : preferLocal(result, current);
+        }
+    }
+
+    private List<ServiceInstance<InstanceDetails>> preferLocal(List<ServiceInstance<InstanceDetails>> available,
+            List<ServiceInstance<InstanceDetails>> current) {
+        return locality == null ? available : locality.select(available, current);
+    }
+
+    /**
+     * @return 服务内有延迟数据的实例的延迟中位数，少于两个实例有数据时返回0
+     */
+    private double medianLatency(long now) {
+        if (now - medianComputedNanos < MEDIAN_REFRESH_NANOS) {
+            return medianLatencyNanos;
+        }
+        List<ServiceInstance<InstanceDetails>> current = all;
+        double[] latencies = new double[current.size()];
+        int n = 0;
+        for (ServiceInstance<InstanceDetails> instance : current) {
+            InstanceStats s = stats.peek(instance.getId());
+            if (s != null && s.getEwmaNanos() > 0) {
+                latencies[n++] = s.getEwmaNanos();
+            }
+        }
+        double median = 0;
+        if (n >= 2) {
+            Arrays.sort(latencies, 0, n);
+            // 取下中位数，两个实例时以较快的那个为基准
+            median = latencies[(n - 1) / 2];
+        }
+        medianLatencyNanos = median;
+        medianComputedNanos = now;
+        return median;
+    }
+
+    private static boolean contains(List<ServiceInstance<InstanceDetails>> instances, String id) {
+        for (ServiceInstance<InstanceDetails> instance : instances) {
+            if (instance.getId().equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void instanceChanged(ServiceInstanceEvent event) {
+        all = cache.getInstances();
+        refreshAvailable(System.nanoTime());
+        if (event.getType() == ServiceInstanceEvent.Type.REMOVED) {
+            // 清理已下线实例的调用统计
+            stats.remove(Collections.singleton(event.getInstance().getId()));
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (cache != null) {
+            cache.getListenable().removeListener(this);
+            CloseableUtils.closeQuietly(cache);
+        }
+        if (startFuture != null) {
+            // 还在等待初始数据的调用方不会再等到结果
+            startFuture.completeExceptionally(new IllegalStateException("Provider of " + serviceName + " is closed"));
+        }
+    }
+}
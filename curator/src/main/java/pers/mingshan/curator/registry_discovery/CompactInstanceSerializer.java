@@ -0,0 +1,287 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.UriSpec;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * 紧凑的二进制实例序列化
+ *
+ * 替代 {@link JsonInstanceSerializer}，格式如下(整数均为varint编码)：
+ * <pre>
+ *  byte     版本号，1 或 2
+ *  byte     flags: port/sslPort/uriSpec/payload 是否存在，enabled
+ *  string   name, id, address
+ *  varint   port, sslPort (存在时)
+ *  varlong  registrationTimeUTC
+ *  byte     serviceType
+ *  string   uriSpec (存在时)
+ *  payload  id, listenAddress, listenPort(varint), interfaceName (存在时)
+ *           版本2在其后追加 zone, rack, weight(varint)
+ * </pre>
+ * 只有payload带有zone/rack/非默认weight时才写版本2，其余仍写版本1，
+ * 不使用这些属性的注册方不会影响尚未升级的发现方。
+ * string 编码为 (UTF-8字节数 + 1) 的varint加上UTF-8字节，0 表示null。
+ *
+ * 反序列化时，服务名、地址、接口名等在大量实例间重复的字符串会被intern，
+ * UriSpec按原始字符串缓存复用，减少每次刷新产生的垃圾。
+ *
+ * 兼容：第一个字节是 '{' 时按JSON解析，旧版本注册的实例在滚动升级期间仍然可读。
+ * 默认构造的序列化器仍然写JSON，只读取时识别二进制格式。升级时先升级所有发现方，
+ * 之后注册方再用 {@code new CompactInstanceSerializer(true)} 写二进制格式，
+ * 否则只认JSON的旧发现方会读不到新注册的实例。
+ *
+ * @author mingshan
+ *
+ */
+public class CompactInstanceSerializer implements InstanceSerializer<InstanceDetails> {
+    static final byte VERSION_1 = 1;
+    static final byte VERSION_2 = 2;
+
+    private static final int FLAG_PORT = 1;
+    private static final int FLAG_SSL_PORT = 1 << 1;
+    private static final int FLAG_URI_SPEC = 1 << 2;
+    private static final int FLAG_PAYLOAD = 1 << 3;
+    private static final int FLAG_ENABLED = 1 << 4;
+
+    private static final int MAX_CACHED_URI_SPECS = 1024;
+    private static final ServiceType[] SERVICE_TYPES = ServiceType.values();
+
+    private final boolean writeCompact;
+    private final JsonInstanceSerializer<InstanceDetails> jsonSerializer = new JsonInstanceSerializer<InstanceDetails>(
+            InstanceDetails.class);
+    private final Interner<String> interner = Interners.newWeakInterner();
+    private final ConcurrentMap<String, UriSpec> uriSpecs = new ConcurrentHashMap<>();
+
+    /**
+     * 写JSON，读JSON和二进制
+     */
+    public CompactInstanceSerializer() {
+        this(false);
+    }
+
+    /**
+     * @param writeCompact true时序列化输出二进制格式，所有发现方都升级之后才能打开
+     */
+    public CompactInstanceSerializer(boolean writeCompact) {
+        this.writeCompact = writeCompact;
+    }
+
+    @Override
+    public byte[] serialize(ServiceInstance<InstanceDetails> instance) throws Exception {
+        if (!writeCompact) {
+            return jsonSerializer.serialize(instance);
+        }
+        InstanceDetails payload = instance.getPayload();
+        boolean locality = payload != null && (payload.getZone() != null || payload.getRack() != null
+                || payload.getWeight() != InstanceDetails.DEFAULT_WEIGHT);
+        Writer out = new Writer(64);
+        out.writeByte(locality ? VERSION_2 : VERSION_1);
+        int flags = 0;
+        if (instance.getPort() != null) {
+            flags |= FLAG_PORT;
+        }
+        if (instance.getSslPort() != null) {
+            flags |= FLAG_SSL_PORT;
+        }
+        if (instance.getUriSpec() != null) {
+            flags |= FLAG_URI_SPEC;
+        }
+        if (instance.getPayload() != null) {
+            flags |= FLAG_PAYLOAD;
+        }
+        if (instance.isEnabled()) {
+            flags |= FLAG_ENABLED;
+        }
+        out.writeByte(flags);
+        out.writeString(instance.getName());
+        out.writeString(instance.getId());
+        out.writeString(instance.getAddress());
+        if (instance.getPort() != null) {
+            out.writeVarLong(instance.getPort());
+        }
+        if (instance.getSslPort() != null) {
+            out.writeVarLong(instance.getSslPort());
+        }
+        out.writeVarLong(instance.getRegistrationTimeUTC());
+        out.writeByte(instance.getServiceType().ordinal());
+        if (instance.getUriSpec() != null) {
+            out.writeString(rawSpec(instance.getUriSpec()));
+        }
+        if (payload != null) {
+            out.writeString(payload.getId());
+            out.writeString(payload.getListenAddress());
+            out.writeVarLong(payload.getListenPort());
+            out.writeString(payload.getInterfaceName());
+            if (locality) {
+                out.writeString(payload.getZone());
+                out.writeString(payload.getRack());
+                out.writeVarLong(payload.getWeight());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public ServiceInstance<InstanceDetails> deserialize(byte[] bytes) throws Exception {
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("Empty instance data");
+        }
+        if (bytes[0] == '{') {
+            return jsonSerializer.deserialize(bytes);
+        }
+        byte version = bytes[0];
+        if (version != VERSION_1 && version != VERSION_2) {
+            throw new IllegalArgumentException("Unsupported instance data version: " + bytes[0]);
+        }
+        Reader in = new Reader(bytes, 1);
+        int flags = in.readByte();
+        String name = interned(in.readString());
+        String id = in.readString();
+        String address = interned(in.readString());
+        Integer port = (flags & FLAG_PORT) != 0 ? (int) in.readVarLong() : null;
+        Integer sslPort = (flags & FLAG_SSL_PORT) != 0 ? (int) in.readVarLong() : null;
+        long registrationTimeUTC = in.readVarLong();
+        ServiceType serviceType = SERVICE_TYPES[in.readByte()];
+        UriSpec uriSpec = (flags & FLAG_URI_SPEC) != 0 ? uriSpec(in.readString()) : null;
+        InstanceDetails payload = null;
+        if ((flags & FLAG_PAYLOAD) != 0) {
+            payload = new InstanceDetails(in.readString(), interned(in.readString()), (int) in.readVarLong(),
+                    interned(in.readString()));
+            if (version == VERSION_2) {
+                payload.setZone(interned(in.readString()));
+                payload.setRack(interned(in.readString()));
+                payload.setWeight((int) in.readVarLong());
+            }
+        }
+        return new ServiceInstance<InstanceDetails>(name, id, address, port, sslPort, payload, registrationTimeUTC,
+                serviceType, uriSpec, (flags & FLAG_ENABLED) != 0);
+    }
+
+    private String interned(String value) {
+        return value == null ? null : interner.intern(value);
+    }
+
+    private UriSpec uriSpec(String rawSpec) {
+        UriSpec spec = uriSpecs.get(rawSpec);
+        if (spec == null) {
+            if (uriSpecs.size() >= MAX_CACHED_URI_SPECS) {
+                uriSpecs.clear();
+            }
+            spec = new UriSpec(rawSpec);
+            uriSpecs.putIfAbsent(rawSpec, spec);
+        }
+        return spec;
+    }
+
+    /**
+     * UriSpec没有保存原始字符串，这里由各部分还原
+     */
+    private static String rawSpec(UriSpec spec) {
+        StringBuilder raw = new StringBuilder();
+        for (UriSpec.Part part : spec) {
+            if (part.isVariable()) {
+                raw.append('{').append(part.getValue()).append('}');
+            } else {
+                raw.append(part.getValue());
+            }
+        }
+        return raw.toString();
+    }
+
+    private static class Writer {
+        private byte[] buffer;
+        private int position;
+
+        Writer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void ensure(int size) {
+            if (position + size > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + size));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        int readByte() {
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+                if (shift > 63) {
+                    throw new IllegalArgumentException("Malformed varint");
+                }
+            }
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
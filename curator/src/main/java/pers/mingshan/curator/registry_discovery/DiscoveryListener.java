@@ -0,0 +1,21 @@
+package pers.mingshan.curator.registry_discovery;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+
+/**
+ * {@link ServiceDiscoverer#getInstanceByName(String, DiscoveryListener)} 的回调
+ *
+ * 服务已预热时在调用线程中直接回调，否则在发现线程中回调，回调中不应执行阻塞操作。
+ *
+ * @author mingshan
+ *
+ */
+public interface DiscoveryListener {
+
+    /**
+     * @param instance 选中的实例，没有可用实例时为null
+     */
+    void onInstance(ServiceInstance<InstanceDetails> instance);
+
+    void onError(Throwable cause);
+}
@@ -0,0 +1,87 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+
+/**
+ * 基于延迟的策略(peak EWMA)
+ *
+ * 在 {@link PowerOfTwoChoicesStrategy} 的基础上，负载改为 延迟EWMA * (进行中请求数 + 1)。
+ * 慢实例的EWMA会立即升高，流量随之转移。
+ * <ul>
+ * <li>EWMA在读取时按最后一个样本之后的时间衰减({@link InstanceStats#getEwmaNanos(long)})，
+ * 慢过一次之后不再被选中的实例过一段时间会重新被探测</li>
+ * <li>还没有样本的实例(新上线或重启)按同一服务中有样本的实例的延迟中位数计算，
+ * 没有任何样本时按 DEFAULT_LATENCY_NANOS 计算，不会因为负载为0而吸走所有流量</li>
+ * </ul>
+ *
+ * @author mingshan
+ *
+ */
+public class EwmaLatencyStrategy extends PowerOfTwoChoicesStrategy {
+    /** 整个服务都还没有样本时使用的延迟 */
+    static final double DEFAULT_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /** 延迟中位数的缓存时间 */
+    private static final long MEDIAN_REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final LongSupplier clock;
+    private volatile double medianNanos = DEFAULT_LATENCY_NANOS;
+    private volatile long medianComputedNanos;
+    private volatile boolean medianComputed;
+
+    public EwmaLatencyStrategy(InstanceStatsRegistry stats) {
+        this(stats, System::nanoTime);
+    }
+
+    /**
+     * @param clock 纳秒时钟，需要与回报调用结束时使用的时钟一致，模拟测试时可以传入模拟时钟
+     */
+    public EwmaLatencyStrategy(InstanceStatsRegistry stats, LongSupplier clock) {
+        super(stats);
+        this.clock = clock;
+    }
+
+    @Override
+    protected double cost(ServiceInstance<InstanceDetails> instance,
+            List<ServiceInstance<InstanceDetails>> instances) {
+        long now = clock.getAsLong();
+        InstanceStats stat = stats.peek(instance.getId());
+        double ewma = stat == null ? 0 : stat.getEwmaNanos(now);
+        if (ewma == 0) {
+            ewma = medianLatency(instances, now);
+        }
+        int outstanding = stat == null ? 0 : stat.getOutstanding();
+        return ewma * (outstanding + 1);
+    }
+
+    /**
+     * @return 有样本的实例的延迟中位数，都没有样本时返回 DEFAULT_LATENCY_NANOS
+     */
+    private double medianLatency(List<ServiceInstance<InstanceDetails>> instances, long now) {
+        if (medianComputed && now - medianComputedNanos < MEDIAN_REFRESH_NANOS) {
+            return medianNanos;
+        }
+        double[] latencies = new double[instances.size()];
+        int n = 0;
+        for (ServiceInstance<InstanceDetails> instance : instances) {
+            InstanceStats s = stats.peek(instance.getId());
+            double ewma = s == null ? 0 : s.getEwmaNanos(now);
+            if (ewma > 0) {
+                latencies[n++] = ewma;
+            }
+        }
+        double median = DEFAULT_LATENCY_NANOS;
+        if (n > 0) {
+            Arrays.sort(latencies, 0, n);
+            median = latencies[n / 2];
+        }
+        medianNanos = median;
+        medianComputedNanos = now;
+        medianComputed = true;
+        return median;
+    }
+}
@@ -1,16 +1,29 @@
 package pers.mingshan.curator.registry_discovery;
 
+import java.util.Objects;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.map.annotate.JsonRootName;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
 
 /**
  * 用于存储服务的地址，端口等信息
+ *
+ * zone/rack/weight 为可选的位置和权重信息，供 {@link LocalityPreference} 和加权策略使用，
+ * 未设置时zone/rack为null，weight为 {@link #DEFAULT_WEIGHT}。
+ * 未设置的字段不写入JSON，没有这些字段的旧版本类(不忽略未知字段)仍然可以读取。
  * 
  * @author mingshan
  *
  */
 
 @JsonRootName("details")
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class InstanceDetails {
+    public static final int DEFAULT_WEIGHT = 1;
 
     private String id;
 
@@ -20,6 +33,15 @@ public class InstanceDetails {
 
     private String interfaceName;
 
+    private String zone;
+
+    private String rack;
+
+    /** null表示默认权重 */
+    @JsonProperty("weight")
+    @JsonSerialize(include = Inclusion.NON_NULL)
+    private Integer weight;
+
     public InstanceDetails(String id, String listenAddress, int listenPort, String interfaceName) {
         this.id = id;
         this.listenAddress = listenAddress;
@@ -27,6 +49,14 @@ public class InstanceDetails {
         this.interfaceName = interfaceName;
     }
 
+    public InstanceDetails(String id, String listenAddress, int listenPort, String interfaceName, String zone,
+            String rack, int weight) {
+        this(id, listenAddress, listenPort, interfaceName);
+        this.zone = zone;
+        this.rack = rack;
+        setWeight(weight);
+    }
+
     public InstanceDetails() {
     }
 
@@ -62,9 +92,61 @@ public class InstanceDetails {
         this.interfaceName = interfaceName;
     }
 
+    @JsonSerialize(include = Inclusion.NON_NULL)
+    public String getZone() {
+        return zone;
+    }
+
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
+    @JsonSerialize(include = Inclusion.NON_NULL)
+    public String getRack() {
+        return rack;
+    }
+
+    public void setRack(String rack) {
+        this.rack = rack;
+    }
+
+    @JsonIgnore
+    public int getWeight() {
+        return weight == null ? DEFAULT_WEIGHT : weight;
+    }
+
+    /**
+     * 默认权重不写入JSON
+     */
+    @JsonIgnore
+    public void setWeight(int weight) {
+        this.weight = weight == DEFAULT_WEIGHT ? null : weight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        InstanceDetails that = (InstanceDetails) o;
+        return listenPort == that.listenPort && Objects.equals(id, that.id)
+                && Objects.equals(listenAddress, that.listenAddress)
+                && Objects.equals(interfaceName, that.interfaceName) && Objects.equals(zone, that.zone)
+                && Objects.equals(rack, that.rack) && getWeight() == that.getWeight();
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, listenAddress, listenPort, interfaceName, zone, rack, getWeight());
+    }
+
     @Override
     public String toString() {
         return "InstanceDetails{" + "id='" + id + '\'' + ", listenAddress='" + listenAddress + '\'' + ", listenPort="
-                + listenPort + ", interfaceName='" + interfaceName + '\'' + '}';
+                + listenPort + ", interfaceName='" + interfaceName + '\'' + ", zone='" + zone + '\'' + ", rack='" + rack
+                + '\'' + ", weight=" + getWeight() + '}';
     }
 }
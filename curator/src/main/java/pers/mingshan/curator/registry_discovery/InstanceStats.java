@@ -0,0 +1,173 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个服务实例的调用统计
+ *
+ * 由调用方通过 {@link ServiceDiscoverer} 回报，供负载均衡策略使用：
+ * <pre>
+ *  outstanding  正在进行中的调用数
+ *  ewma         按时间衰减的平均延迟(纳秒)，越早的样本权重越低；
+ *               新样本高于当前值时直接取新样本(peak EWMA)，慢实例能被立刻感知
+ *  errors       累计失败次数
+ * </pre>
+ * 以及 {@link OutlierDetector} 使用的连续失败/连续慢调用次数和摘除状态。
+ * 所有字段都是无锁更新的，多线程回报不会互相阻塞。
+ *
+ * @author mingshan
+ *
+ */
+public class InstanceStats {
+    /** EWMA的衰减时间窗口，超过这个时间的样本权重衰减到约 1/e */
+    private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String instanceId;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToRawLongBits(0));
+    private final AtomicLong lastSampleNanos = new AtomicLong();
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger consecutiveSlowCalls = new AtomicInteger();
+    private volatile long ejectedUntilNanos;
+    private volatile long lastEjectedNanos;
+    private volatile int ejections;
+
+    public InstanceStats(String instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public void callStarted() {
+        outstanding.incrementAndGet();
+    }
+
+    public void callCompleted(long latencyNanos, boolean success) {
+        callCompleted(latencyNanos, success, System.nanoTime());
+    }
+
+    /**
+     * 记录一次调用结束，nowNanos 用于计算EWMA的衰减，模拟测试时可以传入模拟时钟
+     */
+    public void callCompleted(long latencyNanos, boolean success, long nowNanos) {
+        // 调用方可能没有调用callStarted，这里不让计数变成负数
+        outstanding.getAndUpdate(current -> current > 0 ? current - 1 : 0);
+        if (success) {
+            successes.incrementAndGet();
+            consecutiveFailures.set(0);
+        } else {
+            errors.incrementAndGet();
+            consecutiveFailures.incrementAndGet();
+        }
+        updateEwma(latencyNanos, nowNanos);
+    }
+
+    private void updateEwma(long latencyNanos, long nowNanos) {
+        long last = lastSampleNanos.getAndSet(nowNanos);
+        while (true) {
+            long bits = ewmaBits.get();
+            double current = Double.longBitsToDouble(bits);
+            double next;
+            if (last == 0 || current == 0 || latencyNanos > current) {
+                next = latencyNanos;
+            } else {
+                double weight = Math.exp(-Math.max(0, nowNanos - last) / (double) DECAY_NANOS);
+                next = current * weight + latencyNanos * (1 - weight);
+            }
+            if (ewmaBits.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return 平均延迟(纳秒)，还没有样本时返回0
+     */
+    public double getEwmaNanos() {
+        return Double.longBitsToDouble(ewmaBits.get());
+    }
+
+    /**
+     * 读取时衰减的平均延迟：最后一个样本之后按 DECAY_NANOS 向0衰减，
+     * 慢过一次之后不再被选中的实例不会一直保持高延迟，过一段时间会重新被探测
+     *
+     * @return 衰减到nowNanos的平均延迟(纳秒)，还没有样本时返回0
+     */
+    public double getEwmaNanos(long nowNanos) {
+        double current = getEwmaNanos();
+        long last = lastSampleNanos.get();
+        long idle = nowNanos - last;
+        if (current == 0 || last == 0 || idle <= 0) {
+            return current;
+        }
+        return current * Math.exp(-idle / (double) DECAY_NANOS);
+    }
+
+    public long getSuccesses() {
+        return successes.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    int recordSlowCall(boolean slow) {
+        if (slow) {
+            return consecutiveSlowCalls.incrementAndGet();
+        }
+        consecutiveSlowCalls.set(0);
+        return 0;
+    }
+
+    public boolean isEjected(long nowNanos) {
+        long until = ejectedUntilNanos;
+        return until != 0 && nowNanos - until < 0;
+    }
+
+    long getEjectedUntilNanos() {
+        return ejectedUntilNanos;
+    }
+
+    long getLastEjectedNanos() {
+        return lastEjectedNanos;
+    }
+
+    /**
+     * @return 累计被摘除的次数(长时间健康后会被重置)
+     */
+    public int getEjections() {
+        return ejections;
+    }
+
+    /**
+     * 摘除到指定时间，由provider在自己的锁内调用
+     */
+    void eject(long nowNanos, long untilNanos, int ejections) {
+        this.ejections = ejections;
+        this.lastEjectedNanos = nowNanos;
+        this.ejectedUntilNanos = untilNanos;
+        consecutiveFailures.set(0);
+        consecutiveSlowCalls.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "InstanceStats{" + "instanceId='" + instanceId + '\'' + ", outstanding=" + outstanding.get()
+                + ", ewmaNanos=" + (long) getEwmaNanos() + ", successes=" + successes.get() + ", errors="
+                + errors.get() + ", ejections=" + ejections + '}';
+    }
+}
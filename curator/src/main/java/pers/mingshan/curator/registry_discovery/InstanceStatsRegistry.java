@@ -0,0 +1,45 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+
+/**
+ * 按实例id保存 {@link InstanceStats}
+ *
+ * 由 {@link ServiceDiscoverer} 持有，所有服务的策略共享同一个注册表，
+ * 实例从注册中心下线后由对应的provider负责清理。
+ *
+ * @author mingshan
+ *
+ */
+public class InstanceStatsRegistry {
+    private final ConcurrentMap<String, InstanceStats> stats = new ConcurrentHashMap<>();
+
+    public InstanceStats get(ServiceInstance<?> instance) {
+        return get(instance.getId());
+    }
+
+    public InstanceStats get(String instanceId) {
+        InstanceStats current = stats.get(instanceId);
+        if (current != null) {
+            return current;
+        }
+        return stats.computeIfAbsent(instanceId, InstanceStats::new);
+    }
+
+    /**
+     * @return 已有的统计，没有时返回null，不会创建新的对象
+     */
+    public InstanceStats peek(String instanceId) {
+        return stats.get(instanceId);
+    }
+
+    public void remove(Collection<String> instanceIds) {
+        for (String instanceId : instanceIds) {
+            stats.remove(instanceId);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+/**
+ * 最少进行中请求策略
+ *
+ * 遍历全部实例，选择进行中请求数最少的一个。从随机位置开始遍历，
+ * 请求数相同时不会总是落到同一个实例上。
+ *
+ * @author mingshan
+ *
+ */
+public class LeastOutstandingStrategy implements ProviderStrategy<InstanceDetails> {
+    private final InstanceStatsRegistry stats;
+
+    public LeastOutstandingStrategy(InstanceStatsRegistry stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public ServiceInstance<InstanceDetails> getInstance(InstanceProvider<InstanceDetails> instanceProvider)
+            throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = instanceProvider.getInstances();
+        int size = instances.size();
+        if (size == 0) {
+            return null;
+        }
+        int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        ServiceInstance<InstanceDetails> best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            ServiceInstance<InstanceDetails> instance = instances.get((start + i) % size);
+            InstanceStats stat = stats.peek(instance.getId());
+            int outstanding = stat == null ? 0 : stat.getOutstanding();
+            if (outstanding < bestOutstanding) {
+                best = instance;
+                bestOutstanding = outstanding;
+                if (outstanding == 0) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+}
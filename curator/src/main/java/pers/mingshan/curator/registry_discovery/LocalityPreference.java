@@ -0,0 +1,118 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * 就近选择实例
+ *
+ * 按 同rack -> 同zone -> 全部 的顺序逐级选择候选实例(未指定本地rack时跳过第一级)。
+ * 某一级的健康容量比例，即未被摘除实例的权重之和 / 该级全部实例的权重之和，
+ * 低于 minHealthyRatio 时认为本地容量不足，放宽到下一级，避免少数剩余的本地实例被压垮。
+ *
+ * 实例的zone/rack/weight来自 {@link InstanceDetails}，没有位置信息的实例只会在最后一级被选中。
+ *
+ * @author mingshan
+ *
+ */
+public class LocalityPreference {
+    private final String zone;
+    private final String rack;
+    private final double minHealthyRatio;
+
+    public LocalityPreference(String zone) {
+        this(zone, null, 0.7);
+    }
+
+    /**
+     * @param zone 本地zone
+     * @param rack 本地rack，可以为null
+     * @param minHealthyRatio 本地健康容量低于这个比例时使用其他zone的实例
+     */
+    public LocalityPreference(String zone, String rack, double minHealthyRatio) {
+        this.zone = zone;
+        this.rack = rack;
+        this.minHealthyRatio = minHealthyRatio;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public String getRack() {
+        return rack;
+    }
+
+    /**
+     * @param available 未被摘除的实例
+     * @param all 全部实例
+     * @return 提供给策略的候选实例
+     */
+    List<ServiceInstance<InstanceDetails>> select(List<ServiceInstance<InstanceDetails>> available,
+            List<ServiceInstance<InstanceDetails>> all) {
+        if (rack != null) {
+            List<ServiceInstance<InstanceDetails>> local = selectTier(available, all, true);
+            if (local != null) {
+                return local;
+            }
+        }
+        if (zone != null) {
+            List<ServiceInstance<InstanceDetails>> local = selectTier(available, all, false);
+            if (local != null) {
+                return local;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * @return 该级健康容量足够时返回该级的可用实例，否则返回null
+     */
+    private List<ServiceInstance<InstanceDetails>> selectTier(List<ServiceInstance<InstanceDetails>> available,
+            List<ServiceInstance<InstanceDetails>> all, boolean sameRack) {
+        long totalWeight = 0;
+        for (ServiceInstance<InstanceDetails> instance : all) {
+            if (isLocal(instance, sameRack)) {
+                totalWeight += weight(instance);
+            }
+        }
+        if (totalWeight == 0) {
+            return null;
+        }
+        long healthyWeight = 0;
+        ImmutableList.Builder<ServiceInstance<InstanceDetails>> local = ImmutableList.builder();
+        for (ServiceInstance<InstanceDetails> instance : available) {
+            if (isLocal(instance, sameRack)) {
+                healthyWeight += weight(instance);
+                local.add(instance);
+            }
+        }
+        if (healthyWeight == 0 || healthyWeight < totalWeight * minHealthyRatio) {
+            return null;
+        }
+        return local.build();
+    }
+
+    private boolean isLocal(ServiceInstance<InstanceDetails> instance, boolean sameRack) {
+        InstanceDetails details = instance.getPayload();
+        if (details == null || !Objects.equals(zone, details.getZone())) {
+            return false;
+        }
+        return !sameRack || Objects.equals(rack, details.getRack());
+    }
+
+    static int weight(ServiceInstance<InstanceDetails> instance) {
+        InstanceDetails details = instance.getPayload();
+        return details == null ? InstanceDetails.DEFAULT_WEIGHT : Math.max(0, details.getWeight());
+    }
+
+    @Override
+    public String toString() {
+        return "LocalityPreference{" + "zone='" + zone + '\'' + ", rack='" + rack + '\'' + ", minHealthyRatio="
+                + minHealthyRatio + '}';
+    }
+}
@@ -0,0 +1,82 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 被动的异常实例检测
+ *
+ * 根据调用方回报的结果判断实例是否应被临时摘除：
+ * <ul>
+ * <li>连续失败次数达到 consecutiveFailures</li>
+ * <li>连续 consecutiveSlowCalls 次调用的延迟超过服务内实例延迟中位数的 slowFactor 倍</li>
+ * </ul>
+ * 摘除时间为 baseEjectionMs * 2^(摘除次数-1)，不超过 maxEjectionMs；
+ * 距上次摘除超过 maxEjectionMs 后摘除次数重新计算。
+ * 同一服务中被摘除的实例不超过 maxEjectionPercent(至少允许摘除一个)，只有一个实例时不会摘除。
+ *
+ * 这样坏实例在几次失败后就不再被选中，而不必等到会话超时、临时节点被删除。
+ *
+ * @author mingshan
+ *
+ */
+public class OutlierDetector {
+    private final int consecutiveFailures;
+    private final int consecutiveSlowCalls;
+    private final double slowFactor;
+    private final long baseEjectionNanos;
+    private final long maxEjectionNanos;
+    private final int maxEjectionPercent;
+
+    public OutlierDetector() {
+        this(5, 10, 3.0, 1000, 30000, 50);
+    }
+
+    public OutlierDetector(int consecutiveFailures, int consecutiveSlowCalls, double slowFactor, long baseEjectionMs,
+            long maxEjectionMs, int maxEjectionPercent) {
+        this.consecutiveFailures = consecutiveFailures;
+        this.consecutiveSlowCalls = consecutiveSlowCalls;
+        this.slowFactor = slowFactor;
+        this.baseEjectionNanos = TimeUnit.MILLISECONDS.toNanos(baseEjectionMs);
+        this.maxEjectionNanos = TimeUnit.MILLISECONDS.toNanos(maxEjectionMs);
+        this.maxEjectionPercent = maxEjectionPercent;
+    }
+
+    /**
+     * 根据一次调用结果判断实例是否应被摘除
+     *
+     * @param poolLatencyNanos 服务内实例延迟的中位数，没有数据时为0
+     */
+    boolean shouldEject(InstanceStats stats, long latencyNanos, boolean success, double poolLatencyNanos) {
+        if (!success && stats.getConsecutiveFailures() >= consecutiveFailures) {
+            return true;
+        }
+        boolean slow = success && poolLatencyNanos > 0 && latencyNanos > poolLatencyNanos * slowFactor;
+        return stats.recordSlowCall(slow) >= consecutiveSlowCalls;
+    }
+
+    /**
+     * @return 本次摘除到的时间点
+     */
+    long ejectionDeadline(InstanceStats stats, long nowNanos) {
+        int ejections = stats.getEjections();
+        if (nowNanos - stats.getLastEjectedNanos() > maxEjectionNanos) {
+            ejections = 0;
+        }
+        ejections++;
+        long duration = Math.min(maxEjectionNanos, baseEjectionNanos << Math.min(ejections - 1, 20));
+        long until = nowNanos + duration;
+        stats.eject(nowNanos, until, ejections);
+        return until;
+    }
+
+    /**
+     * @return 当前已摘除ejected个实例时，是否还允许再摘除一个
+     */
+    boolean canEject(int poolSize, int ejected) {
+        if (poolSize <= 1) {
+            return false;
+        }
+        int max = Math.max(1, poolSize * maxEjectionPercent / 100);
+        return ejected < max;
+    }
+}
@@ -0,0 +1,58 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+/**
+ * Power of two choices
+ *
+ * 随机选出两个不同的实例，取负载较低的一个。效果接近最少请求策略，
+ * 但每次只看两个实例，实例数量很多时代价是常数，也不会让所有客户端同时涌向同一个实例。
+ *
+ * @author mingshan
+ *
+ */
+public class PowerOfTwoChoicesStrategy implements ProviderStrategy<InstanceDetails> {
+    protected final InstanceStatsRegistry stats;
+
+    public PowerOfTwoChoicesStrategy(InstanceStatsRegistry stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public ServiceInstance<InstanceDetails> getInstance(InstanceProvider<InstanceDetails> instanceProvider)
+            throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = instanceProvider.getInstances();
+        int size = instances.size();
+        if (size == 0) {
+            return null;
+        }
+        if (size == 1) {
+            return instances.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServiceInstance<InstanceDetails> a = instances.get(first);
+        ServiceInstance<InstanceDetails> b = instances.get(second);
+        return cost(a, instances) <= cost(b, instances) ? a : b;
+    }
+
+    /**
+     * 实例的负载，值越小越优先
+     *
+     * @param instances 本次选择的全部实例
+     */
+    protected double cost(ServiceInstance<InstanceDetails> instance,
+            List<ServiceInstance<InstanceDetails>> instances) {
+        InstanceStats stat = stats.peek(instance.getId());
+        return stat == null ? 0 : stat.getOutstanding();
+    }
+}
@@ -0,0 +1,50 @@
+package pers.mingshan.curator.registry_discovery;
+
+import org.apache.curator.x.discovery.strategies.RoundRobinStrategy;
+
+/**
+ * 内置的负载均衡策略
+ *
+ * <pre>
+ *  random              随机(ThreadLocalRandom)，默认策略
+ *  weightedRandom      按InstanceDetails的weight加权随机
+ *  roundRobin          轮询，使用Curator自带的RoundRobinStrategy
+ *  leastOutstanding    进行中请求数最少的实例
+ *  powerOfTwoChoices   随机取两个实例，选进行中请求数较少的一个
+ *  ewmaLatency         随机取两个实例，选 延迟EWMA * (进行中请求数 + 1) 较小的一个
+ * </pre>
+ * 除random、weightedRandom和roundRobin外，其余策略依赖调用方通过 {@link ServiceDiscoverer#noteCallStart}
+ * 和 {@link ServiceDiscoverer#noteCallEnd} 回报调用情况。
+ *
+ * @author mingshan
+ *
+ */
+public final class ProviderStrategies {
+
+    private ProviderStrategies() {
+    }
+
+    public static ProviderStrategyFactory random() {
+        return stats -> new ThreadLocalRandomStrategy();
+    }
+
+    public static ProviderStrategyFactory weightedRandom() {
+        return stats -> new WeightedRandomStrategy();
+    }
+
+    public static ProviderStrategyFactory roundRobin() {
+        return stats -> new RoundRobinStrategy<InstanceDetails>();
+    }
+
+    public static ProviderStrategyFactory leastOutstanding() {
+        return LeastOutstandingStrategy::new;
+    }
+
+    public static ProviderStrategyFactory powerOfTwoChoices() {
+        return PowerOfTwoChoicesStrategy::new;
+    }
+
+    public static ProviderStrategyFactory ewmaLatency() {
+        return EwmaLatencyStrategy::new;
+    }
+}
@@ -0,0 +1,17 @@
+package pers.mingshan.curator.registry_discovery;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+
+/**
+ * 为每个服务创建一个负载均衡策略
+ *
+ * 策略可能带有状态(如轮询下标)，所以每个服务各自持有一个实例。
+ * 内置的实现见 {@link ProviderStrategies}。
+ *
+ * @author mingshan
+ *
+ */
+public interface ProviderStrategyFactory {
+
+    ProviderStrategy<InstanceDetails> newStrategy(InstanceStatsRegistry stats);
+}
@@ -1,5 +1,6 @@
 package pers.mingshan.curator.registry_discovery;
 
+import java.util.Arrays;
 import java.util.UUID;
 
 import org.apache.curator.framework.CuratorFramework;
@@ -28,8 +29,10 @@ public class ServerApp {
                 .payload(new InstanceDetails(UUID.randomUUID().toString(),"192.168.1.100",12345,"Test.Service2"))
                 .uriSpec(new UriSpec("{scheme}://{address}:{port}"))
                 .build();
-        serviceRegistrar.registerService(instance1);
-        serviceRegistrar.registerService(instance2);
+        // 两个实例在一个事务中注册，会话过期重连后由registrar重新注册
+        SessionAwareRegistrar registrar = new SessionAwareRegistrar(client, serviceRegistrar);
+        registrar.start();
+        registrar.register(Arrays.asList(instance1, instance2));
 
 
         Thread.sleep(Integer.MAX_VALUE);
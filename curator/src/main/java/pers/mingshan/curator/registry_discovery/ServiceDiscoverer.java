@@ -1,62 +1,323 @@
 package pers.mingshan.curator.registry_discovery;
 
-import java.io.Closeable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.utils.CloseableUtils;
-import org.apache.curator.x.discovery.ServiceDiscovery;
-import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
 import org.apache.curator.x.discovery.ServiceInstance;
-import org.apache.curator.x.discovery.ServiceProvider;
-import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
-import org.apache.curator.x.discovery.strategies.RandomStrategy;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
  * 服务发现
+ *
+ * providers使用ConcurrentHashMap保存，每个服务各自负责启动自己的缓存({@link ServiceInstanceCache})，
+ * 冷服务在启动(访问ZooKeeper)时不会阻塞已预热服务的查询。
+ *
+ * 负载均衡策略通过 {@link ProviderStrategyFactory} 指定，默认随机。
+ * 调用方在每次调用前后分别调用 {@link #noteCallStart} 和 {@link #noteCallEnd}
+ * 回报延迟和成败，供基于负载或延迟的策略使用：
+ * <pre>
+ * ServiceInstance&lt;InstanceDetails&gt; instance = discoverer.getInstanceByName("service1");
+ * discoverer.noteCallStart(instance);
+ * long start = System.nanoTime();
+ * boolean success = false;
+ * try {
+ *     call(instance);
+ *     success = true;
+ * } finally {
+ *     discoverer.noteCallEnd(instance, System.nanoTime() - start, TimeUnit.NANOSECONDS, success);
+ * }
+ * </pre>
+ * 回报的结果同时用于被动的异常实例检测({@link OutlierDetector})：连续失败或持续变慢的实例
+ * 会被临时摘除，默认开启，构造时传入null可以关闭。
+ *
+ * 不能阻塞的调用方(例如Netty的事件循环)使用 {@link #getInstanceByNameAsync(String)} 或
+ * {@link #getInstanceByName(String, DiscoveryListener)}，冷服务的启动在后台进行，
+ * 同一服务并发的冷查询只会触发一次启动；已知的依赖服务可以用 {@link #warmUp(Collection)} 提前预热。
+ * 部署后需要等待依赖就绪时使用 {@link #bootstrap(Collection, long, TimeUnit)}，所有服务并行启动，
+ * 在截止时间内等待并返回每个服务的耗时报告。
+ *
+ * 指定 {@link LocalityPreference} 后优先选择同rack/同zone的实例，本地健康容量不足时再使用其他zone的实例。
+ *
  * @author mingshan
  *
  */
 public class ServiceDiscoverer {
-    private ServiceDiscovery<InstanceDetails> serviceDiscovery;
-    private Map<String, ServiceProvider<InstanceDetails>> providers = Maps.newHashMap();
-    private List<Closeable> closeableList = Lists.newArrayList();
-    private Object lock = new Object();
+    private static final Logger logger = LoggerFactory.getLogger(ServiceDiscoverer.class);
+
+    private final CuratorFramework client;
+    private final String basePath;
+    private final InstanceSerializer<InstanceDetails> serializer;
+    private final ConcurrentMap<String, CachedServiceProvider> providers = new ConcurrentHashMap<>();
+    private final InstanceStatsRegistry stats = new InstanceStatsRegistry();
+    private final ProviderStrategyFactory strategyFactory;
+    private final OutlierDetector outlierDetector;
+    private final LocalityPreference locality;
+    private volatile Collection<String> bootstrapServices = ImmutableSet.of();
+    private volatile boolean closed;
 
     public ServiceDiscoverer(CuratorFramework client, String basePath) throws Exception {
-        JsonInstanceSerializer<InstanceDetails> serializer = new JsonInstanceSerializer<InstanceDetails>(
-                InstanceDetails.class);
-        serviceDiscovery = ServiceDiscoveryBuilder.builder(InstanceDetails.class).client(client).basePath(basePath)
-                .serializer(serializer).build();
+        this(client, basePath, ProviderStrategies.random());
+    }
 
-        serviceDiscovery.start();
+    public ServiceDiscoverer(CuratorFramework client, String basePath, ProviderStrategyFactory strategyFactory)
+            throws Exception {
+        this(client, basePath, strategyFactory, new OutlierDetector());
+    }
+
+    /**
+     * @param outlierDetector 异常实例检测，为null时不摘除实例
+     */
+    public ServiceDiscoverer(CuratorFramework client, String basePath, ProviderStrategyFactory strategyFactory,
+            OutlierDetector outlierDetector) throws Exception {
+        this(client, basePath, strategyFactory, outlierDetector, null);
+    }
+
+    /**
+     * @param outlierDetector 异常实例检测，为null时不摘除实例
+     * @param locality 就近选择，为null时不区分位置
+     */
+    public ServiceDiscoverer(CuratorFramework client, String basePath, ProviderStrategyFactory strategyFactory,
+            OutlierDetector outlierDetector, LocalityPreference locality) throws Exception {
+        this.client = client;
+        this.basePath = basePath;
+        this.strategyFactory = strategyFactory;
+        this.outlierDetector = outlierDetector;
+        this.locality = locality;
+        this.serializer = new CompactInstanceSerializer();
     }
 
     public ServiceInstance<InstanceDetails> getInstanceByName(String serviceName) throws Exception {
-        ServiceProvider<InstanceDetails> provider = providers.get(serviceName);
+        CachedServiceProvider provider = providers.get(serviceName);
         if (provider == null) {
-            synchronized (lock) {
-                provider = providers.get(serviceName);
-                if (provider == null) {
-                    provider = serviceDiscovery.serviceProviderBuilder().serviceName(serviceName)
-                            .providerStrategy(new RandomStrategy<InstanceDetails>()).build();
-                    provider.start();
-                    closeableList.add(provider);
-                    providers.put(serviceName, provider);
-                }
+            provider = getOrCreateProvider(serviceName);
+        }
+        provider.ensureStarted();
+        return provider.getInstance();
+    }
+
+    /**
+     * 异步查询，调用方不会被阻塞
+     *
+     * 服务已预热时返回已完成的future；否则在后台启动缓存，future在缓存的事件线程中完成，
+     * 其后续操作不应阻塞。没有可用实例时结果为null。
+     */
+    public CompletableFuture<ServiceInstance<InstanceDetails>> getInstanceByNameAsync(String serviceName) {
+        CachedServiceProvider provider;
+        try {
+            provider = getOrCreateProvider(serviceName);
+            if (provider.isStarted()) {
+                return CompletableFuture.completedFuture(provider.getInstance());
+            }
+        } catch (Exception e) {
+            CompletableFuture<ServiceInstance<InstanceDetails>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        CachedServiceProvider started = provider;
+        return provider.startAsync().thenApply(ignored -> {
+            try {
+                return started.getInstance();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * 回调形式的异步查询，见 {@link DiscoveryListener}
+     */
+    public void getInstanceByName(String serviceName, DiscoveryListener listener) {
+        getInstanceByNameAsync(serviceName).whenComplete((instance, e) -> {
+            if (e != null) {
+                listener.onError(e);
+            } else {
+                listener.onInstance(instance);
+            }
+        });
+    }
+
+    /**
+     * 在后台启动这些服务的缓存，不阻塞调用方
+     *
+     * @return 全部服务初始化完成后完成的future
+     */
+    public CompletableFuture<Void> warmUp(Collection<String> serviceNames) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[serviceNames.size()];
+        int i = 0;
+        for (String serviceName : serviceNames) {
+            futures[i++] = startProvider(serviceName);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * 并行启动这些服务的缓存，最多等待timeout
+     *
+     * 超时不会中断启动，未完成的服务在后台继续启动，{@link #isReady()} 在它们全部完成后变为true。
+     *
+     * @return 每个服务的启动耗时和状态
+     */
+    public BootstrapReport bootstrap(Collection<String> serviceNames, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        bootstrapServices = ImmutableSet.copyOf(serviceNames);
+        long start = System.nanoTime();
+        Map<String, CompletableFuture<Void>> futures = Maps.newLinkedHashMap();
+        Map<String, Long> finished = new ConcurrentHashMap<>();
+        for (String serviceName : serviceNames) {
+            CompletableFuture<Void> future = startProvider(serviceName);
+            future.whenComplete((ignored, e) -> finished.put(serviceName, System.nanoTime()));
+            futures.put(serviceName, future);
+        }
+        try {
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).get(timeout, unit);
+        } catch (ExecutionException | TimeoutException e) {
+            // 失败和超时的服务都记录在报告中
+        }
+        long now = System.nanoTime();
+        List<BootstrapReport.ServiceTiming> timings = Lists.newArrayListWithCapacity(futures.size());
+        for (Map.Entry<String, CompletableFuture<Void>> entry : futures.entrySet()) {
+            String serviceName = entry.getKey();
+            CompletableFuture<Void> future = entry.getValue();
+            long millis = TimeUnit.NANOSECONDS.toMillis(finished.getOrDefault(serviceName, now) - start);
+            if (!future.isDone()) {
+                timings.add(new BootstrapReport.ServiceTiming(serviceName, BootstrapReport.State.PENDING, millis, 0,
+                        null));
+                continue;
+            }
+            try {
+                future.join();
+                CachedServiceProvider provider = providers.get(serviceName);
+                int instances = provider == null ? 0 : provider.getInstances().size();
+                timings.add(new BootstrapReport.ServiceTiming(serviceName, BootstrapReport.State.READY, millis,
+                        instances, null));
+            } catch (CompletionException e) {
+                timings.add(new BootstrapReport.ServiceTiming(serviceName, BootstrapReport.State.FAILED, millis, 0,
+                        e.getCause()));
+            }
+        }
+        BootstrapReport report = new BootstrapReport(TimeUnit.NANOSECONDS.toMillis(now - start), timings);
+        if (report.isReady()) {
+            logger.info("Service discovery bootstrap finished\n" + report);
+        } else {
+            logger.warn("Service discovery bootstrap not ready within " + unit.toMillis(timeout) + "ms\n" + report);
+        }
+        return report;
+    }
+
+    /**
+     * @return bootstrap声明的服务是否都已初始化完成，没有调用过bootstrap时为true
+     */
+    public boolean isReady() {
+        for (String serviceName : bootstrapServices) {
+            CachedServiceProvider provider = providers.get(serviceName);
+            if (provider == null || !provider.isStarted()) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private CompletableFuture<Void> startProvider(String serviceName) {
+        try {
+            return getOrCreateProvider(serviceName).startAsync();
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
 
+    /**
+     * 非阻塞的快速路径：只从已启动的缓存中读取实例，
+     * 服务尚未预热或没有可用实例时返回null，不会触发任何ZooKeeper访问。
+     */
+    public ServiceInstance<InstanceDetails> getCachedInstance(String serviceName) throws Exception {
+        CachedServiceProvider provider = providers.get(serviceName);
+        if (provider == null || !provider.isStarted()) {
+            return null;
+        }
         return provider.getInstance();
     }
 
+    private CachedServiceProvider getOrCreateProvider(String serviceName) {
+        CachedServiceProvider provider = providers.get(serviceName);
+        if (provider != null) {
+            return provider;
+        }
+        if (closed) {
+            throw new IllegalStateException("ServiceDiscoverer is closed");
+        }
+        // 构造CachedServiceProvider不访问ZooKeeper，竞争失败的实例直接丢弃即可
+        CachedServiceProvider created = new CachedServiceProvider(client, basePath, serializer, serviceName,
+                strategyFactory.newStrategy(stats), stats, outlierDetector, locality);
+        CachedServiceProvider existing = providers.putIfAbsent(serviceName, created);
+        if (existing != null) {
+            return existing;
+        }
+        if (closed) {
+            // close已经清空过providers，自己放进去的要自己关闭，否则之后启动的缓存不会再被关闭
+            providers.remove(serviceName, created);
+            CloseableUtils.closeQuietly(created);
+            throw new IllegalStateException("ServiceDiscoverer is closed");
+        }
+        return created;
+    }
+
+    /**
+     * @return 已创建的服务缓存数
+     */
+    int getProviderCount() {
+        return providers.size();
+    }
+
+    /**
+     * 回报一次调用开始
+     */
+    public void noteCallStart(ServiceInstance<InstanceDetails> instance) {
+        stats.get(instance).callStarted();
+    }
+
+    /**
+     * 回报一次调用结束
+     *
+     * @param latency 调用耗时
+     * @param success 调用是否成功，超时和异常都应视为失败
+     */
+    public void noteCallEnd(ServiceInstance<InstanceDetails> instance, long latency, TimeUnit unit, boolean success) {
+        long latencyNanos = unit.toNanos(latency);
+        InstanceStats instanceStats = stats.get(instance);
+        instanceStats.callCompleted(latencyNanos, success);
+        CachedServiceProvider provider = providers.get(instance.getName());
+        if (provider != null) {
+            provider.onCallCompleted(instanceStats, latencyNanos, success);
+        }
+    }
+
+    public InstanceStatsRegistry getStats() {
+        return stats;
+    }
+
     public synchronized void close() {
-        for (Closeable closeable : closeableList) {
-            CloseableUtils.closeQuietly(closeable);
+        closed = true;
+        for (CachedServiceProvider provider : providers.values()) {
+            CloseableUtils.closeQuietly(provider);
         }
+        providers.clear();
     }
 }
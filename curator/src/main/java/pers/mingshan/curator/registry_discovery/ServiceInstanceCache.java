@@ -0,0 +1,273 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * 增量的服务实例缓存
+ *
+ * 基于 {@link PathChildrenCache} 监听 basePath/服务名 下的实例节点，按实例id保存已解析的实例：
+ * <ul>
+ * <li>只解析新增或修改过的节点，通过 {@link Stat#getMzxid()} 判断节点是否真的变化</li>
+ * <li>解析后调用 clearDataBytes 释放节点原始数据，内存中只保留解析后的实例</li>
+ * <li>每次变化发布一个新的不可变快照，读取只是一次volatile读</li>
+ * <li>变化以 ADDED/UPDATED/REMOVED 的形式通知 {@link ServiceInstanceListener}</li>
+ * </ul>
+ * 所有事件都在PathChildrenCache的单个事件线程中处理，内部状态不需要加锁。
+ *
+ * {@link #startAsync()} 不阻塞调用线程，初始数据加载完成后返回的future在事件线程中完成。
+ * 初始数据在客户端的连接超时时间内没有加载完成时(例如ZooKeeper不可达)，future以异常结束，
+ * 与Curator的ServiceCache重试用尽后抛出异常一致，调用方不会一直等待。
+ *
+ * @author mingshan
+ *
+ */
+public class ServiceInstanceCache implements PathChildrenCacheListener, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ServiceInstanceCache.class);
+    /** 初始加载的超时检查，所有缓存共用 */
+    private static final ScheduledExecutorService timer = ThreadUtils
+            .newSingleThreadScheduledExecutor("ServiceInstanceCache-timer");
+
+    private final CuratorFramework client;
+
+    private final String servicePath;
+    private final InstanceSerializer<InstanceDetails> serializer;
+    private final PathChildrenCache cache;
+    private final ListenerContainer<ServiceInstanceListener> listeners = new ListenerContainer<>();
+    private final CompletableFuture<Void> initialized = new CompletableFuture<>();
+    private final long initialLoadTimeoutMs;
+
+    /** 只在事件线程中访问 */
+    private final Map<String, Entry> entries = Maps.newHashMap();
+    private volatile ImmutableMap<String, ServiceInstance<InstanceDetails>> snapshot = ImmutableMap.of();
+    private volatile ImmutableList<ServiceInstance<InstanceDetails>> instances = ImmutableList.of();
+    private volatile boolean initializing = true;
+
+    public ServiceInstanceCache(CuratorFramework client, String basePath, String serviceName,
+            InstanceSerializer<InstanceDetails> serializer) {
+        this.client = client;
+        this.initialLoadTimeoutMs = client.getZookeeperClient().getConnectionTimeoutMs();
+        this.servicePath = ZKPaths.makePath(basePath, serviceName);
+        this.serializer = serializer;
+        this.cache = new PathChildrenCache(client, servicePath, true, false,
+                ThreadUtils.newThreadFactory("ServiceInstanceCache"));
+    }
+
+    /**
+     * 启动并等待初始数据加载完成，超时后抛出异常
+     */
+    public void start() throws Exception {
+        startAsync();
+        awaitInitialized();
+    }
+
+    /**
+     * 启动但不等待，初始数据加载完成后返回的future完成
+     *
+     * future的后续操作默认在事件线程中执行，不能阻塞；
+     * 连接超时时间内没有加载完成时future以异常结束，后续操作在超时检查线程中执行
+     */
+    public CompletableFuture<Void> startAsync() throws Exception {
+        cache.getListenable().addListener(this);
+        cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+        ScheduledFuture<?> timeout = timer.schedule(this::initialLoadTimedOut, initialLoadTimeoutMs,
+                TimeUnit.MILLISECONDS);
+        initialized.whenComplete((ignored, e) -> timeout.cancel(false));
+        return initialized;
+    }
+
+    private void initialLoadTimedOut() {
+        if (initialized.isDone()) {
+            return;
+        }
+        Exception cause;
+        if (client.getZookeeperClient().isConnected()) {
+            cause = new TimeoutException("Initial load of " + servicePath + " not completed within "
+                    + initialLoadTimeoutMs + " ms");
+        } else {
+            cause = new KeeperException.ConnectionLossException();
+        }
+        if (initialized.completeExceptionally(cause)) {
+            logger.warn("Initial load of " + servicePath + " failed", cause);
+        }
+    }
+
+    public boolean isInitialized() {
+        return initialized.isDone();
+    }
+
+    private void awaitInitialized() throws Exception {
+        try {
+            initialized.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 等待初始数据加载完成
+     */
+    public boolean awaitInitialized(long time, TimeUnit unit) throws InterruptedException {
+        try {
+            initialized.get(time, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return 服务节点的完整路径
+     */
+    public String getServicePath() {
+        return servicePath;
+    }
+
+    public ListenerContainer<ServiceInstanceListener> getListenable() {
+        return listeners;
+    }
+
+    /**
+     * @return 当前实例的不可变快照
+     */
+    public List<ServiceInstance<InstanceDetails>> getInstances() {
+        return instances;
+    }
+
+    public ServiceInstance<InstanceDetails> getInstance(String id) {
+        return snapshot.get(id);
+    }
+
+    @Override
+    public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+        switch (event.getType()) {
+        case CHILD_ADDED:
+        case CHILD_UPDATED:
+            ChildData data = event.getData();
+            applyChange(data.getPath(), data.getData(), data.getStat());
+            break;
+        case CHILD_REMOVED:
+            applyRemoval(event.getData().getPath());
+            break;
+        case INITIALIZED:
+            initializing = false;
+            publish();
+            List<ServiceInstanceEvent> added = Lists.newArrayListWithCapacity(entries.size());
+            for (Entry entry : entries.values()) {
+                added.add(new ServiceInstanceEvent(ServiceInstanceEvent.Type.ADDED, entry.instance, null));
+            }
+            initialized.complete(null);
+            for (ServiceInstanceEvent instanceEvent : added) {
+                fire(instanceEvent);
+            }
+            break;
+        default:
+            // 连接状态的变化由PathChildrenCache自己处理，重连后会补发节点的变化
+            break;
+        }
+    }
+
+    /**
+     * 处理一个节点的新增或修改，节点未变化时不做解析
+     */
+    void applyChange(String path, byte[] data, Stat stat) {
+        String id = ZKPaths.getNodeFromPath(path);
+        Entry previous = entries.get(id);
+        if (previous != null && previous.mzxid == stat.getMzxid()) {
+            return;
+        }
+        if (data == null) {
+            logger.warn("No data for changed instance node " + path);
+            return;
+        }
+        ServiceInstance<InstanceDetails> instance;
+        try {
+            instance = serializer.deserialize(data);
+        } catch (Exception e) {
+            logger.error("Could not deserialize instance node " + path, e);
+            return;
+        }
+        cache.clearDataBytes(path, stat.getVersion());
+        entries.put(id, new Entry(instance, stat.getMzxid()));
+        if (initializing) {
+            return;
+        }
+        publish();
+        fire(new ServiceInstanceEvent(previous == null ? ServiceInstanceEvent.Type.ADDED
+                : ServiceInstanceEvent.Type.UPDATED, instance, previous == null ? null : previous.instance));
+    }
+
+    void applyRemoval(String path) {
+        Entry removed = entries.remove(ZKPaths.getNodeFromPath(path));
+        if (removed == null || initializing) {
+            return;
+        }
+        publish();
+        fire(new ServiceInstanceEvent(ServiceInstanceEvent.Type.REMOVED, removed.instance, removed.instance));
+    }
+
+    private void publish() {
+        ImmutableMap.Builder<String, ServiceInstance<InstanceDetails>> builder = ImmutableMap.builder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().instance);
+        }
+        ImmutableMap<String, ServiceInstance<InstanceDetails>> next = builder.build();
+        snapshot = next;
+        instances = next.values().asList();
+    }
+
+    private void fire(ServiceInstanceEvent event) {
+        listeners.forEach(listener -> {
+            listener.instanceChanged(event);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.getListenable().removeListener(this);
+        cache.close();
+        listeners.clear();
+    }
+
+    private static class Entry {
+        final ServiceInstance<InstanceDetails> instance;
+        final long mzxid;
+
+        Entry(ServiceInstance<InstanceDetails> instance, long mzxid) {
+            this.instance = instance;
+            this.mzxid = mzxid;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package pers.mingshan.curator.registry_discovery;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+
+/**
+ * 服务实例的增量变化
+ *
+ * @author mingshan
+ *
+ */
+public class ServiceInstanceEvent {
+
+    public enum Type {
+        ADDED, UPDATED, REMOVED
+    }
+
+    private final Type type;
+    private final ServiceInstance<InstanceDetails> instance;
+    private final ServiceInstance<InstanceDetails> previous;
+
+    public ServiceInstanceEvent(Type type, ServiceInstance<InstanceDetails> instance,
+            ServiceInstance<InstanceDetails> previous) {
+        this.type = type;
+        this.instance = instance;
+        this.previous = previous;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return 变化后的实例，REMOVED时为被删除的实例
+     */
+    public ServiceInstance<InstanceDetails> getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return 变化前的实例，ADDED时为null
+     */
+    public ServiceInstance<InstanceDetails> getPrevious() {
+        return previous;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceInstanceEvent{" + "type=" + type + ", instance=" + instance.getId() + '}';
+    }
+}
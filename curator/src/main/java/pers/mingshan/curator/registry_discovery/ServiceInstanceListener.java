@@ -0,0 +1,15 @@
+package pers.mingshan.curator.registry_discovery;
+
+/**
+ * 监听 {@link ServiceInstanceCache} 的增量变化
+ *
+ * @author mingshan
+ *
+ */
+public interface ServiceInstanceListener {
+
+    /**
+     * 在缓存的事件线程中回调，回调时新的快照已经发布
+     */
+    void instanceChanged(ServiceInstanceEvent event);
+}
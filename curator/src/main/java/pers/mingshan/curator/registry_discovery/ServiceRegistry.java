@@ -1,27 +1,61 @@
 package pers.mingshan.curator.registry_discovery;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.utils.ZKPaths;
 import org.apache.curator.x.discovery.ServiceDiscovery;
 import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
 import org.apache.curator.x.discovery.ServiceInstance;
-import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * 服务注册
- * 
+ *
+ * {@link #registerServices} / {@link #unregisterServices} 把多个实例放在一个ZooKeeper事务(multi)里提交，
+ * 一次往返完成，要么全部可见要么全部不可见。节点路径与Curator一致：basePath/服务名/实例id。
+ * 注意一个事务的总大小受服务端 jute.maxbuffer(默认1M)限制。
+ * 批量注册的实例不经过Curator的ServiceDiscovery，会话过期后不会被自动重新注册，
+ * 需要自动恢复时通过 {@link SessionAwareRegistrar} 注册。
+ *
  * @author mingshan
  *
  */
 public class ServiceRegistry {
     private ServiceDiscovery<InstanceDetails> serviceDiscovery;
     private final CuratorFramework client;
+    private final String basePath;
+    private final InstanceSerializer<InstanceDetails> serializer;
+    /** 已确认存在的服务节点，避免每次批量注册都检查父节点 */
+    private final Set<String> ensuredServicePaths = ConcurrentHashMap.newKeySet();
 
     public ServiceRegistry(CuratorFramework client, String basePath) throws Exception {
+        this(client, basePath, new CompactInstanceSerializer());
+    }
+
+    /**
+     * @param serializer 实例的序列化方式，默认写JSON；所有发现方升级后可以传入
+     *            {@code new CompactInstanceSerializer(true)} 写二进制格式
+     */
+    public ServiceRegistry(CuratorFramework client, String basePath, InstanceSerializer<InstanceDetails> serializer)
+            throws Exception {
         this.client = client;
-        JsonInstanceSerializer<InstanceDetails> serializer = new JsonInstanceSerializer<InstanceDetails>(
-                InstanceDetails.class);
+        this.basePath = basePath;
+        this.serializer = serializer;
         serviceDiscovery = ServiceDiscoveryBuilder.builder(InstanceDetails.class).client(client).serializer(serializer)
                 .basePath(basePath).build();
         serviceDiscovery.start();
@@ -31,6 +65,103 @@ public class ServiceRegistry {
         serviceDiscovery.registerService(serviceInstance);
     }
 
+    /**
+     * 在一个事务中注册全部实例
+     *
+     * 服务节点(父节点)第一次出现时会先单独创建，之后只有一次multi往返。
+     * 任何一个实例节点已存在时整个事务失败，已注册的实例不受影响。
+     * 服务节点在记录之后被删除时，重新创建服务节点后再提交一次。
+     */
+    public void registerServices(Collection<ServiceInstance<InstanceDetails>> serviceInstances) throws Exception {
+        if (serviceInstances.isEmpty()) {
+            return;
+        }
+        try {
+            createInstances(serviceInstances);
+        } catch (KeeperException.NoNodeException e) {
+            for (ServiceInstance<InstanceDetails> serviceInstance : serviceInstances) {
+                ensuredServicePaths.remove(ZKPaths.makePath(basePath, serviceInstance.getName()));
+            }
+            createInstances(serviceInstances);
+        }
+    }
+
+    private void createInstances(Collection<ServiceInstance<InstanceDetails>> serviceInstances) throws Exception {
+        CuratorTransaction transaction = client.inTransaction();
+        for (ServiceInstance<InstanceDetails> serviceInstance : serviceInstances) {
+            ensureServicePath(serviceInstance.getName());
+            CreateMode mode = serviceInstance.getServiceType() == ServiceType.DYNAMIC ? CreateMode.EPHEMERAL
+                    : CreateMode.PERSISTENT;
+            transaction = transaction.create().withMode(mode)
+                    .forPath(pathForInstance(serviceInstance), serializer.serialize(serviceInstance)).and();
+        }
+        ((CuratorTransactionFinal) transaction).commit();
+    }
+
+    /**
+     * 在一个事务中注销全部实例，任何一个实例节点不存在时整个事务失败
+     */
+    public void unregisterServices(Collection<ServiceInstance<InstanceDetails>> serviceInstances) throws Exception {
+        if (serviceInstances.isEmpty()) {
+            return;
+        }
+        CuratorTransaction transaction = client.inTransaction();
+        for (ServiceInstance<InstanceDetails> serviceInstance : serviceInstances) {
+            transaction = transaction.delete().forPath(pathForInstance(serviceInstance)).and();
+        }
+        ((CuratorTransactionFinal) transaction).commit();
+    }
+
+    /**
+     * 只注册ZooKeeper中不存在的实例
+     *
+     * 每个服务读取一次子节点列表，再把缺失的实例放在一个事务中注册，
+     * 用于会话过期、临时节点被删除后的批量恢复。
+     *
+     * @return 本次注册的实例数量
+     */
+    public int registerMissingServices(Collection<ServiceInstance<InstanceDetails>> serviceInstances)
+            throws Exception {
+        Map<String, List<ServiceInstance<InstanceDetails>>> byName = Maps.newHashMap();
+        for (ServiceInstance<InstanceDetails> serviceInstance : serviceInstances) {
+            byName.computeIfAbsent(serviceInstance.getName(), name -> Lists.newArrayList()).add(serviceInstance);
+        }
+        List<ServiceInstance<InstanceDetails>> missing = Lists.newArrayList();
+        for (Map.Entry<String, List<ServiceInstance<InstanceDetails>>> entry : byName.entrySet()) {
+            Set<String> children;
+            try {
+                children = Sets.newHashSet(client.getChildren().forPath(ZKPaths.makePath(basePath, entry.getKey())));
+            } catch (KeeperException.NoNodeException e) {
+                children = Sets.newHashSet();
+                ensuredServicePaths.remove(ZKPaths.makePath(basePath, entry.getKey()));
+            }
+            for (ServiceInstance<InstanceDetails> serviceInstance : entry.getValue()) {
+                if (!children.contains(serviceInstance.getId())) {
+                    missing.add(serviceInstance);
+                }
+            }
+        }
+        registerServices(missing);
+        return missing.size();
+    }
+
+    private void ensureServicePath(String serviceName) throws Exception {
+        String servicePath = ZKPaths.makePath(basePath, serviceName);
+        if (ensuredServicePaths.contains(servicePath)) {
+            return;
+        }
+        try {
+            client.create().creatingParentContainersIfNeeded().forPath(servicePath);
+        } catch (KeeperException.NodeExistsException e) {
+            // 已经存在
+        }
+        ensuredServicePaths.add(servicePath);
+    }
+
+    private String pathForInstance(ServiceInstance<InstanceDetails> serviceInstance) {
+        return ZKPaths.makePath(ZKPaths.makePath(basePath, serviceInstance.getName()), serviceInstance.getId());
+    }
+
     public void unregisterService(ServiceInstance<InstanceDetails> serviceInstance) throws Exception {
         serviceDiscovery.unregisterService(serviceInstance);
 
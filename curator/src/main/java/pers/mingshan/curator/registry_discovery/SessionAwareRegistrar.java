@@ -0,0 +1,214 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * 感知会话的服务注册
+ *
+ * 记录期望注册的实例集合，在以下情况下把缺失的实例在一个事务中重新注册：
+ * <ul>
+ * <li>连接恢复(RECONNECTED)，包括会话过期后的重连，此时所有临时节点都已被删除</li>
+ * <li>定时心跳发现有实例节点不存在(例如被误删)</li>
+ * </ul>
+ * 重连后的恢复会先等待一个随机时间(0 ~ maxJitterMs)，失败后按指数退避重试(同样带随机抖动)，
+ * 避免ZooKeeper短暂不可用后整个集群同时发起注册。
+ *
+ * 从连接断开到实例全部恢复的时间记录在 {@link #getLastRecoveryMillis()} 等指标中。
+ *
+ * @author mingshan
+ *
+ */
+public class SessionAwareRegistrar implements ConnectionStateListener, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SessionAwareRegistrar.class);
+
+    private final CuratorFramework client;
+    private final ServiceRegistry registry;
+    private final ConcurrentMap<String, ServiceInstance<InstanceDetails>> desired = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = ThreadUtils
+            .newSingleThreadScheduledExecutor("SessionAwareRegistrar");
+    private final long maxJitterMs;
+    private final long baseBackoffMs;
+    private final long maxBackoffMs;
+    private final long heartbeatMs;
+
+    /** 只在executor线程中访问 */
+    private long disconnectedAt;
+    private int attempt;
+    private boolean recoveryScheduled;
+
+    private final AtomicLong recoveries = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong reRegisteredInstances = new AtomicLong();
+    private volatile long lastRecoveryMillis = -1;
+    private volatile long maxRecoveryMillis = -1;
+
+    public SessionAwareRegistrar(CuratorFramework client, ServiceRegistry registry) {
+        this(client, registry, 1000, 200, 10000, 30000);
+    }
+
+    /**
+     * @param maxJitterMs 重连后开始恢复前的最大随机等待时间
+     * @param baseBackoffMs 恢复失败后的初始退避时间
+     * @param maxBackoffMs 退避时间上限
+     * @param heartbeatMs 定时检查注册状态的间隔，0表示不检查
+     */
+    public SessionAwareRegistrar(CuratorFramework client, ServiceRegistry registry, long maxJitterMs,
+            long baseBackoffMs, long maxBackoffMs, long heartbeatMs) {
+        this.client = client;
+        this.registry = registry;
+        this.maxJitterMs = maxJitterMs;
+        this.baseBackoffMs = baseBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.heartbeatMs = heartbeatMs;
+    }
+
+    public void start() {
+        client.getConnectionStateListenable().addListener(this);
+        if (heartbeatMs > 0) {
+            long initialDelay = heartbeatMs + jitter(heartbeatMs);
+            executor.scheduleWithFixedDelay(this::heartbeat, initialDelay, heartbeatMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 加入期望集合并在一个事务中注册
+     */
+    public void register(Collection<ServiceInstance<InstanceDetails>> serviceInstances) throws Exception {
+        for (ServiceInstance<InstanceDetails> serviceInstance : serviceInstances) {
+            desired.put(serviceInstance.getId(), serviceInstance);
+        }
+        registry.registerServices(serviceInstances);
+    }
+
+    /**
+     * 从期望集合中移除并在一个事务中注销
+     */
+    public void unregister(Collection<ServiceInstance<InstanceDetails>> serviceInstances) throws Exception {
+        for (ServiceInstance<InstanceDetails> serviceInstance : serviceInstances) {
+            desired.remove(serviceInstance.getId());
+        }
+        registry.unregisterServices(serviceInstances);
+    }
+
+    public Collection<ServiceInstance<InstanceDetails>> getRegistrations() {
+        return ImmutableList.copyOf(desired.values());
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        switch (newState) {
+        case SUSPENDED:
+        case LOST:
+            long now = System.currentTimeMillis();
+            executor.execute(() -> {
+                if (disconnectedAt == 0) {
+                    disconnectedAt = now;
+                }
+            });
+            break;
+        case RECONNECTED:
+            executor.execute(() -> scheduleRecovery(jitter(maxJitterMs)));
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void scheduleRecovery(long delayMs) {
+        if (recoveryScheduled) {
+            return;
+        }
+        recoveryScheduled = true;
+        executor.schedule(this::recover, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void recover() {
+        recoveryScheduled = false;
+        if (!client.getZookeeperClient().isConnected()) {
+            // 又断开了，等待下一次RECONNECTED
+            return;
+        }
+        List<ServiceInstance<InstanceDetails>> instances = ImmutableList.copyOf(desired.values());
+        try {
+            int registered = registry.registerMissingServices(instances);
+            reRegisteredInstances.addAndGet(registered);
+            attempt = 0;
+            if (disconnectedAt != 0) {
+                long elapsed = System.currentTimeMillis() - disconnectedAt;
+                disconnectedAt = 0;
+                lastRecoveryMillis = elapsed;
+                maxRecoveryMillis = Math.max(maxRecoveryMillis, elapsed);
+                recoveries.incrementAndGet();
+                logger.info("Re-registered " + registered + " of " + instances.size() + " instances in " + elapsed
+                        + "ms");
+            }
+        } catch (Exception e) {
+            failedAttempts.incrementAndGet();
+            long backoff = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempt, 20));
+            attempt++;
+            logger.warn("Re-registration failed, retrying in up to " + backoff + "ms", e);
+            scheduleRecovery(backoff / 2 + jitter(backoff / 2));
+        }
+    }
+
+    private void heartbeat() {
+        if (!desired.isEmpty() && !recoveryScheduled && client.getZookeeperClient().isConnected()) {
+            recover();
+        }
+    }
+
+    private static long jitter(long bound) {
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound);
+    }
+
+    /**
+     * @return 最近一次从断开到恢复注册的耗时(毫秒)，还没有发生过时返回-1
+     */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    public long getMaxRecoveryMillis() {
+        return maxRecoveryMillis;
+    }
+
+    public long getRecoveries() {
+        return recoveries.get();
+    }
+
+    public long getFailedAttempts() {
+        return failedAttempts.get();
+    }
+
+    /**
+     * @return 累计重新注册的实例数
+     */
+    public long getReRegisteredInstances() {
+        return reRegisteredInstances.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.getConnectionStateListenable().removeListener(this);
+        executor.shutdownNow();
+    }
+}
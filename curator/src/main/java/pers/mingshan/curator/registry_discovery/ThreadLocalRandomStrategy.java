@@ -0,0 +1,31 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+/**
+ * 随机策略
+ *
+ * Curator自带的RandomStrategy所有线程共享一个Random，高并发下CAS竞争明显，
+ * 这里改用ThreadLocalRandom。
+ *
+ * @author mingshan
+ *
+ */
+public class ThreadLocalRandomStrategy implements ProviderStrategy<InstanceDetails> {
+
+    @Override
+    public ServiceInstance<InstanceDetails> getInstance(InstanceProvider<InstanceDetails> instanceProvider)
+            throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = instanceProvider.getInstances();
+        int size = instances.size();
+        if (size == 0) {
+            return null;
+        }
+        return instances.get(size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size));
+    }
+}
@@ -0,0 +1,68 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+/**
+ * 按 {@link InstanceDetails#getWeight()} 加权随机
+ *
+ * 实例列表是不可变快照，累计权重按列表缓存，列表不变时选择只需一次二分查找。
+ * 权重全为0时退化为普通随机。
+ *
+ * @author mingshan
+ *
+ */
+public class WeightedRandomStrategy implements ProviderStrategy<InstanceDetails> {
+    private volatile Weights weights;
+
+    @Override
+    public ServiceInstance<InstanceDetails> getInstance(InstanceProvider<InstanceDetails> instanceProvider)
+            throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = instanceProvider.getInstances();
+        int size = instances.size();
+        if (size == 0) {
+            return null;
+        }
+        if (size == 1) {
+            return instances.get(0);
+        }
+        Weights current = weights;
+        if (current == null || current.instances != instances) {
+            current = new Weights(instances);
+            weights = current;
+        }
+        if (current.total == 0) {
+            return instances.get(ThreadLocalRandom.current().nextInt(size));
+        }
+        long point = ThreadLocalRandom.current().nextLong(current.total);
+        int index = Arrays.binarySearch(current.cumulative, point);
+        // 找第一个累计权重大于point的位置
+        index = index >= 0 ? index + 1 : -index - 1;
+        while (current.cumulative[index] == point) {
+            index++;
+        }
+        return instances.get(index);
+    }
+
+    private static class Weights {
+        final List<ServiceInstance<InstanceDetails>> instances;
+        final long[] cumulative;
+        final long total;
+
+        Weights(List<ServiceInstance<InstanceDetails>> instances) {
+            this.instances = instances;
+            this.cumulative = new long[instances.size()];
+            long sum = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                sum += LocalityPreference.weight(instances.get(i));
+                cumulative[i] = sum;
+            }
+            this.total = sum;
+        }
+    }
+}
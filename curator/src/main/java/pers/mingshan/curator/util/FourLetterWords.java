@@ -0,0 +1,86 @@
+package pers.mingshan.curator.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ZooKeeper 四字命令
+ *
+ * 压测时用来读取服务端的统计信息，例如：
+ * <pre>
+ *  srvr  服务端状态，其中 Received 为收到的请求包数量，Zxid 为最新的事务id(每次写操作加一)
+ *  wchs  watch数量汇总
+ *  cons  连接详情
+ * </pre>
+ *
+ * @author mingshan
+ *
+ */
+public final class FourLetterWords {
+    private static final int TIMEOUT_MS = 5000;
+
+    private FourLetterWords() {
+    }
+
+    /**
+     * @param connectString 单个服务端地址，如 127.0.0.1:2181
+     */
+    public static String send(String connectString, String command) throws Exception {
+        String hostPort = connectString.split(",")[0];
+        int index = hostPort.lastIndexOf(':');
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostPort.substring(0, index),
+                    Integer.parseInt(hostPort.substring(index + 1))), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            out.write(command.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 从命令输出中读取 "name: value" 形式的数值，没有找到时返回-1
+     */
+    public static long stat(String response, String name) {
+        for (String line : response.split("\n")) {
+            line = line.trim();
+            if (line.startsWith(name + ":")) {
+                return Long.parseLong(line.substring(name.length() + 1).trim());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 服务端累计收到的请求包数量
+     */
+    public static long receivedPackets(String connectString) throws Exception {
+        return stat(send(connectString, "srvr"), "Received");
+    }
+
+    /**
+     * @return 服务端最新的事务id，同一个epoch内两次读取的差值即为期间的写操作数
+     */
+    public static long zxid(String connectString) throws Exception {
+        for (String line : send(connectString, "srvr").split("\n")) {
+            line = line.trim();
+            if (line.startsWith("Zxid:")) {
+                return Long.decode(line.substring("Zxid:".length()).trim());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,139 @@
+package pers.mingshan.curator.leader;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.LeaderSelector;
+import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
+import org.apache.curator.framework.recipes.leader.LeaderSelectorListenerAdapter;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.InstanceSpec;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+/**
+ * 参与 ELECTIONS 个选举的资源占用：{@link ElectionManager} 与 每个选举一个客户端和LeaderSelector
+ *
+ * 后者就是 CuratorLeaderSelector.registerListener 的做法。每个选举只有本进程一个参与者，
+ * takeLeadership 工作 WORK_MS 后返回并重新排队。所有选举都至少当过一次leader后，输出：
+ * <pre>
+ *  elect ms   从开始参与到所有选举都当过leader的时间
+ *  sessions   ZooKeeper会话数
+ *  threads    比开始前增加的线程数
+ *  heap MB    比开始前增加的堆内存(GC后)
+ *  leads/s    之后 MEASURE_MS 内每秒执行的 takeLeadership 次数
+ * </pre>
+ * ElectionManager 使用 THREADS 个线程执行 takeLeadership。
+ *
+ * @author mingshan
+ *
+ */
+public class ElectionManagerBenchmark {
+    private static final int ELECTIONS = 1000;
+    private static final int THREADS = 16;
+    private static final long WORK_MS = 50;
+    private static final long MEASURE_MS = 5000;
+
+    private static final Set<String> elected = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong leads = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        // 默认每个IP最多60个连接
+        TestingServer server = new TestingServer(new InstanceSpec(null, -1, -1, -1, true, -1, -1, 0), true);
+        try {
+            System.out.printf("%-10s %9s %9s %9s %9s %9s %9s%n", "mode", "elections", "elect ms", "sessions",
+                    "threads", "heap MB", "leads/s");
+            run("manager", server);
+            run("selector", server);
+        } finally {
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void run(String mode, TestingServer server) throws Exception {
+        elected.clear();
+        long baseThreads = threads();
+        long baseHeap = heap();
+        List<Closeable> resources = new ArrayList<>();
+        int sessions;
+        long start = System.nanoTime();
+        try {
+            if (mode.equals("manager")) {
+                CuratorFramework client = newClient(server);
+                resources.add(client);
+                ElectionManager manager = new ElectionManager(client, "manager", THREADS);
+                resources.add(0, manager);
+                for (int i = 0; i < ELECTIONS; i++) {
+                    String path = "/benchmark/elections/" + mode + "/shard-" + i;
+                    manager.register(path, listener(path));
+                }
+                sessions = 1;
+            } else {
+                for (int i = 0; i < ELECTIONS; i++) {
+                    String path = "/benchmark/elections/" + mode + "/shard-" + i;
+                    CuratorFramework client = newClient(server);
+                    resources.add(client);
+                    LeaderSelector selector = new LeaderSelector(client, path, listener(path));
+                    selector.autoRequeue();
+                    selector.start();
+                    resources.add(0, selector);
+                }
+                sessions = ELECTIONS;
+            }
+            while (elected.size() < ELECTIONS) {
+                Thread.sleep(10);
+            }
+            long electMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long leadsBefore = leads.get();
+            Thread.sleep(MEASURE_MS);
+            double leadRate = (leads.get() - leadsBefore) * 1000.0 / MEASURE_MS;
+            System.out.printf("%-10s %9d %9d %9d %9d %9.1f %9.0f%n", mode, ELECTIONS, electMillis, sessions,
+                    threads() - baseThreads, (heap() - baseHeap) / 1024.0 / 1024.0, leadRate);
+        } finally {
+            for (Closeable resource : resources) {
+                CloseableUtils.closeQuietly(resource);
+            }
+        }
+        // 等待关闭的线程退出
+        Thread.sleep(2000);
+    }
+
+    private static LeaderSelectorListener listener(String path) {
+        return new LeaderSelectorListenerAdapter() {
+            @Override
+            public void takeLeadership(CuratorFramework client) throws Exception {
+                elected.add(path);
+                leads.incrementAndGet();
+                Thread.sleep(WORK_MS);
+            }
+        };
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+
+    private static long threads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private static long heap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
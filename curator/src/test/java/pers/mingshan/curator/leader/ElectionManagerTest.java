@@ -0,0 +1,195 @@
+package pers.mingshan.curator.leader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
+import org.apache.curator.framework.recipes.leader.LeaderSelectorListenerAdapter;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 多个选举共用客户端和线程池时每个选举同时只有一个leader、线程数有上限，
+ * 监听器在连接挂起时取消才中断 takeLeadership，不取消时挂起不结束任期，会话过期时结束
+ */
+public class ElectionManagerTest extends TestCase {
+    private static final int ELECTIONS = 6;
+    private static final int THREADS = 2;
+
+    private TestingServer server;
+    private final List<CuratorFramework> clients = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CuratorFramework client : clients) {
+            CloseableUtils.closeQuietly(client);
+        }
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testOneLeaderPerElection() throws Exception {
+        Map<String, AtomicInteger> holders = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        List<AtomicInteger> running = new ArrayList<>();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<AtomicInteger> leads = new ArrayList<>();
+        List<ElectionManager> managers = new ArrayList<>();
+        try {
+            for (int m = 0; m < 2; m++) {
+                ElectionManager manager = new ElectionManager(newClient(), "manager-" + m, THREADS);
+                managers.add(manager);
+                AtomicInteger active = new AtomicInteger();
+                AtomicInteger count = new AtomicInteger();
+                running.add(active);
+                leads.add(count);
+                for (int i = 0; i < ELECTIONS; i++) {
+                    String path = "/test/elections/shard-" + i;
+                    AtomicInteger holder = holders.computeIfAbsent(path, p -> new AtomicInteger());
+                    manager.register(path, new LeaderSelectorListenerAdapter() {
+                        @Override
+                        public void takeLeadership(CuratorFramework client) throws Exception {
+                            if (holder.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            maxRunning.accumulateAndGet(active.incrementAndGet(), Math::max);
+                            count.incrementAndGet();
+                            try {
+                                Thread.sleep(20);
+                            } finally {
+                                active.decrementAndGet();
+                                holder.decrementAndGet();
+                            }
+                        }
+                    });
+                }
+                assertEquals(ELECTIONS, manager.getElectionCount());
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (leads.get(0).get() < 3 * ELECTIONS || leads.get(1).get() < 3 * ELECTIONS) {
+                assertTrue("Leadership did not rotate", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertEquals(0, overlaps.get());
+            assertTrue(maxRunning.get() <= THREADS);
+        } finally {
+            for (ElectionManager manager : managers) {
+                manager.close();
+            }
+        }
+    }
+
+    public void testSuspendInterruptsLeader() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Semaphore elected = new Semaphore(0);
+        ElectionManager manager = new ElectionManager(newClient(), "manager", THREADS);
+        try {
+            manager.register("/test/elections/suspend", new LeaderSelectorListenerAdapter() {
+                @Override
+                public void takeLeadership(CuratorFramework client) throws Exception {
+                    elected.release();
+                    try {
+                        Thread.sleep(Long.MAX_VALUE);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw e;
+                    }
+                }
+            });
+            assertTrue(elected.tryAcquire(10, TimeUnit.SECONDS));
+            assertEquals(1, manager.getLeaderCount());
+
+            server.stop();
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            assertEquals(0, manager.getLeaderCount());
+
+            // 重新连接后重新排队
+            server.restart();
+            assertTrue(elected.tryAcquire(20, TimeUnit.SECONDS));
+        } finally {
+            manager.close();
+        }
+    }
+
+    public void testSuspendDoesNotEndTermWhenListenerTolerates() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Semaphore elected = new Semaphore(0);
+        BlockingQueue<ConnectionState> states = new LinkedBlockingQueue<>();
+        CuratorFramework client = newClient();
+        ElectionManager manager = new ElectionManager(client, "manager", THREADS);
+        try {
+            manager.register("/test/elections/tolerant", tolerantListener(elected, interrupted, states));
+            assertTrue(elected.tryAcquire(10, TimeUnit.SECONDS));
+
+            // 短暂断开，会话没有过期
+            server.stop();
+            assertEquals(ConnectionState.SUSPENDED, states.poll(10, TimeUnit.SECONDS));
+            assertEquals(1, manager.getLeaderCount());
+            server.restart();
+            assertEquals(ConnectionState.RECONNECTED, states.poll(20, TimeUnit.SECONDS));
+            assertFalse(interrupted.await(500, TimeUnit.MILLISECONDS));
+            assertEquals(1, manager.getLeaderCount());
+            assertEquals(0, elected.availablePermits());
+
+            // 会话过期后任期结束，重新排队后再次当选
+            KillSession.kill(client.getZookeeperClient().getZooKeeper(), server.getConnectString());
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            assertTrue(elected.tryAcquire(20, TimeUnit.SECONDS));
+        } finally {
+            manager.close();
+        }
+    }
+
+    private static LeaderSelectorListener tolerantListener(Semaphore elected, CountDownLatch interrupted,
+            BlockingQueue<ConnectionState> states) {
+        return new LeaderSelectorListener() {
+            @Override
+            public void takeLeadership(CuratorFramework client) throws Exception {
+                elected.release();
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void stateChanged(CuratorFramework client, ConnectionState newState) {
+                // 注册时客户端已经连接，CONNECTED可能随后才通知到
+                if (newState != ConnectionState.CONNECTED) {
+                    states.add(newState);
+                }
+            }
+        };
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.builder().connectString(server.getConnectString())
+                .sessionTimeoutMs(30000).connectionTimeoutMs(2000)
+                .retryPolicy(new ExponentialBackoffRetry(100, 3)).build();
+        client.start();
+        client.blockUntilConnected();
+        clients.add(client);
+        return client;
+    }
+}
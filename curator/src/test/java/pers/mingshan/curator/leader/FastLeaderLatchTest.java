@@ -0,0 +1,120 @@
+package pers.mingshan.curator.leader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.LeaderLatchListener;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 只有一个leader，平滑交接不重新读取子节点，普通候选者离开不影响leader
+ */
+public class FastLeaderLatchTest extends TestCase {
+    private static final String PATH = "/test/fast-latch";
+
+    private TestingServer server;
+    private final List<CuratorFramework> clients = new ArrayList<>();
+    private final List<FastLeaderLatch> latches = new ArrayList<>();
+    private final AtomicInteger leaders = new AtomicInteger();
+    private final AtomicInteger maxLeaders = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        for (int i = 0; i < 4; i++) {
+            CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                    new ExponentialBackoffRetry(100, 3));
+            client.start();
+            client.blockUntilConnected();
+            clients.add(client);
+            FastLeaderLatch latch = new FastLeaderLatch(client, PATH, "candidate-" + i);
+            latch.addListener(new LeaderLatchListener() {
+                @Override
+                public void isLeader() {
+                    maxLeaders.accumulateAndGet(leaders.incrementAndGet(), Math::max);
+                }
+
+                @Override
+                public void notLeader() {
+                    leaders.decrementAndGet();
+                }
+            });
+            latch.start();
+            latches.add(latch);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (FastLeaderLatch latch : latches) {
+            CloseableUtils.closeQuietly(latch);
+        }
+        for (CuratorFramework client : clients) {
+            CloseableUtils.closeQuietly(client);
+        }
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testRelinquishWithoutReadingChildren() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            FastLeaderLatch leader = awaitLeader(null);
+            // 等后继知道前一个节点是leader
+            Thread.sleep(50);
+            long reads = 0;
+            for (FastLeaderLatch latch : latches) {
+                reads += latch.getChildrenReads();
+            }
+            leader.relinquish();
+            FastLeaderLatch next = awaitLeader(leader);
+            assertNotSame(leader, next);
+            Thread.sleep(50);
+            long after = 0;
+            for (FastLeaderLatch latch : latches) {
+                after += latch.getChildrenReads();
+            }
+            // 只有重新排队的旧leader读取了子节点
+            assertEquals(reads + 1, after);
+        }
+        assertEquals(1, maxLeaders.get());
+    }
+
+    public void testCandidateLeavesAndLeaderCloses() throws Exception {
+        FastLeaderLatch leader = awaitLeader(null);
+        FastLeaderLatch candidate = null;
+        for (FastLeaderLatch latch : latches) {
+            if (latch != leader) {
+                candidate = latch;
+                break;
+            }
+        }
+        candidate.close();
+        Thread.sleep(200);
+        assertTrue(leader.hasLeadership());
+
+        leader.close();
+        FastLeaderLatch next = awaitLeader(leader);
+        assertNotSame(candidate, next);
+        assertEquals(1, maxLeaders.get());
+    }
+
+    private FastLeaderLatch awaitLeader(FastLeaderLatch previous) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            for (FastLeaderLatch latch : latches) {
+                if (latch != previous && latch.hasLeadership()) {
+                    return latch;
+                }
+            }
+            Thread.sleep(1);
+        }
+        fail("No leader");
+        return null;
+    }
+}
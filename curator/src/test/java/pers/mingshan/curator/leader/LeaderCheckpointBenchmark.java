@@ -0,0 +1,241 @@
+package pers.mingshan.curator.leader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.LeaderSelector;
+import org.apache.curator.framework.recipes.leader.LeaderSelectorListenerAdapter;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+/**
+ * 新leader开始工作前的耗时：从头重建状态 与 从 {@link LeaderCheckpoint} 恢复
+ *
+ * CANDIDATES 个候选者(各自一个客户端)通过 LeaderSelector 选举，leader的状态是 ENTRIES 个键值，
+ * 从头重建需要对每个键做 ROUNDS 轮计算(模拟重放数据源)。leader工作时不断加入新的键，
+ * checkpoint模式下每 INTERVAL_MS 保存一次检查点，放弃领导权前再保存一次。
+ *
+ * 每次交接从通知旧leader放弃开始计时，到新leader拿到状态为止，输出平均和最大耗时，
+ * 以及新leader的状态是否和旧leader放弃时一致、检查点的原始和压缩后大小、分块数。
+ *
+ * @author mingshan
+ *
+ */
+public class LeaderCheckpointBenchmark {
+    private static final int CANDIDATES = 3;
+    private static final int HANDOFFS = 3;
+    private static final int ENTRIES = 300000;
+    private static final int ROUNDS = 2000;
+    private static final long INTERVAL_MS = 500;
+
+    private static final LeaderCheckpoint.Codec<Map<Integer, Long>> CODEC = new LeaderCheckpoint.Codec<Map<Integer, Long>>() {
+        @Override
+        public byte[] encode(Map<Integer, Long> state) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(state.size() * 12 + 4);
+            DataOutputStream out = new DataOutputStream(bytes);
+            List<Map.Entry<Integer, Long>> entries = new ArrayList<>(state.entrySet());
+            out.writeInt(entries.size());
+            for (Map.Entry<Integer, Long> entry : entries) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Map<Integer, Long> decode(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int size = in.readInt();
+            Map<Integer, Long> state = new ConcurrentHashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                state.put(in.readInt(), in.readLong());
+            }
+            return state;
+        }
+    };
+
+    private static volatile long productiveNanos;
+    private static volatile int productiveSize;
+    private static volatile int relinquishedSize;
+
+    private static final class Candidate extends LeaderSelectorListenerAdapter {
+        final LeaderSelector selector;
+        final LeaderCheckpoint<Map<Integer, Long>> checkpoint;
+        volatile boolean relinquish;
+
+        Candidate(CuratorFramework client, String path, boolean useCheckpoint) {
+            selector = new LeaderSelector(client, path, this);
+            selector.autoRequeue();
+            checkpoint = useCheckpoint ? LeaderCheckpoint.forElection(client, path, CODEC) : null;
+            if (checkpoint != null) {
+                checkpoint.start();
+            }
+            selector.start();
+        }
+
+        @Override
+        public void takeLeadership(CuratorFramework client) throws Exception {
+            Map<Integer, Long> state = checkpoint == null ? null : checkpoint.resume();
+            if (state == null) {
+                state = rebuild();
+            }
+            productiveSize = state.size();
+            productiveNanos = System.nanoTime();
+
+            Map<Integer, Long> current = state;
+            if (checkpoint != null) {
+                checkpoint.startPeriodic(() -> current, INTERVAL_MS);
+            }
+            try {
+                int next = ENTRIES;
+                for (Integer key : state.keySet()) {
+                    next = Math.max(next, key + 1);
+                }
+                while (!relinquish) {
+                    for (int i = 0; i < 100; i++, next++) {
+                        state.put(next, count(mix(next)));
+                    }
+                    Thread.sleep(10);
+                }
+                if (checkpoint != null) {
+                    checkpoint.stopPeriodic();
+                    checkpoint.save(state);
+                }
+                relinquishedSize = state.size();
+            } finally {
+                if (checkpoint != null) {
+                    checkpoint.stopPeriodic();
+                }
+                relinquish = false;
+            }
+        }
+
+        void close() {
+            CloseableUtils.closeQuietly(checkpoint);
+            CloseableUtils.closeQuietly(selector);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        List<CuratorFramework> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < CANDIDATES; i++) {
+                CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                        new ExponentialBackoffRetry(1000, 3));
+                client.start();
+                client.blockUntilConnected();
+                clients.add(client);
+            }
+            System.out.printf("%-11s %9s %12s %12s %11s %10s %12s %7s%n", "mode", "handoffs", "avg ms", "max ms",
+                    "consistent", "raw KB", "stored KB", "chunks");
+            for (String mode : new String[] { "cold", "checkpoint" }) {
+                run(mode, clients);
+            }
+        } finally {
+            for (CuratorFramework client : clients) {
+                CloseableUtils.closeQuietly(client);
+            }
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void run(String mode, List<CuratorFramework> clients) throws Exception {
+        String path = "/benchmark/election/" + mode;
+        List<Candidate> candidates = new ArrayList<>();
+        productiveNanos = 0;
+        long begin = System.nanoTime();
+        for (CuratorFramework client : clients) {
+            candidates.add(new Candidate(client, path, mode.equals("checkpoint")));
+        }
+        try {
+            awaitProductive(begin);
+            long total = 0;
+            long max = 0;
+            boolean consistent = true;
+            for (int i = 0; i < HANDOFFS; i++) {
+                // 让leader工作一段时间，期间保存若干次检查点
+                Thread.sleep(1000);
+                Candidate leader = awaitLeader(candidates);
+                long start = System.nanoTime();
+                leader.relinquish = true;
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(awaitProductive(start) - start);
+                total += elapsed;
+                max = Math.max(max, elapsed);
+                // 从头重建只能得到最初的 ENTRIES 个键，leader工作期间加入的都丢失了
+                consistent &= productiveSize == relinquishedSize;
+            }
+            long raw = 0;
+            int stored = 0;
+            int chunks = 0;
+            for (Candidate candidate : candidates) {
+                if (candidate.checkpoint != null && candidate.checkpoint.getLastChunks() > 0) {
+                    raw = CODEC.encode(candidate.checkpoint.getLatest().getState()).length;
+                    stored = candidate.checkpoint.getLastCompressedSize();
+                    chunks = candidate.checkpoint.getLastChunks();
+                }
+            }
+            System.out.printf("%-11s %9d %12d %12d %11s %10d %12d %7d%n", mode, HANDOFFS, total / HANDOFFS, max,
+                    consistent, raw / 1024, stored / 1024, chunks);
+        } finally {
+            for (Candidate candidate : candidates) {
+                candidate.close();
+            }
+        }
+    }
+
+    private static Map<Integer, Long> rebuild() {
+        Map<Integer, Long> state = new ConcurrentHashMap<>(ENTRIES * 2);
+        for (int i = 0; i < ENTRIES; i++) {
+            long value = i;
+            for (int r = 0; r < ROUNDS; r++) {
+                value = mix(value);
+            }
+            state.put(i, count(value));
+        }
+        return state;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * 每个键对应一个计数
+     */
+    private static long count(long value) {
+        return (value & Long.MAX_VALUE) % 1000;
+    }
+
+    private static long awaitProductive(long after) throws InterruptedException {
+        while (productiveNanos < after) {
+            Thread.sleep(1);
+        }
+        return productiveNanos;
+    }
+
+    private static Candidate awaitLeader(List<Candidate> candidates) throws InterruptedException {
+        while (true) {
+            for (Candidate candidate : candidates) {
+                if (candidate.selector.hasLeadership()) {
+                    return candidate;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package pers.mingshan.curator.leader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 分块保存、后台保持最新的一份、旧分块的清理(不删除更新版本的分块)，
+ * 其他leader写过检查点时保存失败，以及新的leader覆盖损坏的检查点
+ */
+public class LeaderCheckpointTest extends TestCase {
+    private static final String PATH = "/test/checkpoint";
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final LeaderCheckpoint.Codec<byte[]> BYTES = new LeaderCheckpoint.Codec<byte[]>() {
+        @Override
+        public byte[] encode(byte[] state) throws IOException {
+            return state;
+        }
+
+        @Override
+        public byte[] decode(byte[] data) throws IOException {
+            return data;
+        }
+    };
+
+    private TestingServer server;
+    private CuratorFramework client;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(server.getConnectString(), new ExponentialBackoffRetry(1000, 3));
+        client.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testFollowerKeepsLatestCheckpoint() throws Exception {
+        LeaderCheckpoint<byte[]> leader = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        LeaderCheckpoint<byte[]> follower = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        try {
+            leader.start();
+            follower.start();
+            assertNull(leader.resume());
+
+            // 随机数据压缩不了，需要多个分块
+            byte[] first = random(10 * CHUNK_SIZE);
+            assertEquals(1, leader.save(first));
+            assertTrue(leader.getLastChunks() > 1);
+            awaitVersion(follower, 1);
+            assertTrue(Arrays.equals(first, follower.getLatest().getState()));
+
+            byte[] second = random(3 * CHUNK_SIZE);
+            assertEquals(2, leader.save(second));
+            awaitVersion(follower, 2);
+            assertTrue(Arrays.equals(second, follower.getLatest().getState()));
+            assertEquals(leader.getLastChunks(), client.getChildren().forPath(PATH + "/chunks").size());
+
+            // 新当选的leader从最新的检查点继续，版本号接着增加
+            assertTrue(Arrays.equals(second, follower.resume()));
+            assertEquals(3, follower.save(random(10)));
+        } finally {
+            leader.close();
+            follower.close();
+        }
+    }
+
+    public void testSaveFailsAfterAnotherLeaderWrote() throws Exception {
+        LeaderCheckpoint<byte[]> current = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        LeaderCheckpoint<byte[]> stale = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        try {
+            byte[] state = random(4 * CHUNK_SIZE);
+            current.save(state);
+            int chunks = client.getChildren().forPath(PATH + "/chunks").size();
+            try {
+                stale.save(random(4 * CHUNK_SIZE));
+                fail("Stale leader overwrote the checkpoint");
+            } catch (IllegalStateException expected) {
+                // 没有读到最新的manifest
+            }
+            // 写失败的分块已经删除，检查点仍然是原来的
+            assertEquals(chunks, client.getChildren().forPath(PATH + "/chunks").size());
+            assertTrue(Arrays.equals(state, stale.resume()));
+        } finally {
+            current.close();
+            stale.close();
+        }
+    }
+
+    public void testStartedStaleLeaderCannotOverwrite() throws Exception {
+        LeaderCheckpoint<byte[]> deposed = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        LeaderCheckpoint<byte[]> successor = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        try {
+            deposed.start();
+            successor.start();
+            assertNull(deposed.resume());
+            assertEquals(1, deposed.save(random(CHUNK_SIZE)));
+
+            awaitVersion(successor, 1);
+            successor.resume();
+            byte[] state = random(2 * CHUNK_SIZE);
+            assertEquals(2, successor.save(state));
+            // 卸任的leader在后台加载了继任者的检查点，仍然不能覆盖
+            awaitVersion(deposed, 2);
+            try {
+                deposed.save(random(3 * CHUNK_SIZE));
+                fail("Deposed leader overwrote the checkpoint");
+            } catch (IllegalStateException expected) {
+                // 当选后没有调用resume
+            }
+            assertTrue(Arrays.equals(state, successor.resume()));
+            assertEquals(3, successor.save(random(10)));
+
+            // 重新当选后从最新的检查点继续
+            awaitVersion(deposed, 3);
+            deposed.resume();
+            assertEquals(4, deposed.save(random(10)));
+        } finally {
+            deposed.close();
+            successor.close();
+        }
+    }
+
+    public void testCleanupKeepsNewerChunks() throws Exception {
+        LeaderCheckpoint<byte[]> leader = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        try {
+            assertEquals(1, leader.save(random(CHUNK_SIZE)));
+            // 提交之后、清理之前停顿期间，继任者写入了版本号更大的分块
+            String newer = PATH + "/chunks/5-abcdefgh-0";
+            client.create().forPath(newer, new byte[] { 1 });
+            assertEquals(2, leader.save(random(2 * CHUNK_SIZE)));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.getChildren().forPath(PATH + "/chunks").size() > leader.getLastChunks() + 1
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNotNull(client.checkExists().forPath(newer));
+            for (String child : client.getChildren().forPath(PATH + "/chunks")) {
+                assertFalse(child, child.startsWith("1-"));
+            }
+        } finally {
+            leader.close();
+        }
+    }
+
+    public void testNewLeaderOverwritesCorruptCheckpoint() throws Exception {
+        LeaderCheckpoint<byte[]> old = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        LeaderCheckpoint<byte[]> fresh = new LeaderCheckpoint<>(client, PATH, BYTES, CHUNK_SIZE);
+        try {
+            assertEquals(3, saveTimes(old, 3));
+            for (String child : client.getChildren().forPath(PATH + "/chunks")) {
+                client.delete().forPath(PATH + "/chunks/" + child);
+            }
+            try {
+                fresh.resume();
+                fail("Resumed a checkpoint without chunks");
+            } catch (IOException expected) {
+                // 分块缺失
+            }
+            // 以读到的manifest为基准覆盖，版本号继续增加
+            byte[] state = random(2 * CHUNK_SIZE);
+            assertEquals(4, fresh.save(state));
+            assertTrue(Arrays.equals(state, old.resume()));
+        } finally {
+            old.close();
+            fresh.close();
+        }
+    }
+
+    private static long saveTimes(LeaderCheckpoint<byte[]> checkpoint, int times) throws Exception {
+        long version = 0;
+        for (int i = 0; i < times; i++) {
+            version = checkpoint.save(random(CHUNK_SIZE + i));
+        }
+        return version;
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static void awaitVersion(LeaderCheckpoint<?> checkpoint, long version) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (checkpoint.getLatest() == null || checkpoint.getLatest().getVersion() < version) {
+            assertTrue("Timed out waiting for version " + version, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package pers.mingshan.curator.leader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.framework.recipes.leader.LeaderLatchListener;
+import org.apache.curator.framework.recipes.locks.StandardLockInternalsDriver;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.InstanceSpec;
+import org.apache.curator.test.TestingCluster;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.Watcher;
+
+import pers.mingshan.curator.util.FourLetterWords;
+import pers.mingshan.curator.util.LatencyHistogram;
+
+/**
+ * leader交接耗时：LeaderLatch 与 {@link FastLeaderLatch}
+ *
+ * 在3个节点的 TestingCluster 上运行 CANDIDATES 个候选者(各自一个客户端)，当前leader反复放弃领导权并重新排队，
+ * 每次交接记录以下时间点(都相对于旧leader开始放弃的时间)：
+ * <pre>
+ *  detect     后继所在的客户端收到旧leader节点的删除通知
+ *  isLeader   新leader的isLeader回调
+ * </pre>
+ * 输出这两个时间的p50/p99/最大值(微秒)，新leader在旧leader的notLeader回调之前开始工作的次数(overlap)，
+ * 以及每次交接发给集群的请求数(各服务端srvr的Received之和，包括重新排队的请求)。
+ *
+ * LeaderLatch通过close放弃，再用同样的id创建新的LeaderLatch排队；FastLeaderLatch使用relinquish。
+ *
+ * @author mingshan
+ *
+ */
+public class LeaderHandoffBenchmark {
+    private static final int CANDIDATES = 5;
+    private static final int HANDOFFS = 200;
+    private static final StandardLockInternalsDriver DRIVER = new StandardLockInternalsDriver();
+
+    /**
+     * 一个参与选举的候选者
+     */
+    private abstract static class Candidate implements LeaderLatchListener {
+        final CuratorFramework client;
+        final String id;
+        volatile long isLeaderNanos;
+        volatile long notLeaderNanos;
+
+        Candidate(CuratorFramework client, String id) {
+            this.client = client;
+            this.id = id;
+        }
+
+        @Override
+        public void isLeader() {
+            isLeaderNanos = System.nanoTime();
+        }
+
+        @Override
+        public void notLeader() {
+            notLeaderNanos = System.nanoTime();
+        }
+
+        abstract boolean hasLeadership();
+
+        abstract void relinquish() throws Exception;
+
+        abstract void close();
+    }
+
+    private static final class CuratorCandidate extends Candidate {
+        private final String path;
+        private LeaderLatch latch;
+
+        CuratorCandidate(CuratorFramework client, String path, String id) throws Exception {
+            super(client, id);
+            this.path = path;
+            join();
+        }
+
+        private void join() throws Exception {
+            latch = new LeaderLatch(client, path, id);
+            latch.addListener(this);
+            latch.start();
+        }
+
+        @Override
+        boolean hasLeadership() {
+            return latch.hasLeadership();
+        }
+
+        @Override
+        void relinquish() throws Exception {
+            latch.close();
+            join();
+        }
+
+        @Override
+        void close() {
+            CloseableUtils.closeQuietly(latch);
+        }
+    }
+
+    private static final class FastCandidate extends Candidate {
+        private final FastLeaderLatch latch;
+
+        FastCandidate(CuratorFramework client, String path, String id) {
+            super(client, id);
+            latch = new FastLeaderLatch(client, path, id);
+            latch.addListener(this);
+            latch.start();
+        }
+
+        @Override
+        boolean hasLeadership() {
+            return latch.hasLeadership();
+        }
+
+        @Override
+        void relinquish() throws Exception {
+            latch.relinquish();
+        }
+
+        @Override
+        void close() {
+            CloseableUtils.closeQuietly(latch);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestingCluster cluster = new TestingCluster(3);
+        cluster.start();
+        List<CuratorFramework> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < CANDIDATES; i++) {
+                CuratorFramework client = CuratorFrameworkFactory.newClient(cluster.getConnectString(),
+                        new ExponentialBackoffRetry(1000, 3));
+                client.start();
+                client.blockUntilConnected();
+                clients.add(client);
+            }
+            System.out.printf("%-8s %9s %24s %24s %9s %14s%n", "mode", "handoffs", "detect p50/p99/max us",
+                    "isLeader p50/p99/max us", "overlaps", "zk req/handoff");
+            for (String mode : new String[] { "curator", "fast" }) {
+                String path = "/benchmark/handoff/" + mode;
+                List<Candidate> candidates = new ArrayList<>();
+                for (int i = 0; i < CANDIDATES; i++) {
+                    String id = "candidate-" + i;
+                    candidates.add(mode.equals("curator") ? new CuratorCandidate(clients.get(i), path, id)
+                            : new FastCandidate(clients.get(i), path, id));
+                }
+                run(mode, cluster, path, candidates);
+                for (Candidate candidate : candidates) {
+                    candidate.close();
+                }
+            }
+        } finally {
+            for (CuratorFramework client : clients) {
+                CloseableUtils.closeQuietly(client);
+            }
+            CloseableUtils.closeQuietly(cluster);
+        }
+    }
+
+    private static void run(String mode, TestingCluster cluster, String path, List<Candidate> candidates)
+            throws Exception {
+        LatencyHistogram detect = new LatencyHistogram();
+        LatencyHistogram elected = new LatencyHistogram();
+        int overlaps = 0;
+        long requests = 0;
+        for (int i = 0; i < HANDOFFS; i++) {
+            Candidate leader = awaitLeader(candidates);
+            // 等后继准备好(FastLeaderLatch需要知道前一个节点是leader)
+            Thread.sleep(20);
+            List<String> children = sortedChildren(leader.client, path);
+            Candidate successor = candidateOf(candidates, leader.client, path, children.get(1));
+            long[] detectedAt = new long[1];
+            successor.client.checkExists().usingWatcher((Watcher) event -> detectedAt[0] = System.nanoTime())
+                    .forPath(ZKPaths.makePath(path, children.get(0)));
+
+            long received = received(cluster);
+            long start = System.nanoTime();
+            leader.relinquish();
+            while (successor.isLeaderNanos < start) {
+                Thread.sleep(0, 100000);
+            }
+            requests += received(cluster) - received - cluster.getInstances().size();
+            detect.record(TimeUnit.NANOSECONDS.toMicros(detectedAt[0] - start));
+            elected.record(TimeUnit.NANOSECONDS.toMicros(successor.isLeaderNanos - start));
+            if (successor.isLeaderNanos < leader.notLeaderNanos) {
+                overlaps++;
+            }
+        }
+        System.out.printf("%-8s %9d %24s %24s %9d %14.1f%n", mode, HANDOFFS, format(detect), format(elected),
+                overlaps, requests / (double) HANDOFFS);
+    }
+
+    private static String format(LatencyHistogram histogram) {
+        return histogram.getValueAtPercentile(50) + "/" + histogram.getValueAtPercentile(99) + "/"
+                + histogram.getMax();
+    }
+
+    private static Candidate awaitLeader(List<Candidate> candidates) throws InterruptedException {
+        while (true) {
+            for (Candidate candidate : candidates) {
+                if (candidate.hasLeadership()) {
+                    return candidate;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<String> sortedChildren(CuratorFramework client, String path) throws Exception {
+        List<String> children = new ArrayList<>(client.getChildren().forPath(path));
+        children.sort(Comparator.comparing(name -> DRIVER.fixForSorting(name, "latch-")));
+        return children;
+    }
+
+    private static Candidate candidateOf(List<Candidate> candidates, CuratorFramework client, String path,
+            String node) throws Exception {
+        String id = new String(client.getData().forPath(ZKPaths.makePath(path, node)), StandardCharsets.UTF_8);
+        for (Candidate candidate : candidates) {
+            if (candidate.id.equals(id)) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("Unknown candidate " + id);
+    }
+
+    private static long received(TestingCluster cluster) throws Exception {
+        long total = 0;
+        for (InstanceSpec instance : cluster.getInstances()) {
+            total += FourLetterWords.receivedPackets(instance.getConnectString());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,347 @@
+package pers.mingshan.curator.leader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.CancelLeadershipException;
+import org.apache.curator.framework.recipes.leader.LeaderSelector;
+import org.apache.curator.framework.recipes.leader.LeaderSelectorListenerAdapter;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+/**
+ * 网络分区时旧leader的行为：普通线程池 与 {@link LeaderScopedExecutor}
+ *
+ * 2个候选者(各自一个客户端)通过 LeaderSelector 选举，leader把任务(每个 TASK_MS)提交到 THREADS 个线程的线程池，
+ * 未完成的任务不超过 MAX_IN_FLIGHT。第一个候选者经过一个TCP代理连接ZooKeeper并先成为leader，
+ * 工作 WARMUP_MS 后代理停止转发(不关闭连接，模拟网络分区)：
+ * <pre>
+ *  expire  分区 EXPIRE_MS，超过会话超时，服务端让会话过期，另一个候选者成为leader
+ *  blip    分区 BLIP_MS，客户端在 2/3 会话超时后进入SUSPENDED，会话过期前恢复
+ * </pre>
+ * 三种leader：
+ * <pre>
+ *  sleeping   stateChanged 什么都不做(CuratorLeaderSelector原来的做法)
+ *  interrupt  LeaderSelectorListenerAdapter，SUSPENDED/LOST时中断 takeLeadership，已经提交的任务继续执行
+ *  scoped     LeaderScopedExecutor，SUSPENDED时暂停，同一个会话RECONNECTED时恢复，LOST或换了会话时立即取消
+ * </pre>
+ * 输出分区前每秒完成的任务数；新leader开始第一个任务之后旧leader还开始了多少任务(stale)，
+ * 旧leader最后一个任务结束比新leader第一个任务开始晚多少(overlap)；
+ * 分区开始后最长多久没有任何任务开始(gap)，以及分区结束时leader是否换了人。
+ *
+ * @author mingshan
+ *
+ */
+public class LeaderScopedExecutorBenchmark {
+    private static final int THREADS = 8;
+    private static final int MAX_IN_FLIGHT = 32;
+    private static final long TASK_MS = 5;
+    private static final int SESSION_TIMEOUT_MS = 4000;
+    private static final long WARMUP_MS = 2000;
+    private static final long EXPIRE_MS = 8000;
+    private static final long BLIP_MS = 3200;
+    private static final long OBSERVE_MS = 3000;
+
+    /**
+     * 一次任务执行
+     */
+    private static final class Execution {
+        final String leader;
+        final long start;
+        final long end;
+
+        Execution(String leader, long start, long end) {
+            this.leader = leader;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final Queue<Execution> executions = new ConcurrentLinkedQueue<>();
+    private static volatile boolean stopping;
+
+    private static final class Candidate extends LeaderSelectorListenerAdapter {
+        final String id;
+        final String mode;
+        final LeaderSelector selector;
+        final ExecutorService pool;
+        final Semaphore permits = new Semaphore(MAX_IN_FLIGHT);
+        final LeaderScopedExecutor scoped;
+
+        Candidate(String id, String mode, CuratorFramework client, String path) {
+            this.id = id;
+            this.mode = mode;
+            if (mode.equals("scoped")) {
+                pool = null;
+                scoped = new LeaderScopedExecutor(THREADS, MAX_IN_FLIGHT, LeaderScopedExecutor.LossPolicy.CANCEL, 0,
+                        TimeUnit.MILLISECONDS);
+            } else {
+                pool = Executors.newFixedThreadPool(THREADS);
+                scoped = null;
+            }
+            selector = new LeaderSelector(client, path, this);
+            selector.autoRequeue();
+            selector.start();
+        }
+
+        @Override
+        public void takeLeadership(CuratorFramework client) throws Exception {
+            if (scoped != null) {
+                scoped.lead(client);
+            }
+            try {
+                while (!stopping) {
+                    if (scoped != null) {
+                        scoped.submit(this::work);
+                    } else {
+                        permits.acquire();
+                        pool.execute(() -> {
+                            try {
+                                work();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            } finally {
+                                permits.release();
+                            }
+                        });
+                    }
+                }
+            } catch (RejectedExecutionException e) {
+                // 失去领导权
+            } finally {
+                if (scoped != null) {
+                    scoped.relinquish(0, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        private Void work() throws InterruptedException {
+            long start = System.nanoTime();
+            Thread.sleep(TASK_MS);
+            executions.add(new Execution(id, start, System.nanoTime()));
+            return null;
+        }
+
+        @Override
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            if (mode.equals("interrupt")) {
+                super.stateChanged(client, newState);
+            } else if (mode.equals("scoped")) {
+                boolean leading = scoped.isLeading();
+                scoped.stateChanged(client, newState);
+                if (leading && !scoped.isLeading()) {
+                    throw new CancelLeadershipException();
+                }
+            }
+        }
+
+        void close() {
+            CloseableUtils.closeQuietly(selector);
+            if (scoped != null) {
+                scoped.close();
+            } else {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 可以模拟网络分区的TCP代理：分区期间丢弃双向的数据但不关闭连接，恢复时关闭所有连接让客户端立即重连
+     */
+    private static final class PartitionProxy implements Closeable {
+        private final ServerSocket serverSocket;
+        private final int target;
+        private final List<Socket> sockets = new ArrayList<>();
+        private volatile boolean partitioned;
+
+        PartitionProxy(int target) throws IOException {
+            this.target = target;
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(this::accept, "PartitionProxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        String getConnectString() {
+            return "127.0.0.1:" + serverSocket.getLocalPort();
+        }
+
+        void partition() {
+            partitioned = true;
+        }
+
+        void heal() {
+            partitioned = false;
+            closeSockets();
+        }
+
+        private void accept() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Socket upstream = new Socket(InetAddress.getLoopbackAddress(), target);
+                    synchronized (sockets) {
+                        sockets.add(client);
+                        sockets.add(upstream);
+                    }
+                    pump(client, upstream);
+                    pump(upstream, client);
+                } catch (IOException e) {
+                    // 代理已经关闭
+                }
+            }
+        }
+
+        private void pump(Socket from, Socket to) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        if (!partitioned) {
+                            out.write(buffer, 0, n);
+                        }
+                    }
+                } catch (IOException e) {
+                    // 连接已经关闭
+                } finally {
+                    CloseableUtils.closeQuietly(from);
+                    CloseableUtils.closeQuietly(to);
+                }
+            }, "PartitionProxy-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void closeSockets() {
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    CloseableUtils.closeQuietly(socket);
+                }
+                sockets.clear();
+            }
+        }
+
+        @Override
+        public void close() {
+            CloseableUtils.closeQuietly(serverSocket);
+            closeSockets();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        try {
+            System.out.printf("%-10s %-8s %10s %8s %12s %10s %15s%n", "mode", "scenario", "tasks/s", "stale",
+                    "overlap ms", "gap ms", "leader changed");
+            for (String scenario : new String[] { "expire", "blip" }) {
+                for (String mode : new String[] { "sleeping", "interrupt", "scoped" }) {
+                    run(mode, scenario, server);
+                }
+            }
+        } finally {
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void run(String mode, String scenario, TestingServer server) throws Exception {
+        String path = "/benchmark/scoped/" + scenario + "/" + mode;
+        executions.clear();
+        stopping = false;
+        List<Candidate> candidates = new ArrayList<>();
+        List<CuratorFramework> clients = new ArrayList<>();
+        PartitionProxy proxy = new PartitionProxy(server.getPort());
+        try {
+            // 第一个候选者经过代理连接并先成为leader
+            for (int i = 0; i < 2; i++) {
+                CuratorFramework client = CuratorFrameworkFactory.builder()
+                        .connectString(i == 0 ? proxy.getConnectString() : server.getConnectString())
+                        .sessionTimeoutMs(SESSION_TIMEOUT_MS).connectionTimeoutMs(SESSION_TIMEOUT_MS)
+                        .retryPolicy(new ExponentialBackoffRetry(100, 10)).build();
+                client.start();
+                client.blockUntilConnected();
+                clients.add(client);
+                candidates.add(new Candidate(mode + "-" + i, mode, client, path));
+                if (i == 0) {
+                    while (!candidates.get(0).selector.hasLeadership()) {
+                        Thread.sleep(1);
+                    }
+                }
+            }
+            Candidate leader = candidates.get(0);
+            Thread.sleep(WARMUP_MS);
+            long partitioned = System.nanoTime();
+            long first = Long.MAX_VALUE;
+            long done = 0;
+            for (Execution execution : executions) {
+                first = Math.min(first, execution.start);
+                done++;
+            }
+            double rate = done * 1e9 / (partitioned - first);
+
+            proxy.partition();
+            Thread.sleep(scenario.equals("expire") ? EXPIRE_MS : BLIP_MS);
+            proxy.heal();
+            Thread.sleep(OBSERVE_MS);
+            boolean changed = !leader.selector.hasLeadership();
+
+            long newLeaderStart = Long.MAX_VALUE;
+            for (Execution execution : executions) {
+                if (!execution.leader.equals(leader.id)) {
+                    newLeaderStart = Math.min(newLeaderStart, execution.start);
+                }
+            }
+            long stale = 0;
+            long oldLeaderEnd = 0;
+            List<Long> starts = new ArrayList<>();
+            for (Execution execution : executions) {
+                if (execution.start >= partitioned) {
+                    starts.add(execution.start);
+                }
+                if (execution.leader.equals(leader.id) && execution.start < newLeaderStart) {
+                    oldLeaderEnd = Math.max(oldLeaderEnd, execution.end);
+                }
+                if (execution.leader.equals(leader.id) && execution.start > newLeaderStart) {
+                    stale++;
+                }
+            }
+            starts.sort(null);
+            long gap = 0;
+            long previous = partitioned;
+            for (long start : starts) {
+                gap = Math.max(gap, start - previous);
+                previous = start;
+            }
+            double overlap = newLeaderStart == Long.MAX_VALUE ? 0 : Math.max(0, oldLeaderEnd - newLeaderStart) / 1e6;
+            System.out.printf("%-10s %-8s %10.0f %8d %12.1f %10.0f %15s%n", mode, scenario, rate, stale, overlap,
+                    gap / 1e6, changed);
+        } finally {
+            stopping = true;
+            for (Candidate candidate : candidates) {
+                candidate.close();
+            }
+            for (CuratorFramework client : clients) {
+                CloseableUtils.closeQuietly(client);
+            }
+            proxy.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package pers.mingshan.curator.leader;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 未完成任务数的上限、放弃时等待任务完成、SUSPENDED时暂停，以及LOST或换了会话时取消或限时等待
+ */
+public class LeaderScopedExecutorTest extends TestCase {
+
+    public void testBoundedInFlightAndRelinquish() throws Exception {
+        LeaderScopedExecutor executor = new LeaderScopedExecutor(2, 4, LeaderScopedExecutor.LossPolicy.CANCEL, 0,
+                TimeUnit.MILLISECONDS);
+        try {
+            try {
+                executor.submit(() -> 1);
+                fail("Submitted without leadership");
+            } catch (RejectedExecutionException expected) {
+                // 还没有成为leader
+            }
+            executor.lead();
+            CountDownLatch release = new CountDownLatch(1);
+            for (int i = 0; i < 4; i++) {
+                executor.submit(() -> {
+                    release.await();
+                    return null;
+                });
+            }
+            assertEquals(4, executor.getInFlight());
+
+            AtomicBoolean submitted = new AtomicBoolean();
+            Thread producer = new Thread(() -> {
+                try {
+                    executor.submit(() -> true);
+                    submitted.set(true);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producer.start();
+            producer.join(200);
+            assertFalse(submitted.get());
+
+            release.countDown();
+            producer.join(5000);
+            assertTrue(submitted.get());
+            assertTrue(executor.relinquish(5, TimeUnit.SECONDS));
+            assertEquals(5, executor.getCompleted());
+            assertEquals(0, executor.getInFlight());
+            try {
+                executor.submit(() -> 1);
+                fail("Submitted after relinquishing");
+            } catch (RejectedExecutionException expected) {
+                // 已经放弃
+            }
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testPauseWhileSuspended() throws Exception {
+        LeaderScopedExecutor executor = new LeaderScopedExecutor(2, 4, LeaderScopedExecutor.LossPolicy.CANCEL, 0,
+                TimeUnit.MILLISECONDS);
+        try {
+            executor.lead();
+            executor.stateChanged(null, ConnectionState.SUSPENDED);
+            assertFalse(executor.isActive());
+            AtomicInteger runs = new AtomicInteger();
+            Future<Integer> future = executor.submit(runs::incrementAndGet);
+            Thread.sleep(200);
+            assertEquals(0, runs.get());
+
+            executor.stateChanged(null, ConnectionState.RECONNECTED);
+            assertEquals(1, (int) future.get(5, TimeUnit.SECONDS));
+            assertTrue(executor.isActive());
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testLostDrainsRunningTasksWithinDeadline() throws Exception {
+        LeaderScopedExecutor executor = new LeaderScopedExecutor(2, 8, LeaderScopedExecutor.LossPolicy.DRAIN, 300,
+                TimeUnit.MILLISECONDS);
+        try {
+            executor.lead();
+            CountDownLatch started = new CountDownLatch(2);
+            Future<Boolean> shortTask = executor.submit(() -> {
+                started.countDown();
+                Thread.sleep(100);
+                return true;
+            });
+            Future<Boolean> longTask = executor.submit(() -> {
+                started.countDown();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                return true;
+            });
+            Future<Boolean> queued = executor.submit(() -> true);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            long lostAt = System.nanoTime();
+            executor.stateChanged(null, ConnectionState.LOST);
+            // 没开始的任务立即取消，正在执行的任务可以在期限内完成
+            assertTrue(queued.isCancelled());
+            assertTrue(shortTask.get(5, TimeUnit.SECONDS));
+            try {
+                longTask.get(5, TimeUnit.SECONDS);
+                fail("Long task survived the deadline");
+            } catch (CancellationException expected) {
+                // 超过期限后中断
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAt);
+            assertTrue("Drained after " + elapsed + "ms", elapsed >= 250 && elapsed < 3000);
+            try {
+                executor.submit(() -> true);
+                fail("Submitted after losing leadership");
+            } catch (RejectedExecutionException expected) {
+                // 已经失去领导权
+            }
+
+            // 新的任期不受影响
+            executor.lead();
+            assertTrue(executor.submit(() -> true).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testLostCancelsImmediately() throws Exception {
+        LeaderScopedExecutor executor = new LeaderScopedExecutor(1, 4, LeaderScopedExecutor.LossPolicy.CANCEL, 0,
+                TimeUnit.MILLISECONDS);
+        try {
+            executor.lead();
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch interrupted = new CountDownLatch(1);
+            Future<Boolean> running = executor.submit(() -> {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return true;
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.stateChanged(null, ConnectionState.LOST);
+            assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+            assertTrue(running.isCancelled());
+            try {
+                running.get();
+                fail();
+            } catch (CancellationException | ExecutionException expected) {
+                // 已经取消
+            }
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testReconnectedWithNewSessionEndsTerm() throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
+        CuratorFramework other = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
+        LeaderScopedExecutor executor = new LeaderScopedExecutor(1, 4, LeaderScopedExecutor.LossPolicy.CANCEL, 0,
+                TimeUnit.MILLISECONDS);
+        try {
+            client.start();
+            other.start();
+            client.blockUntilConnected();
+            other.blockUntilConnected();
+
+            // 同一个会话重连，继续执行
+            executor.lead(client);
+            executor.stateChanged(client, ConnectionState.SUSPENDED);
+            executor.stateChanged(client, ConnectionState.RECONNECTED);
+            assertTrue(executor.isActive());
+            assertTrue(executor.submit(() -> true).get(5, TimeUnit.SECONDS));
+
+            // 换了会话重连(Curator 2.x 断开超时后重建连接)，按LOST处理
+            executor.stateChanged(client, ConnectionState.SUSPENDED);
+            Future<Boolean> paused = executor.submit(() -> true);
+            executor.stateChanged(other, ConnectionState.RECONNECTED);
+            assertFalse(executor.isLeading());
+            try {
+                paused.get(5, TimeUnit.SECONDS);
+                fail("Task ran in a new session");
+            } catch (CancellationException expected) {
+                // 任期已经结束
+            }
+        } finally {
+            executor.close();
+            CloseableUtils.closeQuietly(other);
+            CloseableUtils.closeQuietly(client);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+}
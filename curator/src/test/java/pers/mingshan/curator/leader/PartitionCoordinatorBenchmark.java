@@ -0,0 +1,174 @@
+package pers.mingshan.curator.leader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+/**
+ * {@link PartitionCoordinator} 再平衡的耗时和移动的分区数
+ *
+ * MEMBERS 个成员(各自一个客户端，模拟不同进程)分配 PARTITIONS 个分区，依次：
+ * <pre>
+ *  join         加入一个成员
+ *  leave        一个普通成员离开
+ *  leader leave leader离开，需要重新选举
+ * </pre>
+ * 从成员变化开始计时，到所有分区恰好被一个成员持有且分配均衡为止。
+ * 移动的分区数由成员的回调统计，和按 partition % n 取模分配时需要移动的分区数对比。
+ * 同时检查任何时刻都没有分区被两个成员持有。
+ *
+ * @author mingshan
+ *
+ */
+public class PartitionCoordinatorBenchmark {
+    private static final String PATH = "/benchmark/partitions";
+    private static final int PARTITIONS = 120;
+    private static final int MEMBERS = 5;
+
+    private static final Map<Integer, String> owners = new ConcurrentHashMap<>();
+    private static final AtomicInteger assignedCount = new AtomicInteger();
+    private static final AtomicInteger overlaps = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        List<CuratorFramework> clients = new ArrayList<>();
+        List<PartitionCoordinator> members = new ArrayList<>();
+        try {
+            System.out.printf("%-14s %8s %14s %10s %12s %10s%n", "event", "members", "rebalance ms", "moved",
+                    "modulo moved", "overlaps");
+            long start = System.nanoTime();
+            for (int i = 0; i < MEMBERS; i++) {
+                members.add(newMember(server, clients, "member-" + i));
+            }
+            report("start", members, start, 0, 0);
+
+            int before = members.size();
+            start = System.nanoTime();
+            members.add(newMember(server, clients, "member-" + MEMBERS));
+            report("join", members, start, assignedCount.get(), moduloMoves(before, members.size()));
+
+            PartitionCoordinator leaving = null;
+            for (PartitionCoordinator member : members) {
+                if (!member.isLeader()) {
+                    leaving = member;
+                    break;
+                }
+            }
+            before = members.size();
+            start = System.nanoTime();
+            int assignedBefore = assignedCount.get();
+            members.remove(leaving);
+            leaving.close();
+            report("leave", members, start, assignedBefore, moduloMoves(before, members.size()));
+
+            PartitionCoordinator leader = null;
+            for (PartitionCoordinator member : members) {
+                if (member.isLeader()) {
+                    leader = member;
+                }
+            }
+            before = members.size();
+            start = System.nanoTime();
+            assignedBefore = assignedCount.get();
+            members.remove(leader);
+            leader.close();
+            report("leader leave", members, start, assignedBefore, moduloMoves(before, members.size()));
+        } finally {
+            for (PartitionCoordinator member : members) {
+                CloseableUtils.closeQuietly(member);
+            }
+            for (CuratorFramework client : clients) {
+                CloseableUtils.closeQuietly(client);
+            }
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static PartitionCoordinator newMember(TestingServer server, List<CuratorFramework> clients, String id)
+            throws Exception {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        clients.add(client);
+        PartitionCoordinator member = new PartitionCoordinator(client, PATH, id, PARTITIONS,
+                new PartitionCoordinator.Listener() {
+                    @Override
+                    public void partitionsRevoked(Set<Integer> partitions) {
+                        for (Integer partition : partitions) {
+                            owners.remove(partition, id);
+                        }
+                    }
+
+                    @Override
+                    public void partitionsAssigned(Set<Integer> partitions) {
+                        for (Integer partition : partitions) {
+                            if (owners.putIfAbsent(partition, id) != null) {
+                                overlaps.incrementAndGet();
+                            }
+                        }
+                        assignedCount.addAndGet(partitions.size());
+                    }
+                });
+        member.start();
+        return member;
+    }
+
+    /**
+     * 等待分配稳定后输出一行
+     *
+     * @param assignedBefore 成员变化前累计分到的分区数，之后新分到的就是移动的分区
+     */
+    private static void report(String event, List<PartitionCoordinator> members, long start, int assignedBefore,
+            int moduloMoved) throws InterruptedException {
+        while (!balanced(members)) {
+            Thread.sleep(1);
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%-14s %8d %14.1f %10d %12d %10d%n", event, members.size(), millis,
+                assignedCount.get() - assignedBefore, moduloMoved, overlaps.get());
+    }
+
+    private static boolean balanced(List<PartitionCoordinator> members) {
+        if (owners.size() != PARTITIONS) {
+            return false;
+        }
+        int base = PARTITIONS / members.size();
+        int total = 0;
+        for (PartitionCoordinator member : members) {
+            int size = member.getAssignedPartitions().size();
+            if (size < base || size > base + 1) {
+                return false;
+            }
+            total += size;
+        }
+        return total == PARTITIONS;
+    }
+
+    /**
+     * 按 partition % n 分配时，成员数从 from 变为 to 需要换成员的分区数(成员按顺序编号，离开的是最后一个)
+     */
+    private static int moduloMoves(int from, int to) {
+        Map<Integer, Integer> before = new HashMap<>();
+        for (int p = 0; p < PARTITIONS; p++) {
+            before.put(p, p % from);
+        }
+        int moves = 0;
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (before.get(p) != p % to) {
+                moves++;
+            }
+        }
+        return moves;
+    }
+}
@@ -0,0 +1,226 @@
+package pers.mingshan.curator.leader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 粘性均衡分配、成员加入离开时的再平衡，连接中断和会话过期时撤销分区，以及分区不会同时属于两个成员
+ */
+public class PartitionCoordinatorTest extends TestCase {
+    private static final String PATH = "/test/partitions";
+    private static final int PARTITIONS = 10;
+
+    private TestingServer server;
+    private final List<CuratorFramework> clients = new ArrayList<>();
+    private final Map<String, CuratorFramework> clientOf = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<String>> owners = new ConcurrentHashMap<>();
+    private final AtomicInteger overlaps = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CuratorFramework client : clients) {
+            CloseableUtils.closeQuietly(client);
+        }
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testBalanceIsSticky() {
+        Map<String, Set<Integer>> owned = new TreeMap<>();
+        owned.put("a", new TreeSet<>(Arrays.asList(0, 1, 2, 3, 4)));
+        owned.put("b", new TreeSet<>(Arrays.asList(5, 6, 7, 8, 9)));
+        owned.put("c", new TreeSet<>());
+        Map<String, Set<Integer>> target = PartitionCoordinator.balance(owned, PARTITIONS);
+        assertEquals(4, target.get("a").size());
+        assertEquals(3, target.get("b").size());
+        assertEquals(3, target.get("c").size());
+        assertTrue(owned.get("a").containsAll(target.get("a")));
+        assertTrue(owned.get("b").containsAll(target.get("b")));
+
+        PartitionCoordinator.Assignment assignment = new PartitionCoordinator.Assignment(3, target,
+                new TreeMap<>());
+        assignment.revoking.put("a", new PartitionCoordinator.Revocation(3, new TreeSet<>(Arrays.asList(4))));
+        PartitionCoordinator.Assignment decoded = PartitionCoordinator.Assignment.decode(assignment.encode());
+        assertEquals(3, decoded.generation);
+        assertEquals(target, decoded.owned);
+        assertEquals(assignment.revoking, decoded.revoking);
+    }
+
+    public void testJoinAndLeave() throws Exception {
+        List<PartitionCoordinator> members = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            members.add(newMember("m" + i));
+        }
+        awaitBalanced(members);
+        Map<String, Set<Integer>> before = snapshot(members);
+
+        PartitionCoordinator joined = newMember("m3");
+        members.add(joined);
+        awaitBalanced(members);
+        for (PartitionCoordinator member : members) {
+            if (member != joined) {
+                assertTrue(before.get(member.getMemberId()).containsAll(member.getAssignedPartitions()));
+            }
+        }
+
+        before = snapshot(members);
+        PartitionCoordinator leader = null;
+        for (PartitionCoordinator member : members) {
+            if (member.isLeader()) {
+                leader = member;
+            }
+        }
+        assertNotNull(leader);
+        members.remove(leader);
+        leader.close();
+        awaitBalanced(members);
+        for (PartitionCoordinator member : members) {
+            assertTrue(member.getAssignedPartitions().containsAll(before.get(member.getMemberId())));
+        }
+        assertEquals(0, overlaps.get());
+        for (PartitionCoordinator member : members) {
+            member.close();
+        }
+    }
+
+    public void testSuspendedRevokesPartitions() throws Exception {
+        List<PartitionCoordinator> members = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            members.add(newMember("m" + i));
+        }
+        awaitBalanced(members);
+
+        // 中断期间会话可能过期，不能等到LOST才停止处理
+        server.stop();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!owners.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("still owned: " + owners, owners.isEmpty());
+        for (PartitionCoordinator member : members) {
+            assertTrue(member.getAssignedPartitions().isEmpty());
+        }
+
+        server.restart();
+        awaitBalanced(members);
+        assertEquals(0, overlaps.get());
+        for (PartitionCoordinator member : members) {
+            member.close();
+        }
+    }
+
+    public void testExpiredMemberRejoins() throws Exception {
+        List<PartitionCoordinator> members = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            members.add(newMember("m" + i));
+        }
+        awaitBalanced(members);
+        PartitionCoordinator expired = null;
+        for (PartitionCoordinator member : members) {
+            if (!member.isLeader()) {
+                expired = member;
+            }
+        }
+        assertNotNull(expired);
+
+        CuratorFramework client = clientOf.get(expired.getMemberId());
+        KillSession.kill(client.getZookeeperClient().getZooKeeper(), server.getConnectString());
+        // 服务端立即过期会话，成员在断开之前来不及停止，这里只检查它停止之后：
+        // 重新加入时不能使用过期前的分配方案，原来的分区此时已经分给了别人
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!expired.getAssignedPartitions().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(expired.getAssignedPartitions().isEmpty());
+        overlaps.set(0);
+        awaitBalanced(members);
+        assertFalse(expired.getAssignedPartitions().isEmpty());
+        assertEquals(0, overlaps.get());
+        for (PartitionCoordinator member : members) {
+            member.close();
+        }
+    }
+
+    private PartitionCoordinator newMember(String id) throws Exception {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        clients.add(client);
+        clientOf.put(id, client);
+        PartitionCoordinator member = new PartitionCoordinator(client, PATH, id, PARTITIONS,
+                new PartitionCoordinator.Listener() {
+                    @Override
+                    public void partitionsRevoked(Set<Integer> partitions) {
+                        for (Integer partition : partitions) {
+                            owners.computeIfPresent(partition, (p, ids) -> {
+                                ids.remove(id);
+                                return ids.isEmpty() ? null : ids;
+                            });
+                        }
+                    }
+
+                    @Override
+                    public void partitionsAssigned(Set<Integer> partitions) {
+                        for (Integer partition : partitions) {
+                            Set<String> ids = owners.computeIfAbsent(partition, p -> ConcurrentHashMap.newKeySet());
+                            ids.add(id);
+                            if (ids.size() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+        member.start();
+        return member;
+    }
+
+    private void awaitBalanced(List<PartitionCoordinator> members) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            Set<Integer> all = new HashSet<>();
+            int base = PARTITIONS / members.size();
+            boolean balanced = owners.size() == PARTITIONS;
+            for (PartitionCoordinator member : members) {
+                Set<Integer> mine = member.getAssignedPartitions();
+                balanced &= mine.size() == base || mine.size() == base + 1;
+                all.addAll(mine);
+            }
+            if (balanced && all.size() == PARTITIONS) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Not balanced: " + snapshot(members));
+    }
+
+    private static Map<String, Set<Integer>> snapshot(List<PartitionCoordinator> members) {
+        Map<String, Set<Integer>> result = new HashMap<>();
+        for (PartitionCoordinator member : members) {
+            result.put(member.getMemberId(), member.getAssignedPartitions());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+package pers.mingshan.curator.lock;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ThreadUtils;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * {@link AsyncMutex} 演示
+ *
+ * WAITERS 个等待者同时在一个锁上排队，先全部来自一个客户端，再由两个客户端(模拟两个进程)轮流各提交 BURST 个，
+ * 所有回调都在 POOL_THREADS 个线程的线程池中执行。每 TIMEOUT_EVERY 个等待者带 TIMEOUT_MS 的超时，
+ * 超时后放弃排队。拿到锁的等待者检查没有其他持有者后立即释放。
+ *
+ * 输出获取次数、超时次数、同时持有锁的最大数量、吞吐量、峰值线程数、每次获取锁发给服务端的请求数(srvr的Received)，
+ * 以及getChildren次数、在其他进程节点上的监听次数和本地交出锁的次数。
+ * 使用阻塞的 InterProcessMutex 时每个等待者要占用一个线程。
+ *
+ * @author mingshan
+ *
+ */
+public class AsyncMutexDemo {
+    private static final String PATH = "/demo/async-mutex";
+    private static final int WAITERS = 10000;
+    private static final int BURST = 500;
+    private static final int POOL_THREADS = 4;
+    private static final int TIMEOUT_EVERY = 10;
+    private static final long TIMEOUT_MS = 20;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client1 = newClient(server);
+        CuratorFramework client2 = newClient(server);
+        ExecutorService pool = ThreadUtils.newFixedThreadPool(POOL_THREADS, "AsyncMutexDemo");
+        AsyncMutex single = new AsyncMutex(client1, PATH + "/1", pool);
+        AsyncMutex mutex1 = new AsyncMutex(client1, PATH + "/2", pool);
+        AsyncMutex mutex2 = new AsyncMutex(client2, PATH + "/2", pool);
+        try {
+            System.out.printf("%-10s %8s %9s %8s %9s %9s %13s %13s %12s %10s%n", "processes", "acquired",
+                    "timed out", "holders", "locks/s", "peak thr", "zk req/lock", "getChildren", "zk watches",
+                    "local");
+            run("1", server, single, single);
+            run("2", server, mutex1, mutex2);
+        } finally {
+            single.close();
+            mutex1.close();
+            mutex2.close();
+            pool.shutdown();
+            CloseableUtils.closeQuietly(client1);
+            CloseableUtils.closeQuietly(client2);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void run(String processes, TestingServer server, AsyncMutex mutex1, AsyncMutex mutex2) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger maxHolders = new AtomicInteger();
+        AtomicInteger acquired = new AtomicInteger();
+        AtomicInteger timedOut = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(WAITERS);
+        long received = FourLetterWords.receivedPackets(server.getConnectString());
+        long start = System.nanoTime();
+        for (int i = 0; i < WAITERS; i++) {
+            AsyncMutex mutex = (i / BURST) % 2 == 0 ? mutex1 : mutex2;
+            CompletableFuture<AsyncMutex.Handle> future = i % TIMEOUT_EVERY == 0
+                    ? mutex.acquire(TIMEOUT_MS, TimeUnit.MILLISECONDS) : mutex.acquire();
+            future.whenComplete((handle, e) -> {
+                if (e != null) {
+                    if (e instanceof TimeoutException) {
+                        timedOut.incrementAndGet();
+                    } else {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                    return;
+                }
+                maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                acquired.incrementAndGet();
+                holders.decrementAndGet();
+                handle.release().whenComplete((v, releaseError) -> done.countDown());
+            });
+        }
+        if (!done.await(5, TimeUnit.MINUTES)) {
+            System.out.println("still waiting: " + done.getCount());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // 减去srvr本身
+        long requests = FourLetterWords.receivedPackets(server.getConnectString()) - received - 1;
+        boolean shared = mutex1 == mutex2;
+        System.out.printf("%-10s %8d %9d %8d %9.0f %9d %13.2f %13d %12d %10d%n", processes, acquired.get(),
+                timedOut.get(), maxHolders.get(), acquired.get() / seconds, threads.getPeakThreadCount(),
+                requests / (double) Math.max(1, acquired.get()),
+                mutex1.getSnapshots() + (shared ? 0 : mutex2.getSnapshots()),
+                mutex1.getRemoteWatches() + (shared ? 0 : mutex2.getRemoteWatches()),
+                mutex1.getLocalHandoffs() + (shared ? 0 : mutex2.getLocalHandoffs()));
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
@@ -0,0 +1,156 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ThreadUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 跨进程互斥、超时放弃、会话过期后不在本地交接，以及和 InterProcessMutex 在同一路径上互斥
+ */
+public class AsyncMutexTest extends TestCase {
+    private static final String PATH = "/test/async-mutex";
+
+    private TestingServer server;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+    private ExecutorService pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+        pool = ThreadUtils.newFixedThreadPool(2, "AsyncMutexTest");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutdownNow();
+        CloseableUtils.closeQuietly(client1);
+        CloseableUtils.closeQuietly(client2);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testMutualExclusion() throws Exception {
+        AsyncMutex mutex1 = new AsyncMutex(client1, PATH, pool);
+        AsyncMutex mutex2 = new AsyncMutex(client2, PATH, pool);
+        int waiters = 200;
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger maxHolders = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(waiters);
+        for (int i = 0; i < waiters; i++) {
+            (i % 2 == 0 ? mutex1 : mutex2).acquire().thenAccept(handle -> {
+                maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                holders.decrementAndGet();
+                handle.release().thenRun(done::countDown);
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(1, maxHolders.get());
+        assertTrue(mutex1.getLocalHandoffs() + mutex2.getLocalHandoffs() > 0);
+        assertTrue(client1.getChildren().forPath(PATH).isEmpty());
+        mutex1.close();
+        mutex2.close();
+    }
+
+    public void testTimeoutRemovesNode() throws Exception {
+        AsyncMutex mutex1 = new AsyncMutex(client1, PATH, pool);
+        AsyncMutex mutex2 = new AsyncMutex(client2, PATH, pool);
+        AsyncMutex.Handle handle = mutex1.acquire().get(10, TimeUnit.SECONDS);
+        CompletableFuture<AsyncMutex.Handle> local = mutex1.acquire(200, TimeUnit.MILLISECONDS);
+        CompletableFuture<AsyncMutex.Handle> remote = mutex2.acquire(200, TimeUnit.MILLISECONDS);
+        CompletableFuture<AsyncMutex.Handle> next = mutex2.acquire();
+        assertTimedOut(local);
+        assertTimedOut(remote);
+        assertFalse(next.isDone());
+
+        handle.release().get(10, TimeUnit.SECONDS);
+        AsyncMutex.Handle nextHandle = next.get(10, TimeUnit.SECONDS);
+        assertEquals(1, client1.getChildren().forPath(PATH).size());
+        nextHandle.release().get(10, TimeUnit.SECONDS);
+        try {
+            nextHandle.release().get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalMonitorStateException);
+        }
+        mutex1.close();
+        mutex2.close();
+    }
+
+    public void testInterProcessMutexCompatible() throws Exception {
+        InterProcessMutex blocking = new InterProcessMutex(client1, PATH);
+        AsyncMutex mutex = new AsyncMutex(client2, PATH, pool);
+        blocking.acquire();
+        CompletableFuture<AsyncMutex.Handle> future = mutex.acquire();
+        Thread.sleep(300);
+        assertFalse(future.isDone());
+        blocking.release();
+
+        AsyncMutex.Handle handle = future.get(10, TimeUnit.SECONDS);
+        assertFalse(blocking.acquire(300, TimeUnit.MILLISECONDS));
+        handle.release().get(10, TimeUnit.SECONDS);
+        assertTrue(blocking.acquire(10, TimeUnit.SECONDS));
+        blocking.release();
+        mutex.close();
+    }
+
+    public void testExpiredHolderDoesNotHandOff() throws Exception {
+        AsyncMutex mutex = new AsyncMutex(client1, PATH, pool);
+        InterProcessMutex other = new InterProcessMutex(client2, PATH);
+        AsyncMutex.Handle handle = mutex.acquire().get(10, TimeUnit.SECONDS);
+        CompletableFuture<AsyncMutex.Handle> queued = mutex.acquire();
+        Thread.sleep(300);
+        assertFalse(queued.isDone());
+
+        // 会话过期，两个节点都被删除，其他进程拿到锁
+        KillSession.kill(client1.getZookeeperClient().getZooKeeper(), server.getConnectString());
+        assertTrue(other.acquire(10, TimeUnit.SECONDS));
+        try {
+            handle.release().get(10, TimeUnit.SECONDS);
+            try {
+                queued.get(10, TimeUnit.SECONDS);
+                fail("Lock handed off after the session expired");
+            } catch (ExecutionException e) {
+                // 重新读取子节点时发现自己的节点已经不在
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            assertEquals(1, client2.getChildren().forPath(PATH).size());
+        } finally {
+            other.release();
+        }
+        mutex.close();
+    }
+
+    private static void assertTimedOut(CompletableFuture<AsyncMutex.Handle> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
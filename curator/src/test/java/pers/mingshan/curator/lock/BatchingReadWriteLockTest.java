@@ -0,0 +1,179 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 本地读线程共享一个读锁节点，写优先，写锁降级，关闭时释放持有的锁
+ */
+public class BatchingReadWriteLockTest extends TestCase {
+    private static final String LOCK_PATH = "/test/rw";
+
+    private TestingServer server;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client1);
+        CloseableUtils.closeQuietly(client2);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testReadersShareOneNode() throws Exception {
+        BatchingReadWriteLock lock = new BatchingReadWriteLock(client1, LOCK_PATH);
+        int threads = 4;
+        CountDownLatch acquired = new CountDownLatch(threads);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    lock.readLock().acquire();
+                    acquired.countDown();
+                    release.await();
+                    lock.readLock().release();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        assertEquals(1, client1.getChildren().forPath(LOCK_PATH).size());
+        assertEquals(1, lock.getZkReadAcquisitions());
+        assertEquals(threads - 1, lock.getBatchedReads());
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(client1.getChildren().forPath(LOCK_PATH).isEmpty());
+        lock.close();
+    }
+
+    public void testRemoteWriterIsNotStarved() throws Exception {
+        BatchingReadWriteLock lock = new BatchingReadWriteLock(client1, LOCK_PATH);
+        InterProcessMutex remoteWriter = new InterProcessReadWriteLock(client2, LOCK_PATH).writeLock();
+        lock.readLock().acquire();
+
+        CountDownLatch writerAcquired = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                remoteWriter.acquire();
+                writerAcquired.countDown();
+                Thread.sleep(200);
+                remoteWriter.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client1.getChildren().forPath(LOCK_PATH).size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // 有其他进程的写线程在等待，新的读线程不能加入当前批次
+        AtomicBoolean joinedEarly = new AtomicBoolean();
+        CountDownLatch readerDone = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                if (lock.readLock().acquire(100, TimeUnit.MILLISECONDS)) {
+                    joinedEarly.set(true);
+                    lock.readLock().release();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                readerDone.countDown();
+            }
+        }).start();
+        assertTrue(readerDone.await(10, TimeUnit.SECONDS));
+        assertFalse(joinedEarly.get());
+
+        lock.readLock().release();
+        assertTrue(writerAcquired.await(10, TimeUnit.SECONDS));
+        assertTrue(lock.readLock().acquire(10, TimeUnit.SECONDS));
+        lock.readLock().release();
+        lock.close();
+    }
+
+    public void testDowngrade() throws Exception {
+        BatchingReadWriteLock lock = new BatchingReadWriteLock(client1, LOCK_PATH);
+        InterProcessMutex remoteWriter = new InterProcessReadWriteLock(client2, LOCK_PATH).writeLock();
+        InterProcessMutex remoteReader = new InterProcessReadWriteLock(client2, LOCK_PATH).readLock();
+
+        lock.writeLock().acquire();
+        assertFalse(remoteReader.acquire(100, TimeUnit.MILLISECONDS));
+        lock.downgrade();
+        assertFalse(lock.writeLock().isAcquiredInThisProcess());
+        assertTrue(lock.readLock().isAcquiredInThisProcess());
+
+        // 降级后其他进程可以读，但不能写
+        assertTrue(remoteReader.acquire(5, TimeUnit.SECONDS));
+        remoteReader.release();
+        assertFalse(remoteWriter.acquire(100, TimeUnit.MILLISECONDS));
+
+        lock.readLock().release();
+        assertTrue(remoteWriter.acquire(5, TimeUnit.SECONDS));
+        remoteWriter.release();
+        lock.close();
+    }
+
+    public void testUpgradeIsRejected() throws Exception {
+        BatchingReadWriteLock lock = new BatchingReadWriteLock(client1, LOCK_PATH);
+        lock.readLock().acquire();
+        try {
+            lock.writeLock().acquire();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            lock.readLock().release();
+        }
+        lock.close();
+    }
+
+    public void testCloseReleasesHeldLocks() throws Exception {
+        BatchingReadWriteLock lock = new BatchingReadWriteLock(client1, LOCK_PATH);
+        InterProcessMutex remoteWriter = new InterProcessReadWriteLock(client2, LOCK_PATH).writeLock();
+        lock.writeLock().acquire();
+        lock.close();
+        assertTrue(remoteWriter.acquire(5, TimeUnit.SECONDS));
+        remoteWriter.release();
+
+        // 关闭之后释放不再操作ZooKeeper，获取失败
+        lock.writeLock().release();
+        assertFalse(lock.writeLock().isAcquiredInThisProcess());
+        try {
+            lock.readLock().acquire();
+            fail("Acquired a closed lock");
+        } catch (IllegalStateException expected) {
+            // 已关闭
+        }
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
@@ -0,0 +1,126 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.recipes.locks.Lease;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * InterProcessSemaphoreV2 与 {@link BlockLeasingSemaphore} 的对比
+ *
+ * 集群共 MAX_LEASES 个许可，每个线程循环获取许可、使用约 WORK_MS 后归还：
+ * <pre>
+ *  1 process   一个客户端 THREADS 个线程，没有其他进程竞争
+ *  2 processes 两个客户端各 THREADS 个线程，许可不够用，进程间持续竞争
+ * </pre>
+ * 统计每秒获取许可数、每个许可的ZooKeeper写操作数、client1获得的许可占比，并检查同时使用的许可数不超过上限。
+ *
+ * @author mingshan
+ *
+ */
+public class BlockLeasingSemaphoreBenchmark {
+    private static final int MAX_LEASES = 10;
+    private static final int BLOCK_SIZE = 5;
+    private static final int THREADS = 8;
+    private static final long WORK_MS = 1;
+    private static final long DURATION_MS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client1 = newClient(server);
+        CuratorFramework client2 = newClient(server);
+        try {
+            System.out.printf("%-12s %-8s %10s %14s %12s %14s%n", "processes", "mode", "permits/s", "zk writes/op",
+                    "peak in use", "client1 share");
+            for (int processes = 1; processes <= 2; processes++) {
+                String path = "/benchmark/semaphore-" + processes;
+                InterProcessSemaphoreV2 raw1 = new InterProcessSemaphoreV2(client1, path + "/raw", MAX_LEASES);
+                InterProcessSemaphoreV2 raw2 = new InterProcessSemaphoreV2(client2, path + "/raw", MAX_LEASES);
+                run(processes, "curator", server, client -> (client == client1 ? raw1 : raw2).acquire(),
+                        client1, client2);
+
+                BlockLeasingSemaphore block1 = new BlockLeasingSemaphore(client1, path + "/block", MAX_LEASES,
+                        BLOCK_SIZE);
+                BlockLeasingSemaphore block2 = new BlockLeasingSemaphore(client2, path + "/block", MAX_LEASES,
+                        BLOCK_SIZE);
+                run(processes, "block", server, client -> (client == client1 ? block1 : block2).acquire(),
+                        client1, client2);
+                block1.close();
+                block2.close();
+            }
+        } finally {
+            CloseableUtils.closeQuietly(client1);
+            CloseableUtils.closeQuietly(client2);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private interface Acquirer {
+        Lease acquire(CuratorFramework client) throws Exception;
+    }
+
+    private static void run(int processes, String mode, TestingServer server, Acquirer acquirer,
+            CuratorFramework client1, CuratorFramework client2) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger inUse = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        AtomicLong permits = new AtomicLong();
+        AtomicLong client1Permits = new AtomicLong();
+        int threads = THREADS * processes;
+        CountDownLatch done = new CountDownLatch(threads);
+        long zxid = FourLetterWords.zxid(server.getConnectString());
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            CuratorFramework client = t % processes == 0 ? client1 : client2;
+            new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        Lease lease = acquirer.acquire(client);
+                        try {
+                            peak.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+                            Thread.sleep(WORK_MS);
+                            inUse.decrementAndGet();
+                        } finally {
+                            lease.close();
+                        }
+                        permits.incrementAndGet();
+                        if (client == client1) {
+                            client1Permits.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        Thread.sleep(DURATION_MS);
+        running.set(false);
+        done.await(60, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long zkWrites = FourLetterWords.zxid(server.getConnectString()) - zxid;
+        System.out.printf("%-12d %-8s %10.0f %14.3f %12d %13.0f%%%n", processes, mode, permits.get() / seconds,
+                zkWrites / (double) Math.max(1, permits.get()), peak.get(),
+                client1Permits.get() * 100.0 / Math.max(1, permits.get()));
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
@@ -0,0 +1,151 @@
+package pers.mingshan.curator.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.Lease;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 全局许可上限、本地复用，其他进程等待时归还空闲许可，以及连接中断前借出的许可不再复用
+ */
+public class BlockLeasingSemaphoreTest extends TestCase {
+    private static final String PATH = "/test/semaphore";
+
+    private TestingServer server;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client1);
+        CloseableUtils.closeQuietly(client2);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testGlobalLimit() throws Exception {
+        int maxLeases = 4;
+        BlockLeasingSemaphore semaphore1 = new BlockLeasingSemaphore(client1, PATH, maxLeases, 3);
+        BlockLeasingSemaphore semaphore2 = new BlockLeasingSemaphore(client2, PATH, maxLeases, 3);
+        AtomicInteger inUse = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int threads = 8;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            BlockLeasingSemaphore semaphore = t % 2 == 0 ? semaphore1 : semaphore2;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        Lease lease = semaphore.acquire(10, TimeUnit.SECONDS);
+                        assertNotNull(lease);
+                        try {
+                            peak.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+                            Thread.sleep(1);
+                            inUse.decrementAndGet();
+                        } finally {
+                            lease.close();
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertTrue(peak.get() <= maxLeases);
+        assertTrue(semaphore1.getLocalAcquisitions() + semaphore2.getLocalAcquisitions() > 0);
+        semaphore1.close();
+        semaphore2.close();
+        assertTrue(client1.getChildren().forPath(PATH + "/leases").isEmpty());
+    }
+
+    public void testIdleLeasesReturnedUnderPressure() throws Exception {
+        BlockLeasingSemaphore semaphore1 = new BlockLeasingSemaphore(client1, PATH, 4, 4, 0);
+        BlockLeasingSemaphore semaphore2 = new BlockLeasingSemaphore(client2, PATH, 4, 4, 0);
+        // client1租用了全部许可，用完后留在本地
+        semaphore1.acquire().close();
+        assertEquals(4, semaphore1.getZkLeases());
+        assertEquals(4, semaphore1.getIdleLeases());
+
+        // 再次获取不访问ZooKeeper
+        semaphore1.acquire().close();
+        assertEquals(4, semaphore1.getZkLeases());
+        assertEquals(1, semaphore1.getLocalAcquisitions());
+
+        Lease lease = semaphore2.acquire(5, TimeUnit.SECONDS);
+        assertNotNull(lease);
+        assertTrue(semaphore1.getReturnedLeases() > 0);
+        lease.close();
+        semaphore1.close();
+        semaphore2.close();
+    }
+
+    public void testIdleLeasesExpire() throws Exception {
+        BlockLeasingSemaphore semaphore = new BlockLeasingSemaphore(client1, PATH, 4, 2, 200);
+        List<Lease> leases = new ArrayList<>();
+        leases.add(semaphore.acquire());
+        leases.add(semaphore.acquire());
+        for (Lease lease : leases) {
+            lease.close();
+        }
+        assertEquals(2, semaphore.getIdleLeases());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (semaphore.getIdleLeases() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, semaphore.getIdleLeases());
+        assertTrue(client1.getChildren().forPath(PATH + "/leases").isEmpty());
+        semaphore.close();
+    }
+
+    public void testLeasesFromSuspendedConnectionAreNotReused() throws Exception {
+        BlockLeasingSemaphore semaphore = new BlockLeasingSemaphore(client1, PATH, 4, 3);
+        Lease inUse = semaphore.acquire();
+        assertEquals(2, semaphore.getIdleLeases());
+
+        semaphore.stateChanged(client1, ConnectionState.SUSPENDED);
+        assertEquals(0, semaphore.getIdleLeases());
+        // 中断前借出的许可归还给ZooKeeper，不放回本地队列
+        long returned = semaphore.getReturnedLeases();
+        inUse.close();
+        assertEquals(0, semaphore.getIdleLeases());
+        assertEquals(returned + 1, semaphore.getReturnedLeases());
+        assertTrue(client1.getChildren().forPath(PATH + "/leases").isEmpty());
+
+        semaphore.stateChanged(client1, ConnectionState.RECONNECTED);
+        Lease fresh = semaphore.acquire();
+        fresh.close();
+        assertTrue(semaphore.getIdleLeases() > 0);
+        semaphore.close();
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
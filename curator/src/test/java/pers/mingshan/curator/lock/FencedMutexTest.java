@@ -0,0 +1,94 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 令牌单调递增，会话过期后旧持有者的写入被拒绝
+ */
+public class FencedMutexTest extends TestCase {
+    private static final String LOCK_PATH = "/test/fenced";
+
+    private TestingServer server;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client1);
+        CloseableUtils.closeQuietly(client2);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testTokensIncrease() throws Exception {
+        FencedMutex mutex1 = new FencedMutex(client1, LOCK_PATH);
+        FencedMutex mutex2 = new FencedMutex(client2, LOCK_PATH);
+        assertEquals(-1, mutex1.getFencingToken());
+
+        long last = -1;
+        for (int i = 0; i < 5; i++) {
+            FencedMutex mutex = i % 2 == 0 ? mutex1 : mutex2;
+            mutex.acquire();
+            long token = mutex.getFencingToken();
+            assertTrue(token > last);
+            // 重入不改变令牌
+            mutex.acquire();
+            assertEquals(token, mutex.getFencingToken());
+            mutex.release();
+            mutex.release();
+            last = token;
+        }
+        assertEquals(-1, mutex1.getFencingToken());
+        assertEquals(42, FencedMutex.sequenceOf("_c_0f1e-lock-0000000042"));
+    }
+
+    public void testStaleHolderIsRejected() throws Exception {
+        FencedLimitedResource resource = new FencedLimitedResource();
+        FencedMutex mutex1 = new FencedMutex(client1, LOCK_PATH);
+        FencedMutex mutex2 = new FencedMutex(client2, LOCK_PATH);
+        mutex1.acquire();
+        long staleToken = mutex1.getFencingToken();
+        resource.use(staleToken);
+
+        // 模拟client1长时间停顿，会话过期，锁节点被删除
+        KillSession.kill(client1.getZookeeperClient().getZooKeeper(), server.getConnectString());
+        assertTrue(mutex2.acquire(10, TimeUnit.SECONDS));
+        long token = mutex2.getFencingToken();
+        assertTrue(token > staleToken);
+        resource.use(token);
+
+        // client1恢复后仍以为自己持有锁
+        try {
+            resource.use(staleToken);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, resource.getRejected());
+        assertEquals(token, resource.getHighestToken());
+        mutex2.release();
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
@@ -0,0 +1,147 @@
+package pers.mingshan.curator.lock;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import com.google.common.collect.Lists;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * 每线程一个InterProcessMutex 与 {@link HierarchicalLock} 的对比
+ *
+ * 一个客户端(一个JVM)内 1~32 个线程反复获取同一把锁，临界区只做互斥检查：
+ * <pre>
+ *  mutex         每个线程各自的InterProcessMutex(CuratorDistributeLock.doWithLock的做法)
+ *  hierarchical  所有线程共享一个HierarchicalLock
+ * </pre>
+ * 统计每秒获取锁的次数，以及每次获取锁平均产生的ZooKeeper写操作数(通过srvr的Zxid计算)。
+ *
+ * @author mingshan
+ *
+ */
+public class HierarchicalLockBenchmark {
+    private static final String LOCK_PATH = "/benchmark/locks";
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    private static final long DURATION_MS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        try {
+            // 预热
+            runMutex(client, server, 4, false);
+            runHierarchical(client, server, 4, false);
+            System.out.printf("%-14s %8s %14s %16s %12s%n", "mode", "threads", "acquires/s", "zk writes/acq",
+                    "zk acquires");
+            for (int threads : THREADS) {
+                runMutex(client, server, threads, true);
+                runHierarchical(client, server, threads, true);
+            }
+        } finally {
+            CloseableUtils.closeQuietly(client);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void runMutex(CuratorFramework client, TestingServer server, int threads, boolean print)
+            throws Exception {
+        List<InterProcessLock> locks = Lists.newArrayList();
+        for (int i = 0; i < threads; i++) {
+            locks.add(new InterProcessMutex(client, LOCK_PATH));
+        }
+        Result result = run(locks, server);
+        if (print) {
+            result.print("mutex", threads, result.acquires);
+        }
+    }
+
+    private static void runHierarchical(CuratorFramework client, TestingServer server, int threads, boolean print)
+            throws Exception {
+        HierarchicalLock lock = new HierarchicalLock(client, LOCK_PATH);
+        List<InterProcessLock> locks = Lists.newArrayList();
+        for (int i = 0; i < threads; i++) {
+            locks.add(lock);
+        }
+        try {
+            Result result = run(locks, server);
+            if (print) {
+                result.print("hierarchical", threads, lock.getSharedAcquisitions());
+            }
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * 每个线程使用locks中对应的锁
+     */
+    private static Result run(List<InterProcessLock> locks, TestingServer server) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean inUse = new AtomicBoolean();
+        AtomicLong acquires = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(locks.size());
+        long zxid = FourLetterWords.zxid(server.getConnectString());
+        long start = System.nanoTime();
+        for (InterProcessLock lock : locks) {
+            new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        lock.acquire();
+                        try {
+                            if (!inUse.compareAndSet(false, true)) {
+                                throw new IllegalStateException("Lock held by two threads");
+                            }
+                            acquires.incrementAndGet();
+                            inUse.set(false);
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        Thread.sleep(DURATION_MS);
+        running.set(false);
+        done.await(30, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        long writes = FourLetterWords.zxid(server.getConnectString()) - zxid;
+        return new Result(acquires.get(), elapsed, writes);
+    }
+
+    private static class Result {
+        final long acquires;
+        final long elapsedNanos;
+        final long writes;
+
+        Result(long acquires, long elapsedNanos, long writes) {
+            this.acquires = acquires;
+            this.elapsedNanos = elapsedNanos;
+            this.writes = writes;
+        }
+
+        void print(String mode, int threads, long zkAcquires) {
+            double perSecond = acquires * 1e9 / elapsedNanos;
+            System.out.printf("%-14s %8d %14.0f %16.2f %12d%n", mode, threads, perSecond,
+                    writes / (double) Math.max(1, acquires), zkAcquires);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package pers.mingshan.curator.lock;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+/**
+ * 两个进程(客户端)各自多个线程竞争同一把两级锁
+ */
+public class HierarchicalLockTest extends TestCase {
+    private static final String LOCK_PATH = "/test/locks";
+
+    private TestingServer server;
+    private List<CuratorFramework> clients = Lists.newArrayList();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        for (int i = 0; i < 2; i++) {
+            CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                    new ExponentialBackoffRetry(100, 3));
+            client.start();
+            client.blockUntilConnected();
+            clients.add(client);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CuratorFramework client : clients) {
+            CloseableUtils.closeQuietly(client);
+        }
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testMutualExclusionAcrossProcesses() throws Exception {
+        HierarchicalLock lock1 = new HierarchicalLock(clients.get(0), LOCK_PATH, 4);
+        HierarchicalLock lock2 = new HierarchicalLock(clients.get(1), LOCK_PATH, 4);
+        AtomicBoolean inUse = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int threads = 8;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            HierarchicalLock lock = t % 2 == 0 ? lock1 : lock2;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        assertTrue(lock.acquire(10, TimeUnit.SECONDS));
+                        try {
+                            // 重入
+                            lock.acquire();
+                            lock.release();
+                            assertTrue(inUse.compareAndSet(false, true));
+                            inUse.set(false);
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertTrue(lock1.getLocalHandoffs() + lock2.getLocalHandoffs() > 0);
+        assertFalse(lock1.isAcquiredInThisProcess());
+        // 全部释放后另一个进程可以立即获取
+        HierarchicalLock lock3 = new HierarchicalLock(clients.get(1), LOCK_PATH);
+        assertTrue(lock3.acquire(1, TimeUnit.SECONDS));
+        lock3.release();
+        lock1.close();
+        lock2.close();
+        lock3.close();
+    }
+}
@@ -0,0 +1,150 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+import pers.mingshan.curator.lock.LockMetrics.LockStats;
+import pers.mingshan.curator.util.LatencyHistogram;
+
+/**
+ * 直方图精度，等待/持有时间、失败次数、在其他线程释放和排队深度的统计
+ */
+public class InstrumentedInterProcessLockTest extends TestCase {
+    private static final String LOCK_PATH = "/test/instrumented";
+
+    private TestingServer server;
+    private CuratorFramework client;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(server.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100000, histogram.getTotalCount());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(50000000, histogram.getValueAtPercentile(50), 50000000 * 0.04);
+        assertEquals(99000000, histogram.getValueAtPercentile(99), 99000000 * 0.04);
+        assertEquals(100000000, histogram.getValueAtPercentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    public void testWaitHoldAndFailures() throws Exception {
+        LockMetrics metrics = new LockMetrics();
+        InstrumentedInterProcessLock lock = InstrumentedInterProcessLock.mutex(client, LOCK_PATH, metrics);
+        lock.acquire();
+        lock.acquire();
+        Thread.sleep(50);
+        lock.release();
+        lock.release();
+
+        InterProcessMutex other = new InterProcessMutex(client, LOCK_PATH);
+        other.acquire();
+        // 在其他线程获取，结果交回测试线程检查
+        AtomicReference<Object> result = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                result.set(lock.acquire(100, TimeUnit.MILLISECONDS));
+            } catch (Exception e) {
+                result.set(e);
+            } finally {
+                done.countDown();
+            }
+        }).start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        other.release();
+        assertEquals(Boolean.FALSE, result.get());
+
+        LockStats stats = metrics.getStats(LOCK_PATH);
+        // 重入只统计最外层
+        assertEquals(1, stats.getAcquired());
+        assertEquals(1, stats.getHoldTime().getTotalCount());
+        assertTrue(stats.getHoldTime().getMax() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, stats.getFailures());
+        assertTrue(stats.getWaitTime().getMax() >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    public void testReleaseFromAnotherThread() throws Exception {
+        LockMetrics metrics = new LockMetrics();
+        InstrumentedInterProcessLock lock = new InstrumentedInterProcessLock(
+                new InterProcessSemaphoreMutex(client, LOCK_PATH), LOCK_PATH, metrics);
+        for (int i = 0; i < 2; i++) {
+            lock.acquire();
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Thread releaser = new Thread(() -> {
+                try {
+                    lock.release();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            releaser.start();
+            releaser.join(10000);
+            assertNull(failure.get());
+        }
+
+        // 第二次获取不能被当作重入
+        LockStats stats = metrics.getStats(LOCK_PATH);
+        assertEquals(2, stats.getAcquired());
+        assertEquals(2, stats.getHoldTime().getTotalCount());
+    }
+
+    public void testQueueDepth() throws Exception {
+        LockMetrics metrics = new LockMetrics();
+        InterProcessMutex holder = new InterProcessMutex(client, LOCK_PATH);
+        holder.acquire();
+        InterProcessMutex waiter = new InterProcessMutex(client, LOCK_PATH);
+        CountDownLatch waiting = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                waiting.countDown();
+                waiter.acquire(10, TimeUnit.SECONDS);
+                waiter.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        waiting.await();
+        while (client.getChildren().forPath(LOCK_PATH).size() < 2) {
+            Thread.sleep(10);
+        }
+
+        InstrumentedInterProcessLock lock = new InstrumentedInterProcessLock(new InterProcessMutex(client, LOCK_PATH),
+                LOCK_PATH, metrics, client, LOCK_PATH, 1);
+        assertFalse(lock.acquire(100, TimeUnit.MILLISECONDS));
+        holder.release();
+
+        LatencyHistogram queueDepth = metrics.getStats(LOCK_PATH).getQueueDepth();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queueDepth.getTotalCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, queueDepth.getTotalCount());
+        assertEquals(2, queueDepth.getMax());
+    }
+}
@@ -0,0 +1,113 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * {@link LeaseLock} 的收益与让出延迟
+ *
+ * 1. 同一进程突发式地获取锁：每批连续获取/释放 BURST_SIZE 次，批之间间隔 PAUSE_MS
+ * <pre>
+ *  mutex      InterProcessMutex(InterProcessMutexDemo.doWork的做法)
+ *  lease-0    LeaseLock，租期为0，即每次都释放
+ *  lease-50   LeaseLock，租期50ms
+ * </pre>
+ * 2. 让出延迟：进程A用10秒租期的锁获取并释放后，进程B获取锁的耗时，
+ *    应接近一次普通获取，而不是等待A的租期结束。
+ *
+ * @author mingshan
+ *
+ */
+public class LeaseLockBenchmark {
+    private static final String LOCK_PATH = "/benchmark/lease";
+    private static final int BURSTS = 100;
+    private static final int BURST_SIZE = 20;
+    private static final long PAUSE_MS = 2;
+    private static final int HANDOVERS = 20;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client1 = newClient(server);
+        CuratorFramework client2 = newClient(server);
+        try {
+            System.out.printf("%-10s %14s %16s%n", "mode", "acquires/s", "zk writes/acq");
+            // 第一轮为预热
+            for (int round = 0; round < 2; round++) {
+                boolean print = round == 1;
+                bursty("mutex", new InterProcessMutex(client1, LOCK_PATH + "/mutex"), server, print);
+                LeaseLock lease0 = new LeaseLock(client1, LOCK_PATH + "/lease0", 0);
+                bursty("lease-0", lease0, server, print);
+                lease0.close();
+                LeaseLock lease50 = new LeaseLock(client1, LOCK_PATH + "/lease50", 50);
+                bursty("lease-50", lease50, server, print);
+                lease50.close();
+            }
+
+            LeaseLock lockA = new LeaseLock(client1, LOCK_PATH + "/handover", 10000);
+            LeaseLock lockB = new LeaseLock(client2, LOCK_PATH + "/handover", 10000);
+            long total = 0;
+            long max = 0;
+            for (int i = 0; i < HANDOVERS; i++) {
+                lockA.acquire();
+                lockA.release();
+                long start = System.nanoTime();
+                if (!lockB.acquire(30, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("handover timed out");
+                }
+                long elapsed = System.nanoTime() - start;
+                lockB.release();
+                // 让B的租约也让出，下一轮A重新获取
+                lockA.acquire();
+                lockA.release();
+                total += elapsed;
+                max = Math.max(max, elapsed);
+            }
+            System.out.printf("%nhandover with 10s lease: avg %.1fms, max %.1fms, surrenders A=%d B=%d%n",
+                    total / 1e6 / HANDOVERS, max / 1e6, lockA.getSurrenders(), lockB.getSurrenders());
+            lockA.close();
+            lockB.close();
+        } finally {
+            CloseableUtils.closeQuietly(client1);
+            CloseableUtils.closeQuietly(client2);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void bursty(String mode, InterProcessLock lock, TestingServer server, boolean print)
+            throws Exception {
+        long zxid = FourLetterWords.zxid(server.getConnectString());
+        long busy = 0;
+        for (int b = 0; b < BURSTS; b++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < BURST_SIZE; i++) {
+                lock.acquire();
+                lock.release();
+            }
+            busy += System.nanoTime() - start;
+            Thread.sleep(PAUSE_MS);
+        }
+        long writes = FourLetterWords.zxid(server.getConnectString()) - zxid;
+        if (print) {
+            int acquires = BURSTS * BURST_SIZE;
+            // 只统计批内的时间，不含批之间的间隔
+            System.out.printf("%-10s %14.0f %16.2f%n", mode, acquires * 1e9 / busy, writes / (double) acquires);
+        }
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
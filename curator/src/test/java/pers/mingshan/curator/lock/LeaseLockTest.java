@@ -0,0 +1,68 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 租期内本地重新获取，其他进程等待时立即让出
+ */
+public class LeaseLockTest extends TestCase {
+    private static final String LOCK_PATH = "/test/lease";
+
+    private TestingServer server;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client1);
+        CloseableUtils.closeQuietly(client2);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testReacquireWithinLeaseIsLocal() throws Exception {
+        LeaseLock lock = new LeaseLock(client1, LOCK_PATH, 60000);
+        for (int i = 0; i < 10; i++) {
+            lock.acquire();
+            lock.release();
+        }
+        assertEquals(1, lock.getSharedAcquisitions());
+        assertEquals(9, lock.getLocalAcquisitions());
+        lock.close();
+    }
+
+    public void testSurrendersToWaitingProcess() throws Exception {
+        LeaseLock lock1 = new LeaseLock(client1, LOCK_PATH, 60000);
+        LeaseLock lock2 = new LeaseLock(client2, LOCK_PATH, 60000);
+        lock1.acquire();
+        lock1.release();
+        // 租期还有60秒，但lock2排队后lock1应立即让出
+        assertTrue(lock2.acquire(5, TimeUnit.SECONDS));
+        assertEquals(1, lock1.getSurrenders());
+        lock2.release();
+        lock1.close();
+        lock2.close();
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
@@ -0,0 +1,149 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+/**
+ * {@link InstrumentedInterProcessLock} 的开销
+ *
+ * <pre>
+ *  memory      包装一个空实现的锁，测出装饰器本身每次加锁+解锁的纳秒数
+ *  uncontended 单线程对InterProcessMutex加锁+解锁，原始锁与包装后(排队深度1/16采样)交替跑多轮，比较吞吐
+ *  contended   两个客户端各4个线程竞争同一把锁，输出等待/持有时间和排队深度的统计
+ * </pre>
+ *
+ * @author mingshan
+ *
+ */
+public class LockInstrumentationBenchmark {
+    private static final String LOCK_PATH = "/benchmark/instrumented";
+    private static final int MEMORY_OPS = 5000000;
+    private static final int ROUNDS = 10;
+    private static final int OPS_PER_ROUND = 2000;
+    private static final int CONTENDED_THREADS = 8;
+    private static final int CONTENDED_OPS = 200;
+
+    public static void main(String[] args) throws Exception {
+        memory();
+
+        TestingServer server = new TestingServer();
+        CuratorFramework client1 = newClient(server);
+        CuratorFramework client2 = newClient(server);
+        try {
+            uncontended(client1);
+            contended(client1, client2);
+        } finally {
+            CloseableUtils.closeQuietly(client1);
+            CloseableUtils.closeQuietly(client2);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void memory() throws Exception {
+        InterProcessLock noop = new NoopLock();
+        InterProcessLock instrumented = new InstrumentedInterProcessLock(new NoopLock(), LOCK_PATH, new LockMetrics());
+        // 预热
+        for (int i = 0; i < 3; i++) {
+            loop(noop, MEMORY_OPS);
+            loop(instrumented, MEMORY_OPS);
+        }
+        long raw = loop(noop, MEMORY_OPS);
+        long wrapped = loop(instrumented, MEMORY_OPS);
+        System.out.printf("memory: raw %.1f ns/op, instrumented %.1f ns/op, overhead %.1f ns/op%n",
+                raw / (double) MEMORY_OPS, wrapped / (double) MEMORY_OPS, (wrapped - raw) / (double) MEMORY_OPS);
+    }
+
+    private static void uncontended(CuratorFramework client) throws Exception {
+        InterProcessLock raw = new InterProcessMutex(client, LOCK_PATH);
+        LockMetrics metrics = new LockMetrics();
+        InterProcessLock instrumented = InstrumentedInterProcessLock.mutex(client, LOCK_PATH, metrics);
+        loop(raw, OPS_PER_ROUND);
+        loop(instrumented, OPS_PER_ROUND);
+        long rawNanos = 0;
+        long wrappedNanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            rawNanos += loop(raw, OPS_PER_ROUND);
+            wrappedNanos += loop(instrumented, OPS_PER_ROUND);
+        }
+        double ops = ROUNDS * OPS_PER_ROUND;
+        System.out.printf("uncontended: raw %.0f ops/s, instrumented %.0f ops/s, overhead %.1f%%%n",
+                ops * 1e9 / rawNanos, ops * 1e9 / wrappedNanos, (wrappedNanos - rawNanos) * 100.0 / rawNanos);
+    }
+
+    private static void contended(CuratorFramework client1, CuratorFramework client2) throws Exception {
+        LockMetrics metrics = new LockMetrics();
+        CountDownLatch done = new CountDownLatch(CONTENDED_THREADS);
+        for (int t = 0; t < CONTENDED_THREADS; t++) {
+            InterProcessLock lock = InstrumentedInterProcessLock.mutex(t % 2 == 0 ? client1 : client2, LOCK_PATH,
+                    metrics);
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < CONTENDED_OPS; i++) {
+                        lock.acquire();
+                        try {
+                            Thread.sleep(1);
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await(5, TimeUnit.MINUTES);
+        System.out.print("contended:\n" + metrics.report());
+    }
+
+    private static long loop(InterProcessLock lock, int ops) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            lock.acquire();
+            lock.release();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+
+    private static class NoopLock implements InterProcessLock {
+        private int holds;
+
+        @Override
+        public void acquire() {
+            holds++;
+        }
+
+        @Override
+        public boolean acquire(long time, TimeUnit unit) {
+            holds++;
+            return true;
+        }
+
+        @Override
+        public void release() {
+            holds--;
+        }
+
+        @Override
+        public boolean isAcquiredInThisProcess() {
+            return holds > 0;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package pers.mingshan.curator.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * {@link LockWatchdog} 演示
+ *
+ * 两个客户端(模拟两个进程)以相反的顺序获取 /demo/locks/a 和 /demo/locks/b，形成跨进程死锁；
+ * 另有若干线程在 /demo/locks/hot 上排队。watchdog 同时监视 IDLE_PATHS 个空闲的锁路径，
+ * 输出从死锁形成到被检测出来的时间，以及每次扫描的耗时和发给服务端的请求数(srvr的Received)。
+ *
+ * @author mingshan
+ *
+ */
+public class LockWatchdogDemo {
+    private static final String BASE_PATH = "/demo/locks";
+    private static final int IDLE_PATHS = 100;
+    private static final int HOT_WAITERS = 12;
+    private static final long SCAN_INTERVAL_MS = 200;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client1 = newClient(server);
+        CuratorFramework client2 = newClient(server);
+        CuratorFramework watchdogClient = newClient(server);
+        try {
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; i < IDLE_PATHS; i++) {
+                String path = BASE_PATH + "/idle-" + i;
+                watchdogClient.create().creatingParentsIfNeeded().forPath(path);
+                paths.add(path);
+            }
+            String a = BASE_PATH + "/a";
+            String b = BASE_PATH + "/b";
+            String hot = BASE_PATH + "/hot";
+            paths.add(a);
+            paths.add(b);
+            paths.add(hot);
+
+            long[] detectedAt = new long[1];
+            CountDownLatch detected = new CountDownLatch(1);
+            LockWatchdog watchdog = new LockWatchdog(watchdogClient, paths, SCAN_INTERVAL_MS, 5, 1000,
+                    new LockWatchdog.Listener() {
+                        @Override
+                        public void deadlockDetected(List<LockWatchdog.WaitEdge> cycle) {
+                            System.out.println("deadlock: " + cycle);
+                            if (detected.getCount() > 0) {
+                                detectedAt[0] = System.nanoTime();
+                                detected.countDown();
+                            }
+                        }
+
+                        @Override
+                        public void convoyDetected(LockWatchdog.Convoy convoy) {
+                            System.out.println("convoy: " + convoy);
+                        }
+                    });
+
+            List<Thread> workers = new ArrayList<>();
+            // 排队
+            workers.add(new Thread(() -> holdFor(new OwnedMutex(client1, hot), 5000), "hot-holder"));
+            for (int i = 0; i < HOT_WAITERS; i++) {
+                CuratorFramework client = i % 2 == 0 ? client1 : client2;
+                workers.add(new Thread(() -> holdFor(new OwnedMutex(client, hot), 10), "hot-waiter-" + i));
+            }
+
+            // 死锁：client1 先a后b，client2 先b后a
+            CountDownLatch firstHeld = new CountDownLatch(2);
+            long[] deadlockedAt = new long[1];
+            workers.add(new Thread(() -> lockInOrder(client1, a, b, firstHeld), "process-1"));
+            workers.add(new Thread(() -> lockInOrder(client2, b, a, firstHeld), "process-2"));
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            firstHeld.await();
+            deadlockedAt[0] = System.nanoTime();
+
+            watchdog.start();
+            detected.await(10, TimeUnit.SECONDS);
+            System.out.printf("deadlock detected after %.0f ms (scan interval %d ms)%n",
+                    (detectedAt[0] - deadlockedAt[0]) / 1e6, SCAN_INTERVAL_MS);
+            watchdog.close();
+
+            // 单独测量扫描的开销：第一次扫描需要读取所有锁节点的数据，之后只读取子节点列表
+            LockWatchdog quiet = new LockWatchdog(watchdogClient, paths, SCAN_INTERVAL_MS, 5, 1000,
+                    new LockWatchdog.Listener() {
+                        @Override
+                        public void deadlockDetected(List<LockWatchdog.WaitEdge> cycle) {
+                        }
+
+                        @Override
+                        public void convoyDetected(LockWatchdog.Convoy convoy) {
+                        }
+                    });
+            quiet.scan();
+            int scans = 20;
+            long received = received(server);
+            long start = System.nanoTime();
+            for (int i = 0; i < scans; i++) {
+                quiet.scan();
+            }
+            double perScanMs = (System.nanoTime() - start) / 1e6 / scans;
+            // 减去srvr本身
+            double requests = (received(server) - received - 1) / (double) scans;
+            System.out.printf("%d lock paths: %.2f ms and %.0f requests per scan%n", paths.size(), perScanMs,
+                    requests);
+            quiet.close();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } finally {
+            CloseableUtils.closeQuietly(client1);
+            CloseableUtils.closeQuietly(client2);
+            CloseableUtils.closeQuietly(watchdogClient);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void lockInOrder(CuratorFramework client, String first, String second, CountDownLatch firstHeld) {
+        InterProcessMutex lock1 = new OwnedMutex(client, first);
+        InterProcessMutex lock2 = new OwnedMutex(client, second);
+        try {
+            lock1.acquire();
+            try {
+                firstHeld.countDown();
+                firstHeld.await();
+                if (lock2.acquire(10, TimeUnit.SECONDS)) {
+                    lock2.release();
+                } else {
+                    System.out.println(Thread.currentThread().getName() + " gave up " + second);
+                }
+            } finally {
+                lock1.release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void holdFor(InterProcessMutex lock, long millis) {
+        try {
+            lock.acquire();
+            try {
+                Thread.sleep(millis);
+            } finally {
+                lock.release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long received(TestingServer server) throws Exception {
+        return FourLetterWords.receivedPackets(server.getConnectString());
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
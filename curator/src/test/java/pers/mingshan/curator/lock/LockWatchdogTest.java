@@ -0,0 +1,153 @@
+package pers.mingshan.curator.lock;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+import pers.mingshan.curator.lock.LockWatchdog.ScanResult;
+import pers.mingshan.curator.lock.LockWatchdog.WaitEdge;
+
+/**
+ * 等待图中的环、跨进程死锁和读写锁的持有者判断
+ */
+public class LockWatchdogTest extends TestCase {
+    private static final String A = "/test/watchdog/a";
+    private static final String B = "/test/watchdog/b";
+
+    private TestingServer server;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client1);
+        CloseableUtils.closeQuietly(client2);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testFindCycles() {
+        List<WaitEdge> edges = Arrays.asList(new WaitEdge("t1", "t2", A), new WaitEdge("t2", "t3", B),
+                new WaitEdge("t3", "t1", A), new WaitEdge("t4", "t1", B));
+        List<List<WaitEdge>> cycles = LockWatchdog.findCycles(edges);
+        assertEquals(1, cycles.size());
+        assertEquals(3, cycles.get(0).size());
+        assertTrue(LockWatchdog.findCycles(edges.subList(0, 2)).isEmpty());
+    }
+
+    public void testCrossProcessDeadlock() throws Exception {
+        CountDownLatch firstHeld = new CountDownLatch(2);
+        CountDownLatch detected = new CountDownLatch(1);
+        Thread t1 = new Thread(() -> lockInOrder(client1, A, B, firstHeld, detected));
+        Thread t2 = new Thread(() -> lockInOrder(client2, B, A, firstHeld, detected));
+        t1.start();
+        t2.start();
+        assertTrue(firstHeld.await(10, TimeUnit.SECONDS));
+
+        LockWatchdog watchdog = new LockWatchdog(client1, Arrays.asList(A, B), 100, 10, 10000,
+                LockWatchdog.LOGGING_LISTENER);
+        ScanResult result = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            result = watchdog.scan();
+            if (!result.getDeadlocks().isEmpty()) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertEquals(1, result.getDeadlocks().size());
+        assertEquals(2, result.getDeadlocks().get(0).size());
+        detected.countDown();
+        t1.join();
+        t2.join();
+        assertTrue(watchdog.scan().getEdges().isEmpty());
+        watchdog.close();
+    }
+
+    public void testReadersShareAndConvoy() throws Exception {
+        String path = "/test/watchdog/rw";
+        InterProcessReadWriteLock lock1 = new InterProcessReadWriteLock(client1, path, "reader-1".getBytes());
+        InterProcessReadWriteLock lock2 = new InterProcessReadWriteLock(client2, path, "reader-2".getBytes());
+        lock1.readLock().acquire();
+        lock2.readLock().acquire();
+
+        LockWatchdog watchdog = new LockWatchdog(client1, Arrays.asList(path), 100, 1, 10000,
+                LockWatchdog.LOGGING_LISTENER);
+        ScanResult result = watchdog.scan();
+        assertTrue(result.getEdges().isEmpty());
+        assertTrue(result.getConvoys().isEmpty());
+
+        // 写线程要等两个读线程
+        InterProcessMutex writer = new InterProcessReadWriteLock(client2, path, "writer".getBytes()).writeLock();
+        CountDownLatch done = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                writer.acquire(10, TimeUnit.SECONDS);
+                writer.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                done.countDown();
+            }
+        }).start();
+        while (client1.getChildren().forPath(path).size() < 3) {
+            Thread.sleep(10);
+        }
+        result = watchdog.scan();
+        assertEquals(2, result.getEdges().size());
+        assertEquals(1, result.getConvoys().size());
+        assertEquals(1, result.getConvoys().get(0).getWaiters());
+
+        lock1.readLock().release();
+        lock2.readLock().release();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        watchdog.close();
+    }
+
+    private static void lockInOrder(CuratorFramework client, String first, String second, CountDownLatch firstHeld,
+            CountDownLatch detected) {
+        InterProcessMutex lock1 = new OwnedMutex(client, first);
+        InterProcessMutex lock2 = new OwnedMutex(client, second);
+        try {
+            lock1.acquire();
+            try {
+                firstHeld.countDown();
+                firstHeld.await();
+                if (!lock2.acquire(200, TimeUnit.MILLISECONDS)) {
+                    // 发现死锁后放弃
+                    detected.await(10, TimeUnit.SECONDS);
+                } else {
+                    lock2.release();
+                }
+            } finally {
+                lock1.release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
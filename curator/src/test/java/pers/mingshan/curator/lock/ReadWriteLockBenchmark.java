@@ -0,0 +1,142 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * 读写混合压测：InterProcessReadWriteLock 与 {@link BatchingReadWriteLock} 的对比
+ *
+ * 两个客户端(模拟两个进程)各 THREADS_PER_CLIENT 个线程，按比例执行读或写，
+ * 读和写的临界区都耗时约 WORK_MS：
+ * <pre>
+ *  curator   每个线程各自的InterProcessReadWriteLock(ReentrantReadWriteLockDemo的做法)
+ *  batching  每个客户端一个BatchingReadWriteLock
+ * </pre>
+ * 统计读/写吞吐、每次操作的ZooKeeper写操作数，并检查读写互斥。
+ *
+ * @author mingshan
+ *
+ */
+public class ReadWriteLockBenchmark {
+    private static final String LOCK_PATH = "/benchmark/rw";
+    private static final int THREADS_PER_CLIENT = 8;
+    private static final long WORK_MS = 1;
+    private static final long DURATION_MS = 5000;
+    private static final int[] READ_PERCENTS = {90, 50};
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client1 = newClient(server);
+        CuratorFramework client2 = newClient(server);
+        try {
+            System.out.printf("%-10s %6s %10s %10s %14s%n", "mode", "reads", "reads/s", "writes/s", "zk writes/op");
+            for (int readPercent : READ_PERCENTS) {
+                run("curator", readPercent, server, client -> {
+                    InterProcessReadWriteLock lock = new InterProcessReadWriteLock(client, LOCK_PATH);
+                    return new InterProcessLock[] {lock.readLock(), lock.writeLock()};
+                }, client1, client2);
+
+                BatchingReadWriteLock lock1 = new BatchingReadWriteLock(client1, LOCK_PATH);
+                BatchingReadWriteLock lock2 = new BatchingReadWriteLock(client2, LOCK_PATH);
+                run("batching", readPercent, server, client -> {
+                    BatchingReadWriteLock lock = client == client1 ? lock1 : lock2;
+                    return new InterProcessLock[] {lock.readLock(), lock.writeLock()};
+                }, client1, client2);
+                lock1.close();
+                lock2.close();
+            }
+        } finally {
+            CloseableUtils.closeQuietly(client1);
+            CloseableUtils.closeQuietly(client2);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private interface LockFactory {
+        /**
+         * @return {读锁, 写锁}
+         */
+        InterProcessLock[] newLocks(CuratorFramework client);
+    }
+
+    private static void run(String mode, int readPercent, TestingServer server, LockFactory factory,
+            CuratorFramework client1, CuratorFramework client2) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger activeReaders = new AtomicInteger();
+        AtomicInteger activeWriters = new AtomicInteger();
+        AtomicLong reads = new AtomicLong();
+        AtomicLong writes = new AtomicLong();
+        int threads = THREADS_PER_CLIENT * 2;
+        CountDownLatch done = new CountDownLatch(threads);
+        long zxid = FourLetterWords.zxid(server.getConnectString());
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            InterProcessLock[] locks = factory.newLocks(t % 2 == 0 ? client1 : client2);
+            new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        boolean read = ThreadLocalRandom.current().nextInt(100) < readPercent;
+                        InterProcessLock lock = read ? locks[0] : locks[1];
+                        lock.acquire();
+                        try {
+                            if (read) {
+                                activeReaders.incrementAndGet();
+                                check(activeWriters.get() == 0);
+                                Thread.sleep(WORK_MS);
+                                activeReaders.decrementAndGet();
+                                reads.incrementAndGet();
+                            } else {
+                                check(activeWriters.incrementAndGet() == 1 && activeReaders.get() == 0);
+                                Thread.sleep(WORK_MS);
+                                activeWriters.decrementAndGet();
+                                writes.incrementAndGet();
+                            }
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        Thread.sleep(DURATION_MS);
+        running.set(false);
+        done.await(60, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long zkWrites = FourLetterWords.zxid(server.getConnectString()) - zxid;
+        long ops = reads.get() + writes.get();
+        System.out.printf("%-10s %5d%% %10.0f %10.0f %14.2f%n", mode, readPercent, reads.get() / seconds,
+                writes.get() / seconds, zkWrites / (double) Math.max(1, ops));
+    }
+
+    private static void check(boolean condition) {
+        if (!condition) {
+            throw new IllegalStateException("Read/write exclusion violated");
+        }
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
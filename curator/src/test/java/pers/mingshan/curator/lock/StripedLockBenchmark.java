@@ -0,0 +1,129 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * 每个key一个锁节点 与 {@link StripedLockManager} 的对比
+ *
+ * 两个客户端(模拟两个进程)各 THREADS/2 个线程，随机对 KEYS 个key加锁后释放：
+ * <pre>
+ *  per-key   每个key一个InterProcessMutex(basePath/key)
+ *  striped   StripedLockManager，STRIPES个条带
+ * </pre>
+ * 统计每秒加锁次数、运行期间服务端watch数的峰值(wchs)、运行结束后以及空闲回收后的节点数(srvr的Node count)。
+ *
+ * @author mingshan
+ *
+ */
+public class StripedLockBenchmark {
+    private static final int KEYS = 20000;
+    private static final int THREADS = 16;
+    private static final int STRIPES = 64;
+    private static final long DURATION_MS = 5000;
+    private static final long IDLE_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client1 = newClient(server);
+        CuratorFramework client2 = newClient(server);
+        try {
+            System.out.printf("%-10s %12s %12s %12s %14s%n", "mode", "locks/s", "peak watches", "nodes",
+                    "nodes idle");
+
+            ConcurrentMap<String, InterProcessMutex> mutexes1 = new ConcurrentHashMap<>();
+            ConcurrentMap<String, InterProcessMutex> mutexes2 = new ConcurrentHashMap<>();
+            long baseNodes = nodeCount(server);
+            run("per-key", server, baseNodes, (client, key) -> {
+                ConcurrentMap<String, InterProcessMutex> mutexes = client == client1 ? mutexes1 : mutexes2;
+                InterProcessMutex mutex = mutexes.computeIfAbsent(key,
+                        k -> new InterProcessMutex(client, ZKPaths.makePath("/benchmark/per-key", k)));
+                mutex.acquire();
+                mutex.release();
+            }, client1, client2, 0);
+
+            StripedLockManager manager1 = new StripedLockManager(client1, "/benchmark/striped", STRIPES, IDLE_MS);
+            StripedLockManager manager2 = new StripedLockManager(client2, "/benchmark/striped", STRIPES, IDLE_MS);
+            baseNodes = nodeCount(server);
+            run("striped", server, baseNodes, (client, key) -> {
+                StripedLockManager manager = client == client1 ? manager1 : manager2;
+                manager.acquire(key);
+                manager.release(key);
+            }, client1, client2, IDLE_MS * 3);
+            manager1.close();
+            manager2.close();
+        } finally {
+            CloseableUtils.closeQuietly(client1);
+            CloseableUtils.closeQuietly(client2);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private interface LockOperation {
+        void lockAndUnlock(CuratorFramework client, String key) throws Exception;
+    }
+
+    private static void run(String mode, TestingServer server, long baseNodes, LockOperation operation,
+            CuratorFramework client1, CuratorFramework client2, long idleWaitMs) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong locks = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(THREADS);
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            CuratorFramework client = t % 2 == 0 ? client1 : client2;
+            new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        operation.lockAndUnlock(client, "key-" + ThreadLocalRandom.current().nextInt(KEYS));
+                        locks.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long peakWatches = 0;
+        long end = System.currentTimeMillis() + DURATION_MS;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(200);
+            peakWatches = Math.max(peakWatches,
+                    FourLetterWords.stat(FourLetterWords.send(server.getConnectString(), "wchs"), "Total watches"));
+        }
+        running.set(false);
+        done.await(30, TimeUnit.SECONDS);
+        double perSecond = locks.get() * 1e9 / (System.nanoTime() - start);
+        long nodes = nodeCount(server) - baseNodes;
+        Thread.sleep(idleWaitMs);
+        long idleNodes = nodeCount(server) - baseNodes;
+        System.out.printf("%-10s %12.0f %12d %12d %14d%n", mode, perSecond, peakWatches, nodes, idleNodes);
+    }
+
+    private static long nodeCount(TestingServer server) throws Exception {
+        return FourLetterWords.stat(FourLetterWords.send(server.getConnectString(), "srvr"), "Node count");
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
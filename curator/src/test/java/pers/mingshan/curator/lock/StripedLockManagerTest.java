@@ -0,0 +1,142 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 同一key跨进程互斥，繁忙的条带不会让其他进程饿死，空闲条带节点被回收
+ */
+public class StripedLockManagerTest extends TestCase {
+    private static final String BASE_PATH = "/test/striped";
+
+    private TestingServer server;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client1);
+        CloseableUtils.closeQuietly(client2);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testPerKeyExclusion() throws Exception {
+        StripedLockManager manager1 = new StripedLockManager(client1, BASE_PATH, 4, 0);
+        StripedLockManager manager2 = new StripedLockManager(client2, BASE_PATH, 4, 0);
+        ConcurrentMap<String, AtomicBoolean> inUse = new ConcurrentHashMap<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int threads = 8;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            StripedLockManager manager = t % 2 == 0 ? manager1 : manager2;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        String key = "key-" + (i % 10);
+                        assertTrue(manager.acquire(key, 10, TimeUnit.SECONDS));
+                        try {
+                            AtomicBoolean flag = inUse.computeIfAbsent(key, k -> new AtomicBoolean());
+                            assertTrue(flag.compareAndSet(false, true));
+                            flag.set(false);
+                        } finally {
+                            manager.release(key);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals(0, manager1.getActiveKeys());
+        assertTrue(client1.getChildren().forPath(BASE_PATH).size() <= 4);
+        manager1.close();
+        manager2.close();
+    }
+
+    public void testBusyStripeIsHandedToOtherProcess() throws Exception {
+        StripedLockManager busy = new StripedLockManager(client1, BASE_PATH, 1, 0, 4);
+        StripedLockManager other = new StripedLockManager(client2, BASE_PATH, 1, 0, 4);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int threads = 4;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            String key = "busy-" + t;
+            new Thread(() -> {
+                try {
+                    // 各线程的持有时间互相重叠，条带的引用计数不会自然降到0
+                    while (!stop.get()) {
+                        busy.acquire(key);
+                        try {
+                            Thread.sleep(20);
+                        } finally {
+                            busy.release(key);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        try {
+            Thread.sleep(200);
+            assertTrue(other.acquire("other", 10, TimeUnit.SECONDS));
+            other.release("other");
+        } finally {
+            stop.set(true);
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            busy.close();
+            other.close();
+        }
+        assertNull(failure.get());
+        assertTrue(busy.getSharedAcquisitions() > 1);
+    }
+
+    public void testIdleStripesAreReaped() throws Exception {
+        StripedLockManager manager = new StripedLockManager(client1, BASE_PATH, 16, 200);
+        for (int i = 0; i < 32; i++) {
+            manager.acquire("key-" + i);
+            manager.release("key-" + i);
+        }
+        assertFalse(client1.getChildren().forPath(BASE_PATH).isEmpty());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!client1.getChildren().forPath(BASE_PATH).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertTrue(client1.getChildren().forPath(BASE_PATH).isEmpty());
+        manager.close();
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
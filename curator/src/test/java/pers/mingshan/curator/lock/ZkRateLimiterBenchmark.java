@@ -0,0 +1,118 @@
+package pers.mingshan.curator.lock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * {@link ZkRateLimiter} 的精度与ZooKeeper写入量
+ *
+ * 全局限速 RATE 个/秒，两个客户端(模拟两个进程)各 THREADS 个线程不停地 tryAcquire，拿不到就等1毫秒，
+ * 需求远大于限速。对比固定批大小 1/10/50/200 和按速率自适应的批大小：
+ * <pre>
+ *  rate       跳过第一秒(桶初始是满的)后的平均速率
+ *  peak 1s    任意连续1秒内放行数的最大值
+ *  overshoot  peak 1s 超出限速的比例
+ *  zk writes/s 每秒的ZooKeeper写操作数
+ * </pre>
+ *
+ * @author mingshan
+ *
+ */
+public class ZkRateLimiterBenchmark {
+    private static final double RATE = 2000;
+    private static final int THREADS = 4;
+    private static final long DURATION_MS = 6000;
+    private static final long SLOT_MS = 100;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client1 = newClient(server);
+        CuratorFramework client2 = newClient(server);
+        try {
+            System.out.printf("%-10s %10s %10s %10s %12s%n", "batch", "rate", "peak 1s", "overshoot", "zk writes/s");
+            for (int batch : new int[] {1, 10, 50, 200}) {
+                run(String.valueOf(batch), server, client1, client2, batch, batch);
+            }
+            run("adaptive", server, client1, client2, 1, (int) (RATE / 20));
+        } finally {
+            CloseableUtils.closeQuietly(client1);
+            CloseableUtils.closeQuietly(client2);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void run(String name, TestingServer server, CuratorFramework client1, CuratorFramework client2,
+            int minBatch, int maxBatch) throws Exception {
+        String path = "/benchmark/rate-" + name;
+        ZkRateLimiter limiter1 = new ZkRateLimiter(client1, path, RATE, RATE, minBatch, maxBatch);
+        ZkRateLimiter limiter2 = new ZkRateLimiter(client2, path, RATE, RATE, minBatch, maxBatch);
+        int slots = (int) (DURATION_MS / SLOT_MS);
+        AtomicLongArray granted = new AtomicLongArray(slots);
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(THREADS * 2);
+        long zxid = FourLetterWords.zxid(server.getConnectString());
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS * 2; t++) {
+            ZkRateLimiter limiter = t % 2 == 0 ? limiter1 : limiter2;
+            new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        if (limiter.tryAcquire()) {
+                            int slot = (int) (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / SLOT_MS);
+                            if (slot < slots) {
+                                granted.incrementAndGet(slot);
+                            }
+                        } else {
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        Thread.sleep(DURATION_MS);
+        running.set(false);
+        done.await(30, TimeUnit.SECONDS);
+        long zkWrites = FourLetterWords.zxid(server.getConnectString()) - zxid;
+        limiter1.close();
+        limiter2.close();
+
+        int window = (int) (1000 / SLOT_MS);
+        long total = 0;
+        long peak = 0;
+        for (int i = window; i < slots; i++) {
+            total += granted.get(i);
+        }
+        for (int i = window; i + window <= slots; i++) {
+            long sum = 0;
+            for (int j = i; j < i + window; j++) {
+                sum += granted.get(j);
+            }
+            peak = Math.max(peak, sum);
+        }
+        double rate = total * 1000.0 / ((slots - window) * SLOT_MS);
+        System.out.printf("%-10s %10.0f %10d %9.1f%% %12.1f%n", name, rate, peak, (peak - RATE) * 100 / RATE,
+                zkWrites * 1000.0 / DURATION_MS);
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
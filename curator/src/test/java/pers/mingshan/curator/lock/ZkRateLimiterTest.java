@@ -0,0 +1,114 @@
+package pers.mingshan.curator.lock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * 多个进程共享全局速率，本地批量取令牌，关闭时归还
+ */
+public class ZkRateLimiterTest extends TestCase {
+    private static final String PATH = "/test/rate";
+
+    private TestingServer server;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client1);
+        CloseableUtils.closeQuietly(client2);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testGlobalRate() throws Exception {
+        double rate = 200;
+        ZkRateLimiter limiter1 = new ZkRateLimiter(client1, PATH, rate, rate, 1, 10);
+        ZkRateLimiter limiter2 = new ZkRateLimiter(client2, PATH, rate, rate, 1, 10);
+        AtomicLong granted = new AtomicLong();
+        long durationMs = 2000;
+        long end = System.currentTimeMillis() + durationMs;
+        CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            ZkRateLimiter limiter = t % 2 == 0 ? limiter1 : limiter2;
+            new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        if (limiter.tryAcquire()) {
+                            granted.incrementAndGet();
+                        } else {
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // 初始的满桶 + 运行期间补充的令牌
+        long limit = (long) (rate + rate * durationMs / 1000);
+        assertTrue("granted " + granted.get(), granted.get() <= limit);
+        assertTrue("granted " + granted.get(), granted.get() >= limit / 2);
+        assertTrue(limiter1.getFetches() > 0);
+        assertTrue(limiter2.getFetches() > 0);
+        limiter1.close();
+        limiter2.close();
+    }
+
+    public void testBatchesAndReturnsTokens() throws Exception {
+        ZkRateLimiter limiter = new ZkRateLimiter(client1, PATH, 1, 100, 20, 20);
+        assertTrue(limiter.tryAcquire());
+        assertEquals(1, limiter.getFetches());
+        assertEquals(19, limiter.getLocalTokens());
+        assertTrue(tokensInBucket() < 81);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertTrue(limiter.getFetches() <= 2);
+        long local = limiter.getLocalTokens();
+        double before = tokensInBucket();
+        limiter.close();
+        assertEquals(before + local, tokensInBucket(), 0.001);
+    }
+
+    public void testRejectsWhenEmpty() throws Exception {
+        ZkRateLimiter limiter = new ZkRateLimiter(client1, PATH, 1, 2, 1, 1);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire(3, TimeUnit.SECONDS));
+        limiter.close();
+    }
+
+    private double tokensInBucket() throws Exception {
+        return ByteBuffer.wrap(client1.getData().forPath(PATH)).getDouble();
+    }
+
+    private CuratorFramework newClient() throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
@@ -0,0 +1,118 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+/**
+ * 异步查询不阻塞调用方，并发的冷查询共享一次启动
+ */
+public class AsyncDiscoveryTest extends TestCase {
+    private static final String BASE_PATH = "services";
+
+    private TestingServer server;
+    private CuratorFramework client;
+    private ServiceRegistry registry;
+    private ServiceDiscoverer discoverer;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(server.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        registry = new ServiceRegistry(client, BASE_PATH);
+        registry.registerServices(Arrays.asList(newInstance("service1"), newInstance("service2")));
+        discoverer = new ServiceDiscoverer(client, BASE_PATH);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        discoverer.close();
+        registry.close();
+        CloseableUtils.closeQuietly(client);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testColdLookupDoesNotBlock() throws Exception {
+        server.stop();
+        long start = System.nanoTime();
+        List<CompletableFuture<ServiceInstance<InstanceDetails>>> futures = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            futures.add(discoverer.getInstanceByNameAsync("service1"));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertFalse(futures.get(0).isDone());
+
+        server.restart();
+        for (CompletableFuture<ServiceInstance<InstanceDetails>> future : futures) {
+            assertEquals("service1", future.get(10, TimeUnit.SECONDS).getName());
+        }
+        // 启动完成后直接返回已完成的future
+        assertTrue(discoverer.getInstanceByNameAsync("service1").isDone());
+    }
+
+    public void testListenerAndWarmUp() throws Exception {
+        discoverer.warmUp(Arrays.asList("service1", "service2")).get(10, TimeUnit.SECONDS);
+        assertNotNull(discoverer.getCachedInstance("service1"));
+        assertNotNull(discoverer.getCachedInstance("service2"));
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<ServiceInstance<InstanceDetails>> result = new AtomicReference<>();
+        discoverer.getInstanceByName("service2", new DiscoveryListener() {
+            @Override
+            public void onInstance(ServiceInstance<InstanceDetails> instance) {
+                result.set(instance);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Throwable cause) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals("service2", result.get().getName());
+    }
+
+    public void testBootstrapDeadline() throws Exception {
+        server.stop();
+        BootstrapReport report = discoverer.bootstrap(Arrays.asList("service1", "service2"), 200,
+                TimeUnit.MILLISECONDS);
+        assertFalse(report.isReady());
+        assertEquals(BootstrapReport.State.PENDING, report.getServices().get(0).getState());
+        assertFalse(discoverer.isReady());
+
+        server.restart();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!discoverer.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(discoverer.isReady());
+        assertTrue(discoverer.bootstrap(Arrays.asList("service1", "service2"), 1, TimeUnit.SECONDS).isReady());
+    }
+
+    private static ServiceInstance<InstanceDetails> newInstance(String serviceName) throws Exception {
+        return ServiceInstance.<InstanceDetails>builder()
+                .name(serviceName)
+                .address("192.168.1.100")
+                .port(12345)
+                .payload(new InstanceDetails(UUID.randomUUID().toString(), "192.168.1.100", 12345, "Test.Service"))
+                .build();
+    }
+}
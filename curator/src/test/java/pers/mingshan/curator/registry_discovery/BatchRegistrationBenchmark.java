@@ -0,0 +1,94 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+
+import com.google.common.collect.Lists;
+
+import pers.mingshan.curator.util.FourLetterWords;
+
+/**
+ * 逐个注册与批量注册的对比
+ *
+ * 每轮注册 INTERFACE_QTY 个服务实例后再注销，统计平均耗时以及服务端收到的请求包数量
+ * (通过四字命令srvr的Received计算，包含少量心跳包)。
+ *
+ * @author mingshan
+ *
+ */
+public class BatchRegistrationBenchmark {
+    private static final String BASE_PATH = "services";
+    private static final int INTERFACE_QTY = 30;
+    private static final int ROUNDS = 50;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        ServiceRegistry registry = new ServiceRegistry(client, BASE_PATH);
+        try {
+            // 先各注册一次，让服务节点都存在，只比较实例节点的写入
+            List<ServiceInstance<InstanceDetails>> warmup = newInstances();
+            registry.registerServices(warmup);
+            registry.unregisterServices(warmup);
+
+            System.out.printf("%-8s %14s %16s%n", "mode", "avg ms/round", "packets/round");
+
+            long packets = FourLetterWords.receivedPackets(server.getConnectString());
+            long start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++) {
+                List<ServiceInstance<InstanceDetails>> instances = newInstances();
+                for (ServiceInstance<InstanceDetails> instance : instances) {
+                    registry.registerService(instance);
+                }
+                for (ServiceInstance<InstanceDetails> instance : instances) {
+                    registry.unregisterService(instance);
+                }
+            }
+            report("loop", start, packets, server);
+
+            packets = FourLetterWords.receivedPackets(server.getConnectString());
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++) {
+                List<ServiceInstance<InstanceDetails>> instances = newInstances();
+                registry.registerServices(instances);
+                registry.unregisterServices(instances);
+            }
+            report("batch", start, packets, server);
+        } finally {
+            registry.close();
+            CloseableUtils.closeQuietly(client);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static void report(String mode, long start, long packets, TestingServer server) throws Exception {
+        double millis = (System.nanoTime() - start) / 1_000_000.0 / ROUNDS;
+        // 四字命令本身不计入Received，直接相减即可
+        long received = FourLetterWords.receivedPackets(server.getConnectString()) - packets;
+        System.out.printf("%-8s %14.2f %16.1f%n", mode, millis, received / (double) ROUNDS);
+    }
+
+    private static List<ServiceInstance<InstanceDetails>> newInstances() throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = Lists.newArrayList();
+        for (int i = 0; i < INTERFACE_QTY; i++) {
+            instances.add(ServiceInstance.<InstanceDetails>builder()
+                    .name("service" + i)
+                    .address("192.168.1.100")
+                    .port(12345)
+                    .payload(new InstanceDetails(UUID.randomUUID().toString(), "192.168.1.100", 12345,
+                            "Test.Service" + i))
+                    .build());
+        }
+        return instances;
+    }
+}
@@ -0,0 +1,125 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+
+import com.google.common.collect.Lists;
+
+/**
+ * 部署后的就绪时间：逐个懒加载与并行bootstrap的对比
+ *
+ * 注册 SERVICE_QTY 个服务，每个服务 INSTANCE_QTY 个实例，每轮使用新的客户端和ServiceDiscoverer：
+ * <pre>
+ *  lazy       依次对每个服务调用一次getInstanceByName(原先第一批请求的情况)
+ *  bootstrap  bootstrap并行启动全部服务
+ * </pre>
+ * 本地TestingServer的往返延迟很小，实际网络中的差距会更大；最后打印一次bootstrap的报告。
+ *
+ * @author mingshan
+ *
+ */
+public class BootstrapBenchmark {
+    private static final String BASE_PATH = "services";
+    private static final int SERVICE_QTY = 40;
+    private static final int INSTANCE_QTY = 3;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework registryClient = newClient(server);
+        ServiceRegistry registry = new ServiceRegistry(registryClient, BASE_PATH);
+        List<String> serviceNames = Lists.newArrayList();
+        try {
+            List<ServiceInstance<InstanceDetails>> instances = Lists.newArrayList();
+            for (int s = 0; s < SERVICE_QTY; s++) {
+                String serviceName = "service" + s;
+                serviceNames.add(serviceName);
+                for (int i = 0; i < INSTANCE_QTY; i++) {
+                    instances.add(ServiceInstance.<InstanceDetails>builder()
+                            .name(serviceName)
+                            .address("192.168.1." + i)
+                            .port(12345)
+                            .payload(new InstanceDetails(UUID.randomUUID().toString(), "192.168.1." + i, 12345,
+                                    "Test.Service" + s))
+                            .build());
+                }
+            }
+            registry.registerServices(instances);
+
+            // 预热
+            for (int r = 0; r < 3; r++) {
+                lazy(server, serviceNames);
+                bootstrap(server, serviceNames, false);
+            }
+            System.out.printf("%-10s %16s%n", "mode", "avg ms to ready");
+            long total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                total += lazy(server, serviceNames);
+            }
+            System.out.printf("%-10s %16.1f%n", "lazy", total / 1_000_000.0 / ROUNDS);
+            total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                total += bootstrap(server, serviceNames, r == ROUNDS - 1);
+            }
+            System.out.printf("%-10s %16.1f%n", "bootstrap", total / 1_000_000.0 / ROUNDS);
+        } finally {
+            registry.close();
+            CloseableUtils.closeQuietly(registryClient);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static long lazy(TestingServer server, List<String> serviceNames) throws Exception {
+        CuratorFramework client = newClient(server);
+        ServiceDiscoverer discoverer = new ServiceDiscoverer(client, BASE_PATH);
+        try {
+            long start = System.nanoTime();
+            for (String serviceName : serviceNames) {
+                if (discoverer.getInstanceByName(serviceName) == null) {
+                    throw new IllegalStateException("no instance of " + serviceName);
+                }
+            }
+            return System.nanoTime() - start;
+        } finally {
+            discoverer.close();
+            CloseableUtils.closeQuietly(client);
+        }
+    }
+
+    private static long bootstrap(TestingServer server, List<String> serviceNames, boolean print) throws Exception {
+        CuratorFramework client = newClient(server);
+        ServiceDiscoverer discoverer = new ServiceDiscoverer(client, BASE_PATH);
+        try {
+            long start = System.nanoTime();
+            BootstrapReport report = discoverer.bootstrap(serviceNames, 10, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+            if (!report.isReady()) {
+                throw new IllegalStateException("bootstrap not ready\n" + report);
+            }
+            if (print) {
+                System.out.println();
+                System.out.print(report);
+            }
+            return elapsed;
+        } finally {
+            discoverer.close();
+            CloseableUtils.closeQuietly(client);
+        }
+    }
+
+    private static CuratorFramework newClient(TestingServer server) throws InterruptedException {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        client.blockUntilConnected();
+        return client;
+    }
+}
@@ -0,0 +1,170 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.Arrays;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.UriSpec;
+import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import junit.framework.TestCase;
+
+/**
+ * 二进制格式的往返、默认写JSON(旧版本的InstanceDetails可读)、读取JSON，以及版本1/版本2的兼容
+ */
+public class CompactInstanceSerializerTest extends TestCase {
+    private final JsonInstanceSerializer<InstanceDetails> json = new JsonInstanceSerializer<InstanceDetails>(
+            InstanceDetails.class);
+
+    public void testRoundTrip() throws Exception {
+        CompactInstanceSerializer serializer = new CompactInstanceSerializer(true);
+        ServiceInstance<InstanceDetails> full = new ServiceInstance<InstanceDetails>("service1", "id-1",
+                "192.168.1.100", 12345, 12346,
+                new InstanceDetails("id-1", "192.168.1.100", 12345, "Test.Service1", "zone-a", "rack-1", 5),
+                1234567890123L, ServiceType.STATIC, new UriSpec("{scheme}://{address}:{port}/中文"), false);
+        ServiceInstance<InstanceDetails> sparse = new ServiceInstance<InstanceDetails>("service1", "id-2", null,
+                null, null, null, 0, ServiceType.DYNAMIC, null, true);
+        for (ServiceInstance<InstanceDetails> instance : Arrays.asList(full, sparse)) {
+            byte[] bytes = serializer.serialize(instance);
+            assertTrue(bytes[0] != '{');
+            ServiceInstance<InstanceDetails> read = serializer.deserialize(bytes);
+            assertEquals(instance, read);
+            assertEquals(instance.getPayload(), read.getPayload());
+            assertEquals(instance.getSslPort(), read.getSslPort());
+            assertEquals(instance.getRegistrationTimeUTC(), read.getRegistrationTimeUTC());
+            assertEquals(instance.getServiceType(), read.getServiceType());
+            assertEquals(instance.isEnabled(), read.isEnabled());
+            assertEquals(instance.getUriSpec() == null ? null : instance.getUriSpec().build(),
+                    read.getUriSpec() == null ? null : read.getUriSpec().build());
+        }
+    }
+
+    public void testWritesJsonByDefault() throws Exception {
+        ServiceInstance<InstanceDetails> instance = newInstance(null, null, InstanceDetails.DEFAULT_WEIGHT);
+        byte[] bytes = new CompactInstanceSerializer().serialize(instance);
+        assertEquals('{', bytes[0]);
+        // 只认JSON的旧发现方可以读取
+        assertEquals(instance.getPayload(), json.deserialize(bytes).getPayload());
+    }
+
+    public void testOldSchemaReadsDefaultJson() throws Exception {
+        ServiceInstance<InstanceDetails> plain = newInstance(null, null, InstanceDetails.DEFAULT_WEIGHT);
+        byte[] bytes = new CompactInstanceSerializer().serialize(plain);
+        // 旧发现方按类名(@class)解析payload，这里用旧的字段定义解析同一段JSON，未知字段会失败
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode payload = (ObjectNode) mapper.readTree(bytes).get("payload");
+        payload.remove("@class");
+        LegacyInstanceDetails read = mapper.readValue(payload, LegacyInstanceDetails.class);
+        assertEquals("id-1", read.getId());
+        assertEquals(12345, read.getListenPort());
+
+        // 设置了权重的JSON读回来不变
+        ServiceInstance<InstanceDetails> weighted = newInstance("zone-a", null, 3);
+        assertEquals(weighted.getPayload(),
+                json.deserialize(new CompactInstanceSerializer().serialize(weighted)).getPayload());
+    }
+
+    public void testReadsJson() throws Exception {
+        ServiceInstance<InstanceDetails> instance = newInstance("zone-a", "rack-1", 3);
+        byte[] bytes = json.serialize(instance);
+        ServiceInstance<InstanceDetails> read = new CompactInstanceSerializer(true).deserialize(bytes);
+        assertEquals(instance, read);
+        assertEquals(instance.getPayload(), read.getPayload());
+    }
+
+    public void testVersionCompatibility() throws Exception {
+        CompactInstanceSerializer serializer = new CompactInstanceSerializer(true);
+
+        // 没有位置和权重信息时写版本1，未升级到版本2的发现方仍然可读
+        ServiceInstance<InstanceDetails> plain = newInstance(null, null, InstanceDetails.DEFAULT_WEIGHT);
+        byte[] v1 = serializer.serialize(plain);
+        assertEquals(CompactInstanceSerializer.VERSION_1, v1[0]);
+        InstanceDetails read = serializer.deserialize(v1).getPayload();
+        assertNull(read.getZone());
+        assertNull(read.getRack());
+        assertEquals(InstanceDetails.DEFAULT_WEIGHT, read.getWeight());
+
+        ServiceInstance<InstanceDetails> located = newInstance("zone-a", null, 2);
+        byte[] v2 = serializer.serialize(located);
+        assertEquals(CompactInstanceSerializer.VERSION_2, v2[0]);
+        assertEquals(located.getPayload(), serializer.deserialize(v2).getPayload());
+
+        byte[] unknown = v2.clone();
+        unknown[0] = 3;
+        try {
+            serializer.deserialize(unknown);
+            fail("Read an unknown version");
+        } catch (IllegalArgumentException expected) {
+            // 未来的版本
+        }
+    }
+
+    public void testVersion1WireFormat() throws Exception {
+        // name="s", id="i", address="a", port=1, registrationTimeUTC=2, DYNAMIC, enabled
+        byte[] v1 = { 1, 0x11, 2, 's', 2, 'i', 2, 'a', 1, 2, (byte) ServiceType.DYNAMIC.ordinal() };
+        ServiceInstance<InstanceDetails> expected = new ServiceInstance<InstanceDetails>("s", "i", "a", 1, null,
+                null, 2, ServiceType.DYNAMIC, null, true);
+        CompactInstanceSerializer serializer = new CompactInstanceSerializer(true);
+        assertTrue(Arrays.equals(v1, serializer.serialize(expected)));
+        ServiceInstance<InstanceDetails> read = serializer.deserialize(v1);
+        assertEquals(expected, read);
+        assertEquals(1, (int) read.getPort());
+        assertEquals(2, read.getRegistrationTimeUTC());
+    }
+
+    /**
+     * 加入位置和权重之前的InstanceDetails，遇到未知字段时失败
+     */
+    public static class LegacyInstanceDetails {
+        private String id;
+        private String listenAddress;
+        private int listenPort;
+        private String interfaceName;
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getListenAddress() {
+            return listenAddress;
+        }
+
+        public void setListenAddress(String listenAddress) {
+            this.listenAddress = listenAddress;
+        }
+
+        public int getListenPort() {
+            return listenPort;
+        }
+
+        public void setListenPort(int listenPort) {
+            this.listenPort = listenPort;
+        }
+
+        public String getInterfaceName() {
+            return interfaceName;
+        }
+
+        public void setInterfaceName(String interfaceName) {
+            this.interfaceName = interfaceName;
+        }
+    }
+
+    private static ServiceInstance<InstanceDetails> newInstance(String zone, String rack, int weight)
+            throws Exception {
+        return ServiceInstance.<InstanceDetails>builder()
+                .name("service1")
+                .id("id-1")
+                .address("192.168.1.100")
+                .port(12345)
+                .payload(new InstanceDetails("id-1", "192.168.1.100", 12345, "Test.Service1", zone, rack, weight))
+                .uriSpec(new UriSpec("{scheme}://{address}:{port}"))
+                .build();
+    }
+}
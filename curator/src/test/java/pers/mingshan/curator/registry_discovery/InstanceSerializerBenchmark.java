@@ -0,0 +1,108 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.UriSpec;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+
+/**
+ * JSON与二进制序列化的对比
+ *
+ * 输出每种序列化方式的 序列化/反序列化 吞吐量、每个实例的字节数和每次反序列化分配的内存。
+ *
+ * @author mingshan
+ *
+ */
+public class InstanceSerializerBenchmark {
+    private static final int INSTANCE_QTY = 500;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 500;
+
+    public static void main(String[] args) throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = new ArrayList<>(INSTANCE_QTY);
+        for (int i = 0; i < INSTANCE_QTY; i++) {
+            String address = "192.168.1." + (i % 250);
+            instances.add(ServiceInstance.<InstanceDetails>builder()
+                    .name("service1")
+                    .address(address)
+                    .port(12345)
+                    .payload(new InstanceDetails(UUID.randomUUID().toString(), address, 12345, "Test.Service1"))
+                    .uriSpec(new UriSpec("{scheme}://{address}:{port}"))
+                    .build());
+        }
+
+        System.out.printf("%-8s %14s %14s %10s %14s%n", "format", "ser ops/s", "deser ops/s", "bytes", "alloc/deser");
+        run("json", new JsonInstanceSerializer<InstanceDetails>(InstanceDetails.class), instances);
+        run("compact", new CompactInstanceSerializer(true), instances);
+
+        // 兼容性：二进制序列化器可以直接读取JSON
+        byte[] json = new JsonInstanceSerializer<InstanceDetails>(InstanceDetails.class).serialize(instances.get(0));
+        ServiceInstance<InstanceDetails> fromJson = new CompactInstanceSerializer().deserialize(json);
+        System.out.println("read legacy json: " + fromJson.equals(instances.get(0)));
+    }
+
+    private static void run(String name, InstanceSerializer<InstanceDetails> serializer,
+            List<ServiceInstance<InstanceDetails>> instances) throws Exception {
+        byte[][] encoded = new byte[instances.size()][];
+        long bytes = 0;
+        for (int i = 0; i < instances.size(); i++) {
+            encoded[i] = serializer.serialize(instances.get(i));
+            bytes += encoded[i].length;
+            if (!serializer.deserialize(encoded[i]).equals(instances.get(i))) {
+                throw new IllegalStateException(name + " round trip mismatch");
+            }
+        }
+        for (int r = 0; r < WARMUP_ROUNDS; r++) {
+            serializeAll(serializer, instances);
+            deserializeAll(serializer, encoded);
+        }
+
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) {
+            serializeAll(serializer, instances);
+        }
+        long serNanos = System.nanoTime() - start;
+
+        long allocStart = allocatedBytes();
+        start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) {
+            deserializeAll(serializer, encoded);
+        }
+        long deserNanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocStart;
+
+        long ops = (long) ROUNDS * instances.size();
+        System.out.printf("%-8s %14d %14d %10d %14d%n", name, ops * 1_000_000_000L / serNanos,
+                ops * 1_000_000_000L / deserNanos, bytes / instances.size(), allocated < 0 ? -1 : allocated / ops);
+    }
+
+    private static void serializeAll(InstanceSerializer<InstanceDetails> serializer,
+            List<ServiceInstance<InstanceDetails>> instances) throws Exception {
+        for (ServiceInstance<InstanceDetails> instance : instances) {
+            serializer.serialize(instance);
+        }
+    }
+
+    private static void deserializeAll(InstanceSerializer<InstanceDetails> serializer, byte[][] encoded)
+            throws Exception {
+        for (byte[] bytes : encoded) {
+            serializer.deserialize(bytes);
+        }
+    }
+
+    /**
+     * 当前线程累计分配的字节数，JVM不支持时返回-1
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
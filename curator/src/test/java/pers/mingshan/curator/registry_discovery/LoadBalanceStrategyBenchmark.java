@@ -0,0 +1,120 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * 负载均衡策略的模拟测试
+ *
+ * 不依赖ZooKeeper，使用离散事件模拟：请求按泊松过程到达，由策略选择实例，
+ * 实例的延迟 = 基础延迟 * (1 + 进行中请求数 * 排队因子)，其中一个实例的基础延迟是其他实例的10倍。
+ * 请求完成后把延迟回报给 {@link InstanceStats}，最后输出各策略的 p50/p99 延迟。
+ *
+ * @author mingshan
+ *
+ */
+public class LoadBalanceStrategyBenchmark {
+    private static final int INSTANCE_QTY = 10;
+    private static final int REQUESTS = 200000;
+    /** 每毫秒到达的请求数 */
+    private static final double ARRIVALS_PER_MS = 2.0;
+    private static final double FAST_LATENCY_MS = 5;
+    private static final double SLOW_LATENCY_MS = 50;
+    private static final double QUEUE_FACTOR = 0.05;
+    /** 模拟时钟，EWMA的衰减按模拟时间计算 */
+    private static long now;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, ProviderStrategyFactory> strategies = new LinkedHashMap<>();
+        strategies.put("random", ProviderStrategies.random());
+        strategies.put("roundRobin", ProviderStrategies.roundRobin());
+        strategies.put("leastOutstanding", ProviderStrategies.leastOutstanding());
+        strategies.put("powerOfTwoChoices", ProviderStrategies.powerOfTwoChoices());
+        strategies.put("ewmaLatency", stats -> new EwmaLatencyStrategy(stats, () -> now));
+
+        List<ServiceInstance<InstanceDetails>> instances = Lists.newArrayList();
+        for (int i = 0; i < INSTANCE_QTY; i++) {
+            instances.add(ServiceInstance.<InstanceDetails>builder()
+                    .name("service1")
+                    .id("instance-" + i)
+                    .address("10.0.0." + i)
+                    .port(20000)
+                    .build());
+        }
+        List<ServiceInstance<InstanceDetails>> snapshot = ImmutableList.copyOf(instances);
+        InstanceProvider<InstanceDetails> provider = () -> snapshot;
+
+        System.out.printf("%-20s %10s %10s %10s%n", "strategy", "p50(ms)", "p99(ms)", "slow share");
+        for (Map.Entry<String, ProviderStrategyFactory> entry : strategies.entrySet()) {
+            InstanceStatsRegistry stats = new InstanceStatsRegistry();
+            ProviderStrategy<InstanceDetails> strategy = entry.getValue().newStrategy(stats);
+            simulate(entry.getKey(), strategy, provider, stats);
+        }
+    }
+
+    private static void simulate(String name, ProviderStrategy<InstanceDetails> strategy,
+            InstanceProvider<InstanceDetails> provider, InstanceStatsRegistry stats) throws Exception {
+        Random random = new Random(42);
+        PriorityQueue<Completion> completions = new PriorityQueue<>();
+        long[] latencies = new long[REQUESTS];
+        int slowHits = 0;
+        // 模拟时钟从1开始，InstanceStats用0表示没有样本
+        now = 1;
+        for (int i = 0; i < REQUESTS; i++) {
+            now += (long) (-Math.log(1 - random.nextDouble()) / ARRIVALS_PER_MS * TimeUnit.MILLISECONDS.toNanos(1));
+            while (!completions.isEmpty() && completions.peek().at <= now) {
+                Completion done = completions.poll();
+                done.stats.callCompleted(done.latency, true, done.at);
+            }
+            ServiceInstance<InstanceDetails> instance = strategy.getInstance(provider);
+            InstanceStats stat = stats.get(instance);
+            boolean slow = instance.getId().equals("instance-0");
+            if (slow) {
+                slowHits++;
+            }
+            double base = slow ? SLOW_LATENCY_MS : FAST_LATENCY_MS;
+            double jitter = 0.5 + random.nextDouble();
+            long latency = (long) (base * jitter * (1 + stat.getOutstanding() * QUEUE_FACTOR)
+                    * TimeUnit.MILLISECONDS.toNanos(1));
+            stat.callStarted();
+            completions.add(new Completion(now + latency, latency, stat));
+            latencies[i] = latency;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-20s %10.2f %10.2f %9.1f%%%n", name, toMillis(latencies[REQUESTS / 2]),
+                toMillis(latencies[(int) (REQUESTS * 0.99)]), slowHits * 100.0 / REQUESTS);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static class Completion implements Comparable<Completion> {
+        final long at;
+        final long latency;
+        final InstanceStats stats;
+
+        Completion(long at, long latency, InstanceStats stats) {
+            this.at = at;
+            this.latency = latency;
+            this.stats = stats;
+        }
+
+        @Override
+        public int compareTo(Completion o) {
+            return Long.compare(at, o.at);
+        }
+    }
+}
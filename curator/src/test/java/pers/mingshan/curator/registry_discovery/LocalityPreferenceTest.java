@@ -0,0 +1,69 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+/**
+ * 就近选择以及位置信息的序列化
+ */
+public class LocalityPreferenceTest extends TestCase {
+    private final ServiceInstance<InstanceDetails> a1 = newInstance("a1", "zone-a", "rack-1", 1);
+    private final ServiceInstance<InstanceDetails> a2 = newInstance("a2", "zone-a", "rack-2", 1);
+    private final ServiceInstance<InstanceDetails> a3 = newInstance("a3", "zone-a", "rack-2", 1);
+    private final ServiceInstance<InstanceDetails> b1 = newInstance("b1", "zone-b", "rack-1", 1);
+    private final List<ServiceInstance<InstanceDetails>> all = ImmutableList.of(a1, a2, a3, b1);
+
+    public void testPrefersLocalZone() {
+        LocalityPreference locality = new LocalityPreference("zone-a");
+        assertEquals(ImmutableList.of(a1, a2, a3), locality.select(all, all));
+    }
+
+    public void testPrefersLocalRack() {
+        LocalityPreference locality = new LocalityPreference("zone-a", "rack-2", 0.6);
+        assertEquals(ImmutableList.of(a2, a3), locality.select(all, all));
+        // rack-2只剩一半容量，放宽到zone-a
+        assertEquals(ImmutableList.of(a1, a2), locality.select(ImmutableList.of(a1, a2, b1), all));
+    }
+
+    public void testFallsBackWhenLocalCapacityIsLow() {
+        LocalityPreference locality = new LocalityPreference("zone-a");
+        List<ServiceInstance<InstanceDetails>> available = ImmutableList.of(a1, b1);
+        assertEquals(available, locality.select(available, all));
+    }
+
+    public void testUnknownZoneUsesAllInstances() {
+        LocalityPreference locality = new LocalityPreference("zone-c");
+        assertEquals(all, locality.select(all, all));
+    }
+
+    public void testSerializerKeepsLocality() throws Exception {
+        CompactInstanceSerializer serializer = new CompactInstanceSerializer(true);
+        byte[] withLocality = serializer.serialize(a1);
+        assertEquals(CompactInstanceSerializer.VERSION_2, withLocality[0]);
+        assertEquals(a1, serializer.deserialize(withLocality));
+
+        ServiceInstance<InstanceDetails> plain = newInstance("plain", null, null, InstanceDetails.DEFAULT_WEIGHT);
+        byte[] withoutLocality = serializer.serialize(plain);
+        assertEquals(CompactInstanceSerializer.VERSION_1, withoutLocality[0]);
+        assertEquals(plain, serializer.deserialize(withoutLocality));
+    }
+
+    private static ServiceInstance<InstanceDetails> newInstance(String id, String zone, String rack, int weight) {
+        try {
+            return ServiceInstance.<InstanceDetails>builder()
+                    .name("service1")
+                    .id(id)
+                    .address("192.168.1.100")
+                    .port(12345)
+                    .payload(new InstanceDetails(id, "192.168.1.100", 12345, "Test.Service1", zone, rack, weight))
+                    .build();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
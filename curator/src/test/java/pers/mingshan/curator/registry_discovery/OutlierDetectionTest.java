@@ -0,0 +1,92 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+/**
+ * 连续失败的实例被摘除，且被摘除的比例不超过上限
+ */
+public class OutlierDetectionTest extends TestCase {
+    private static final String BASE_PATH = "services";
+    private static final String SERVICE_NAME = "service1";
+
+    private TestingServer server;
+    private CuratorFramework client;
+    private ServiceRegistry registry;
+    private ServiceDiscoverer discoverer;
+    private List<ServiceInstance<InstanceDetails>> instances;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(server.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        registry = new ServiceRegistry(client, BASE_PATH);
+        instances = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            instances.add(ServiceInstance.<InstanceDetails>builder()
+                    .name(SERVICE_NAME)
+                    .address("192.168.1." + i)
+                    .port(12345)
+                    .payload(new InstanceDetails(UUID.randomUUID().toString(), "192.168.1." + i, 12345,
+                            "Test.Service1"))
+                    .build());
+        }
+        registry.registerServices(instances);
+        // 3次失败摘除，摘除10秒，最多摘除50%
+        discoverer = new ServiceDiscoverer(client, BASE_PATH, ProviderStrategies.roundRobin(),
+                new OutlierDetector(3, 10, 3.0, 10000, 30000, 50));
+        assertNotNull(discoverer.getInstanceByName(SERVICE_NAME));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        discoverer.close();
+        registry.close();
+        CloseableUtils.closeQuietly(client);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testFailingInstanceIsEjected() throws Exception {
+        ServiceInstance<InstanceDetails> bad = instances.get(0);
+        reportFailures(bad, 3);
+        assertTrue(discoverer.getStats().get(bad).isEjected(System.nanoTime()));
+        for (int i = 0; i < 100; i++) {
+            assertFalse(bad.getId().equals(discoverer.getInstanceByName(SERVICE_NAME).getId()));
+        }
+    }
+
+    public void testEjectionIsCapped() throws Exception {
+        for (ServiceInstance<InstanceDetails> instance : instances) {
+            reportFailures(instance, 3);
+        }
+        int ejected = 0;
+        for (ServiceInstance<InstanceDetails> instance : instances) {
+            if (discoverer.getStats().get(instance).isEjected(System.nanoTime())) {
+                ejected++;
+            }
+        }
+        assertEquals(2, ejected);
+        assertNotNull(discoverer.getInstanceByName(SERVICE_NAME));
+    }
+
+    private void reportFailures(ServiceInstance<InstanceDetails> instance, int times) {
+        for (int i = 0; i < times; i++) {
+            discoverer.noteCallStart(instance);
+            discoverer.noteCallEnd(instance, 1, TimeUnit.SECONDS, false);
+        }
+    }
+}
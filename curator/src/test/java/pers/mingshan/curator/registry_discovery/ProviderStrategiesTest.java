@@ -0,0 +1,142 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+/**
+ * 内置负载均衡策略的选择结果，以及EWMA策略对无样本实例和长时间未选中实例的处理
+ */
+public class ProviderStrategiesTest extends TestCase {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ServiceInstance<InstanceDetails> a = newInstance("a", 1);
+    private final ServiceInstance<InstanceDetails> b = newInstance("b", 3);
+    private final ServiceInstance<InstanceDetails> c = newInstance("c", 0);
+    private final InstanceStatsRegistry stats = new InstanceStatsRegistry();
+
+    public void testEmptyAndSingleInstance() throws Exception {
+        InstanceProvider<InstanceDetails> empty = ImmutableList::of;
+        InstanceProvider<InstanceDetails> single = () -> ImmutableList.of(a);
+        for (ProviderStrategyFactory factory : new ProviderStrategyFactory[] { ProviderStrategies.random(),
+                ProviderStrategies.weightedRandom(), ProviderStrategies.leastOutstanding(),
+                ProviderStrategies.powerOfTwoChoices(), ProviderStrategies.ewmaLatency() }) {
+            ProviderStrategy<InstanceDetails> strategy = factory.newStrategy(stats);
+            assertNull(strategy.getInstance(empty));
+            assertSame(a, strategy.getInstance(single));
+        }
+    }
+
+    public void testRoundRobinVisitsEveryInstance() throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = ImmutableList.of(a, b, c);
+        ProviderStrategy<InstanceDetails> strategy = ProviderStrategies.roundRobin().newStrategy(stats);
+        Map<String, Integer> counts = pick(strategy, instances, 300);
+        assertEquals(100, (int) counts.get("a"));
+        assertEquals(100, (int) counts.get("b"));
+        assertEquals(100, (int) counts.get("c"));
+    }
+
+    public void testWeightedRandomFollowsWeights() throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = ImmutableList.of(a, b, c);
+        ProviderStrategy<InstanceDetails> strategy = ProviderStrategies.weightedRandom().newStrategy(stats);
+        Map<String, Integer> counts = pick(strategy, instances, 20000);
+        // 权重 1:3:0
+        assertNull(counts.get("c"));
+        double shareOfA = counts.get("a") / 20000.0;
+        assertTrue("share of a " + shareOfA, shareOfA > 0.22 && shareOfA < 0.28);
+    }
+
+    public void testLeastOutstandingPicksIdlestInstance() throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = ImmutableList.of(a, b, c);
+        stats.get(a).callStarted();
+        stats.get(a).callStarted();
+        stats.get(c).callStarted();
+        ProviderStrategy<InstanceDetails> strategy = ProviderStrategies.leastOutstanding().newStrategy(stats);
+        for (int i = 0; i < 100; i++) {
+            assertSame(b, strategy.getInstance(() -> instances));
+        }
+    }
+
+    public void testPowerOfTwoChoicesNeverPicksBusierOfTwo() throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = ImmutableList.of(a, b);
+        stats.get(b).callStarted();
+        ProviderStrategy<InstanceDetails> strategy = ProviderStrategies.powerOfTwoChoices().newStrategy(stats);
+        for (int i = 0; i < 100; i++) {
+            assertSame(a, strategy.getInstance(() -> instances));
+        }
+    }
+
+    public void testEwmaSeedsUnsampledInstanceWithMedian() throws Exception {
+        long[] now = { 1 };
+        EwmaLatencyStrategy strategy = new EwmaLatencyStrategy(stats, () -> now[0]);
+        ServiceInstance<InstanceDetails> fresh = newInstance("fresh", 1);
+        List<ServiceInstance<InstanceDetails>> instances = ImmutableList.of(a, b, c, fresh);
+        stats.get(a).callCompleted(10 * MS, true, now[0]);
+        stats.get(b).callCompleted(20 * MS, true, now[0]);
+        stats.get(c).callCompleted(30 * MS, true, now[0]);
+        assertEquals(20.0 * MS, strategy.cost(fresh, instances));
+
+        // 请求一直不结束，新实例按中位数计算，不会因为负载为0拿走一半以上的请求
+        Map<String, Integer> counts = Maps.newHashMap();
+        for (int i = 0; i < 400; i++) {
+            ServiceInstance<InstanceDetails> instance = strategy.getInstance(() -> instances);
+            stats.get(instance).callStarted();
+            counts.merge(instance.getId(), 1, Integer::sum);
+        }
+        int share = counts.getOrDefault("fresh", 0);
+        assertTrue("fresh instance got " + share, share < 200);
+
+        // 整个服务都没有样本时使用默认延迟
+        InstanceStatsRegistry empty = new InstanceStatsRegistry();
+        assertEquals(EwmaLatencyStrategy.DEFAULT_LATENCY_NANOS,
+                new EwmaLatencyStrategy(empty, () -> now[0]).cost(fresh, instances));
+    }
+
+    public void testEwmaDecaysWhenNotPicked() throws Exception {
+        long[] now = { 1 };
+        EwmaLatencyStrategy strategy = new EwmaLatencyStrategy(stats, () -> now[0]);
+        List<ServiceInstance<InstanceDetails>> instances = ImmutableList.of(a, b);
+        stats.get(a).callCompleted(100 * MS, true, now[0]);
+        stats.get(b).callCompleted(5 * MS, true, now[0]);
+        assertSame(b, strategy.getInstance(() -> instances));
+
+        // a 10秒没有新样本，b 一直有样本，a 的延迟衰减后重新被选中
+        now[0] += TimeUnit.SECONDS.toNanos(10);
+        stats.get(b).callCompleted(5 * MS, true, now[0]);
+        assertTrue(stats.get(a).getEwmaNanos(now[0]) < MS);
+        assertEquals(100.0 * MS, stats.get(a).getEwmaNanos());
+        assertSame(a, strategy.getInstance(() -> instances));
+    }
+
+    private static Map<String, Integer> pick(ProviderStrategy<InstanceDetails> strategy,
+            List<ServiceInstance<InstanceDetails>> instances, int times) throws Exception {
+        Map<String, Integer> counts = Maps.newHashMap();
+        for (int i = 0; i < times; i++) {
+            counts.merge(strategy.getInstance(() -> instances).getId(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private static ServiceInstance<InstanceDetails> newInstance(String id, int weight) {
+        try {
+            return ServiceInstance.<InstanceDetails>builder()
+                    .name("service1")
+                    .id(id)
+                    .address("127.0.0.1")
+                    .port(8080)
+                    .payload(new InstanceDetails(id, "127.0.0.1", 8080, "Test.Service1", null, null, weight))
+                    .build();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceProvider;
+import org.apache.curator.x.discovery.strategies.RandomStrategy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * getInstanceByName 的多线程吞吐量测试
+ *
+ * 使用内嵌的TestingServer，分别在1~64个线程下对比：
+ * <pre>
+ *  legacy   原来的 HashMap + 全局锁 + ServiceProvider(RandomStrategy)
+ *  lookup   ServiceDiscoverer#getInstanceByName
+ *  cached   ServiceDiscoverer#getCachedInstance
+ * </pre>
+ *
+ * 运行：mvn test-compile exec:java -Dexec.mainClass=pers.mingshan.curator.registry_discovery.ServiceDiscovererBenchmark
+ *
+ * @author mingshan
+ *
+ */
+public class ServiceDiscovererBenchmark {
+    private static final String BASE_PATH = "services";
+    private static final int SERVICE_QTY = 8;
+    private static final int INSTANCE_QTY = 4;
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+    private static final long DURATION_MS = 2000;
+
+    interface Lookup {
+        ServiceInstance<InstanceDetails> lookup(String serviceName) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestingServer server = new TestingServer();
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(),
+                new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        ServiceRegistry registry = new ServiceRegistry(client, BASE_PATH);
+        ServiceDiscoverer discoverer = new ServiceDiscoverer(client, BASE_PATH);
+        LegacyDiscoverer legacy = new LegacyDiscoverer(client, BASE_PATH);
+        try {
+            String[] names = new String[SERVICE_QTY];
+            for (int i = 0; i < SERVICE_QTY; i++) {
+                names[i] = "service" + i;
+                for (int j = 0; j < INSTANCE_QTY; j++) {
+                    registry.registerService(ServiceInstance.<InstanceDetails>builder()
+                            .name(names[i])
+                            .address("10.0.0." + j)
+                            .port(20000 + j)
+                            .payload(new InstanceDetails(names[i] + "-" + j, "10.0.0." + j, 20000 + j, "Test.Service" + i))
+                            .build());
+                }
+                // 预热
+                legacy.getInstanceByName(names[i]);
+                discoverer.getInstanceByName(names[i]);
+            }
+
+            System.out.printf("%8s %16s %16s %16s%n", "threads", "legacy ops/s", "lookup ops/s", "cached ops/s");
+            for (int threads : THREADS) {
+                long legacyOps = run(threads, names, legacy::getInstanceByName);
+                long lookupOps = run(threads, names, discoverer::getInstanceByName);
+                long cachedOps = run(threads, names, discoverer::getCachedInstance);
+                System.out.printf("%8d %16d %16d %16d%n", threads, legacyOps, lookupOps, cachedOps);
+            }
+        } finally {
+            legacy.close();
+            discoverer.close();
+            registry.close();
+            CloseableUtils.closeQuietly(client);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    private static long run(int threads, String[] names, Lookup lookup) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MS);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long count = 0;
+                    int i = offset;
+                    while ((count & 0xFF) != 0 || System.nanoTime() < deadline) {
+                        if (lookup.lookup(names[i++ % names.length]) == null) {
+                            throw new IllegalStateException("no instance");
+                        }
+                        count++;
+                    }
+                    ops.add(count);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return ops.sum() * 1000 / DURATION_MS;
+    }
+
+    /**
+     * 原来的实现，作为对照组
+     */
+    private static class LegacyDiscoverer {
+        private final ServiceDiscovery<InstanceDetails> serviceDiscovery;
+        private final Map<String, ServiceProvider<InstanceDetails>> providers = Maps.newHashMap();
+        private final List<ServiceProvider<InstanceDetails>> closeableList = Lists.newArrayList();
+        private final Object lock = new Object();
+
+        LegacyDiscoverer(CuratorFramework client, String basePath) throws Exception {
+            serviceDiscovery = ServiceDiscoveryBuilder.builder(InstanceDetails.class).client(client).basePath(basePath)
+                    .serializer(new CompactInstanceSerializer()).build();
+            serviceDiscovery.start();
+        }
+
+        ServiceInstance<InstanceDetails> getInstanceByName(String serviceName) throws Exception {
+            ServiceProvider<InstanceDetails> provider = providers.get(serviceName);
+            if (provider == null) {
+                synchronized (lock) {
+                    provider = providers.get(serviceName);
+                    if (provider == null) {
+                        provider = serviceDiscovery.serviceProviderBuilder().serviceName(serviceName)
+                                .providerStrategy(new RandomStrategy<InstanceDetails>()).build();
+                        provider.start();
+                        closeableList.add(provider);
+                        providers.put(serviceName, provider);
+                    }
+                }
+            }
+            return provider.getInstance();
+        }
+
+        void close() {
+            for (ServiceProvider<InstanceDetails> provider : closeableList) {
+                CloseableUtils.closeQuietly(provider);
+            }
+            CloseableUtils.closeQuietly(serviceDiscovery);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+/**
+ * 并发查询共用每个服务的缓存，与close并发创建的缓存不会遗留，ZooKeeper不可达时冷查询不会一直阻塞
+ */
+public class ServiceDiscovererTest extends TestCase {
+    private static final String BASE_PATH = "services";
+    private static final int SERVICE_QTY = 4;
+
+    private TestingServer server;
+    private CuratorFramework client;
+    private ServiceRegistry registry;
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(server.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        registry = new ServiceRegistry(client, BASE_PATH);
+        for (int i = 0; i < SERVICE_QTY; i++) {
+            registry.registerService(newInstance("service" + i));
+        }
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        registry.close();
+        CloseableUtils.closeQuietly(client);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testConcurrentLookupsShareProviders() throws Exception {
+        ServiceDiscoverer discoverer = new ServiceDiscoverer(client, BASE_PATH);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Boolean>> futures = Lists.newArrayList();
+            for (int t = 0; t < 16; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 100; i++) {
+                        String name = "service" + (i % SERVICE_QTY);
+                        ServiceInstance<InstanceDetails> instance = discoverer.getInstanceByName(name);
+                        if (instance == null || !instance.getName().equals(name)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            start.countDown();
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get(30, TimeUnit.SECONDS));
+            }
+            assertEquals(SERVICE_QTY, discoverer.getProviderCount());
+            assertNotNull(discoverer.getCachedInstance("service0"));
+        } finally {
+            discoverer.close();
+        }
+    }
+
+    public void testProviderCreatedDuringCloseIsClosed() throws Exception {
+        // 在检查closed之后、放入map之前(创建策略时)停住，让close先执行完
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        ServiceDiscoverer discoverer = new ServiceDiscoverer(client, BASE_PATH, stats -> {
+            creating.countDown();
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ProviderStrategies.random().newStrategy(stats);
+        });
+        Future<ServiceInstance<InstanceDetails>> lookup = executor
+                .submit(() -> discoverer.getInstanceByName("service0"));
+        assertTrue(creating.await(10, TimeUnit.SECONDS));
+        discoverer.close();
+        closed.countDown();
+        try {
+            lookup.get(10, TimeUnit.SECONDS);
+            fail("Lookup racing with close succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, discoverer.getProviderCount());
+    }
+
+    public void testColdLookupFailsWhileUnreachable() throws Exception {
+        server.stop();
+        CuratorFramework cold = CuratorFrameworkFactory.newClient(server.getConnectString(), 5000, 1000,
+                new ExponentialBackoffRetry(100, 3));
+        cold.start();
+        ServiceDiscoverer discoverer = new ServiceDiscoverer(cold, BASE_PATH);
+        try {
+            Future<ServiceInstance<InstanceDetails>> lookup = executor
+                    .submit(() -> discoverer.getInstanceByName("service0"));
+            try {
+                lookup.get(10, TimeUnit.SECONDS);
+                fail("Cold lookup succeeded without ZooKeeper");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof KeeperException.ConnectionLossException);
+            }
+
+            // 恢复后下一次查询重新启动缓存
+            server.restart();
+            assertTrue(cold.blockUntilConnected(10, TimeUnit.SECONDS));
+            assertEquals("service0", discoverer.getInstanceByName("service0").getName());
+        } finally {
+            discoverer.close();
+            CloseableUtils.closeQuietly(cold);
+        }
+    }
+
+    private static ServiceInstance<InstanceDetails> newInstance(String name) throws Exception {
+        return ServiceInstance.<InstanceDetails>builder()
+                .name(name)
+                .address("127.0.0.1")
+                .port(8080)
+                .payload(new InstanceDetails(UUID.randomUUID().toString(), "127.0.0.1", 8080, name))
+                .build();
+    }
+}
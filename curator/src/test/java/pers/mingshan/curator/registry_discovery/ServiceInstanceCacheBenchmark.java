@@ -0,0 +1,138 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.zookeeper.data.Stat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * 增量缓存与全量重读的对比
+ *
+ * 不连接ZooKeeper，直接向 {@link ServiceInstanceCache} 投递节点变化。
+ * 在10/100/1000个实例下，每次只修改一个实例，统计每次变化事件的CPU时间和内存分配：
+ * <pre>
+ *  full   每次变化重新解析全部实例并重建列表(原先的做法)
+ *  delta  ServiceInstanceCache 只解析变化的节点
+ * </pre>
+ *
+ * @author mingshan
+ *
+ */
+public class ServiceInstanceCacheBenchmark {
+    private static final int[] SIZES = {10, 100, 1000};
+    private static final int CHANGES = 2000;
+    private static final String SERVICE_PATH = "/services/service1";
+
+    public static void main(String[] args) throws Exception {
+        // 只用来构造PathChildrenCache，不会启动
+        CuratorFramework client = CuratorFrameworkFactory.newClient("127.0.0.1:2181",
+                new ExponentialBackoffRetry(1000, 3));
+        CompactInstanceSerializer serializer = new CompactInstanceSerializer(true);
+        System.out.printf("%10s %8s %16s %16s%n", "instances", "mode", "cpu us/change", "bytes/change");
+        try {
+            for (int size : SIZES) {
+                byte[][] nodes = new byte[size][];
+                String[] paths = new String[size];
+                for (int i = 0; i < size; i++) {
+                    ServiceInstance<InstanceDetails> instance = newInstance(i);
+                    nodes[i] = serializer.serialize(instance);
+                    paths[i] = SERVICE_PATH + "/" + instance.getId();
+                }
+                runFull(size, nodes, serializer);
+                runDelta(size, nodes, paths, client, serializer);
+            }
+        } finally {
+            CloseableUtils.closeQuietly(client);
+        }
+    }
+
+    private static void runFull(int size, byte[][] nodes, CompactInstanceSerializer serializer) throws Exception {
+        // 预热
+        for (int c = 0; c < CHANGES / 10; c++) {
+            fullReload(nodes, serializer);
+        }
+        long cpu = cpuTime();
+        long allocated = allocatedBytes();
+        for (int c = 0; c < CHANGES; c++) {
+            fullReload(nodes, serializer);
+        }
+        report(size, "full", cpu, allocated);
+    }
+
+    private static List<ServiceInstance<InstanceDetails>> fullReload(byte[][] nodes,
+            CompactInstanceSerializer serializer) throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = Lists.newArrayListWithCapacity(nodes.length);
+        for (byte[] node : nodes) {
+            instances.add(serializer.deserialize(node));
+        }
+        return ImmutableList.copyOf(instances);
+    }
+
+    private static void runDelta(int size, byte[][] nodes, String[] paths, CuratorFramework client,
+            CompactInstanceSerializer serializer) throws Exception {
+        ServiceInstanceCache cache = new ServiceInstanceCache(client, "/services", "service1", serializer);
+        long zxid = 1;
+        for (int i = 0; i < size; i++) {
+            cache.applyChange(paths[i], nodes[i], stat(zxid++));
+        }
+        cache.childEvent(client, new PathChildrenCacheEvent(PathChildrenCacheEvent.Type.INITIALIZED, null));
+        for (int c = 0; c < CHANGES / 10; c++) {
+            int i = c % size;
+            cache.applyChange(paths[i], nodes[i], stat(zxid++));
+        }
+        long cpu = cpuTime();
+        long allocated = allocatedBytes();
+        for (int c = 0; c < CHANGES; c++) {
+            int i = c % size;
+            cache.applyChange(paths[i], nodes[i], stat(zxid++));
+        }
+        report(size, "delta", cpu, allocated);
+        if (cache.getInstances().size() != size) {
+            throw new IllegalStateException("unexpected cache size " + cache.getInstances().size());
+        }
+    }
+
+    private static Stat stat(long zxid) {
+        Stat stat = new Stat();
+        stat.setMzxid(zxid);
+        return stat;
+    }
+
+    private static void report(int size, String mode, long cpuStart, long allocatedStart) {
+        double cpuMicros = (cpuTime() - cpuStart) / 1000.0 / CHANGES;
+        long bytes = (allocatedBytes() - allocatedStart) / CHANGES;
+        System.out.printf("%10d %8s %16.2f %16d%n", size, mode, cpuMicros, bytes);
+    }
+
+    private static ServiceInstance<InstanceDetails> newInstance(int i) throws Exception {
+        String address = "192.168.1." + (i % 250);
+        return ServiceInstance.<InstanceDetails>builder()
+                .name("service1")
+                .address(address)
+                .port(12345)
+                .payload(new InstanceDetails(UUID.randomUUID().toString(), address, 12345, "Test.Service1"))
+                .build();
+    }
+
+    private static long cpuTime() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
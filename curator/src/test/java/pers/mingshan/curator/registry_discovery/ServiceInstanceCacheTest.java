@@ -0,0 +1,136 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.zookeeper.KeeperException;
+
+import junit.framework.TestCase;
+
+/**
+ * 增量事件(新增/修改/删除)、无法解析的节点，以及ZooKeeper不可达时初始加载超时
+ */
+public class ServiceInstanceCacheTest extends TestCase {
+    private static final String BASE_PATH = "/services";
+    private static final String SERVICE = "service1";
+
+    private TestingServer server;
+    private CuratorFramework client;
+    private ServiceRegistry registry;
+    private ServiceInstanceCache cache;
+    private final BlockingQueue<ServiceInstanceEvent> events = new LinkedBlockingQueue<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(server.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        registry = new ServiceRegistry(client, BASE_PATH);
+        cache = new ServiceInstanceCache(client, BASE_PATH, SERVICE, new CompactInstanceSerializer());
+        cache.getListenable().addListener(events::add);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(cache);
+        registry.close();
+        CloseableUtils.closeQuietly(client);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testDeltaEvents() throws Exception {
+        ServiceInstance<InstanceDetails> a = newInstance("a", 1);
+        registry.registerService(a);
+        cache.start();
+        assertEvent(ServiceInstanceEvent.Type.ADDED, a, null);
+        assertEquals(1, cache.getInstances().size());
+
+        ServiceInstance<InstanceDetails> b = newInstance("b", 1);
+        registry.registerService(b);
+        assertEvent(ServiceInstanceEvent.Type.ADDED, b, null);
+        assertEquals(2, cache.getInstances().size());
+
+        ServiceInstance<InstanceDetails> heavier = newInstance("b", 5);
+        registry.updateService(heavier);
+        ServiceInstanceEvent updated = assertEvent(ServiceInstanceEvent.Type.UPDATED, heavier, b);
+        assertEquals(5, updated.getInstance().getPayload().getWeight());
+        assertEquals(5, cache.getInstance("b").getPayload().getWeight());
+
+        registry.unregisterService(heavier);
+        assertEvent(ServiceInstanceEvent.Type.REMOVED, heavier, heavier);
+        assertNull(cache.getInstance("b"));
+        assertEquals(1, cache.getInstances().size());
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    public void testUndeserializableNodeIsSkipped() throws Exception {
+        ServiceInstance<InstanceDetails> a = newInstance("a", 1);
+        registry.registerService(a);
+        String brokenPath = ZKPaths.makePath(ZKPaths.makePath(BASE_PATH, SERVICE), "broken");
+        client.create().forPath(brokenPath, new byte[] { 9, 9, 9 });
+        cache.start();
+        assertEvent(ServiceInstanceEvent.Type.ADDED, a, null);
+        assertEquals(1, cache.getInstances().size());
+        assertNull(cache.getInstance("broken"));
+
+        // 节点修复后作为新实例加入
+        ServiceInstance<InstanceDetails> fixed = newInstance("broken", 1);
+        client.setData().forPath(brokenPath, new CompactInstanceSerializer().serialize(fixed));
+        assertEvent(ServiceInstanceEvent.Type.ADDED, fixed, null);
+        assertEquals(2, cache.getInstances().size());
+    }
+
+    public void testInitialLoadTimesOutWhenUnreachable() throws Exception {
+        server.stop();
+        CuratorFramework cold = CuratorFrameworkFactory.newClient(server.getConnectString(), 5000, 1000,
+                new ExponentialBackoffRetry(100, 3));
+        cold.start();
+        ServiceInstanceCache coldCache = new ServiceInstanceCache(cold, BASE_PATH, SERVICE,
+                new CompactInstanceSerializer());
+        long start = System.nanoTime();
+        try {
+            coldCache.start();
+            fail("Initial load completed without ZooKeeper");
+        } catch (KeeperException.ConnectionLossException expected) {
+            // 连接超时时间之后失败
+        } finally {
+            CloseableUtils.closeQuietly(coldCache);
+            CloseableUtils.closeQuietly(cold);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + elapsedMs + " ms", elapsedMs >= 900 && elapsedMs < 5000);
+    }
+
+    private ServiceInstanceEvent assertEvent(ServiceInstanceEvent.Type type, ServiceInstance<InstanceDetails> instance,
+            ServiceInstance<InstanceDetails> previous) throws InterruptedException {
+        ServiceInstanceEvent event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no " + type + " event for " + instance.getId(), event);
+        assertEquals(type, event.getType());
+        assertEquals(instance.getId(), event.getInstance().getId());
+        if (previous == null) {
+            assertNull(event.getPrevious());
+        } else {
+            assertEquals(previous.getPayload(), event.getPrevious().getPayload());
+        }
+        return event;
+    }
+
+    private static ServiceInstance<InstanceDetails> newInstance(String id, int weight) throws Exception {
+        return ServiceInstance.<InstanceDetails>builder()
+                .name(SERVICE)
+                .id(id)
+                .address("127.0.0.1")
+                .port(8080)
+                .payload(new InstanceDetails(id, "127.0.0.1", 8080, SERVICE, null, null, weight))
+                .build();
+    }
+}
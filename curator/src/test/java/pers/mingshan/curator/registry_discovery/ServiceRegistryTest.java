@@ -0,0 +1,104 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.zookeeper.KeeperException;
+
+import junit.framework.TestCase;
+
+/**
+ * 批量注册/注销要么全部生效要么全部不生效，服务节点被删除后仍然可以批量注册
+ */
+public class ServiceRegistryTest extends TestCase {
+    private static final String BASE_PATH = "/services";
+
+    private TestingServer server;
+    private CuratorFramework client;
+    private ServiceRegistry registry;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(server.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+        registry = new ServiceRegistry(client, BASE_PATH);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        registry.close();
+        CloseableUtils.closeQuietly(client);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testRegisterIsAllOrNothing() throws Exception {
+        ServiceInstance<InstanceDetails> existing = newInstance("service1");
+        ServiceInstance<InstanceDetails> fresh1 = newInstance("service1");
+        ServiceInstance<InstanceDetails> fresh2 = newInstance("service2");
+        registry.registerServices(Arrays.asList(existing));
+        try {
+            registry.registerServices(Arrays.asList(fresh1, fresh2, existing));
+            fail("Registered a duplicate instance");
+        } catch (KeeperException.NodeExistsException expected) {
+            // existing已经注册
+        }
+        assertTrue(isRegistered(existing));
+        assertFalse(isRegistered(fresh1));
+        assertFalse(isRegistered(fresh2));
+
+        registry.registerServices(Arrays.asList(fresh1, fresh2));
+        assertTrue(isRegistered(fresh1));
+        assertTrue(isRegistered(fresh2));
+    }
+
+    public void testUnregisterIsAllOrNothing() throws Exception {
+        ServiceInstance<InstanceDetails> registered = newInstance("service1");
+        ServiceInstance<InstanceDetails> missing = newInstance("service1");
+        registry.registerServices(Arrays.asList(registered));
+        try {
+            registry.unregisterServices(Arrays.asList(registered, missing));
+            fail("Unregistered a missing instance");
+        } catch (KeeperException.NoNodeException expected) {
+            // missing没有注册过
+        }
+        assertTrue(isRegistered(registered));
+
+        registry.unregisterServices(Arrays.asList(registered));
+        assertFalse(isRegistered(registered));
+    }
+
+    public void testRegisterAfterServicePathDeleted() throws Exception {
+        ServiceInstance<InstanceDetails> first = newInstance("service1");
+        registry.registerServices(Arrays.asList(first));
+        registry.unregisterServices(Arrays.asList(first));
+        // 服务节点被其他进程删除，本地仍记录着它已经存在
+        client.delete().forPath(ZKPaths.makePath(BASE_PATH, "service1"));
+
+        ServiceInstance<InstanceDetails> second = newInstance("service1");
+        registry.registerServices(Arrays.asList(second));
+        assertTrue(isRegistered(second));
+    }
+
+    private boolean isRegistered(ServiceInstance<InstanceDetails> instance) throws Exception {
+        String path = ZKPaths.makePath(ZKPaths.makePath(BASE_PATH, instance.getName()), instance.getId());
+        return client.checkExists().forPath(path) != null;
+    }
+
+    private static ServiceInstance<InstanceDetails> newInstance(String name) throws Exception {
+        return ServiceInstance.<InstanceDetails>builder()
+                .name(name)
+                .address("127.0.0.1")
+                .port(8080)
+                .payload(new InstanceDetails(UUID.randomUUID().toString(), "127.0.0.1", 8080, name))
+                .build();
+    }
+}
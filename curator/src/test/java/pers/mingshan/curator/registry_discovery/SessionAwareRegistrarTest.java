@@ -0,0 +1,115 @@
+package pers.mingshan.curator.registry_discovery;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.x.discovery.ServiceInstance;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+/**
+ * 会话过期后批量恢复注册
+ */
+public class SessionAwareRegistrarTest extends TestCase {
+    private static final String BASE_PATH = "services";
+    private static final int INSTANCE_QTY = 20;
+
+    private TestingServer server;
+    private CuratorFramework client;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(server.getConnectString(), 5000, 5000,
+                new ExponentialBackoffRetry(100, 3));
+        client.start();
+        client.blockUntilConnected();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CloseableUtils.closeQuietly(client);
+        CloseableUtils.closeQuietly(server);
+    }
+
+    public void testReRegisterAfterSessionExpiry() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry(client, BASE_PATH);
+        SessionAwareRegistrar registrar = new SessionAwareRegistrar(client, registry, 100, 100, 1000, 0);
+        try {
+            registrar.start();
+            List<ServiceInstance<InstanceDetails>> instances = newInstances();
+            registrar.register(instances);
+            assertEquals(INSTANCE_QTY, countRegistered(instances));
+
+            KillSession.kill(client.getZookeeperClient().getZooKeeper(), server.getConnectString());
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+            while (registrar.getRecoveries() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, registrar.getRecoveries());
+            assertEquals(INSTANCE_QTY, registrar.getReRegisteredInstances());
+            assertTrue(registrar.getLastRecoveryMillis() >= 0);
+            assertEquals(INSTANCE_QTY, countRegistered(instances));
+        } finally {
+            registrar.close();
+            registry.close();
+        }
+    }
+
+    public void testHeartbeatRestoresDeletedInstance() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry(client, BASE_PATH);
+        SessionAwareRegistrar registrar = new SessionAwareRegistrar(client, registry, 100, 100, 1000, 200);
+        try {
+            registrar.start();
+            List<ServiceInstance<InstanceDetails>> instances = newInstances();
+            registrar.register(instances);
+
+            registry.unregisterServices(instances.subList(0, 1));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (countRegistered(instances) < INSTANCE_QTY && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(INSTANCE_QTY, countRegistered(instances));
+            assertEquals(1, registrar.getReRegisteredInstances());
+        } finally {
+            registrar.close();
+            registry.close();
+        }
+    }
+
+    private int countRegistered(List<ServiceInstance<InstanceDetails>> instances) throws Exception {
+        int count = 0;
+        for (ServiceInstance<InstanceDetails> instance : instances) {
+            String path = "/" + BASE_PATH + "/" + instance.getName() + "/" + instance.getId();
+            if (client.checkExists().forPath(path) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private List<ServiceInstance<InstanceDetails>> newInstances() throws Exception {
+        List<ServiceInstance<InstanceDetails>> instances = Lists.newArrayList();
+        for (int i = 0; i < INSTANCE_QTY; i++) {
+            instances.add(ServiceInstance.<InstanceDetails>builder()
+                    .name("service" + (i % 4))
+                    .address("192.168.1.100")
+                    .port(12345 + i)
+                    .payload(new InstanceDetails(UUID.randomUUID().toString(), "192.168.1.100", 12345 + i,
+                            "Test.Service" + (i % 4)))
+                    .build());
+        }
+        return instances;
+    }
+}